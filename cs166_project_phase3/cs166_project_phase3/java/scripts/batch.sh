@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#run a command file in batch mode (reads stdin when no file is given)
+#Use your database name, port number and login, then [command file] [batch size]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BatchRunner $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#write the orders of a date range to CSV or JSON Lines files
+#Use your database name, port number and login, then <outPrefix> <fromDate> <toDate> [storeID|all] [csv|jsonl] [--gzip] [--splitMB n]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderExport $USER"_project_phase_3_DB" $PGPORT $USER "$@"
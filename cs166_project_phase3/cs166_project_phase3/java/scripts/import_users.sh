@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#bulk create or update users from a CSV file in the users.csv format
+#Use your database name, port number and login, then <csv file> [rows per transaction] [--check]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar UserImport $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#run the load test
+#Use your database name, port number and login, then
+#[arrivals per second] [seconds] [worker threads]
+#STORE=memory runs against an in-memory copy of ../../data instead of Postgres
+java -Dpizza.store=${STORE:-postgres} -Dpizza.dataDir=$DIR/../../data -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadTest $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#convert Users.role and FoodOrder.orderStatus to enum types while the application runs
+#Use your database name, port number and login, then check, migrate [--bench], compact or bench
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar EnumMigration $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#move orders onto the shard of their store, with the instances stopped
+#Use your database name, port number and login, then check or migrate; set PIZZA_SHARDS like pizza.shards
+java -Dpizza.shards="$PIZZA_SHARDS" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ShardMigration $USER"_project_phase_3_DB" $PGPORT $USER "$@"
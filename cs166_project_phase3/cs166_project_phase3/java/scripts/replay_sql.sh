@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#replay a SQL capture (recorded with -Dpizza.capture=<file>) and compare latencies
+#Use your database name, port number and login, then <captureFile> [1x|Nx|max]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SqlReplay $USER"_project_phase_3_DB" $PGPORT $USER "$@"
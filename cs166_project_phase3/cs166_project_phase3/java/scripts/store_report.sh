@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+#print the end-of-day report of every store, progress goes to stderr
+#Use your database name, port number and login, then <fromDate> [toDate]
+#REPORT_OUTPUT=csv with stdout redirected writes a nightly file, REPORT_PARALLELISM sets the workers
+java -Dpizza.output=${REPORT_OUTPUT:-aligned} -Dpizza.report.parallelism=${REPORT_PARALLELISM:-8} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar StoreReportEngine $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,295 @@
+/*
+ * Order Admission Control
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class limits how many orders are submitted at once so a promotion
+ * rush slows down order placement instead of taking the database down for
+ * everyone.  An order needs a permit, which takes
+ *
+ *    a token from the global bucket and from its store's bucket (rate), and
+ *    a free slot below the global and per-store in-flight limits.
+ *
+ * Every user runs in a process of their own, so the in-flight slots are
+ * kept in the database where all instances see them: a slot is a session
+ * advisory lock, taken with pg_try_advisory_lock on the session placing
+ * the order and unlocked on release (or when the session dies).  The
+ * token buckets are kept in each process and limit the orders of that
+ * instance; the in-flight slots are what bounds the load all instances
+ * put on the database together.  Slots are tried one statement each,
+ * a few random ones per attempt, so a lock is only ever taken on the slot
+ * that is kept.  When the database cannot be asked at all the order is
+ * admitted, so the order journal can take it.
+ *
+ * With the order journal on, an order only needs its tokens: placeOrder
+ * returns once the order is appended, and the journal's one replayer
+ * thread is all this instance writes orders with, so a slot would be
+ * given back long before the order reaches the database and would bound
+ * nothing while costing round trips.  Orders written directly because
+ * the journal is full take no slot either.
+ *
+ * A caller that cannot get a permit waits up to maxWaitMs and is then
+ * rejected with a retry-after hint.  The global rate and in-flight limit
+ * are scaled down multiplicatively whenever the observed commit latency of
+ * orders goes over the target and grown back additively while it stays
+ * under it (AIMD), so under overload the database runs near its target
+ * latency instead of queueing without bound.
+ *
+ * Tunables (system properties, prefix pizza.admission.): globalRate (200
+ * orders/s per instance), storeRate (10/s per instance), burstSeconds (2),
+ * globalInFlight (32), storeInFlight (4, at most 255), targetLatencyMs
+ * (200), maxWaitMs (2000).
+ *
+ */
+public class AdmissionController {
+
+   /**
+    * A granted admission.  Hand it back with release().
+    */
+   public static class Permit {
+      final PizzaStore session;
+      final int storeID;
+      final int globalSlot;   // -1 when admitted without the database
+      final int storeSlot;
+
+      Permit(PizzaStore session, int storeID, int globalSlot, int storeSlot) {
+         this.session = session;
+         this.storeID = storeID;
+         this.globalSlot = globalSlot;
+         this.storeSlot = storeSlot;
+      }
+   }//end Permit
+
+   /**
+    * Thrown when an order is not admitted in time.
+    */
+   public static class RejectedException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      public final long retryAfterMs;
+
+      RejectedException(long retryAfterMs) {
+         super("Too many orders right now, please retry in " + Math.max(1, (retryAfterMs + 999) / 1000) + " second(s)");
+         this.retryAfterMs = retryAfterMs;
+      }
+   }//end RejectedException
+
+   // advisory lock keys (key1, key2): global slots are (GLOBAL_KEY, slot),
+   // the slots of a store (STORE_KEY + slot, storeID)
+   static final int GLOBAL_KEY = 0x505a4100;
+   static final int STORE_KEY = 0x505a4200;
+
+   // slots tried per attempt, so a full limit costs a few round trips
+   static final int SLOT_TRIES = 4;
+
+   /*
+    * A token bucket.
+    **/
+   static class Bucket {
+      double ratePerSec;
+      double capacity;
+      double tokens;
+      long lastRefill = System.nanoTime();
+
+      Bucket(double ratePerSec, double burstSeconds) {
+         this.ratePerSec = ratePerSec;
+         this.capacity = Math.max(1, ratePerSec * burstSeconds);
+         this.tokens = capacity;
+      }
+
+      void refill(long now, double scale) {
+         tokens = Math.min(capacity * scale, tokens + (now - lastRefill) / 1e9 * ratePerSec * scale);
+         lastRefill = now;
+      }
+
+      boolean available() {
+         return tokens >= 1;
+      }
+
+      long msUntilToken(double scale) {
+         return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / (ratePerSec * scale) * 1000);
+      }
+   }//end Bucket
+
+   private final Bucket global;
+   private final Map<Integer, Bucket> stores = new HashMap<Integer, Bucket>();
+   private final double storeRate;
+   private final double burstSeconds;
+   private final int globalInFlight;
+   private final int storeInFlight;
+   private final long targetLatencyNanos;
+   private final long maxWaitMs;
+
+   // AIMD factor applied to the global rate and in-flight limit
+   private double scale = 1.0;
+   private double avgLatencyNanos = 0;
+
+   public AdmissionController() {
+      burstSeconds = Double.parseDouble(System.getProperty("pizza.admission.burstSeconds", "2"));
+      global = new Bucket(Double.parseDouble(System.getProperty("pizza.admission.globalRate", "200")), burstSeconds);
+      globalInFlight = Integer.getInteger("pizza.admission.globalInFlight", 32);
+      storeRate = Double.parseDouble(System.getProperty("pizza.admission.storeRate", "10"));
+      storeInFlight = Math.min(255, Integer.getInteger("pizza.admission.storeInFlight", 4));
+      targetLatencyNanos = Long.getLong("pizza.admission.targetLatencyMs", 200L) * 1000000L;
+      maxWaitMs = Long.getLong("pizza.admission.maxWaitMs", 2000L);
+   }
+
+   /**
+    * Gets a permit to submit an order for a store, waiting up to maxWaitMs.
+    *
+    * @param esql the session the order is placed on, which holds the
+    *        in-flight slots until release()
+    * @param storeID the store the order is for
+    * @param slots false when the order goes to the journal, see above
+    * @return the permit
+    * @throws RejectedException when no permit was free in time
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public Permit acquire(PizzaStore esql, int storeID, boolean slots) throws RejectedException, InterruptedException {
+      long deadline = System.currentTimeMillis() + maxWaitMs;
+      takeTokens(storeID, deadline);
+      if (!slots) return new Permit(esql, storeID, -1, -1);
+
+      long pause = 5;
+      while (true) {
+         int globalSlot;
+         int storeSlot = -1;
+         try{
+            globalSlot = trySlot(esql, GLOBAL_KEY + ", %d", Math.max(1, (int) (globalInFlight * currentScale())));
+            if (globalSlot >= 0) {
+               storeSlot = trySlot(esql, STORE_KEY + " + %d, " + storeID, storeInFlight);
+               if (storeSlot < 0) unlock(esql, "pg_advisory_unlock(" + GLOBAL_KEY + ", " + globalSlot + ")");
+            }
+         }catch(SQLException e){
+            return new Permit(esql, storeID, -1, -1);
+         }
+         if (storeSlot >= 0) return new Permit(esql, storeID, globalSlot, storeSlot);
+
+         long left = deadline - System.currentTimeMillis();
+         if (left <= 0) {
+            refundTokens(storeID);   // nothing was submitted with them
+            throw new RejectedException(retryAfterMs(storeID));
+         }
+         Thread.sleep(Math.min(pause, left));
+         pause = Math.min(pause * 2, 100);
+      }
+   }//end acquire
+
+   /*
+    * Takes a token from the global and the store's bucket, waiting until
+    * both have one.
+    **/
+   private synchronized void takeTokens(int storeID, long deadline) throws RejectedException, InterruptedException {
+      Bucket store = bucket(storeID);
+      while (true) {
+         long now = System.nanoTime();
+         global.refill(now, scale);
+         store.refill(now, 1.0);
+         if (global.available() && store.available()) break;
+
+         long waitMs = Math.max(1, Math.max(global.msUntilToken(scale), store.msUntilToken(1.0)));
+         long left = deadline - System.currentTimeMillis();
+         if (left <= 0) throw new RejectedException(retryAfterMs(storeID));
+         wait(Math.min(waitMs, left));
+      }
+      global.tokens -= 1;
+      store.tokens -= 1;
+   }//end takeTokens
+
+   /*
+    * Puts back the tokens of an order that was rejected after taking them.
+    **/
+   private synchronized void refundTokens(int storeID) {
+      Bucket store = bucket(storeID);
+      global.tokens = Math.min(global.capacity * scale, global.tokens + 1);
+      store.tokens = Math.min(store.capacity, store.tokens + 1);
+      notifyAll();
+   }//end refundTokens
+
+   /*
+    * Locks a free slot of 0..slots-1, trying up to SLOT_TRIES of them one
+    * at a time from a random one, or returns -1 when those are held (acquire
+    * tries again).  keys are the two lock arguments with %d for the slot.
+    * One statement per slot: a lock function in a WHERE clause may be run
+    * on more rows than LIMIT returns, leaving locks nobody releases.
+    **/
+   private static int trySlot(PizzaStore esql, String keys, int slots) throws SQLException {
+      int first = ThreadLocalRandom.current().nextInt(slots);
+      for (int i = 0; i < Math.min(slots, SLOT_TRIES); i++) {
+         int slot = (first + i) % slots;
+         List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT pg_try_advisory_lock("
+            + String.format(keys, slot) + ")");
+         if (rows.get(0).get(0).trim().equals("t")) return slot;
+      }
+      return -1;
+   }//end trySlot
+
+   private static void unlock(PizzaStore esql, String unlocks) {
+      try{
+         esql.executeQueryAndReturnResult("SELECT " + unlocks);
+      }catch(SQLException e){
+         // a session that cannot unlock is broken, and its locks went with it
+      }
+   }//end unlock
+
+   /**
+    * Gives a permit back once the order was submitted (or failed).
+    */
+   public void release(Permit permit) {
+      if (permit == null || permit.globalSlot < 0) return;
+      unlock(permit.session, "pg_advisory_unlock(" + GLOBAL_KEY + ", " + permit.globalSlot + "), pg_advisory_unlock("
+         + (STORE_KEY + permit.storeSlot) + ", " + permit.storeID + ")");
+   }//end release
+
+   /**
+    * Feeds one observed order commit latency into the adaptive limit.
+    *
+    * @param nanos time from submitting the order to its commit
+    */
+   public synchronized void recordCommitLatency(long nanos) {
+      // one stale order (e.g. replayed after a restart) must not stall everything
+      nanos = Math.min(nanos, targetLatencyNanos * 10);
+      avgLatencyNanos = (avgLatencyNanos == 0) ? nanos : avgLatencyNanos * 0.9 + nanos * 0.1;
+      if (avgLatencyNanos > targetLatencyNanos) {
+         scale = Math.max(0.05, scale * 0.9);    // back off fast
+      }else{
+         scale = Math.min(1.0, scale + 0.01);    // recover slowly
+      }
+   }//end recordCommitLatency
+
+   /**
+    * @return the fraction of the configured global limits currently allowed
+    */
+   public synchronized double currentScale() {
+      return scale;
+   }
+
+   private synchronized Bucket bucket(int storeID) {
+      Bucket store = stores.get(storeID);
+      if (store == null) {
+         store = new Bucket(storeRate, burstSeconds);
+         stores.put(storeID, store);
+      }
+      return store;
+   }//end bucket
+
+   private synchronized long retryAfterMs(int storeID) {
+      long tokens = Math.max(global.msUntilToken(scale), bucket(storeID).msUntilToken(1.0));
+      return Math.max(tokens, (long) (avgLatencyNanos / 1000000L)) + 500;
+   }
+}//end AdmissionController
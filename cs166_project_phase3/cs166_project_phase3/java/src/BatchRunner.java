@@ -0,0 +1,360 @@
+/*
+ * Batch Command Mode
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * This class runs the operations staff usually do through updateOrderStatus,
+ * updateMenu and updateUser from a command file (or standard input) instead
+ * of the interactive menus.  Commands are one per line, fields separated by
+ * '|', and '#' starts a comment:
+ *
+ *    status|orderID|incomplete, delivering or complete
+ *    closestore|storeID                  (complete every open order of a store)
+ *    price|itemName|newPrice
+ *    scaleprices|typeOfItem or *|factor  (e.g. scaleprices|drinks|1.10)
+ *    role|login|customer, driver or manager
+ *    user|login|password|phoneNum[|role]
+ *    stock|storeID|ingredient|quantity  (set a store's ingredient stock)
+ *
+ * Every line is validated in memory before it is sent.  Valid lines go out
+ * in JDBC batches, one transaction per batch.  If a batch fails it is rolled
+ * back and re-run one line at a time so the bad line can be reported with
+ * its line number while the rest still goes through.
+ *
+ * With pizza.shards set (see ShardRouter), status lines go to the shard of
+ * the order, closestore and stock lines to the shard of the store, and the
+ * other commands, which change replicated tables, to every shard.  A batch
+ * is committed only once it succeeded on every shard.
+ *
+ */
+public class BatchRunner {
+
+   static final int DEFAULT_BATCH_SIZE = 1000;
+
+   /**
+    * A validated command: the source line it came from, its SQL and the
+    * shard it runs on (-1 for every shard).
+    */
+   static class Command {
+      final int lineNo;
+      final String text;
+      final String sql;
+      final int shard;
+
+      Command(int lineNo, String text, String sql, int shard) {
+         this.lineNo = lineNo;
+         this.text = text;
+         this.sql = sql;
+         this.shard = shard;
+      }
+
+      int first() { return shard < 0 ? 0 : shard; }
+   }//end Command
+
+   private final ShardRouter shards;
+   private final PizzaStore[] sessions;   // one per shard, shard 0 first
+   private final int batchSize;
+   private int applied = 0;
+   private int failed = 0;
+
+   public BatchRunner(PizzaStore esql, int batchSize) {
+      this(null, new PizzaStore[] { esql }, batchSize);
+   }
+
+   /**
+    * @param shards the shard router, or null for a single database
+    * @param sessions a session of every shard, shard 0 first
+    * @param batchSize the number of commands per transaction
+    */
+   public BatchRunner(ShardRouter shards, PizzaStore[] sessions, int batchSize) {
+      this.shards = shards;
+      this.sessions = sessions;
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [commandFile|-] [batchSize]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BatchRunner.class.getName () +
+            " <dbname> <port> <user> [commandFile|-] [batchSize]");
+         return;
+      }//end if
+
+      ConnectionPool pool = null;
+      ShardRouter shards = null;
+      List<PizzaStore> sessions = new ArrayList<PizzaStore>();
+      try{
+         Class.forName ("org.postgresql.Driver");
+         pool = new ConnectionPool (args[0], args[1], args[2], "", 1);
+         shards = ShardRouter.open(pool, args[2], "", 1);
+         if (shards == null) {
+            sessions.add(pool.borrow());
+         }else{
+            shards.loadLegacy();
+            for (int i = 0; i < shards.size(); i++) sessions.add(shards.borrow(i));
+         }
+
+         BufferedReader input = (args.length < 4 || args[3].equals("-"))
+            ? new BufferedReader(new InputStreamReader(System.in))
+            : new BufferedReader(new FileReader(args[3]));
+         int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_BATCH_SIZE;
+
+         BatchRunner runner = new BatchRunner(shards, sessions.toArray(new PizzaStore[0]), batchSize);
+         long start = System.currentTimeMillis();
+         runner.run(input);
+         input.close();
+         System.out.println(runner.applied + " commands applied, " + runner.failed + " failed in "
+            + (System.currentTimeMillis() - start) + " ms");
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if(shards != null) {
+            for (PizzaStore session : sessions) shards.release(session);
+            shards.closeAll();
+         }
+         if(pool != null) pool.closeAll ();
+      }//end try
+   }//end main
+
+   /**
+    * Reads, validates and executes every command of the input.
+    *
+    * @param input the command stream
+    * @throws Exception when the input cannot be read or the connection fails
+    */
+   public void run(BufferedReader input) throws Exception {
+      List<Command> pending = new ArrayList<Command>();
+      String line;
+      int lineNo = 0;
+      while ((line = input.readLine()) != null) {
+         lineNo++;
+         line = line.trim();
+         if (line.length() == 0 || line.startsWith("#")) continue;
+         try{
+            pending.add(new Command(lineNo, line, toSql(line), shardOf(line)));
+         }catch(IllegalArgumentException e){
+            error(lineNo, line, e.getMessage());
+         }
+         if (pending.size() >= batchSize) {
+            flush(pending);
+            pending.clear();
+         }
+      }
+      flush(pending);
+   }//end run
+
+   /*
+    * The shard a command line runs on, -1 for every shard.
+    **/
+   private int shardOf(String line) {
+      if (shards == null) return 0;
+      String[] f = line.split("\\|", -1);
+      switch (f[0].trim().toLowerCase()) {
+         case "status":
+            return shards.shardOfOrder(Integer.parseInt(f[1].trim()));
+         case "closestore":
+         case "stock":
+            return shards.shardOfStore(Integer.parseInt(f[1].trim()));
+         default:
+            return -1;
+      }
+   }//end shardOf
+
+   /*
+    * Sends one batch in a single transaction per shard, falling back to one
+    * statement per transaction when the batch is rejected on any shard.
+    **/
+   private void flush(List<Command> batch) throws Exception {
+      if (batch.isEmpty()) return;
+      // the statements of each shard, and where each command's count is
+      List<List<String>> sqls = new ArrayList<List<String>>();
+      for (int s = 0; s < sessions.length; s++) sqls.add(new ArrayList<String>());
+      int[] at = new int[batch.size()];
+      for (int i = 0; i < batch.size(); i++) {
+         Command c = batch.get(i);
+         at[i] = sqls.get(c.first()).size();
+         for (int s = 0; s < sessions.length; s++) {
+            if (c.shard < 0 || c.shard == s) sqls.get(s).add(c.sql);
+         }
+      }
+
+      for (PizzaStore session : sessions) session.setAutoCommit(false);
+      try{
+         int[][] counts = new int[sessions.length][];
+         boolean ok = false;
+         try{
+            for (int s = 0; s < sessions.length; s++) {
+               counts[s] = sqls.get(s).isEmpty() ? new int[0] : sessions[s].executeBatch(sqls.get(s));
+            }
+            ok = true;
+         }catch(Exception e){
+            rollbackAll();
+         }
+         if (ok && commitAll()) {
+            for (int i = 0; i < batch.size(); i++) record(batch.get(i), counts[batch.get(i).first()][at[i]]);
+            return;
+         }
+         for (Command c : batch) {
+            try{
+               record(c, runOne(c));
+            }catch(Exception single){
+               error(c.lineNo, c.text, single.getMessage());
+            }
+         }
+      }finally{
+         for (PizzaStore session : sessions) session.setAutoCommit(true);
+      }
+   }//end flush
+
+   /*
+    * Runs one command in its own transaction on each of its shards.
+    **/
+   private int runOne(Command c) throws Exception {
+      int count = 0;
+      try{
+         for (int s = 0; s < sessions.length; s++) {
+            if (c.shard >= 0 && c.shard != s) continue;
+            int n = sessions[s].executeBatch(Collections.singletonList(c.sql))[0];
+            if (s == c.first()) count = n;
+         }
+      }catch(Exception e){
+         rollbackAll();
+         throw e;
+      }
+      if (!commitAll()) throw new SQLException("commit failed");
+      return count;
+   }//end runOne
+
+   /*
+    * Commits every shard.  Returns false, every shard rolled back, when
+    * shard 0 does not commit.  A later shard failing once shard 0 committed
+    * leaves the shards apart, which is reported rather than retried.
+    **/
+   private boolean commitAll() throws SQLException {
+      try{
+         sessions[0].commit();
+      }catch(SQLException e){
+         rollbackAll();
+         return false;
+      }
+      for (int s = 1; s < sessions.length; s++) {
+         try{
+            sessions[s].commit();
+         }catch(SQLException e){
+            throw new SQLException("shard " + s + " did not commit, shards differ: " + e.getMessage());
+         }
+      }
+      return true;
+   }//end commitAll
+
+   private void rollbackAll() throws SQLException {
+      for (PizzaStore session : sessions) session.rollback();
+   }
+
+   private void record(Command c, int updateCount) {
+      // closestore and scaleprices may legitimately touch no rows
+      if (updateCount == 0 && !c.text.startsWith("closestore") && !c.text.startsWith("scaleprices")) {
+         error(c.lineNo, c.text, "no matching row");
+      }else{
+         applied++;
+      }
+   }
+
+   private void error(int lineNo, String text, String message) {
+      failed++;
+      System.err.println("line " + lineNo + ": " + message + " -- " + text);
+   }
+
+   /**
+    * Validates one command line and turns it into its SQL statement.
+    *
+    * @param line the command line
+    * @return the SQL statement for the command
+    * @throws IllegalArgumentException when the command is malformed
+    */
+   static String toSql(String line) {
+      String[] f = line.split("\\|", -1);
+      for (int i = 0; i < f.length; i++) f[i] = f[i].trim();
+
+      switch (f[0].toLowerCase()) {
+         case "status":
+            expect(f, 3);
+            requireInteger(f[1], "orderID");
+            return "UPDATE FoodOrder SET orderStatus = \'" + OrderStatus.parse(f[2]) + "\' WHERE orderID = " + f[1];
+         case "closestore":
+            expect(f, 2);
+            requireInteger(f[1], "storeID");
+            return "UPDATE FoodOrder SET orderStatus = \'" + OrderStatus.COMPLETE + "\' WHERE storeID = " + f[1]
+               + " AND orderStatus = \'" + OrderStatus.INCOMPLETE + "\'";
+         case "price":
+            expect(f, 3);
+            if (!PizzaStore.isNumeric(f[2]) || f[2].startsWith("-"))
+               throw new IllegalArgumentException("price must be a positive number");
+            return "UPDATE Items SET price = " + f[2] + " WHERE itemName = \'" + escape(f[1]) + "\'";
+         case "scaleprices":
+            expect(f, 3);
+            if (!PizzaStore.isNumeric(f[2]) || f[2].startsWith("-"))
+               throw new IllegalArgumentException("factor must be a positive number");
+            return "UPDATE Items SET price = ROUND(price * " + f[2] + ", 2)"
+               + (f[1].equals("*") ? "" : " WHERE typeOfItem LIKE \'%" + escape(f[1]) + "\'");
+         case "role":
+            expect(f, 3);
+            return "UPDATE Users SET role = \'" + UserRole.parse(f[2]) + "\' WHERE login = \'" + escape(f[1]) + "\'";
+         case "user": {
+            if (f.length != 4 && f.length != 5)
+               throw new IllegalArgumentException("expected user|login|password|phoneNum[|role]");
+            UserRole role = f.length == 5 ? UserRole.parse(f[4]) : UserRole.CUSTOMER;
+            if (f[1].isEmpty() || f[2].isEmpty() || f[3].isEmpty())
+               throw new IllegalArgumentException("login, password and phone number cannot be empty");
+            return "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES (\'" + escape(f[1]) + "\', \'" + escape(f[2]) + "\', \'" + role
+               + "\', null, \'" + escape(f[3]) + "\')";
+         }
+         case "stock":
+            expect(f, 4);
+            requireInteger(f[1], "storeID");
+            requireInteger(f[3], "quantity");
+            if (f[2].isEmpty()) throw new IllegalArgumentException("ingredient cannot be empty");
+            return "INSERT INTO IngredientStock VALUES (" + f[1] + ", \'" + escape(f[2]) + "\', " + f[3]
+               + ") ON CONFLICT (storeID, ingredient) DO UPDATE SET quantity = EXCLUDED.quantity";
+         default:
+            throw new IllegalArgumentException("unknown command " + f[0]);
+      }
+   }//end toSql
+
+   private static void expect(String[] fields, int n) {
+      if (fields.length != n)
+         throw new IllegalArgumentException("expected " + (n - 1) + " field(s) after " + fields[0]);
+   }
+
+   private static void requireInteger(String s, String what) {
+      if (!s.matches("\\d+")) throw new IllegalArgumentException(what + " must be an integer");
+   }
+
+   private static String escape(String s) {
+      return s.replace("\'", "\'\'");
+   }
+}//end BatchRunner
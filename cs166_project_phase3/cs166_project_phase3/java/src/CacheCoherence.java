@@ -0,0 +1,229 @@
+/*
+ * Cache Coherence
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class keeps the in-process copies of Items, Store and Users data
+ * (menu index, menu snapshot, store ratings, the logged in user's role)
+ * and of order statuses (order details, recent orders) in step with
+ * writes made by other application instances.
+ *
+ * Triggers on those tables (create_triggers.sql) append (seq, table, key)
+ * to ChangeLog and NOTIFY cache_change.  Every instance listens on its own
+ * connection.  When notified, and every SWEEP_MS regardless, it reads the
+ * ChangeLog rows after the last one it applied and hands each changed key
+ * to the listeners registered for that table, which refresh exactly that
+ * entry.  A seq may commit after a higher one was already read, so skipped
+ * numbers are re-checked for HOLE_MS before they are given up on.
+ *
+ * Everything is refreshed instead when more than FULL_REFRESH_OVER rows
+ * arrive at once (a bulk import), or when the listener reconnects and the
+ * rows it missed have already been pruned from ChangeLog.  Rows older than
+ * an hour are pruned by whichever instance sweeps.
+ *
+ */
+public class CacheCoherence {
+
+   public static final String CHANNEL = "cache_change";
+
+   static final long POLL_MS = 250;
+   static final long SWEEP_MS = 30000;
+   static final long HOLE_MS = 10000;
+   static final int FULL_REFRESH_OVER = 1000;
+
+   /**
+    * Something holding a copy of one table.
+    */
+   public interface Listener {
+      /** The row with this key was inserted, updated or deleted. */
+      void changed(PizzaStore esql, String key) throws SQLException;
+
+      /** Changes may have been missed: reload everything. */
+      void refreshAll(PizzaStore esql) throws SQLException;
+   }//end Listener
+
+   private final Map<String, List<Listener>> listeners = new HashMap<String, List<Listener>>();
+   private final ConnectionPool pool;
+   private final TreeMap<Long, Long> holes = new TreeMap<Long, Long>();   // seq -> when first missed
+   private long lastSeq = -1;
+   private volatile boolean running = false;
+   private Thread thread;
+
+   public CacheCoherence(ConnectionPool pool) {
+      this.pool = pool;
+   }
+
+   /**
+    * Registers a listener for a table (Items, Store, Users or FoodOrder).
+    */
+   public synchronized void register(String table, Listener listener) {
+      String key = table.toLowerCase();
+      if (!listeners.containsKey(key)) listeners.put(key, new ArrayList<Listener>());
+      listeners.get(key).add(listener);
+   }//end register
+
+   /**
+    * Starts listening.  Changes made from now on are applied; the caches are
+    * assumed to have just been loaded.
+    */
+   public void start() {
+      running = true;
+      thread = new Thread(new Runnable() {
+         public void run() { listenLoop(); }
+      }, "cache-coherence");
+      thread.setDaemon(true);
+      thread.start();
+   }//end start
+
+   public void close() {
+      running = false;
+      if (thread != null) thread.interrupt();
+   }
+
+   private void listenLoop() {
+      long backoff = 250;
+      boolean reconnected = false;
+      while (running) {
+         PizzaStore esql = null;
+         try{
+            esql = pool.open();
+            esql.executeUpdate("LISTEN " + CHANNEL);
+            if (lastSeq < 0) {
+               lastSeq = Long.parseLong(esql.executeQueryAndReturnResult(
+                  "SELECT COALESCE(MAX(C.seq), 0) FROM ChangeLog C").get(0).get(0).trim());
+            }else if (reconnected) {
+               catchUp(esql);
+            }
+            backoff = 250;
+
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+               boolean notified = !esql.pollNotifications().isEmpty();
+               boolean sweep = System.currentTimeMillis() - lastSweep >= SWEEP_MS;
+               if (notified || sweep || !holes.isEmpty()) apply(esql);
+               if (sweep) {
+                  esql.executeUpdate("DELETE FROM ChangeLog WHERE changedAt < now() - interval '1 hour'");
+                  lastSweep = System.currentTimeMillis();
+               }
+               Thread.sleep(POLL_MS);
+            }
+         }catch(InterruptedException e){
+            break;
+         }catch(Exception e){
+            System.err.println("Cache coherence: listener lost (" + e.getMessage() + "), reconnecting");
+            reconnected = true;
+            try { Thread.sleep(backoff); } catch (InterruptedException ie) { break; }
+            backoff = Math.min(backoff * 2, 10000);
+         }finally{
+            if (esql != null) esql.cleanup();
+         }
+      }
+   }//end listenLoop
+
+   /*
+    * After a reconnect: if rows we never saw were pruned, the log cannot
+    * tell us what changed and everything is reloaded.
+    **/
+   private void catchUp(PizzaStore esql) throws SQLException {
+      List<List<String>> oldest = esql.executeQueryAndReturnResult("SELECT MIN(C.seq) FROM ChangeLog C");
+      String min = oldest.get(0).get(0);
+      if (min != null && Long.parseLong(min.trim()) > lastSeq + 1) {
+         refreshAll(esql, "gap after reconnect");
+         lastSeq = Long.parseLong(esql.executeQueryAndReturnResult(
+            "SELECT COALESCE(MAX(C.seq), 0) FROM ChangeLog C").get(0).get(0).trim());
+         holes.clear();
+      }else{
+         apply(esql);
+      }
+   }//end catchUp
+
+   /*
+    * Reads new ChangeLog rows (and late commits into earlier holes) and
+    * applies them.
+    **/
+   private void apply(PizzaStore esql) throws SQLException {
+      long now = System.currentTimeMillis();
+      for (Iterator<Map.Entry<Long, Long>> it = holes.entrySet().iterator(); it.hasNext(); ) {
+         if (now - it.next().getValue() > HOLE_MS) it.remove();   // a rolled back insert
+      }
+
+      StringBuilder query = new StringBuilder("SELECT C.seq, C.tableName, C.rowKey FROM ChangeLog C WHERE C.seq > " + lastSeq);
+      if (!holes.isEmpty()) {
+         query.append(" OR C.seq IN (");
+         boolean first = true;
+         for (Long seq : holes.keySet()) {
+            if (!first) query.append(',');
+            query.append(seq);
+            first = false;
+         }
+         query.append(')');
+      }
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query.append(" ORDER BY C.seq LIMIT ")
+         .append(FULL_REFRESH_OVER + 1).toString());
+      if (rows.isEmpty()) return;
+
+      // a bulk write (a user import logs a row per user): reload instead
+      // of reading every row of it
+      if (rows.size() > FULL_REFRESH_OVER) {
+         long maxSeq = Long.parseLong(esql.executeQueryAndReturnResult(
+            "SELECT COALESCE(MAX(C.seq), 0) FROM ChangeLog C").get(0).get(0).trim());
+         refreshAll(esql, "more than " + FULL_REFRESH_OVER + " changes");
+         lastSeq = Math.max(lastSeq, maxSeq);
+         holes.clear();
+         return;
+      }
+
+      // worked out on copies and kept only once every listener took its
+      // changes, so a listener that throws sees them again after the reconnect
+      TreeMap<Long, Long> nextHoles = new TreeMap<Long, Long>(holes);
+      long nextSeq = lastSeq;
+      Set<String> changed = new LinkedHashSet<String>();   // table + '\0' + key, each applied once
+      long expected = lastSeq + 1;
+      for (List<String> row : rows) {
+         long seq = Long.parseLong(row.get(0).trim());
+         if (nextHoles.remove(seq) == null && seq > nextSeq) {
+            if (seq - expected > FULL_REFRESH_OVER) expected = seq;   // a big rolled back range
+            for (long missing = expected; missing < seq; missing++) nextHoles.put(missing, now);
+            expected = seq + 1;
+            nextSeq = seq;
+         }
+         changed.add(row.get(1).trim().toLowerCase() + '\0' + row.get(2));
+      }
+
+      for (String entry : changed) {
+         int split = entry.indexOf('\0');
+         List<Listener> targets = listeners.get(entry.substring(0, split));
+         if (targets == null) continue;
+         for (Listener l : targets) l.changed(esql, entry.substring(split + 1));
+      }
+      lastSeq = nextSeq;
+      holes.clear();
+      holes.putAll(nextHoles);
+   }//end apply
+
+   private void refreshAll(PizzaStore esql, String reason) throws SQLException {
+      System.err.println("Cache coherence: reloading all cached tables (" + reason + ")");
+      for (List<Listener> targets : listeners.values()) {
+         for (Listener l : targets) l.refreshAll(esql);
+      }
+   }//end refreshAll
+}//end CacheCoherence
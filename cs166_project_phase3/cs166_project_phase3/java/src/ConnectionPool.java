@@ -0,0 +1,149 @@
+/*
+ * Connection Pool
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a fixed number of open PizzaStore sessions (one physical
+ * connection each) that background work can borrow and give back.  All
+ * connections are opened in parallel when the pool is created, so startup
+ * pays for one connection handshake instead of one per connection.
+ *
+ */
+public class ConnectionPool {
+
+   private final BlockingQueue<PizzaStore> idle;
+   private final List<PizzaStore> all;
+   private final String url;
+   private final String user;
+   private final String passwd;
+
+   /**
+    * Opens size connections in parallel.
+    *
+    * @param dbname the name of the database
+    * @param dbport the database port on localhost
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param size the number of connections to keep open
+    * @throws java.sql.SQLException when any connection cannot be opened
+    */
+   public ConnectionPool(String dbname, String dbport, String user, String passwd, int size) throws SQLException {
+      this("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd, size);
+   }//end ConnectionPool
+
+   /**
+    * Opens size connections to the given JDBC URL in parallel.
+    */
+   public ConnectionPool(final String url, final String user, final String passwd, int size) throws SQLException {
+      this.idle = new LinkedBlockingQueue<PizzaStore>();
+      this.all = new ArrayList<PizzaStore>();
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+
+      ExecutorService opener = Executors.newFixedThreadPool(size);
+      try{
+         List<Future<Connection>> pending = new ArrayList<Future<Connection>>();
+         for (int i = 0; i < size; i++) {
+            pending.add(opener.submit(new Callable<Connection>() {
+               public Connection call() throws SQLException {
+                  return DriverManager.getConnection(url, user, passwd);
+               }
+            }));
+         }
+         for (Future<Connection> f : pending) {
+            PizzaStore session = new PizzaStore(f.get());
+            all.add(session);
+            idle.add(session);
+         }
+      }catch(Exception e){
+         closeAll();
+         Throwable cause = e.getCause() != null ? e.getCause() : e;
+         throw new SQLException("Unable to open connection pool: " + cause.getMessage());
+      }finally{
+         opener.shutdown();
+      }
+   }//end ConnectionPool
+
+   /**
+    * Takes a session out of the pool, waiting until one is free.
+    *
+    * @return an idle session
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public PizzaStore borrow() throws InterruptedException {
+      return idle.take();
+   }//end borrow
+
+   /**
+    * Takes a session out of the pool, waiting at most timeoutMs.
+    *
+    * @return an idle session, or null on timeout
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public PizzaStore borrow(long timeoutMs) throws InterruptedException {
+      return idle.poll(timeoutMs, TimeUnit.MILLISECONDS);
+   }//end borrow
+
+   /**
+    * Gives a borrowed session back to the pool.
+    */
+   public void release(PizzaStore session) {
+      if (session != null) idle.add(session);
+   }//end release
+
+   /**
+    * Opens a new session outside of the pool, for a background thread that
+    * keeps its own connection.  The caller closes it with cleanup().
+    *
+    * @return a new session on the pool's database
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public PizzaStore open() throws SQLException {
+      return new PizzaStore(DriverManager.getConnection(url, user, passwd));
+   }//end open
+
+   /**
+    * @return every session of the pool, borrowed or not
+    */
+   public List<PizzaStore> sessions() {
+      return all;
+   }
+
+   /**
+    * @return the number of connections in the pool
+    */
+   public int size() {
+      return all.size();
+   }
+
+   /**
+    * Closes every connection of the pool.
+    */
+   public void closeAll() {
+      for (PizzaStore session : all) session.cleanup();
+      idle.clear();
+   }//end closeAll
+}//end ConnectionPool
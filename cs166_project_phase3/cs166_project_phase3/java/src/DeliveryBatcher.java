@@ -0,0 +1,299 @@
+/*
+ * Delivery Batcher
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class groups the incomplete orders of a store into delivery runs, so
+ * a driver takes several orders per trip and their status is changed with
+ * one statement instead of one per order.  Orders have no address of their
+ * own; they are delivered in the city / state of their store, so a run is
+ * a set of orders of one store.
+ *
+ * Orders join the newest run of their store as they commit, until it holds
+ * MAX_ORDERS or spans MAX_WAIT; then a new run is started.  A run is ready
+ * once it is full or its oldest order has waited MAX_WAIT.  Orders claimed
+ * or completed one at a time leave their run, and an order re-opened goes
+ * back in, so runs are kept up to date incrementally rather than rebuilt.
+ *
+ * Like DispatchQueue, a store's runs are loaded from FoodOrder the first
+ * time a driver asks there and are only candidates: claiming is a
+ * conditional UPDATE of all the run's orders at once, orders taken
+ * elsewhere in the meantime simply drop out, and a store whose runs ran dry
+ * is reloaded on the next claim.
+ *
+ * A claimed run is written to DeliveryBatch in the claiming transaction,
+ * so it outlives the driver's session and any session of any instance can
+ * complete it.  Its id is its lowest orderID: unique across instances,
+ * and it tells which shard holds the run.
+ *
+ * Tunables (system properties): pizza.batch.maxOrders (default 4) and
+ * pizza.batch.maxWaitMinutes (default 10).
+ *
+ */
+public class DeliveryBatcher {
+
+   static final int MAX_ORDERS = Integer.getInteger("pizza.batch.maxOrders", 4);
+   static final long MAX_WAIT = Long.getLong("pizza.batch.maxWaitMinutes", 10L) * 60000L;
+
+   /**
+    * One delivery run; its batchID is 0 until it is claimed.
+    */
+   public static class Batch {
+      public final int batchID;
+      public final int storeID;
+      public final List<Integer> orderIDs = new ArrayList<Integer>();
+      long oldest = Long.MAX_VALUE;   // placement time of the oldest order, ms
+
+      Batch(int batchID, int storeID) {
+         this.batchID = batchID;
+         this.storeID = storeID;
+      }
+
+      boolean ready(long now) {
+         return orderIDs.size() >= MAX_ORDERS || now - oldest >= MAX_WAIT;
+      }
+   }//end Batch
+
+   /*
+    * The runs still being formed at one store, oldest first.
+    **/
+   static class StoreRuns {
+      final List<Batch> forming = new ArrayList<Batch>();
+      final Map<Integer, Batch> byOrder = new HashMap<Integer, Batch>();
+   }//end StoreRuns
+
+   private final ConcurrentHashMap<Integer, StoreRuns> stores = new ConcurrentHashMap<Integer, StoreRuns>();
+
+   /**
+    * Adds a newly placed (or re-opened) order to its store's runs.  Stores
+    * that were never loaded are skipped; they read the order from the
+    * database when a driver first asks there.
+    *
+    * @param storeID the store the order was placed at
+    * @param orderID the order
+    * @param placedAtMs the order timestamp in milliseconds
+    */
+   public void offer(int storeID, int orderID, long placedAtMs) {
+      StoreRuns runs = stores.get(storeID);
+      if (runs == null) return;
+      synchronized (runs) {
+         add(runs, storeID, orderID, placedAtMs);
+      }
+   }//end offer
+
+   /**
+    * Takes an order out of its run, after it was claimed or completed on
+    * its own.
+    */
+   public void remove(int storeID, int orderID) {
+      StoreRuns runs = stores.get(storeID);
+      if (runs == null) return;
+      synchronized (runs) {
+         Batch b = runs.byOrder.remove(orderID);
+         if (b == null) return;
+         b.orderIDs.remove(Integer.valueOf(orderID));
+         if (b.orderIDs.isEmpty()) runs.forming.remove(b);
+      }
+   }//end remove
+
+   private void add(StoreRuns runs, int storeID, int orderID, long placedAtMs) {
+      if (runs.byOrder.containsKey(orderID)) return;
+      Batch last = runs.forming.isEmpty() ? null : runs.forming.get(runs.forming.size() - 1);
+      if (last == null || last.orderIDs.size() >= MAX_ORDERS || placedAtMs - last.oldest > MAX_WAIT) {
+         last = new Batch(0, storeID);
+         runs.forming.add(last);
+      }
+      last.orderIDs.add(orderID);
+      last.oldest = Math.min(last.oldest, placedAtMs);
+      runs.byOrder.put(orderID, last);
+   }//end add
+
+   /**
+    * Claims the next run of a store for a driver: the oldest ready one, or
+    * when none is ready yet the oldest one being formed.  All of its orders
+    * that are still incomplete move to the claimed status with one UPDATE,
+    * and the run is recorded in DeliveryBatch in the same transaction.
+    *
+    * @param esql the session of the store's shard
+    * @param storeID the store the driver is picking up at
+    * @return the claimed run, or null when the store has no open order
+    * @throws java.sql.SQLException when the claim fails
+    */
+   public Batch claimNext(PizzaStore esql, int storeID) throws SQLException {
+      for (boolean reloaded = false; ; reloaded = true) {
+         StoreRuns runs = runsFor(esql, storeID);
+         Batch next;
+         while ((next = take(runs)) != null) {
+            Batch taken = claim(esql, next);
+            if (taken != null) return taken;   // otherwise all taken elsewhere
+         }
+         // nothing left locally; orders may have come in through another
+         // instance, so load the store again once before giving up
+         stores.remove(storeID);
+         if (reloaded) return null;
+      }
+   }//end claimNext
+
+   private Batch claim(PizzaStore esql, Batch next) throws SQLException {
+      esql.setAutoCommit(false);
+      try{
+         List<List<String>> rows = esql.executeQueryAndReturnResult(
+            "UPDATE FoodOrder SET orderStatus = \'" + DispatchQueue.CLAIMED_STATUS + "\' WHERE orderID IN ("
+            + idList(next.orderIDs) + ") AND orderStatus = \'" + OrderStatus.INCOMPLETE + "\' RETURNING orderID");
+         if (rows.isEmpty()) {
+            esql.commit();
+            return null;
+         }
+         List<Integer> orderIDs = new ArrayList<Integer>();
+         int batchID = Integer.MAX_VALUE;
+         for (List<String> row : rows) {
+            int orderID = Integer.parseInt(row.get(0).trim());
+            orderIDs.add(orderID);
+            batchID = Math.min(batchID, orderID);
+         }
+         List<String> inserts = new ArrayList<String>();
+         for (int orderID : orderIDs) {
+            inserts.add("INSERT INTO DeliveryBatch VALUES (" + orderID + ", " + batchID + ", " + next.storeID
+               + ") ON CONFLICT (orderID) DO UPDATE SET batchID = EXCLUDED.batchID, storeID = EXCLUDED.storeID");
+         }
+         esql.executeBatch(inserts);
+         esql.commit();
+
+         Batch taken = new Batch(batchID, next.storeID);
+         taken.orderIDs.addAll(orderIDs);
+         taken.oldest = next.oldest;
+         return taken;
+      }catch(SQLException e){
+         esql.rollback();
+         throw e;
+      }finally{
+         esql.setAutoCommit(true);
+      }
+   }//end claim
+
+   private Batch take(StoreRuns runs) {
+      synchronized (runs) {
+         if (runs.forming.isEmpty()) return null;
+         long now = System.currentTimeMillis();
+         Batch pick = runs.forming.get(0);
+         for (Batch b : runs.forming) {
+            if (b.ready(now)) {
+               pick = b;
+               break;
+            }
+         }
+         runs.forming.remove(pick);
+         for (int orderID : pick.orderIDs) runs.byOrder.remove(orderID);
+         return pick;
+      }
+   }//end take
+
+   /**
+    * Moves every order of a claimed run to a new status in one transaction,
+    * typically 'complete' once the run is delivered.  An order whose status
+    * was changed on its own in the meantime is left alone.  The run is
+    * removed from DeliveryBatch when the status is any but the claimed one.
+    *
+    * @param esql the session of the run's shard (the shard of orderID batchID)
+    * @param batchID the claimed run
+    * @param status the new status
+    * @return the orderIDs that were changed
+    * @throws java.sql.SQLException when the update fails; nothing is changed
+    */
+   public List<Integer> setStatus(PizzaStore esql, int batchID, OrderStatus status) throws SQLException {
+      List<Integer> changed = new ArrayList<Integer>();
+      esql.setAutoCommit(false);
+      try{
+         for (List<String> row : esql.executeQueryAndReturnResult(
+               "UPDATE FoodOrder SET orderStatus = \'" + status + "\' WHERE orderID IN (SELECT B.orderID FROM "
+               + "DeliveryBatch B WHERE B.batchID = " + batchID + ") AND orderStatus = \'" + DispatchQueue.CLAIMED_STATUS
+               + "\' RETURNING orderID")) {
+            changed.add(Integer.parseInt(row.get(0).trim()));
+         }
+         if (status != DispatchQueue.CLAIMED_STATUS) {
+            esql.executeUpdate("DELETE FROM DeliveryBatch WHERE batchID = " + batchID);
+         }
+         esql.commit();
+      }catch(SQLException e){
+         esql.rollback();
+         throw e;
+      }finally{
+         esql.setAutoCommit(true);
+      }
+      return changed;
+   }//end setStatus
+
+   /**
+    * Reads a claimed run back, whichever session or instance claimed it.
+    *
+    * @param esql the session of the run's shard (the shard of orderID batchID)
+    * @param batchID the claimed run
+    * @return the run, or null when there is no such claimed run
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Batch claimedBatch(PizzaStore esql, int batchID) throws SQLException {
+      Batch b = null;
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT B.orderID, B.storeID FROM DeliveryBatch B WHERE B.batchID = " + batchID + " ORDER BY B.orderID")) {
+         if (b == null) b = new Batch(batchID, Integer.parseInt(row.get(1).trim()));
+         b.orderIDs.add(Integer.parseInt(row.get(0).trim()));
+      }
+      return b;
+   }//end claimedBatch
+
+   /**
+    * @return the number of runs being formed at a store, 0 when not loaded
+    */
+   public int forming(int storeID) {
+      StoreRuns runs = stores.get(storeID);
+      if (runs == null) return 0;
+      synchronized (runs) {
+         return runs.forming.size();
+      }
+   }//end forming
+
+   /*
+    * Returns the runs of a store, building them from its incomplete orders
+    * the first time the store is used.
+    **/
+   private StoreRuns runsFor(PizzaStore esql, int storeID) throws SQLException {
+      StoreRuns runs = stores.get(storeID);
+      if (runs != null) return runs;
+
+      StoreRuns loaded = new StoreRuns();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT R.orderID, R.orderTimestamp FROM FoodOrder R WHERE R.storeID = " + storeID
+            + " AND R.orderStatus = \'" + OrderStatus.INCOMPLETE + "\' ORDER BY R.orderTimestamp")) {
+         add(loaded, storeID, Integer.parseInt(row.get(0).trim()), Timestamp.valueOf(row.get(1).trim()).getTime());
+      }
+      runs = stores.putIfAbsent(storeID, loaded);
+      return runs == null ? loaded : runs;
+   }//end runsFor
+
+   private static String idList(List<Integer> ids) {
+      StringBuilder sb = new StringBuilder();
+      for (Iterator<Integer> it = ids.iterator(); it.hasNext(); ) {
+         sb.append(it.next());
+         if (it.hasNext()) sb.append(',');
+      }
+      return sb.toString();
+   }//end idList
+}//end DeliveryBatcher
@@ -0,0 +1,146 @@
+/*
+ * Driver Dispatch Queue
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * This class keeps, per storeID, a priority queue of the incomplete orders
+ * of that store so a driver can claim "the next order" without scanning
+ * FoodOrder.  Orders are ordered oldest first; large orders get a
+ * configurable boost which moves them ahead as if they had been placed
+ * that much earlier.
+ *
+ * The queue only proposes a candidate.  The claim itself is a conditional
+ * UPDATE (... WHERE orderStatus = 'incomplete') so two drivers, or two
+ * application instances, can never claim the same order; a candidate that
+ * was already claimed or completed elsewhere is simply dropped.  When the
+ * local queue of a store runs dry the first order, by the same priority,
+ * is claimed straight from the database with FOR UPDATE SKIP LOCKED, and
+ * the queue is reloaded on the next claim.
+ *
+ * Tunables (system properties): pizza.dispatch.largeOrderTotal (default 50)
+ * and pizza.dispatch.largeOrderBoostMinutes (default 10).
+ *
+ */
+public class DispatchQueue {
+
+   // status a claimed order is moved to, until the driver completes it
+   public static final OrderStatus CLAIMED_STATUS = OrderStatus.DELIVERING;
+
+   /**
+    * One incomplete order waiting for a driver.
+    */
+   static class Entry implements Comparable<Entry> {
+      final int orderID;
+      final long priority;   // effective placement time in ms, lower goes first
+
+      Entry(int orderID, long priority) {
+         this.orderID = orderID;
+         this.priority = priority;
+      }
+
+      public int compareTo(Entry other) {
+         if (priority != other.priority) return priority < other.priority ? -1 : 1;
+         return Integer.compare(orderID, other.orderID);
+      }
+   }//end Entry
+
+   private final ConcurrentHashMap<Integer, PriorityBlockingQueue<Entry>> queues =
+      new ConcurrentHashMap<Integer, PriorityBlockingQueue<Entry>>();
+
+   private final double largeOrderTotal =
+      Double.parseDouble(System.getProperty("pizza.dispatch.largeOrderTotal", "50"));
+   private final long largeOrderBoostMs =
+      Long.getLong("pizza.dispatch.largeOrderBoostMinutes", 10L) * 60000L;
+
+   /**
+    * Adds a newly placed (or re-opened) order to its store's queue.  Stores
+    * whose queue was never loaded are skipped; they will read the order
+    * from the database when a driver first claims there.
+    *
+    * @param storeID the store the order was placed at
+    * @param orderID the order
+    * @param placedAtMs the order timestamp in milliseconds
+    * @param totalPrice the order total, used for the large order boost
+    */
+   public void offer(int storeID, int orderID, long placedAtMs, double totalPrice) {
+      PriorityBlockingQueue<Entry> q = queues.get(storeID);
+      if (q != null) q.add(new Entry(orderID, priorityOf(placedAtMs, totalPrice)));
+   }//end offer
+
+   /**
+    * Atomically claims the next order of a store for a driver.
+    *
+    * @param esql the database connection to claim with
+    * @param storeID the store the driver is picking up at
+    * @return the claimed orderID, or -1 when the store has no open order
+    * @throws java.sql.SQLException when the claim statement fails
+    */
+   public int claimNext(PizzaStore esql, int storeID) throws java.sql.SQLException {
+      PriorityBlockingQueue<Entry> q = queueFor(esql, storeID);
+      Entry candidate;
+      while ((candidate = q.poll()) != null) {
+         List<List<String>> claimed = esql.executeQueryAndReturnResult(
+            "UPDATE FoodOrder SET orderStatus = \'" + CLAIMED_STATUS + "\' WHERE orderID = " + candidate.orderID
+            + " AND orderStatus = \'" + OrderStatus.INCOMPLETE + "\' RETURNING orderID");
+         if (claimed.size() == 1) return candidate.orderID;
+         // already claimed or completed elsewhere, try the next one
+      }
+
+      // the local queue is empty; orders may have come in through another
+      // instance, so reload on the next claim and take the first one now,
+      // large orders boosted as in priorityOf
+      queues.remove(storeID);
+      List<List<String>> claimed = esql.executeQueryAndReturnResult(
+         "UPDATE FoodOrder SET orderStatus = \'" + CLAIMED_STATUS + "\' WHERE orderID = ("
+         + "SELECT R.orderID FROM FoodOrder R WHERE R.storeID = " + storeID + " AND R.orderStatus = \'" + OrderStatus.INCOMPLETE + "\' "
+         + "ORDER BY R.orderTimestamp - (CASE WHEN R.totalPrice >= " + largeOrderTotal + " THEN " + largeOrderBoostMs
+         + " ELSE 0 END) * interval \'1 millisecond\', R.orderID LIMIT 1 FOR UPDATE SKIP LOCKED) RETURNING orderID");
+      return claimed.size() == 1 ? Integer.parseInt(claimed.get(0).get(0).trim()) : -1;
+   }//end claimNext
+
+   /**
+    * @return the number of orders waiting in a store's loaded queue
+    */
+   public int waiting(int storeID) {
+      PriorityBlockingQueue<Entry> q = queues.get(storeID);
+      return q == null ? 0 : q.size();
+   }
+
+   /*
+    * Returns the queue of a store, loading its incomplete orders the first
+    * time the store is used.
+    **/
+   private PriorityBlockingQueue<Entry> queueFor(PizzaStore esql, int storeID) throws java.sql.SQLException {
+      PriorityBlockingQueue<Entry> q = queues.get(storeID);
+      if (q != null) return q;
+
+      List<List<String>> open = esql.executeQueryAndReturnResult(
+         "SELECT R.orderID, R.orderTimestamp, R.totalPrice FROM FoodOrder R WHERE R.storeID = " + storeID
+         + " AND R.orderStatus = \'" + OrderStatus.INCOMPLETE + "\'");
+      PriorityBlockingQueue<Entry> loaded = new PriorityBlockingQueue<Entry>(Math.max(11, open.size()));
+      for (List<String> row : open) {
+         loaded.add(new Entry(Integer.parseInt(row.get(0).trim()),
+            priorityOf(Timestamp.valueOf(row.get(1).trim()).getTime(), Double.parseDouble(row.get(2)))));
+      }
+      q = queues.putIfAbsent(storeID, loaded);
+      return q == null ? loaded : q;
+   }//end queueFor
+
+   private long priorityOf(long placedAtMs, double totalPrice) {
+      return totalPrice >= largeOrderTotal ? placedAtMs - largeOrderBoostMs : placedAtMs;
+   }
+}//end DispatchQueue
@@ -0,0 +1,432 @@
+/*
+ * Enum Migration
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * This class converts Users.role (char(20)) and FoodOrder.orderStatus
+ * (char(50)) of an existing database to the enum types user_role and
+ * order_status, while the application keeps running against it.
+ *
+ * No step holds a lock that blocks readers or writers for longer than a
+ * single short statement:
+ *
+ *    1. check      every stored value must be a known label
+ *    2. shadow     create the type, add an empty column of it, and a
+ *                  trigger filling it for rows written from now on
+ *    3. backfill   fill the column in key ranges of CHUNK rows, one
+ *                  transaction each, pausing between chunks
+ *    4. prepare    build copies of the indexes on the new column
+ *                  CONCURRENTLY and validate NOT NULL as a constraint
+ *    5. swap       one short transaction: drop the old column and the
+ *                  trigger, rename the new column and its indexes, and
+ *                  recreate the triggers that named the old column
+ *    6. compact    rewrite the rows in chunks again, so the bytes of the
+ *                  dropped column are released, then VACUUM ANALYZE
+ *
+ * DDL runs with a lock_timeout and is retried, so it never queues behind a
+ * long transaction while holding up everything behind it.  Every step can
+ * be re-run; running the tool again after an interruption continues where
+ * it stopped.  With sharding run it once per database: FoodOrder is split
+ * over the shards and Users is copied to each.  The application reads
+ * both column types, but statements it prepared before the swap fail
+ * once with "cached plan must not change result type", so restart the
+ * instances (one at a time) after migrating.
+ *
+ * The bench command (also run before and after migrate --bench) prints the
+ * average row and column size and the median time of the status and role
+ * filters the application runs:
+ *
+ *    java EnumMigration dbname port user (check|migrate|compact|bench) [--bench]
+ *
+ * Tunables (system properties): pizza.migrate.chunk (5000 rows),
+ * pizza.migrate.pauseMs (50), pizza.migrate.benchRuns (7).
+ *
+ */
+public class EnumMigration {
+
+   static final int CHUNK = Integer.getInteger("pizza.migrate.chunk", 5000);
+   static final long PAUSE_MS = Long.getLong("pizza.migrate.pauseMs", 50L);
+   static final int BENCH_RUNS = Integer.getInteger("pizza.migrate.benchRuns", 7);
+   static final int DDL_RETRIES = 20;
+
+   /**
+    * One column to convert.
+    */
+   static class Column {
+      final String table;
+      final String column;
+      final String type;
+      final String[] labels;
+      final String key;          // single column primary key, walked in order
+      final boolean quotedKey;
+      final boolean notNull;
+      final String[][] indexes;  // name, column list with the converted column
+      final String[][] triggers; // name, definition: triggers that name the column (create_triggers.sql)
+
+      Column(String table, String column, String type, String[] labels, String key, boolean quotedKey,
+             boolean notNull, String[][] indexes, String[][] triggers) {
+         this.table = table;
+         this.column = column;
+         this.type = type;
+         this.labels = labels;
+         this.key = key;
+         this.quotedKey = quotedKey;
+         this.notNull = notNull;
+         this.indexes = indexes;
+         this.triggers = triggers;
+      }
+
+      String shadow() {
+         return column + "_enum";
+      }
+
+      String trigger() {
+         return table.toLowerCase() + "_" + column.toLowerCase() + "_enum_sync";
+      }
+
+      String converted(String source) {
+         return "trim(" + source + ")::" + type;
+      }
+   }//end Column
+
+   static final Column[] COLUMNS = {
+      new Column("Users", "role", "user_role", labels(UserRole.values()), "login", true, true,
+                 new String[0][], new String[0][]),
+      new Column("FoodOrder", "orderStatus", "order_status", labels(OrderStatus.values()), "orderID", false, false,
+                 new String[][] { { "order_store_status", "storeID, %s, orderTimestamp" } },
+                 new String[][] { { "foodorder_cache_change", "AFTER UPDATE OF orderStatus OR DELETE ON FoodOrder "
+                    + "FOR EACH ROW EXECUTE PROCEDURE log_cache_change(\'orderid\')" } }),
+   };
+
+   private final PizzaStore esql;
+
+   public EnumMigration(PizzaStore esql) {
+      this.esql = esql;
+   }
+
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            EnumMigration.class.getName () +
+            " <dbname> <port> <user> (check|migrate|compact|bench) [--bench]");
+         return;
+      }//end if
+
+      PizzaStore esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         esql = new PizzaStore (args[0], args[1], args[2], "");
+         EnumMigration migration = new EnumMigration(esql);
+         boolean bench = args.length > 4 && args[4].equals("--bench");
+
+         switch (args[3]) {
+            case "check":
+               for (Column c : COLUMNS) migration.check(c);
+               break;
+            case "bench":
+               printBench(null, migration.bench());
+               break;
+            case "compact":
+               for (Column c : COLUMNS) migration.compact(c);
+               break;
+            case "migrate":
+               List<String[]> before = bench ? migration.bench() : null;
+               for (Column c : COLUMNS) migration.migrate(c);
+               if (bench) printBench(before, migration.bench());
+               break;
+            default:
+               System.err.println("Unknown command " + args[3]);
+         }
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if(esql != null) esql.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Runs every step for one column, skipping it when it already has the
+    * enum type.
+    */
+   public void migrate(Column c) throws Exception {
+      if (isEnum(c)) {
+         System.out.println(c.table + "." + c.column + " is already " + c.type);
+         return;
+      }
+      check(c);
+      shadow(c);
+      backfill(c);
+      esql.executeUpdate("VACUUM " + c.table);
+      prepare(c);
+      swap(c);
+      compact(c);
+   }//end migrate
+
+   /**
+    * Fails when a stored value has no label in the enum.
+    */
+   public void check(Column c) throws SQLException {
+      String source = isEnum(c) ? c.column : "trim(" + c.column + ")";
+      List<String> unknown = new ArrayList<String>();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT DISTINCT " + source + " FROM " + c.table + " WHERE " + c.column + " IS NOT NULL")) {
+         if (!Arrays.asList(c.labels).contains(row.get(0))) unknown.add("\'" + row.get(0) + "\'");
+      }
+      if (!unknown.isEmpty())
+         throw new SQLException(c.table + "." + c.column + " holds values outside " + c.type + ": " + unknown
+            + "; fix them before migrating");
+      System.out.println(c.table + "." + c.column + ": all values fit " + c.type);
+   }//end check
+
+   /*
+    * Creates the type, the shadow column and the trigger keeping it filled.
+    **/
+   private void shadow(Column c) throws Exception {
+      if (esql.executeQuery("SELECT 1 FROM pg_type WHERE typname = \'" + c.type + "\'") == 0) {
+         StringBuilder labels = new StringBuilder();
+         for (String label : c.labels) labels.append(labels.length() == 0 ? "" : ", ").append('\'').append(label).append('\'');
+         esql.executeUpdate("CREATE TYPE " + c.type + " AS ENUM (" + labels + ")");
+      }
+      ddl("ALTER TABLE " + c.table + " ADD COLUMN IF NOT EXISTS " + c.shadow() + " " + c.type);
+      esql.executeUpdate("CREATE OR REPLACE FUNCTION " + c.trigger() + "() RETURNS trigger AS $$ BEGIN "
+         + "NEW." + c.shadow() + " := " + c.converted("NEW." + c.column) + "; RETURN NEW; END; $$ LANGUAGE plpgsql");
+      ddl("DROP TRIGGER IF EXISTS " + c.trigger() + " ON " + c.table);
+      ddl("CREATE TRIGGER " + c.trigger() + " BEFORE INSERT OR UPDATE ON " + c.table
+         + " FOR EACH ROW EXECUTE PROCEDURE " + c.trigger() + "()");
+      System.out.println(c.table + "." + c.shadow() + " added, new writes fill it");
+   }//end shadow
+
+   /*
+    * Copies the old column into the shadow column, CHUNK keys at a time.
+    **/
+   private void backfill(Column c) throws Exception {
+      long rows = rewrite(c, c.shadow() + " = " + c.converted(c.column),
+                          c.shadow() + " IS NULL AND " + c.column + " IS NOT NULL", "backfill");
+      int missing = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT count(*) FROM " + c.table + " WHERE "
+         + c.column + " IS NOT NULL AND (" + c.shadow() + " IS NULL OR " + c.shadow() + "::text <> trim(" + c.column
+         + "))").get(0).get(0).trim());
+      if (missing > 0) throw new SQLException(missing + " row(s) of " + c.table + " did not convert");
+      System.out.println(c.table + ": " + rows + " row(s) backfilled and verified");
+   }//end backfill
+
+   /*
+    * Builds the indexes of the new column without blocking writes and
+    * proves NOT NULL with a validated constraint, so the swap does not scan.
+    **/
+   private void prepare(Column c) throws Exception {
+      for (String[] index : c.indexes) {
+         String name = index[0] + "_enum";
+         // an interrupted CONCURRENTLY build leaves an invalid index behind
+         if (esql.executeQuery("SELECT 1 FROM pg_index I JOIN pg_class C ON C.oid = I.indexrelid WHERE C.relname = \'"
+               + name + "\' AND NOT I.indisvalid") > 0) {
+            esql.executeUpdate("DROP INDEX CONCURRENTLY " + name);
+         }
+         esql.executeUpdate("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + c.table
+            + "(" + String.format(index[1], c.shadow()) + ")");
+         System.out.println("index " + name + " built");
+      }
+      if (c.notNull) {
+         String constraint = c.table.toLowerCase() + "_" + c.shadow().toLowerCase() + "_not_null";
+         if (esql.executeQuery("SELECT 1 FROM pg_constraint WHERE conname = \'" + constraint + "\'") == 0) {
+            ddl("ALTER TABLE " + c.table + " ADD CONSTRAINT " + constraint + " CHECK (" + c.shadow()
+               + " IS NOT NULL) NOT VALID");
+         }
+         esql.executeUpdate("ALTER TABLE " + c.table + " VALIDATE CONSTRAINT " + constraint);
+      }
+   }//end prepare
+
+   /*
+    * Replaces the old column with the new one in one short transaction.
+    * Installed triggers that name the old column (the cache coherence one
+    * on FoodOrder.orderStatus) would block dropping it, so they are
+    * dropped and recreated on the new column in the same transaction.
+    **/
+   private void swap(Column c) throws Exception {
+      List<String[]> installed = new ArrayList<String[]>();
+      for (String[] trigger : c.triggers) {
+         if (esql.executeQuery("SELECT 1 FROM pg_trigger WHERE tgname = \'" + trigger[0] + "\'") > 0) installed.add(trigger);
+      }
+
+      List<String> steps = new ArrayList<String>();
+      steps.add("LOCK TABLE " + c.table + " IN ACCESS EXCLUSIVE MODE");
+      steps.add("DROP TRIGGER " + c.trigger() + " ON " + c.table);
+      for (String[] trigger : installed) steps.add("DROP TRIGGER " + trigger[0] + " ON " + c.table);
+      steps.add("ALTER TABLE " + c.table + " DROP COLUMN " + c.column);
+      steps.add("ALTER TABLE " + c.table + " RENAME COLUMN " + c.shadow() + " TO " + c.column);
+      for (String[] trigger : installed) steps.add("CREATE TRIGGER " + trigger[0] + " " + trigger[1]);
+      for (String[] index : c.indexes) steps.add("ALTER INDEX " + index[0] + "_enum RENAME TO " + index[0]);
+      if (c.notNull) {
+         steps.add("ALTER TABLE " + c.table + " ALTER COLUMN " + c.column + " SET NOT NULL");
+         steps.add("ALTER TABLE " + c.table + " DROP CONSTRAINT " + c.table.toLowerCase() + "_"
+            + c.shadow().toLowerCase() + "_not_null");
+      }
+
+      for (int attempt = 1; ; attempt++) {
+         esql.setAutoCommit(false);
+         try{
+            esql.executeUpdate("SET LOCAL lock_timeout = \'2s\'");
+            for (String sql : steps) esql.executeUpdate(sql);
+            esql.commit();
+            break;
+         }catch(SQLException e){
+            try { esql.rollback(); } catch (SQLException ignored) {}
+            if (attempt >= DDL_RETRIES) throw e;
+            System.out.println("swap of " + c.table + "." + c.column + " waiting for locks, retrying");
+            Thread.sleep(1000L * attempt);
+         }finally{
+            esql.setAutoCommit(true);
+         }
+      }
+      esql.executeUpdate("DROP FUNCTION IF EXISTS " + c.trigger() + "()");
+      System.out.println(c.table + "." + c.column + " is now " + c.type);
+   }//end swap
+
+   /**
+    * Rewrites every row so the dropped column's bytes are released.  The
+    * table file keeps its size; the space is reused by later rows.
+    */
+   public void compact(Column c) throws Exception {
+      if (!isEnum(c)) {
+         System.out.println(c.table + "." + c.column + " is not converted yet");
+         return;
+      }
+      long rows = rewrite(c, c.column + " = " + c.column, "true", "compact");
+      esql.executeUpdate("VACUUM ANALYZE " + c.table);
+      System.out.println(c.table + ": " + rows + " row(s) rewritten");
+   }//end compact
+
+   /*
+    * Runs UPDATE ... SET set over the table in primary key ranges of CHUNK
+    * rows, each in its own transaction. Returns the rows updated.
+    **/
+   private long rewrite(Column c, String set, String where, String step) throws Exception {
+      long start = System.currentTimeMillis();
+      long updated = 0;
+      long chunks = 0;
+      String last = null;
+      while (true) {
+         String after = (last == null) ? "" : " WHERE " + c.key + " > " + literal(c, last);
+         List<List<String>> upper = esql.executeQueryAndReturnResult("SELECT max(K." + c.key + ") FROM (SELECT "
+            + c.key + " FROM " + c.table + after + " ORDER BY " + c.key + " LIMIT " + CHUNK + ") K");
+         String high = upper.get(0).get(0);
+         if (high == null) break;
+
+         updated += Long.parseLong(esql.executeQueryAndReturnResult("WITH u AS (UPDATE " + c.table + " SET " + set
+            + " WHERE " + c.key + " <= " + literal(c, high) + (last == null ? "" : " AND " + c.key + " > " + literal(c, last))
+            + " AND " + where + " RETURNING 1) SELECT count(*) FROM u").get(0).get(0).trim());
+         last = high;
+         if (++chunks % 100 == 0) {
+            System.out.println(c.table + " " + step + ": " + updated + " row(s) so far, "
+               + (System.currentTimeMillis() - start) / 1000 + " s");
+         }
+         Thread.sleep(PAUSE_MS);
+      }
+      return updated;
+   }//end rewrite
+
+   /**
+    * Measures row and column sizes and the filters on the two columns.
+    *
+    * @return rows of {measure, value}
+    */
+   public List<String[]> bench() throws SQLException {
+      List<String[]> results = new ArrayList<String[]>();
+      List<List<String>> busiest = esql.executeQueryAndReturnResult(
+         "SELECT R.storeID FROM FoodOrder R GROUP BY R.storeID ORDER BY count(*) DESC LIMIT 1");
+      String store = busiest.isEmpty() ? "0" : busiest.get(0).get(0).trim();
+
+      for (Column c : COLUMNS) {
+         List<String> size = esql.executeQueryAndReturnResult("SELECT round(avg(pg_column_size(T.*)), 1), "
+            + "round(avg(pg_column_size(T." + c.column + ")), 1), pg_total_relation_size(\'" + c.table.toLowerCase()
+            + "\') / 1024 FROM " + c.table + " T").get(0);
+         results.add(new String[] { c.table + " avg row bytes", size.get(0) });
+         results.add(new String[] { c.table + "." + c.column + " avg bytes", size.get(1) });
+         results.add(new String[] { c.table + " total KB", size.get(2) });
+      }
+      results.add(new String[] { "open orders count ms", time("SELECT count(*) FROM FoodOrder R WHERE R.orderStatus = 'incomplete'") });
+      results.add(new String[] { "open orders of a store ms", time("SELECT R.orderID, R.orderTimestamp, R.totalPrice FROM FoodOrder R "
+         + "WHERE R.storeID = " + store + " AND R.orderStatus = 'incomplete'") });
+      results.add(new String[] { "drivers count ms", time("SELECT count(*) FROM Users U WHERE U.role = 'driver'") });
+      return results;
+   }//end bench
+
+   /*
+    * Median wall time of BENCH_RUNS runs, after one warm up run.
+    **/
+   private String time(String query) throws SQLException {
+      esql.executeQueryAndReturnResult(query);
+      long[] runs = new long[BENCH_RUNS];
+      for (int i = 0; i < runs.length; i++) {
+         long start = System.nanoTime();
+         esql.executeQueryAndReturnResult(query);
+         runs[i] = System.nanoTime() - start;
+      }
+      Arrays.sort(runs);
+      return String.format("%.2f", runs[runs.length / 2] / 1e6);
+   }//end time
+
+   private static void printBench(List<String[]> before, List<String[]> after) {
+      TableRenderer table = TableRenderer.console();
+      if (before == null) {
+         table.begin(new String[] { "measure", "value" });
+         for (String[] row : after) table.row(row);
+      }else{
+         table.begin(new String[] { "measure", "before", "after" });
+         for (int i = 0; i < after.size(); i++) table.row(new String[] { after.get(i)[0], before.get(i)[1], after.get(i)[1] });
+      }
+      table.end();
+   }//end printBench
+
+   /*
+    * Runs a DDL statement with a short lock_timeout, retrying while other
+    * transactions hold the table.
+    **/
+   private void ddl(String sql) throws Exception {
+      for (int attempt = 1; ; attempt++) {
+         esql.setAutoCommit(false);
+         try{
+            esql.executeUpdate("SET LOCAL lock_timeout = \'2s\'");
+            esql.executeUpdate(sql);
+            esql.commit();
+            return;
+         }catch(SQLException e){
+            try { esql.rollback(); } catch (SQLException ignored) {}
+            if (attempt >= DDL_RETRIES) throw e;
+            Thread.sleep(500L * attempt);
+         }finally{
+            esql.setAutoCommit(true);
+         }
+      }
+   }//end ddl
+
+   private boolean isEnum(Column c) throws SQLException {
+      return esql.executeQuery("SELECT 1 FROM information_schema.columns WHERE table_name = \'" + c.table.toLowerCase()
+         + "\' AND column_name = \'" + c.column.toLowerCase() + "\' AND udt_name = \'" + c.type + "\'") > 0;
+   }
+
+   private static String literal(Column c, String key) {
+      return c.quotedKey ? "\'" + key.replace("\'", "\'\'") + "\'" : key.trim();
+   }
+
+   private static String[] labels(Enum<?>[] values) {
+      String[] labels = new String[values.length];
+      for (int i = 0; i < values.length; i++) labels[i] = values[i].toString();
+      return labels;
+   }
+}//end EnumMigration
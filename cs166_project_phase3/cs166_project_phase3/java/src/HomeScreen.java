@@ -0,0 +1,272 @@
+/*
+ * Home Screen
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * This class prints the screen a user sees right after logging in: their
+ * profile, their most recent orders (the store's, for staff), the cheapest
+ * menu items and how many stores are open.
+ *
+ * The four parts are independent reads, so instead of one round trip
+ * after the other they are started together through CompletableFutures:
+ * recent orders, menu and stores on their own pooled sessions, the
+ * profile on the caller's session.  Each part gets until TIMEOUT_MS after
+ * the start; a part that is not back by then is shown as still loading
+ * and the rest of the screen is printed anyway, so the screen takes as
+ * long as its slowest part, at most TIMEOUT_MS.  The session of a part
+ * runs with a statement_timeout of what is left until then, so the
+ * server cancels a query that overruns and the session goes back to the
+ * pool (or to the caller) instead of staying busy until it returns.  Recent
+ * orders come from the order index without a query once it is loaded,
+ * a customer's from RecentOrdersCache otherwise, and from the shards' own
+ * pools when sharded.
+ *
+ * Tunables (system properties): pizza.home.timeoutMs (default 800).
+ *
+ */
+public class HomeScreen {
+
+   static final long TIMEOUT_MS = Long.getLong("pizza.home.timeoutMs", 800L);
+   static final int RECENT = 5;
+   static final int CHEAPEST = 5;
+
+   static final String RECENT_QUERY = "SELECT R.orderID, R.orderTimestamp, R.orderStatus, R.totalPrice FROM FoodOrder R ";
+   static final String MENU_QUERY = "SELECT F.itemName, F.typeOfItem, F.price, count(*) OVER () FROM Items F "
+      + "ORDER BY F.price, F.itemName LIMIT " + CHEAPEST;
+   static final String STORES_QUERY = "SELECT count(*), coalesce(sum(CASE WHEN S.isOpen = \'yes\' THEN 1 ELSE 0 END), 0) FROM Store S";
+
+   // a part that timed out keeps its thread until the server cancels its query
+   private static final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "home-screen");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   /*
+    * One part of the screen: the lines it prints.
+    **/
+   private interface Part {
+      List<String> fetch(PizzaStore esql) throws Exception;
+   }
+
+   /**
+    * Prints the home screen of a user.
+    *
+    * @param esql the caller's session, idle until this returns
+    * @param login the logged in user
+    * @param role the user's role
+    */
+   public static void show(PizzaStore esql, final String login, final UserRole role) {
+      final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+      // the order index, a customer's cached ring and the shard merge need no session of their own
+      boolean pooled = !PizzaStore.orderIndex.isReady() && PizzaStore.shards == null
+         && (role.isStaff() || !PizzaStore.recentOrders.isCached(login));
+      CompletableFuture<List<String>> profile = start(new Part() {
+         public List<String> fetch(PizzaStore s) throws Exception { return profile(s, login); }
+      }, deadline, esql, false);
+      CompletableFuture<List<String>> recent = start(new Part() {
+         public List<String> fetch(PizzaStore s) throws Exception { return recentOrders(s, login, role, deadline); }
+      }, deadline, null, pooled);
+      CompletableFuture<List<String>> menu = start(new Part() {
+         public List<String> fetch(PizzaStore s) throws Exception { return menu(s); }
+      }, deadline, null, true);
+      CompletableFuture<List<String>> stores = start(new Part() {
+         public List<String> fetch(PizzaStore s) throws Exception { return stores(s); }
+      }, deadline, null, true);
+
+      System.out.println("-----------------------------------------");
+      print(await(profile, "Profile", deadline));
+      print(await(recent, "Recent orders", deadline));
+      print(await(menu, "Menu", deadline));
+      print(await(stores, "Stores", deadline));
+
+      // the caller's session is free again once the profile part is done,
+      // by the deadline at the latest (its statement timeout)
+      try{
+         profile.join();
+      }catch(CompletionException e){
+         // already shown
+      }
+   }//end show
+
+   /*
+    * Runs a part on a worker, on the given session or a pooled one when it
+    * needs one, waiting for that no longer than the part may take.  The
+    * session's queries are cancelled by the server at the deadline.
+    **/
+   private static CompletableFuture<List<String>> start(final Part part, final long deadline, final PizzaStore own, final boolean pooled) {
+      return CompletableFuture.supplyAsync(new Supplier<List<String>>() {
+         public List<String> get() {
+            PizzaStore session = own;
+            boolean borrowed = false;
+            try{
+               if (session == null && pooled) {
+                  session = borrow(deadline);
+                  borrowed = true;
+               }else if (session != null) {
+                  session.setStatementTimeout(Math.max(1, deadline - System.currentTimeMillis()));
+               }
+               return part.fetch(session);
+            }catch(Exception e){
+               throw new CompletionException(e);
+            }finally{
+               giveBack(session, borrowed);
+            }
+         }
+      }, workers);
+   }//end start
+
+   /*
+    * Takes a pooled session for a part, limited to the time left.
+    **/
+   private static PizzaStore borrow(long deadline) throws Exception {
+      PizzaStore session = PizzaStore.pool.borrow(Math.max(1, deadline - System.currentTimeMillis()));
+      if (session == null) throw new TimeoutException("no free connection");
+      try{
+         session.setStatementTimeout(Math.max(1, deadline - System.currentTimeMillis()));
+      }catch(SQLException e){
+         PizzaStore.pool.release(session);
+         throw e;
+      }
+      return session;
+   }//end borrow
+
+   /*
+    * Lifts a part's statement timeout and returns the session to the pool
+    * when it was borrowed.
+    **/
+   private static void giveBack(PizzaStore session, boolean borrowed) {
+      if (session == null) return;
+      try{
+         session.setStatementTimeout(0);
+      }catch(SQLException e){
+         // a broken session fails its next user as it would have
+      }
+      if (borrowed) PizzaStore.pool.release(session);
+   }//end giveBack
+
+   private static List<String> await(CompletableFuture<List<String>> part, String name, long deadline) {
+      try{
+         return part.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      }catch(TimeoutException e){
+         List<String> lines = new ArrayList<String>();
+         lines.add(name + ": still loading, see the main menu");
+         return lines;
+      }catch(ExecutionException e){
+         return failed(name, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+      }catch(InterruptedException e){
+         Thread.currentThread().interrupt();
+         return failed(name, e);
+      }
+   }//end await
+
+   private static List<String> failed(String name, Exception e) {
+      List<String> lines = new ArrayList<String>();
+      lines.add(name + ": unavailable (" + e.getMessage() + ")");
+      return lines;
+   }
+
+   private static void print(List<String> lines) {
+      for (String line : lines) System.out.println(line);
+      System.out.println("-----------------------------------------");
+   }
+
+   static List<String> profile(PizzaStore esql, String login) throws SQLException {
+      List<String> lines = new ArrayList<String>();
+      List<List<String>> rows = esql.executePreparedQuery(PizzaStore.USER_QUERY, login);
+      if (rows.isEmpty()) throw new SQLException("no such user");
+      List<String> u = rows.get(0);
+      lines.add("Welcome, " + u.get(0).trim() + " (" + u.get(2).trim() + ")");
+      lines.add("Favorite Item: " + (u.get(3) == null ? "" : u.get(3).trim()) + "   Phone Number: " + u.get(4).trim());
+      return lines;
+   }//end profile
+
+   static List<String> recentOrders(PizzaStore esql, String login, UserRole role, long deadline) throws Exception {
+      List<String> lines = new ArrayList<String>();
+      lines.add(role.isStaff() ? "Most recent orders" : "Your most recent orders");
+
+      if (PizzaStore.orderIndex.isReady()) {
+         OrderHeaderIndex.Cursor orders = role.isStaff() ? PizzaStore.orderIndex.all(RECENT) : PizzaStore.orderIndex.byUser(login, RECENT);
+         for (int orderID = orders.next(); orderID >= 0; orderID = orders.next()) {
+            OrderHeaderIndex.Header h = PizzaStore.orderIndex.get(orderID);
+            if (h != null) lines.add(orderLine(orderID, new Timestamp(h.orderTimestamp).toString(), h.orderStatus.toString(),
+               String.format("%d.%02d", h.totalCents / 100, h.totalCents % 100)));
+         }
+         if (lines.size() == 1) lines.add("   none yet");
+         return lines;
+      }
+
+      if (!role.isStaff()) {
+         List<RecentOrdersCache.Recent> recent = PizzaStore.recentOrders.cached(login, RECENT);
+         if (recent == null) {
+            // no session was taken for a ring that was cached, but it was
+            // evicted or expired since
+            boolean borrowed = esql == null && PizzaStore.shards == null;
+            PizzaStore session = borrowed ? borrow(deadline) : esql;
+            try{
+               recent = PizzaStore.recentOrders.get(session, login, RECENT);
+            }finally{
+               if (borrowed) giveBack(session, true);
+            }
+         }
+         for (RecentOrdersCache.Recent r : recent) {
+            lines.add(orderLine(r.orderID, new Timestamp(r.orderTimestamp).toString(), r.orderStatus.toString(),
+               String.format("%d.%02d", r.totalCents / 100, r.totalCents % 100)));
+         }
+         if (lines.size() == 1) lines.add("   none yet");
+         return lines;
+      }
+
+      String query = RECENT_QUERY + "ORDER BY R.orderTimestamp DESC LIMIT " + RECENT;
+      List<List<String>> rows = (PizzaStore.shards != null)
+         ? PizzaStore.shards.mergeNewestFirst(query, 1, RECENT) : esql.executeQueryAndReturnResult(query);
+      for (List<String> r : rows) lines.add(orderLine(Integer.parseInt(r.get(0).trim()), r.get(1).trim(), r.get(2).trim(), r.get(3).trim()));
+      if (rows.isEmpty()) lines.add("   none yet");
+      return lines;
+   }//end recentOrders
+
+   private static String orderLine(int orderID, String when, String status, String total) {
+      return String.format("   %-10d %-21s %-10s %8s", orderID, when, status, total);
+   }
+
+   static List<String> menu(PizzaStore esql) throws SQLException {
+      List<String> lines = new ArrayList<String>();
+      List<List<String>> rows = esql.executeQueryAndReturnResult(MENU_QUERY);
+      lines.add("Menu: " + (rows.isEmpty() ? 0 : rows.get(0).get(3).trim()) + " items, cheapest");
+      for (List<String> r : rows) lines.add(String.format("   %-25s %-10s %6s", r.get(0).trim(), r.get(1).trim(), r.get(2).trim()));
+      return lines;
+   }//end menu
+
+   static List<String> stores(PizzaStore esql) throws SQLException {
+      List<String> lines = new ArrayList<String>();
+      List<String> r = esql.executeQueryAndReturnResult(STORES_QUERY).get(0);
+      lines.add("Stores: " + r.get(1).trim() + " of " + r.get(0).trim() + " open");
+      return lines;
+   }//end stores
+}//end HomeScreen
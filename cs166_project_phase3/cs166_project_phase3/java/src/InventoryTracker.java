@@ -0,0 +1,286 @@
+/*
+ * Inventory Tracker
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class tracks how much of each ingredient a store has left
+ * (IngredientStock) so items a store cannot make are hidden from its menu
+ * and refused at checkout.  Every unit of an item uses one unit of each
+ * ingredient listed in Items.ingredients.  Ingredients without a stock row
+ * are not tracked and never run out.
+ *
+ * Stock levels live in memory, one AtomicLong per store and ingredient, so
+ * checkout only does a compare-and-set per ingredient and never waits on a
+ * lock or the database.  Each counter also accumulates the change not yet
+ * written; a background thread writes those changes to IngredientStock
+ * every second in one transaction per store, as relative updates so several
+ * application instances can share the table.  What the database returns
+ * beyond our own change (other instances' orders, restocking) is added to
+ * the counter, never set over it, so a reservation made meanwhile is
+ * neither lost nor counted twice.  Every RELOAD_EVERY rounds all loaded
+ * stores are re-read so restocking done in the database shows up.
+ *
+ * Instances check only their own counter, so together they can sell more
+ * than a store had.  The stock then goes below zero in the database, which
+ * is reported, and no instance sells that ingredient until it is
+ * restocked.
+ *
+ */
+public class InventoryTracker {
+
+   static final long FLUSH_MS = 1000;
+   static final int RELOAD_EVERY = 30;
+
+   /*
+    * The stock of one ingredient at one store.
+    **/
+   static class Stock {
+      final String ingredient;                          // as stored in IngredientStock
+      final AtomicLong level = new AtomicLong();
+      final AtomicLong unflushed = new AtomicLong();    // change not yet in the database
+      long known;                                       // database level last seen, flusher only
+
+      Stock(String ingredient, long level) {
+         this.ingredient = ingredient;
+         this.level.set(level);
+         this.known = level;
+      }
+
+      /*
+       * Takes in a database level that includes our writes up to now
+       * plus written: the rest is other instances' doing.
+       **/
+      void synced(long dbLevel, long written) {
+         level.addAndGet(dbLevel - (known + written));
+         known = dbLevel;
+      }
+
+      boolean take(long n) {
+         while (true) {
+            long current = level.get();
+            if (current < n) return false;
+            if (level.compareAndSet(current, current - n)) return true;
+         }
+      }
+
+      void give(long n) {
+         level.addAndGet(n);
+      }
+   }//end Stock
+
+   // storeID -> normalized ingredient -> stock
+   private final Map<Integer, Map<String, Stock>> stores = new ConcurrentHashMap<Integer, Map<String, Stock>>();
+   private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+   private volatile boolean running = false;
+   private Thread flusher;
+
+   /**
+    * Reads the stock of a store the first time it is needed.
+    *
+    * @param esql any session; the store's shard is used when sharded
+    * @param storeID the store
+    * @throws java.sql.SQLException when the stock cannot be read
+    * @throws InterruptedException when interrupted waiting for a shard session
+    */
+   public void ensureLoaded(PizzaStore esql, int storeID) throws SQLException, InterruptedException {
+      if (stores.containsKey(storeID)) return;
+      synchronized (this) {
+         if (stores.containsKey(storeID)) return;
+         Map<String, Stock> stock = new ConcurrentHashMap<String, Stock>();
+         PizzaStore shard = PizzaStore.storeShard(esql, storeID);
+         try{
+            for (List<String> row : shard.executeQueryAndReturnResult(stockQuery(storeID))) {
+               stock.put(MenuSearchIndex.normalize(row.get(0)), new Stock(row.get(0), Long.parseLong(row.get(1).trim())));
+            }
+         }finally{ PizzaStore.releaseShard(esql, shard); }
+         stores.put(storeID, stock);
+      }
+   }//end ensureLoaded
+
+   /**
+    * @return true when the store has every ingredient of one unit of the item
+    */
+   public boolean isAvailable(int storeID, String itemName) {
+      Map<String, Stock> stock = stores.get(storeID);
+      MenuSearchIndex.Item item = PizzaStore.menuIndex.get(itemName);
+      if (stock == null || item == null) return true;
+      for (String ingredient : item.ingredients) {
+         Stock s = stock.get(ingredient);
+         if (s != null && s.level.get() < 1) return false;
+      }
+      return true;
+   }//end isAvailable
+
+   /**
+    * Takes the ingredients of a whole order out of a store's stock, all or
+    * nothing.
+    *
+    * @param storeID the store
+    * @param itemNames the items of the order
+    * @param quantities the quantity of each item
+    * @return the ingredients that ran out; empty when the stock was taken
+    */
+   public List<String> reserve(int storeID, List<String> itemNames, List<Integer> quantities) {
+      List<String> missing = new ArrayList<String>();
+      Map<String, Stock> stock = stores.get(storeID);
+      if (stock == null) return missing;
+
+      Map<Stock, Long> need = needed(stock, itemNames, quantities);
+      List<Stock> taken = new ArrayList<Stock>();
+      for (Map.Entry<Stock, Long> e : need.entrySet()) {
+         if (e.getKey().take(e.getValue())) taken.add(e.getKey());
+         else missing.add(e.getKey().ingredient);
+      }
+      if (!missing.isEmpty()) {
+         for (Stock s : taken) s.give(need.get(s));
+         return missing;
+      }
+      for (Map.Entry<Stock, Long> e : need.entrySet()) e.getKey().unflushed.addAndGet(-e.getValue());
+      if (!need.isEmpty()) dirty.add(storeID);
+      return missing;
+   }//end reserve
+
+   /**
+    * Puts back what reserve() took, for an order that was not placed after all.
+    */
+   public void release(int storeID, List<String> itemNames, List<Integer> quantities) {
+      Map<String, Stock> stock = stores.get(storeID);
+      if (stock == null) return;
+      for (Map.Entry<Stock, Long> e : needed(stock, itemNames, quantities).entrySet()) {
+         e.getKey().give(e.getValue());
+         e.getKey().unflushed.addAndGet(e.getValue());
+      }
+      dirty.add(storeID);
+   }//end release
+
+   /**
+    * Starts the background thread writing stock changes to the database.
+    */
+   public void start() {
+      running = true;
+      flusher = new Thread(new Runnable() {
+         public void run() { flushLoop(); }
+      }, "inventory-flusher");
+      flusher.setDaemon(true);
+      flusher.start();
+   }//end start
+
+   /**
+    * Stops the flusher and writes what is left.
+    */
+   public void close() {
+      running = false;
+      if (flusher == null) return;
+      flusher.interrupt();
+      try { flusher.join(2000); } catch (InterruptedException e) { /* ignored. */ }
+      flushAll(false);
+   }//end close
+
+   private void flushLoop() {
+      int round = 0;
+      while (running) {
+         try { Thread.sleep(FLUSH_MS); } catch (InterruptedException e) { break; }
+         flushAll(++round % RELOAD_EVERY == 0);
+      }
+   }//end flushLoop
+
+   private void flushAll(boolean reload) {
+      Set<Integer> storeIDs = reload ? stores.keySet() : dirty;
+      for (Integer storeID : new ArrayList<Integer>(storeIDs)) {
+         dirty.remove(storeID);
+         try{
+            flush(storeID, reload);
+         }catch(Exception e){
+            dirty.add(storeID);   // retried next round
+            System.err.println("Inventory: could not write stock of store " + storeID + " (" + e.getMessage() + ")");
+         }
+      }
+   }//end flushAll
+
+   /*
+    * Writes the pending changes of one store in one transaction and takes
+    * the database levels back (they include other instances' orders).
+    **/
+   private void flush(int storeID, boolean reload) throws Exception {
+      Map<String, Stock> stock = stores.get(storeID);
+      PizzaStore session = PizzaStore.pool.borrow();
+      PizzaStore shard = PizzaStore.storeShard(session, storeID);
+      Map<Stock, Long> written = new HashMap<Stock, Long>();
+      Map<Stock, Long> dbLevels = new HashMap<Stock, Long>();
+      try{
+         shard.setAutoCommit(false);
+         for (Stock s : stock.values()) {
+            long delta = s.unflushed.getAndSet(0);
+            if (delta == 0) continue;
+            written.put(s, delta);
+            List<List<String>> row = shard.executeQueryAndReturnResult("UPDATE IngredientStock SET quantity = "
+               + "quantity + " + delta + " WHERE storeID = " + storeID + " AND ingredient = \'"
+               + s.ingredient.replace("\'", "\'\'") + "\' RETURNING quantity");
+            if (!row.isEmpty()) dbLevels.put(s, Long.parseLong(row.get(0).get(0).trim()));
+         }
+         shard.commit();
+         for (Map.Entry<Stock, Long> e : dbLevels.entrySet()) {
+            Stock s = e.getKey();
+            s.synced(e.getValue(), written.get(s));
+            if (e.getValue() < 0) {
+               System.err.println("Inventory: store " + storeID + " oversold " + s.ingredient + " by " + (-e.getValue()) + " unit(s)");
+            }
+         }
+         if (reload) {
+            for (List<String> row : shard.executeQueryAndReturnResult(stockQuery(storeID))) {
+               Stock s = stock.get(MenuSearchIndex.normalize(row.get(0)));
+               if (s == null) stock.put(MenuSearchIndex.normalize(row.get(0)), new Stock(row.get(0), Long.parseLong(row.get(1).trim())));
+               else s.synced(Long.parseLong(row.get(1).trim()), 0);
+            }
+         }
+      }catch(Exception e){
+         try { shard.rollback(); } catch (SQLException ignored) {}
+         for (Map.Entry<Stock, Long> w : written.entrySet()) w.getKey().unflushed.addAndGet(w.getValue());
+         throw e;
+      }finally{
+         shard.setAutoCommit(true);
+         PizzaStore.releaseShard(session, shard);
+         PizzaStore.pool.release(session);
+      }
+   }//end flush
+
+   private static String stockQuery(int storeID) {
+      return "SELECT S.ingredient, S.quantity FROM IngredientStock S WHERE S.storeID = " + storeID;
+   }
+
+   /*
+    * Adds up the tracked ingredients an order uses.
+    **/
+   private static Map<Stock, Long> needed(Map<String, Stock> stock, List<String> itemNames, List<Integer> quantities) {
+      Map<Stock, Long> need = new HashMap<Stock, Long>();
+      for (int i = 0; i < itemNames.size(); i++) {
+         MenuSearchIndex.Item item = PizzaStore.menuIndex.get(itemNames.get(i));
+         if (item == null) continue;
+         for (String ingredient : item.ingredients) {
+            Stock s = stock.get(ingredient);
+            if (s == null) continue;
+            Long n = need.get(s);
+            need.put(s, (n == null ? 0 : n) + quantities.get(i));
+         }
+      }
+      return need;
+   }//end needed
+}//end InventoryTracker
@@ -0,0 +1,338 @@
+/*
+ * Workload Simulator
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class drives PizzaStore with an open-loop workload instead of a
+ * human at readChoice.  Requests arrive as a Poisson process at a fixed
+ * rate, whether or not earlier ones have finished, and each one runs a
+ * weighted pick of the interactive workflows (browse menu, place order,
+ * recent orders, order info, view stores, driver claim and complete,
+ * manager menu edit) on a worker thread.  Latency is measured from the
+ * moment a request was due, so time spent waiting for a worker or a pooled
+ * connection counts, as it would for a user.  At the end a per action
+ * report of throughput, error rate and latency percentiles is printed.
+ *
+ * The actions go through the same code as the workflows: the application
+ * is started with Warmup (connection pool, shards, order journal, caches,
+ * coherence), orders are placed through stock reservation, admission
+ * control and PizzaStore.submitOrder, and status changes and claims
+ * through PizzaStore.setOrderStatus and claimNextOrder, which update the
+ * caches and the dispatch queue.  Order IDs come from submitOrder, which
+ * only hands out IDs that are free.  With -Dpizza.store=memory the
+ * application runs on a MemoryRepository loaded from the CSV files in
+ * pizza.dataDir (default data), which measures the application side alone.
+ *
+ */
+public class LoadTest {
+
+   // action name -> relative weight in the mix
+   static final String[] ACTIONS = { "browseMenu", "placeOrder", "recentOrders", "orderInfo", "viewStores", "driverStatus", "managerMenuEdit" };
+   static final int[] WEIGHTS    = {  35,           15,           20,             10,          10,           7,              3 };
+
+   /**
+    * Latencies and error count of one action, shared by all workers.
+    */
+   static class ActionStats {
+      long[] latencies = new long[1024];   // nanoseconds
+      int count = 0;
+      int errors = 0;
+
+      synchronized void record(long nanos, boolean ok) {
+         if (!ok) { errors++; return; }
+         if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+         latencies[count++] = nanos;
+      }
+
+      synchronized long percentile(double p) {
+         if (count == 0) return 0;
+         long[] sorted = Arrays.copyOf(latencies, count);
+         Arrays.sort(sorted);
+         int idx = (int) Math.ceil(p / 100.0 * count) - 1;
+         return sorted[Math.max(0, Math.min(count - 1, idx))];
+      }
+   }//end ActionStats
+
+   // sample keys read once before the run starts
+   static List<String> logins = new ArrayList<String>();
+   static List<Integer> storeIDs = new ArrayList<Integer>();
+   static List<String> itemNames = new ArrayList<String>();
+
+   static final Map<String, ActionStats> stats = new TreeMap<String, ActionStats>();
+   static final AtomicLong pending = new AtomicLong();
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [arrivalsPerSec] [seconds] [workers]
+    */
+   public static void main(String[] args) throws Exception {
+      boolean memory = System.getProperty("pizza.store", "postgres").equals("memory");
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadTest.class.getName () +
+            " <dbname> <port> <user> [arrivalsPerSec=20] [seconds=60] [workers=50]");
+         return;
+      }//end if
+
+      double arrivalsPerSec = args.length > 3 ? Double.parseDouble(args[3]) : 20.0;
+      int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+      int workers = args.length > 5 ? Integer.parseInt(args[5]) : 50;
+
+      for (String action : ACTIONS) stats.put(action, new ActionStats());
+
+      // start the application the way PizzaStore.main does
+      if (memory) {
+         PizzaStore.memoryStore = MemoryRepository.fromCsv(new File(System.getProperty("pizza.dataDir", "data")));
+         PizzaStore.menuIndex.ensureLoaded(null);
+         MenuSnapshot.reload(PizzaStore.memoryStore);
+      }else{
+         // a session per worker, plus what background work holds
+         if (System.getProperty("pizza.poolSize") == null) System.setProperty("pizza.poolSize", String.valueOf(workers + 4));
+         new Warmup().run(args[0], args[1], args[2], "");
+      }
+
+      // read the keys the requests pick from
+      PizzaStore setup = (PizzaStore.pool == null) ? null : PizzaStore.pool.borrow();
+      try{
+         PizzaRepository repo = PizzaStore.repo(setup);
+         logins.addAll(repo.logins(UserRole.CUSTOMER));
+         for (PizzaRepository.Store s : repo.stores()) storeIDs.add(s.storeID);
+         for (PizzaRepository.Item i : repo.items()) itemNames.add(i.itemName);
+      }finally{
+         if (setup != null) PizzaStore.pool.release(setup);
+      }
+      if (logins.isEmpty() || storeIDs.isEmpty() || itemNames.isEmpty()) {
+         System.err.println("Users, Store and Items must be loaded before running the load test.");
+         shutdown();
+         return;
+      }
+
+      System.out.println("Offering " + arrivalsPerSec + " requests/s for " + seconds + "s to " + workers + " workers");
+
+      // open loop: arrivals are scheduled on their own clock and queue up
+      // for a worker when the application falls behind
+      ExecutorService pool = Executors.newFixedThreadPool(workers);
+      Random rand = new Random();
+      long start = System.nanoTime();
+      long stopAt = start + seconds * 1000000000L;
+      long due = start;
+      long offered = 0;
+      while (true) {
+         due += (long) (-Math.log(1.0 - rand.nextDouble()) / arrivalsPerSec * 1e9);
+         if (due >= stopAt) break;
+         long wait = due - System.nanoTime();
+         if (wait > 0) LockSupport.parkNanos(wait);
+         final long dueAt = due;
+         pending.incrementAndGet();
+         pool.execute(new Runnable() {
+            public void run() { request(dueAt); }
+         });
+         offered++;
+      }
+
+      // let the backlog drain for as long again as the run
+      pool.shutdown();
+      if (!pool.awaitTermination(seconds, TimeUnit.SECONDS)) pool.shutdownNow();
+      double elapsed = (System.nanoTime() - start) / 1e9;
+
+      report(elapsed, offered, offered / (double) seconds);
+      shutdown();
+   }//end main
+
+   /*
+    * Runs one request due at dueAt: a weighted pick of the actions on a
+    * pooled session, timed from when it was due.
+    **/
+   static void request(long dueAt) {
+      ThreadLocalRandom rand = ThreadLocalRandom.current();
+      int totalWeight = 0;
+      for (int w : WEIGHTS) totalWeight += w;
+      int pick = rand.nextInt(totalWeight);
+      int a = 0;
+      while (pick >= WEIGHTS[a]) { pick -= WEIGHTS[a]; a++; }
+
+      boolean ok = true;
+      PizzaStore esql = null;
+      try {
+         esql = (PizzaStore.pool == null) ? null : PizzaStore.pool.borrow();
+         runAction(esql, ACTIONS[a], logins.get(rand.nextInt(logins.size())), rand);
+      } catch (Exception e) {
+         ok = false;
+      } finally {
+         if (esql != null) PizzaStore.pool.release(esql);
+         pending.decrementAndGet();
+      }
+      stats.get(ACTIONS[a]).record(System.nanoTime() - dueAt, ok);
+   }//end request
+
+   /*
+    * Runs one interactive workflow without its prompts.
+    **/
+   static void runAction(PizzaStore esql, String action, String login, Random rand) throws Exception {
+      int storeID = storeIDs.get(rand.nextInt(storeIDs.size()));
+      String itemName = itemNames.get(rand.nextInt(itemNames.size()));
+      PizzaRepository repo = PizzaStore.repo(esql);
+
+      switch (action) {
+         case "browseMenu": {
+            // viewMenu lists the items, searchMenu asks the index
+            repo.items();
+            MenuSearchIndex.Query q = new MenuSearchIndex.Query();
+            q.keywords.add(itemName.trim().split(" ")[0].toLowerCase());
+            PizzaStore.menuIndex.search(q);
+            break;
+         }
+         case "placeOrder":
+            placeOrder(esql, repo, login, storeID, rand);
+            break;
+         case "recentOrders":
+            PizzaStore.recentOrderIDs(esql, login, 5);
+            break;
+         case "orderInfo": {
+            List<Integer> recent = PizzaStore.recentOrderIDs(esql, login, 1);
+            if (recent.isEmpty()) break;
+            boolean found;
+            if (esql == null) {
+               OrderRecord order = repo.order(recent.get(0));
+               found = order != null && order.login.equals(login);
+            }else{
+               PizzaStore shard = PizzaStore.orderShard(esql, recent.get(0));
+               try{
+                  found = PizzaStore.orderDetails.get(shard, recent.get(0), login) != null;
+               }finally{ PizzaStore.releaseShard(esql, shard); }
+            }
+            if (!found) throw new IllegalStateException("order " + recent.get(0) + " not found");
+            break;
+         }
+         case "viewStores":
+            repo.stores();
+            break;
+         case "driverStatus": {
+            // claim the next order of the store and deliver it
+            OrderRecord order;
+            if (esql == null) {
+               List<OrderRecord> open = repo.openOrders(storeID, 1);   // the in-memory store has no dispatch queue
+               order = open.isEmpty() ? null : open.get(0);
+            }else{
+               int orderID = PizzaStore.claimNextOrder(esql, storeID);
+               order = (orderID < 0) ? null : repo.order(orderID);
+            }
+            if (order != null) PizzaStore.setOrderStatus(esql, order, OrderStatus.COMPLETE);
+            break;
+         }
+         case "managerMenuEdit":
+            // rewrite the item with its own values so the menu is not changed
+            repo.putItem(repo.item(itemName));
+            PizzaStore.menuChanged(esql, itemName);
+            break;
+         default:
+            throw new IllegalArgumentException("unknown action " + action);
+      }
+   }//end runAction
+
+   /*
+    * Places an order the way placeOrder does once the customer sends it:
+    * priced against the menu snapshot, stock reserved, admission permit
+    * taken, then submitted.  A sold out store is an answer, not an error;
+    * an order admission control rejects is an error.
+    **/
+   static void placeOrder(PizzaStore esql, PizzaRepository repo, String login, int storeID, Random rand) throws Exception {
+      if (repo.store(storeID) == null) return;
+      MenuSnapshot menu = MenuSnapshot.current(esql);
+      if (esql != null) PizzaStore.inventory.ensureLoaded(esql, storeID);   // the in-memory store tracks no stock
+
+      int lines = 1 + rand.nextInt(3);
+      List<String> names = new ArrayList<String>();
+      List<Integer> quantities = new ArrayList<Integer>();
+      float totalPrice = 0.00f;
+      for (int i = 0; i < lines; i++) {
+         String name = itemNames.get(rand.nextInt(itemNames.size()));
+         Float price = menu.price(name);
+         if (price == null || names.contains(name) || !PizzaStore.inventory.isAvailable(storeID, name)) continue;
+         names.add(name);
+         quantities.add(1);
+         totalPrice += price;
+      }
+      if (names.isEmpty()) return;
+      if (!PizzaStore.inventory.reserve(storeID, names, quantities).isEmpty()) return;
+
+      AdmissionController.Permit permit = null;
+      try{
+         if (esql != null) permit = PizzaStore.admission.acquire(esql, storeID, PizzaStore.journal == null);
+         PizzaStore.submitOrder(esql, login, storeID, totalPrice, names, quantities, menu.version);
+      }catch(Exception e){
+         PizzaStore.inventory.release(storeID, names, quantities);
+         throw e;
+      }finally{
+         PizzaStore.admission.release(permit);
+      }
+   }//end placeOrder
+
+   /*
+    * Stops the background work Warmup started, as the application does on
+    * exit.
+    **/
+   static void shutdown() {
+      if (PizzaStore.pool == null) return;
+      if (PizzaStore.coherence != null) PizzaStore.coherence.close();
+      PizzaStore.reviews.close(5000);
+      if (PizzaStore.journal != null) PizzaStore.journal.close(5000);
+      PizzaStore.inventory.close();
+      PizzaStore.trending.close();
+      if (PizzaStore.capture != null) PizzaStore.capture.close();
+      if (PizzaStore.shards != null) PizzaStore.shards.closeAll();
+      PizzaStore.pool.closeAll();
+   }//end shutdown
+
+   /*
+    * Prints throughput, error rate and latency percentiles per action.
+    **/
+   static void report(double elapsedSeconds, long offered, double offeredRate) {
+      System.out.println("");
+      System.out.println("Load test results (" + String.format("%.1f", elapsedSeconds) + "s, " + offered + " requests offered at "
+         + String.format("%.1f", offeredRate) + "/s, " + pending.get() + " unfinished)");
+      System.out.println("-----------------------------------------------------------------------------------------");
+      System.out.println(String.format("%-16s %8s %8s %8s %9s %9s %9s %9s",
+         "action", "ok", "err%", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+      int totalOk = 0, totalErr = 0;
+      for (Map.Entry<String, ActionStats> e : stats.entrySet()) {
+         ActionStats s = e.getValue();
+         synchronized (s) {
+            totalOk += s.count;
+            totalErr += s.errors;
+            int attempts = s.count + s.errors;
+            System.out.println(String.format("%-16s %8d %7.2f%% %8.1f %9.2f %9.2f %9.2f %9.2f",
+               e.getKey(), s.count, attempts == 0 ? 0.0 : 100.0 * s.errors / attempts, s.count / elapsedSeconds,
+               s.percentile(50) / 1e6, s.percentile(95) / 1e6, s.percentile(99) / 1e6, s.percentile(100) / 1e6));
+         }
+      }
+      System.out.println("-----------------------------------------------------------------------------------------");
+      System.out.println(String.format("total: %d ok, %d errors, %.1f ops/s", totalOk, totalErr, totalOk / elapsedSeconds));
+   }//end report
+}//end LoadTest
@@ -0,0 +1,459 @@
+/*
+ * Memory Repository
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class is a PizzaRepository held entirely in this process.  Rows live
+ * in concurrent hash maps keyed like the primary keys of the tables, with
+ * sorted skip list indexes for the ordered lookups:
+ *
+ *    items by price           itemsUpTo
+ *    orders by user, newest   recentOrders
+ *    open orders by store     openOrders, oldest first
+ *
+ * Writes check the same keys and foreign keys Postgres does.  Isolation is
+ * one read/write lock: reads share it, a write or a whole transaction()
+ * holds it exclusively, so transactions are serializable.  Every write in a
+ * transaction pushes its inverse on an undo log that is run backwards when
+ * the work throws.  Orders are immutable OrderRecords, so a status change
+ * swaps the record.
+ *
+ * fromCsv() loads the files in data/ (the same ones load_data.sql copies)
+ * for a kiosk or a load test without a database.
+ *
+ */
+public class MemoryRepository implements PizzaRepository {
+
+   /*
+    * Index key of an order: a group (login or storeID), its time and id.
+    **/
+   static final class OrderKey {
+      final String group;
+      final long time;
+      final int orderID;
+
+      OrderKey(String group, long time, int orderID) {
+         this.group = group;
+         this.time = time;
+         this.orderID = orderID;
+      }
+   }//end OrderKey
+
+   private static final Comparator<OrderKey> NEWEST_FIRST = new Comparator<OrderKey>() {
+      public int compare(OrderKey a, OrderKey b) {
+         int c = a.group.compareTo(b.group);
+         if (c != 0) return c;
+         if (a.time != b.time) return a.time > b.time ? -1 : 1;
+         return Integer.compare(b.orderID, a.orderID);
+      }
+   };
+
+   private static final Comparator<OrderKey> OLDEST_FIRST = new Comparator<OrderKey>() {
+      public int compare(OrderKey a, OrderKey b) {
+         int c = a.group.compareTo(b.group);
+         if (c != 0) return c;
+         if (a.time != b.time) return a.time < b.time ? -1 : 1;
+         return Integer.compare(a.orderID, b.orderID);
+      }
+   };
+
+   private static final Comparator<Item> BY_PRICE = new Comparator<Item>() {
+      public int compare(Item a, Item b) {
+         int c = Double.compare(a.price, b.price);
+         return c != 0 ? c : a.itemName.compareTo(b.itemName);
+      }
+   };
+
+   private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<String, User>();
+   private final ConcurrentHashMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+   private final ConcurrentSkipListSet<Item> itemsByPrice = new ConcurrentSkipListSet<Item>(BY_PRICE);
+   private final ConcurrentSkipListMap<Integer, Store> stores = new ConcurrentSkipListMap<Integer, Store>();
+   private final ConcurrentHashMap<Integer, OrderRecord> orders = new ConcurrentHashMap<Integer, OrderRecord>();
+   private final ConcurrentSkipListSet<OrderKey> ordersByUser = new ConcurrentSkipListSet<OrderKey>(NEWEST_FIRST);
+   private final ConcurrentSkipListSet<OrderKey> openByStore = new ConcurrentSkipListSet<OrderKey>(OLDEST_FIRST);
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private final ThreadLocal<ArrayDeque<Runnable>> undo = new ThreadLocal<ArrayDeque<Runnable>>();
+
+   /**
+    * Builds a repository from the CSV files of the data directory.
+    *
+    * @param dir the directory holding users.csv, items.csv, store.csv,
+    *        foodorder.csv and itemsinorder.csv
+    * @return the loaded repository
+    * @throws Exception when a file cannot be read or a row breaks a key
+    */
+   public static MemoryRepository fromCsv(File dir) throws Exception {
+      MemoryRepository repo = new MemoryRepository();
+      for (String[] f : readCsv(new File(dir, "users.csv"))) {
+         repo.addUser(new User(f[0], f[1], UserRole.parse(f[2]), f[3].isEmpty() ? null : f[3], f[4]));
+      }
+      for (String[] f : readCsv(new File(dir, "items.csv"))) {
+         repo.putItem(new Item(f[0], f[1], f[2], Double.parseDouble(f[3]), f[4]));
+      }
+      for (String[] f : readCsv(new File(dir, "store.csv"))) {
+         repo.putStore(new Store(Integer.parseInt(f[0]), f[1], f[2], f[3], f[4].equals("yes"),
+            f[5].isEmpty() ? 0 : Double.parseDouble(f[5])));
+      }
+
+      // lines first, so each order is added whole
+      Map<Integer, List<String[]>> lines = new LinkedHashMap<Integer, List<String[]>>();
+      for (String[] f : readCsv(new File(dir, "itemsinorder.csv"))) {
+         int orderID = Integer.parseInt(f[0]);
+         if (!lines.containsKey(orderID)) lines.put(orderID, new ArrayList<String[]>());
+         lines.get(orderID).add(f);
+      }
+      for (String[] f : readCsv(new File(dir, "foodorder.csv"))) {
+         int orderID = Integer.parseInt(f[0]);
+         List<String> names = new ArrayList<String>();
+         List<Integer> quantities = new ArrayList<Integer>();
+         if (lines.containsKey(orderID)) {
+            for (String[] line : lines.get(orderID)) {
+               names.add(line[1]);
+               quantities.add(Integer.parseInt(line[2]));
+            }
+         }
+         repo.addOrder(new OrderRecord(orderID, f[1], Integer.parseInt(f[2]), Float.parseFloat(f[3]),
+            Timestamp.valueOf(f[4]).getTime(), OrderStatus.parse(f[5]), names, quantities, -1));
+      }
+      return repo;
+   }//end fromCsv
+
+   private static List<String[]> readCsv(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line = reader.readLine();   // header
+         while ((line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty()) rows.add(UserImport.parse(line));
+         }
+      }finally{
+         reader.close();
+      }
+      return rows;
+   }//end readCsv
+
+   /**
+    * Adds a store, or replaces the store with that storeID.
+    */
+   public void putStore(final Store s) {
+      write(new Runnable() {
+         public void run() {
+            final Store old = stores.put(s.storeID, s);
+            logUndo(new Runnable() {
+               public void run() {
+                  if (old == null) stores.remove(s.storeID);
+                  else stores.put(s.storeID, old);
+               }
+            });
+         }
+      });
+   }//end putStore
+
+   public User user(String login) {
+      lock.readLock().lock();
+      try{
+         return users.get(login);
+      }finally{
+         lock.readLock().unlock();
+      }
+   }
+
+   public List<String> logins(UserRole role) {
+      lock.readLock().lock();
+      try{
+         List<String> logins = new ArrayList<String>();
+         for (User u : users.values()) if (u.role == role) logins.add(u.login);
+         return logins;
+      }finally{
+         lock.readLock().unlock();
+      }
+   }//end logins
+
+   public boolean addUser(final User u) {
+      final boolean[] added = new boolean[1];
+      write(new Runnable() {
+         public void run() {
+            if (users.putIfAbsent(u.login, u) != null) return;
+            added[0] = true;
+            logUndo(new Runnable() {
+               public void run() { users.remove(u.login); }
+            });
+         }
+      });
+      return added[0];
+   }//end addUser
+
+   public void updateUser(final User u) {
+      write(new Runnable() {
+         public void run() {
+            final User old = users.replace(u.login, u);
+            if (old == null) return;
+            logUndo(new Runnable() {
+               public void run() { users.put(u.login, old); }
+            });
+         }
+      });
+   }//end updateUser
+
+   public boolean renameUser(final String login, final String newLogin) throws SQLException {
+      lock.writeLock().lock();
+      try{
+         final User old = users.get(login);
+         if (old == null) return false;
+         if (users.containsKey(newLogin))
+            throw new SQLException("duplicate key value violates unique constraint \"users_pkey\"");
+         if (!scan(ordersByUser, new OrderKey(login, Long.MAX_VALUE, Integer.MAX_VALUE), 1).isEmpty())
+            throw new SQLException("update or delete on table \"users\" violates foreign key constraint");
+         final User renamed = new User(newLogin, old.password, old.role, old.favoriteItems, old.phoneNum);
+         users.remove(login);
+         users.put(newLogin, renamed);
+         logUndo(new Runnable() {
+            public void run() {
+               users.remove(newLogin);
+               users.put(login, old);
+            }
+         });
+         return true;
+      }finally{
+         lock.writeLock().unlock();
+      }
+   }//end renameUser
+
+   public List<Item> items() {
+      lock.readLock().lock();
+      try{
+         return new ArrayList<Item>(items.values());
+      }finally{
+         lock.readLock().unlock();
+      }
+   }//end items
+
+   public Item item(String itemName) {
+      lock.readLock().lock();
+      try{
+         return items.get(itemName);
+      }finally{
+         lock.readLock().unlock();
+      }
+   }
+
+   public List<Item> itemsUpTo(double maxPrice) {
+      lock.readLock().lock();
+      try{
+         List<Item> cheap = new ArrayList<Item>();
+         for (Item i : itemsByPrice) {
+            if (i.price > maxPrice) break;
+            cheap.add(i);
+         }
+         return cheap;
+      }finally{
+         lock.readLock().unlock();
+      }
+   }//end itemsUpTo
+
+   public void putItem(final Item i) {
+      write(new Runnable() {
+         public void run() {
+            final Item old = items.put(i.itemName, i);
+            if (old != null) itemsByPrice.remove(old);
+            itemsByPrice.add(i);
+            logUndo(new Runnable() {
+               public void run() {
+                  itemsByPrice.remove(i);
+                  if (old == null) {
+                     items.remove(i.itemName);
+                  }else{
+                     items.put(i.itemName, old);
+                     itemsByPrice.add(old);
+                  }
+               }
+            });
+         }
+      });
+   }//end putItem
+
+   public List<Store> stores() {
+      lock.readLock().lock();
+      try{
+         return new ArrayList<Store>(stores.values());
+      }finally{
+         lock.readLock().unlock();
+      }
+   }
+
+   public Store store(int storeID) {
+      lock.readLock().lock();
+      try{
+         return stores.get(storeID);
+      }finally{
+         lock.readLock().unlock();
+      }
+   }
+
+   public void addOrder(final OrderRecord order) throws SQLException {
+      lock.writeLock().lock();
+      try{
+         if (orders.containsKey(order.orderID))
+            throw new SQLException("duplicate key value violates unique constraint \"foodorder_pkey\"");
+         if (!users.containsKey(order.login) || !stores.containsKey(order.storeID))
+            throw new SQLException("insert or update on table \"foodorder\" violates foreign key constraint");
+         for (int i = 0; i < order.itemNames.size(); i++) {
+            if (!items.containsKey(order.itemNames.get(i)))
+               throw new SQLException("insert or update on table \"itemsinorder\" violates foreign key constraint");
+            if (order.itemNames.indexOf(order.itemNames.get(i)) != i)
+               throw new SQLException("duplicate key value violates unique constraint \"itemsinorder_pkey\"");
+         }
+         index(order);
+         logUndo(new Runnable() {
+            public void run() { unindex(order); }
+         });
+      }finally{
+         lock.writeLock().unlock();
+      }
+   }//end addOrder
+
+   public OrderRecord order(int orderID) {
+      lock.readLock().lock();
+      try{
+         return orders.get(orderID);
+      }finally{
+         lock.readLock().unlock();
+      }
+   }
+
+   public List<OrderRecord> recentOrders(String login, int limit) {
+      if (login != null) return scan(ordersByUser, new OrderKey(login, Long.MAX_VALUE, Integer.MAX_VALUE), limit);
+
+      // every user: no index for that, a kiosk has few orders
+      lock.readLock().lock();
+      try{
+         List<OrderRecord> all = new ArrayList<OrderRecord>(orders.values());
+         all.sort(new Comparator<OrderRecord>() {
+            public int compare(OrderRecord a, OrderRecord b) {
+               if (a.orderTimestamp != b.orderTimestamp) return a.orderTimestamp > b.orderTimestamp ? -1 : 1;
+               return Integer.compare(b.orderID, a.orderID);
+            }
+         });
+         return (limit < 0 || all.size() <= limit) ? all : new ArrayList<OrderRecord>(all.subList(0, limit));
+      }finally{
+         lock.readLock().unlock();
+      }
+   }//end recentOrders
+
+   public List<OrderRecord> openOrders(int storeID, int limit) {
+      return scan(openByStore, new OrderKey(String.valueOf(storeID), Long.MIN_VALUE, Integer.MIN_VALUE), limit);
+   }
+
+   private List<OrderRecord> scan(ConcurrentSkipListSet<OrderKey> index, OrderKey from, int limit) {
+      lock.readLock().lock();
+      try{
+         List<OrderRecord> found = new ArrayList<OrderRecord>();
+         for (OrderKey k : index.tailSet(from)) {
+            if ((limit >= 0 && found.size() >= limit) || !k.group.equals(from.group)) break;
+            found.add(orders.get(k.orderID));
+         }
+         return found;
+      }finally{
+         lock.readLock().unlock();
+      }
+   }//end scan
+
+   public boolean setStatus(int orderID, OrderStatus from, OrderStatus to) {
+      lock.writeLock().lock();
+      try{
+         final OrderRecord old = orders.get(orderID);
+         if (old == null || (from != null && old.orderStatus != from)) return false;
+         final OrderRecord changed = new OrderRecord(old.orderID, old.login, old.storeID, old.totalPrice, old.orderTimestamp,
+            to, old.itemNames, old.quantities, old.menuVersion);
+         unindex(old);
+         index(changed);
+         logUndo(new Runnable() {
+            public void run() {
+               unindex(changed);
+               index(old);
+            }
+         });
+         return true;
+      }finally{
+         lock.writeLock().unlock();
+      }
+   }//end setStatus
+
+   public <T> T transaction(Work<T> work) throws Exception {
+      lock.writeLock().lock();
+      ArrayDeque<Runnable> outer = undo.get();
+      ArrayDeque<Runnable> log = new ArrayDeque<Runnable>();
+      undo.set(log);
+      try{
+         T result = work.run(this);
+         if (outer != null) {
+            // nested: the enclosing transaction undoes these as well
+            while (!log.isEmpty()) outer.push(log.pollLast());
+         }
+         return result;
+      }catch(Exception e){
+         while (!log.isEmpty()) log.pop().run();
+         throw e;
+      }finally{
+         undo.set(outer);
+         lock.writeLock().unlock();
+      }
+   }//end transaction
+
+   private void index(OrderRecord o) {
+      orders.put(o.orderID, o);
+      ordersByUser.add(new OrderKey(o.login, o.orderTimestamp, o.orderID));
+      if (o.orderStatus == OrderStatus.INCOMPLETE)
+         openByStore.add(new OrderKey(String.valueOf(o.storeID), o.orderTimestamp, o.orderID));
+   }//end index
+
+   private void unindex(OrderRecord o) {
+      orders.remove(o.orderID);
+      ordersByUser.remove(new OrderKey(o.login, o.orderTimestamp, o.orderID));
+      openByStore.remove(new OrderKey(String.valueOf(o.storeID), o.orderTimestamp, o.orderID));
+   }//end unindex
+
+   /*
+    * Runs a single write under the exclusive lock.
+    **/
+   private void write(Runnable change) {
+      lock.writeLock().lock();
+      try{
+         change.run();
+      }finally{
+         lock.writeLock().unlock();
+      }
+   }//end write
+
+   private void logUndo(Runnable inverse) {
+      ArrayDeque<Runnable> log = undo.get();
+      if (log != null) log.push(inverse);
+   }
+}//end MemoryRepository
@@ -0,0 +1,267 @@
+/*
+ * Menu Search Index
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * This class keeps an in-memory inverted index over the Items table so the
+ * menu can be searched by name, ingredient and description words without
+ * going back to the database.  The index is loaded once from Items and then
+ * patched one item at a time whenever a manager adds or updates an item.
+ *
+ */
+public class MenuSearchIndex {
+
+   /**
+    * One row of the Items table as seen by the index.
+    */
+   public static class Item {
+      public final String itemName;
+      public final List<String> ingredients;
+      public final String typeOfItem;
+      public final double price;
+      public final String description;
+
+      Item(String itemName, List<String> ingredients, String typeOfItem, double price, String description) {
+         this.itemName = itemName;
+         this.ingredients = ingredients;
+         this.typeOfItem = typeOfItem;
+         this.price = price;
+         this.description = description;
+      }
+   }//end Item
+
+   /**
+    * The filters of a single menu search.  Empty lists and a null type
+    * mean "no constraint".
+    */
+   public static class Query {
+      public List<String> keywords = new ArrayList<String>();      // token prefixes, all must match
+      public List<String> withIngredients = new ArrayList<String>();
+      public List<String> withoutIngredients = new ArrayList<String>();
+      public String typeOfItem = null;
+      public double maxPrice = Double.MAX_VALUE;
+   }//end Query
+
+   // itemName -> item
+   private final Map<String, Item> items = new HashMap<String, Item>();
+
+   // word (from name, ingredients or description) -> itemNames. Sorted so
+   // that a prefix maps to one contiguous range of keys.
+   private final TreeMap<String, Set<String>> tokens = new TreeMap<String, Set<String>>();
+
+   // whole ingredient (e.g. "tomato sauce") -> itemNames
+   private final Map<String, Set<String>> ingredients = new HashMap<String, Set<String>>();
+
+   private boolean loaded = false;
+
+   /**
+    * Loads the whole Items table into the index the first time it is
+    * called.  Later calls return immediately.
+    *
+    * @param esql the database connection to read Items from, null for the
+    *        in-memory store
+    * @throws java.sql.SQLException when the Items query fails
+    */
+   public synchronized void ensureLoaded(PizzaStore esql) throws java.sql.SQLException {
+      if (loaded) return;
+      for (PizzaRepository.Item item : PizzaStore.repo(esql).items()) put(item);
+      loaded = true;
+   }//end ensureLoaded
+
+   /**
+    * Drops everything and loads the whole Items table again.
+    *
+    * @param esql the database connection to read Items from
+    * @throws java.sql.SQLException when the Items query fails
+    */
+   public synchronized void reload(PizzaStore esql) throws java.sql.SQLException {
+      items.clear();
+      tokens.clear();
+      ingredients.clear();
+      loaded = false;
+      ensureLoaded(esql);
+   }//end reload
+
+   /**
+    * Re-reads a single item from the database and replaces its postings.
+    * Called after addItem / updateItem so the index never needs a full
+    * rebuild.
+    *
+    * @param esql the database connection
+    * @param itemName the item that was written
+    * @throws java.sql.SQLException when the Items query fails
+    */
+   public synchronized void refresh(PizzaStore esql, String itemName) throws java.sql.SQLException {
+      if (!loaded) { ensureLoaded(esql); return; }
+      PizzaRepository.Item item = PizzaStore.repo(esql).item(itemName);
+      if (item == null) remove(itemName);
+      else put(item);
+   }//end refresh
+
+   private void put(PizzaRepository.Item item) {
+      put(item.itemName, item.ingredients, item.typeOfItem, String.valueOf(item.price), item.description);
+   }
+
+   /**
+    * Adds an item to the index, replacing any earlier version of it.
+    */
+   public synchronized void put(String itemName, String ingredientList, String typeOfItem, String price, String description) {
+      remove(itemName);
+
+      List<String> parsed = new ArrayList<String>();
+      if (ingredientList != null) {
+         for (String ingredient : ingredientList.split(",")) {
+            String normalized = normalize(ingredient);
+            if (normalized.length() > 0) parsed.add(normalized);
+         }
+      }
+      Item item = new Item(itemName, parsed, typeOfItem == null ? "" : typeOfItem.trim(),
+                           Double.parseDouble(price.trim()), description == null ? "" : description);
+      items.put(itemName, item);
+
+      for (String ingredient : parsed) {
+         addPosting(ingredients, ingredient, itemName);
+      }
+      for (String token : tokenize(textOf(item))) {
+         addPosting(tokens, token, itemName);
+      }
+   }//end put
+
+   /**
+    * Drops an item and all of its postings from the index.
+    */
+   public synchronized void remove(String itemName) {
+      Item old = items.remove(itemName);
+      if (old == null) return;
+      for (String ingredient : old.ingredients) {
+         removePosting(ingredients, ingredient, itemName);
+      }
+      for (String token : tokenize(textOf(old))) {
+         removePosting(tokens, token, itemName);
+      }
+   }//end remove
+
+   /*
+    * The text an item's keyword postings come from, built from the parsed
+    * item so that put and remove see the same tokens.
+    **/
+   private static String textOf(Item item) {
+      return item.itemName + " " + String.join(" ", item.ingredients) + " " + item.description;
+   }
+
+   /**
+    * @return the indexed item of that name, or null
+    */
+   public synchronized Item get(String itemName) {
+      return items.get(itemName);
+   }
+
+   /**
+    * Runs a search entirely against the in-memory postings.
+    *
+    * @param q the filters to apply
+    * @return the matching items, sorted by name
+    */
+   public synchronized List<Item> search(Query q) {
+      Set<String> candidates = null;
+
+      // every keyword must match the prefix of some word of the item
+      for (String keyword : q.keywords) {
+         String prefix = normalize(keyword);
+         if (prefix.length() == 0) continue;
+         Set<String> matches = new HashSet<String>();
+         for (Set<String> names : tokens.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            matches.addAll(names);
+         }
+         candidates = intersect(candidates, matches);
+      }
+
+      // every required ingredient must be present
+      for (String ingredient : q.withIngredients) {
+         Set<String> names = ingredients.get(normalize(ingredient));
+         candidates = intersect(candidates, names == null ? new HashSet<String>() : names);
+      }
+
+      if (candidates == null) candidates = new HashSet<String>(items.keySet());
+
+      // excluded ingredients are removed from whatever is left
+      for (String ingredient : q.withoutIngredients) {
+         Set<String> names = ingredients.get(normalize(ingredient));
+         if (names != null) candidates.removeAll(names);
+      }
+
+      TreeMap<String, Item> result = new TreeMap<String, Item>();
+      for (String name : candidates) {
+         Item item = items.get(name);
+         if (item.price >= q.maxPrice) continue;
+         if (q.typeOfItem != null && !item.typeOfItem.equalsIgnoreCase(q.typeOfItem.trim())) continue;
+         result.put(name, item);
+      }
+      return new ArrayList<Item>(result.values());
+   }//end search
+
+   /**
+    * Splits a comma separated user entry ("pepperoni, onions") into a list.
+    */
+   public static List<String> splitList(String input) {
+      List<String> out = new ArrayList<String>();
+      if (input == null) return out;
+      for (String part : input.split(",")) {
+         if (part.trim().length() > 0) out.add(part.trim());
+      }
+      return out;
+   }//end splitList
+
+   private static Set<String> intersect(Set<String> current, Set<String> next) {
+      if (current == null) return new HashSet<String>(next);
+      current.retainAll(next);
+      return current;
+   }
+
+   // the data files quote ingredient lists, so stray quotes are dropped too
+   static String normalize(String s) {
+      return s.replace("\"", "").trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+   }
+
+   private static List<String> tokenize(String text) {
+      List<String> out = new ArrayList<String>();
+      for (String word : text.toLowerCase(Locale.ROOT).split("[^a-z0-9]+")) {
+         if (word.length() > 0) out.add(word);
+      }
+      return out;
+   }
+
+   private static void addPosting(Map<String, Set<String>> postings, String key, String itemName) {
+      Set<String> names = postings.get(key);
+      if (names == null) {
+         names = new HashSet<String>();
+         postings.put(key, names);
+      }
+      names.add(itemName);
+   }
+
+   private static void removePosting(Map<String, Set<String>> postings, String key, String itemName) {
+      Set<String> names = postings.get(key);
+      if (names == null) return;
+      names.remove(itemName);
+      if (names.isEmpty()) postings.remove(key);
+   }
+}//end MenuSearchIndex
@@ -0,0 +1,131 @@
+/*
+ * Menu Snapshot
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is an immutable, versioned copy of the menu prices.  Sessions
+ * read the current snapshot through one AtomicReference, without locking,
+ * and keep using it for as long as they need consistent prices (a whole
+ * order).  addItem and updateItem publish a new snapshot, built aside and
+ * swapped in, so a reader never sees half an update.  Items changed by
+ * other instances come in through CacheCoherence.
+ *
+ * The version is the MenuVersion row, which a trigger on Items
+ * (create_triggers.sql) moves on in the transaction that writes the
+ * item.  A snapshot is read with its version in one statement, so every
+ * session on the database that holds a version holds the same prices,
+ * and every order can record the menu version it was priced against
+ * (OrderMenuVersion).
+ *
+ */
+public final class MenuSnapshot {
+
+   static final String VERSION_QUERY = "SELECT V.version FROM MenuVersion V";
+
+   private static final AtomicReference<MenuSnapshot> current = new AtomicReference<MenuSnapshot>();
+
+   public final long version;
+   private final Map<String, Float> prices;
+
+   private MenuSnapshot(long version, Map<String, Float> prices) {
+      this.version = version;
+      this.prices = Collections.unmodifiableMap(prices);
+   }
+
+   /**
+    * @return the price of an item, or null when it is not on this menu
+    */
+   public Float price(String itemName) {
+      return prices.get(itemName);
+   }
+
+   /**
+    * @return the number of items on this menu
+    */
+   public int size() {
+      return prices.size();
+   }
+
+   /**
+    * Returns the current snapshot, loading the first one if needed.
+    *
+    * @param esql the session to load from
+    * @return the current menu
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public static MenuSnapshot current(PizzaStore esql) throws SQLException {
+      MenuSnapshot menu = current.get();
+      return (menu != null) ? menu : reload(esql);
+   }
+
+   /**
+    * Reads the whole menu and its version in one statement and publishes it.
+    *
+    * @param esql the session to load from
+    * @return the new snapshot
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static synchronized MenuSnapshot reload(PizzaStore esql) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT V.version, T.itemName, T.price FROM MenuVersion V LEFT JOIN Items T ON true");
+      Map<String, Float> prices = new HashMap<String, Float>();
+      for (List<String> row : rows) {
+         if (row.get(1) != null) prices.put(row.get(1), Float.parseFloat(row.get(2).trim()));
+      }
+      MenuSnapshot menu = new MenuSnapshot(Long.parseLong(rows.get(0).get(0).trim()), prices);
+      current.set(menu);
+      return menu;
+   }//end reload
+
+   /**
+    * Publishes the menu of a store without a MenuVersion table (the
+    * in-memory one, pizza.store=memory): each call takes the next version
+    * of this process.
+    *
+    * @param repo the store to read the menu from
+    * @return the new snapshot
+    * @throws java.sql.SQLException when the menu cannot be read
+    */
+   public static synchronized MenuSnapshot reload(PizzaRepository repo) throws SQLException {
+      Map<String, Float> prices = new HashMap<String, Float>();
+      for (PizzaRepository.Item i : repo.items()) prices.put(i.itemName, (float) i.price);
+      MenuSnapshot old = current.get();
+      MenuSnapshot menu = new MenuSnapshot(old == null ? 0 : old.version + 1, prices);
+      current.set(menu);
+      return menu;
+   }//end reload
+
+   /**
+    * Publishes the menu again when its version moved on: after this
+    * session wrote an item, or when CacheCoherence reports one another
+    * instance wrote.  Several changes arriving together cost one reload.
+    *
+    * @param esql the session to read with
+    * @return the current snapshot
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static synchronized MenuSnapshot refresh(PizzaStore esql) throws SQLException {
+      MenuSnapshot old = current.get();
+      if (old != null) {
+         long version = Long.parseLong(esql.executeQueryAndReturnResult(VERSION_QUERY).get(0).get(0).trim());
+         if (version == old.version) return old;
+      }
+      return reload(esql);
+   }//end refresh
+}//end MenuSnapshot
@@ -0,0 +1,154 @@
+/*
+ * Order Detail Cache
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * This class serves viewOrderInfo.  An order's header and item lines come
+ * back from one joined query, which for customers also carries the
+ * ownership check, and the result is kept in an LRU cache:
+ *
+ *    complete orders     cached for at most COMPLETE_MAX_AGE_MS (staff
+ *                        may reopen them)
+ *    other orders        cached for at most MAX_AGE_MS
+ *
+ * Either is dropped by invalidate() when this process changes the status,
+ * and when another instance does through CacheCoherence (FoodOrder status
+ * changes are logged by create_triggers.sql).  The age limits cover the
+ * changes coherence does not see: those on order shards other than the
+ * first, and the moments before its listener catches up.  Capacity comes
+ * from the pizza.orderCacheSize system property (default 10000).
+ *
+ */
+public class OrderDetailCache {
+
+   static final String DETAIL_QUERY = "SELECT R.orderID, R.login, R.orderTimestamp, R.totalPrice, R.orderStatus, "
+      + "N.itemName, N.quantity FROM FoodOrder R LEFT JOIN ItemsInOrder N ON N.orderID = R.orderID "
+      + "WHERE R.orderID = CAST(? AS integer)";
+   static final String OWN_DETAIL_QUERY = DETAIL_QUERY + " AND R.login = ?";
+
+   static final long MAX_AGE_MS = 5000;
+   static final long COMPLETE_MAX_AGE_MS = 60000;
+
+   /**
+    * One order with its item lines.
+    */
+   public static class Detail {
+      public final int orderID;
+      public final String login;
+      public final String orderTimestamp;
+      public final String totalPrice;
+      public final OrderStatus orderStatus;
+      public final List<String[]> lines = new ArrayList<String[]>();
+      final long loadedAt = System.currentTimeMillis();
+
+      Detail(List<String> row) {
+         orderID = Integer.parseInt(row.get(0).trim());
+         login = row.get(1).trim();
+         orderTimestamp = row.get(2);
+         totalPrice = row.get(3);
+         orderStatus = OrderStatus.parse(row.get(4));
+      }
+
+      public boolean isComplete() {
+         return orderStatus == OrderStatus.COMPLETE;
+      }
+
+      boolean isFresh(long now) {
+         return now - loadedAt < (isComplete() ? COMPLETE_MAX_AGE_MS : MAX_AGE_MS);
+      }
+   }//end Detail
+
+   private final Map<Integer, Detail> cache;
+   private long hits = 0;
+   private long misses = 0;
+
+   public OrderDetailCache() {
+      this(Integer.getInteger("pizza.orderCacheSize", 10000));
+   }
+
+   public OrderDetailCache(final int capacity) {
+      cache = new LinkedHashMap<Integer, Detail>(256, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Detail> eldest) {
+            return size() > capacity;
+         }
+      };
+   }
+
+   /**
+    * Looks an order up, from the cache when possible.
+    *
+    * @param esql the session holding the order (its shard)
+    * @param orderID the order
+    * @param login the customer asking, or null for staff who may see any order
+    * @return the order, or null when it does not exist or is not the customer's
+    * @throws java.sql.SQLException when the query fails
+    */
+   public Detail get(PizzaStore esql, int orderID, String login) throws SQLException {
+      Detail detail;
+      synchronized (this) {
+         detail = cache.get(orderID);
+         if (detail != null && !detail.isFresh(System.currentTimeMillis())) {
+            cache.remove(orderID);
+            detail = null;
+         }
+         if (detail != null) hits++;
+         else misses++;
+      }
+      if (detail == null) {
+         detail = load(esql, orderID, login);
+         if (detail == null) return null;
+         synchronized (this) { cache.put(orderID, detail); }
+      }
+      if (login != null && !detail.login.equals(login.trim())) return null;
+      return detail;
+   }//end get
+
+   /**
+    * Drops an order, after its status or contents changed.
+    */
+   public synchronized void invalidate(int orderID) {
+      cache.remove(orderID);
+   }
+
+   public synchronized void clear() {
+      cache.clear();
+   }
+
+   /**
+    * @return hits and misses so far, for diagnostics
+    */
+   public synchronized String stats() {
+      return cache.size() + " entries, " + hits + " hits, " + misses + " misses";
+   }
+
+   /*
+    * Reads the header and lines in one round trip: one row per item line,
+    * or a single row with null item columns for an order without lines.
+    **/
+   private Detail load(PizzaStore esql, int orderID, String login) throws SQLException {
+      List<List<String>> rows = (login == null)
+         ? esql.executePreparedQuery(DETAIL_QUERY, String.valueOf(orderID))
+         : esql.executePreparedQuery(OWN_DETAIL_QUERY, String.valueOf(orderID), login);
+      if (rows.isEmpty()) return null;
+      Detail detail = new Detail(rows.get(0));
+      for (List<String> row : rows) {
+         if (row.get(5) != null) detail.lines.add(new String[] { row.get(5), row.get(6) });
+      }
+      return detail;
+   }//end load
+}//end OrderDetailCache
@@ -0,0 +1,379 @@
+/*
+ * Order Export
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class writes orders with their items to files for accounting, as
+ * CSV (one line per item) or JSON Lines (one object per order with an
+ * items array), optionally gzip compressed and split into parts of a
+ * given size.
+ *
+ * Rows come through a server side cursor (PizzaStore.forEachRow, DECLARE
+ * and FETCH inside a transaction, since the pg73 driver reads a plain
+ * query's whole result into memory) FETCH_ROWS at a time and are encoded
+ * straight into a large direct buffer that is written to a FileChannel
+ * when full; with gzip the buffer is deflated into a second direct buffer
+ * first.  Memory use is the two buffers and one fetch whatever the number
+ * of orders, and the default fastest compression level keeps the
+ * compressor ahead of the disk.  A part is closed at an order boundary
+ * once it reached the split size.
+ *
+ * Used from the manager menu and from the command line:
+ *
+ *    java OrderExport dbname port user outPrefix fromDate toDate [storeID|all]
+ *         [csv|jsonl] [--gzip] [--splitMB n]
+ *
+ * Tunables (system properties): pizza.export.bufferKB (1024),
+ * pizza.export.gzipLevel (1), pizza.export.fetchRows (5000).
+ *
+ */
+public class OrderExport {
+
+   static final int BUFFER_BYTES = Integer.getInteger("pizza.export.bufferKB", 1024) * 1024;
+   static final int GZIP_LEVEL = Integer.getInteger("pizza.export.gzipLevel", Deflater.BEST_SPEED);
+   static final int FETCH_ROWS = Integer.getInteger("pizza.export.fetchRows", 5000);
+
+   static final byte[] NO_INPUT = new byte[0];
+
+   static final String CSV_HEADER = "orderid,login,storeid,ordertimestamp,orderstatus,totalprice,itemname,quantity\n";
+
+   /**
+    * The file layout.
+    */
+   public enum Format {
+      CSV("csv"), JSONL("jsonl");
+
+      final String extension;
+
+      Format(String extension) {
+         this.extension = extension;
+      }
+
+      public static Format parse(String value) {
+         for (Format f : values()) {
+            if (f.extension.equalsIgnoreCase(value.trim())) return f;
+         }
+         throw new IllegalArgumentException("format must be csv or jsonl");
+      }
+   }//end Format
+
+   private final String prefix;
+   private final Format format;
+   private final boolean gzip;
+   private final long splitBytes;
+
+   private final ByteBuffer raw = ByteBuffer.allocateDirect(BUFFER_BYTES);
+   private final ByteBuffer packed;
+   private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+   private final StringBuilder line = new StringBuilder(256);
+   private final Deflater deflater;
+   private final CRC32 crc = new CRC32();
+
+   private FileChannel channel = null;
+   private int part = 0;
+   private long partBytes = 0;        // bytes written to the current file
+   private long partRawBytes = 0;     // before compression, for the gzip trailer
+   private long totalBytes = 0;
+   private long rows = 0;
+   private long orders = 0;
+   private long started = 0;
+
+   // the order being written (JSON Lines groups its item rows)
+   private int currentOrder = -1;
+   private boolean firstItem = true;
+
+   /**
+    * @param prefix the output path without extension
+    * @param format CSV or JSONL
+    * @param gzip compress the output
+    * @param splitMB start a new part after this many MB, 0 for one file
+    */
+   public OrderExport(String prefix, Format format, boolean gzip, int splitMB) {
+      this.prefix = prefix;
+      this.format = format;
+      this.gzip = gzip;
+      this.splitBytes = splitMB * 1024L * 1024L;
+      this.packed = gzip ? ByteBuffer.allocateDirect(BUFFER_BYTES) : null;
+      this.deflater = gzip ? new Deflater(GZIP_LEVEL, true) : null;
+   }
+
+   public static void main (String[] args) {
+      if (args.length < 6) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderExport.class.getName () +
+            " <dbname> <port> <user> <outPrefix> <fromDate> <toDate> [storeID|all] [csv|jsonl] [--gzip] [--splitMB n]");
+         return;
+      }//end if
+
+      PizzaStore esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         esql = new PizzaStore (args[0], args[1], args[2], "");
+
+         int storeID = -1;
+         Format format = Format.CSV;
+         boolean gzip = false;
+         int splitMB = 0;
+         for (int i = 6; i < args.length; i++) {
+            if (args[i].equals("--gzip")) gzip = true;
+            else if (args[i].equals("--splitMB")) splitMB = Integer.parseInt(args[++i]);
+            else if (args[i].equals("all")) storeID = -1;
+            else if (PizzaStore.isNumeric(args[i])) storeID = Integer.parseInt(args[i]);
+            else format = Format.parse(args[i]);
+         }
+
+         OrderExport export = new OrderExport(args[3], format, gzip, splitMB);
+         try{ export.run(esql, args[4], args[5], storeID); }
+         finally{ export.close(); }
+         System.out.println(export.summary());
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if(esql != null) esql.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Appends the orders of one database (one shard) placed between two
+    * dates, both inclusive.
+    *
+    * @param esql the session to read from
+    * @param from first day, yyyy-mm-dd
+    * @param to last day, yyyy-mm-dd
+    * @param storeID one store, or -1 for all
+    * @throws Exception when the query or a write fails
+    */
+   public void run(PizzaStore esql, String from, String to, int storeID) throws Exception {
+      // validates both dates before they go into the query
+      java.sql.Date fromDate = java.sql.Date.valueOf(from.trim());
+      java.sql.Date toDate = java.sql.Date.valueOf(to.trim());
+      if (started == 0) started = System.currentTimeMillis();
+      if (channel == null) openPart();
+
+      String query = "SELECT R.orderID, R.login, R.storeID, R.orderTimestamp, R.orderStatus, R.totalPrice, "
+         + "N.itemName, N.quantity FROM FoodOrder R LEFT JOIN ItemsInOrder N ON N.orderID = R.orderID "
+         + "WHERE R.orderTimestamp >= DATE \'" + fromDate + "\' AND R.orderTimestamp < DATE \'" + toDate + "\' + 1"
+         + (storeID < 0 ? "" : " AND R.storeID = " + storeID)
+         + " ORDER BY R.orderTimestamp, R.orderID";
+      try{
+         esql.forEachRow(query, FETCH_ROWS, new PizzaStore.RowHandler() {
+            public void row(ResultSet rs) throws SQLException {
+               try{ write(rs); }
+               catch(IOException e){ throw new UncheckedIOException(e); }
+            }
+         });
+         endOrder();
+      }catch(UncheckedIOException e){
+         throw e.getCause();
+      }
+   }//end run
+
+   /**
+    * Finishes the last part.
+    */
+   public void close() throws IOException {
+      if (channel == null) return;
+      endOrder();
+      closePart();
+   }//end close
+
+   /**
+    * @return what was written and how fast
+    */
+   public String summary() {
+      double seconds = Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+      return "Exported " + orders + " order(s), " + rows + " row(s) to " + part + " file(s), "
+         + String.format("%.1f MB in %.1f s (%.1f MB/s)", totalBytes / 1048576.0, seconds, totalBytes / 1048576.0 / seconds);
+   }//end summary
+
+   /*
+    * Encodes one row of the query.
+    **/
+   private void write(ResultSet rs) throws SQLException, IOException {
+      int orderID = rs.getInt(1);
+      String itemName = rs.getString(7);
+      rows++;
+
+      if (orderID != currentOrder) {
+         endOrder();
+         // only between orders, so a part never splits one
+         if (splitBytes > 0 && partBytes + (gzip ? packed.position() : raw.position()) >= splitBytes) {
+            closePart();
+            openPart();
+         }
+         currentOrder = orderID;
+         orders++;
+         if (format == Format.JSONL) {
+            line.append("{\"orderID\":").append(orderID).append(",\"login\":");
+            json(rs.getString(2).trim());
+            line.append(",\"storeID\":").append(rs.getInt(3)).append(",\"orderTimestamp\":");
+            json(rs.getString(4));
+            line.append(",\"orderStatus\":");
+            json(rs.getString(5).trim());
+            line.append(",\"totalPrice\":").append(rs.getString(6).trim()).append(",\"items\":[");
+            firstItem = true;
+         }
+      }
+
+      if (format == Format.CSV) {
+         line.append(orderID).append(',');
+         csv(rs.getString(2).trim());
+         line.append(',').append(rs.getInt(3)).append(',').append(rs.getString(4)).append(',');
+         csv(rs.getString(5).trim());
+         line.append(',').append(rs.getString(6).trim()).append(',');
+         if (itemName != null) {
+            csv(itemName);
+            line.append(',').append(rs.getInt(8));
+         }else{
+            line.append(',');
+         }
+         line.append('\n');
+         emit();
+      }else if (itemName != null) {
+         line.append(firstItem ? "" : ",").append("{\"itemName\":");
+         json(itemName);
+         line.append(",\"quantity\":").append(rs.getInt(8)).append('}');
+         firstItem = false;
+      }
+   }//end write
+
+   private void endOrder() throws IOException {
+      if (currentOrder < 0) return;
+      if (format == Format.JSONL) {
+         line.append("]}\n");
+         emit();
+      }
+      currentOrder = -1;
+   }//end endOrder
+
+   /*
+    * Encodes the line into the raw buffer, draining it whenever it fills.
+    **/
+   private void emit() throws IOException {
+      CharBuffer chars = CharBuffer.wrap(line);
+      while (true) {
+         CoderResult result = encoder.encode(chars, raw, true);
+         if (result.isOverflow()) drain();
+         else break;
+      }
+      encoder.reset();
+      line.setLength(0);
+   }//end emit
+
+   /*
+    * Moves the raw buffer to the file, through the deflater with gzip.
+    **/
+   private void drain() throws IOException {
+      raw.flip();
+      partRawBytes += raw.remaining();
+      if (!gzip) {
+         partBytes += writeFully(raw);
+      }else{
+         crc.update(raw.duplicate());
+         deflater.setInput(raw);
+         while (!deflater.needsInput()) {
+            deflater.deflate(packed);
+            if (!packed.hasRemaining()) flushPacked();
+         }
+         deflater.setInput(NO_INPUT);   // it keeps the buffer, which is about to be cleared
+      }
+      raw.clear();
+   }//end drain
+
+   private void flushPacked() throws IOException {
+      packed.flip();
+      partBytes += writeFully(packed);
+      packed.clear();
+   }
+
+   private long writeFully(ByteBuffer buffer) throws IOException {
+      long n = 0;
+      while (buffer.hasRemaining()) n += channel.write(buffer);
+      return n;
+   }
+
+   private void openPart() throws IOException {
+      part++;
+      String name = prefix + (splitBytes > 0 ? String.format("-%04d", part) : "") + "." + format.extension
+         + (gzip ? ".gz" : "");
+      channel = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                 StandardOpenOption.TRUNCATE_EXISTING);
+      partBytes = 0;
+      partRawBytes = 0;
+      if (gzip) {
+         // member header: magic, deflate, no flags, no mtime, unknown OS
+         packed.put(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+         deflater.reset();
+         crc.reset();
+      }
+      if (format == Format.CSV) {
+         line.append(CSV_HEADER);
+         emit();
+      }
+   }//end openPart
+
+   private void closePart() throws IOException {
+      drain();
+      if (gzip) {
+         deflater.finish();
+         while (!deflater.finished()) {
+            deflater.deflate(packed);
+            if (!packed.hasRemaining()) flushPacked();
+         }
+         if (packed.remaining() < 8) flushPacked();
+         packed.order(ByteOrder.LITTLE_ENDIAN);
+         packed.putInt((int) crc.getValue()).putInt((int) partRawBytes);
+         packed.order(ByteOrder.BIG_ENDIAN);
+         flushPacked();
+      }
+      channel.close();
+      channel = null;
+      totalBytes += partBytes;
+   }//end closePart
+
+   private void csv(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+         line.append(value);
+         return;
+      }
+      line.append('"').append(value.replace("\"", "\"\"")).append('"');
+   }
+
+   private void json(String value) {
+      line.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\') line.append('\\').append(c);
+         else if (c < 0x20) line.append(String.format("\\u%04x", (int) c));
+         else line.append(c);
+      }
+      line.append('"');
+   }
+}//end OrderExport
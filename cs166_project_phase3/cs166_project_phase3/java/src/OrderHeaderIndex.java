@@ -0,0 +1,458 @@
+/*
+ * Order Header Index
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class keeps the header of every order (orderID, login, storeID,
+ * timestamp, status, total) in memory so order history and ownership
+ * checks are answered without going to FoodOrder.
+ *
+ * Each field is a column of primitives in direct (off-heap) buffers that
+ * grow a chunk at a time, so 50M orders are a few dozen objects for the
+ * garbage collector instead of 50M.  Logins are stored as dictionary
+ * codes, statuses as one byte, timestamps as seconds since 2000 and totals in
+ * cents, four bytes each.  Every order also stores the row of the previous
+ * (older) order of the same user, of the same store and overall, so each
+ * of those lists is a chain that is walked newest first from its head; an
+ * orderID -> row hash table, also off-heap, finds single orders.  That is
+ * about 45 bytes per order.
+ *
+ * The index is off unless pizza.orderIndex=true.  It is loaded in the
+ * background at startup through a cursor on each shard (each shard's rows
+ * sorted by time, then merged) and until then isReady() is false and
+ * callers query the database.  Afterwards it is kept current from the
+ * orders this instance commits, the status changes it makes and those
+ * other instances make (through CacheCoherence, refreshStatus).  Orders
+ * placed by other instances are not added, so it is meant for
+ * deployments where one instance places the orders; a single order it
+ * does not have is still looked up in the database.
+ *
+ */
+public class OrderHeaderIndex {
+
+   static final int CHUNK_BITS = 20;                  // 1M values per chunk
+   static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+   static final long EPOCH_MS = 946684800000L;        // 2000-01-01 UTC
+
+   /**
+    * The stored header of one order.
+    */
+   public static class Header {
+      public final int orderID;
+      public final String login;
+      public final int storeID;
+      public final long orderTimestamp;   // milliseconds since the epoch, whole seconds
+      public final OrderStatus orderStatus;
+      public final int totalCents;
+
+      Header(int orderID, String login, int storeID, long orderTimestamp, OrderStatus orderStatus, int totalCents) {
+         this.orderID = orderID;
+         this.login = login;
+         this.storeID = storeID;
+         this.orderTimestamp = orderTimestamp;
+         this.orderStatus = orderStatus;
+         this.totalCents = totalCents;
+      }
+   }//end Header
+
+   /*
+    * A growable column of ints in direct buffers.
+    **/
+   static class Ints {
+      private IntBuffer[] chunks = new IntBuffer[0];
+
+      int get(int i) {
+         return chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+      }
+
+      void set(int i, int value) {
+         while ((i >>> CHUNK_BITS) >= chunks.length) {
+            IntBuffer[] grown = new IntBuffer[chunks.length + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            grown[chunks.length] = ByteBuffer.allocateDirect(4 << CHUNK_BITS).asIntBuffer();
+            chunks = grown;
+         }
+         chunks[i >>> CHUNK_BITS].put(i & CHUNK_MASK, value);
+      }
+
+      long bytes() {
+         return (long) chunks.length << (CHUNK_BITS + 2);
+      }
+   }//end Ints
+
+   /*
+    * A growable column of bytes in direct buffers.
+    **/
+   static class Bytes {
+      private ByteBuffer[] chunks = new ByteBuffer[0];
+
+      byte get(int i) {
+         return chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+      }
+
+      void set(int i, byte value) {
+         while ((i >>> CHUNK_BITS) >= chunks.length) {
+            ByteBuffer[] grown = new ByteBuffer[chunks.length + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            grown[chunks.length] = ByteBuffer.allocateDirect(1 << CHUNK_BITS);
+            chunks = grown;
+         }
+         chunks[i >>> CHUNK_BITS].put(i & CHUNK_MASK, value);
+      }
+
+      long bytes() {
+         return (long) chunks.length << CHUNK_BITS;
+      }
+   }//end Bytes
+
+   /**
+    * Walks one chain newest first.  Each step takes the index lock on its
+    * own, so a cursor can be held while the rows are paged to the console.
+    */
+   public class Cursor {
+      private int row;
+      private int left;
+      private final Ints prev;
+
+      Cursor(Ints prev, int head, int limit) {
+         this.prev = prev;
+         this.row = head;
+         this.left = limit < 0 ? Integer.MAX_VALUE : limit;
+      }
+
+      /**
+       * @return the next orderID, or -1 at the end
+       */
+      public int next() {
+         synchronized (OrderHeaderIndex.this) {
+            if (row < 0 || left == 0) return -1;
+            int orderID = orderIDs.get(row);
+            row = prev.get(row);
+            left--;
+            return orderID;
+         }
+      }
+   }//end Cursor
+
+   // columns, one value per row
+   private Ints orderIDs = new Ints();
+   private Ints logins = new Ints();
+   private Ints stores = new Ints();
+   private Ints times = new Ints();
+   private Ints totals = new Ints();
+   private Bytes statuses = new Bytes();
+   private Ints prevAll = new Ints();
+   private Ints prevByUser = new Ints();
+   private Ints prevByStore = new Ints();
+   private int size = 0;
+
+   // orderID -> row + 1 (0 is empty), open addressing
+   private Ints slots = new Ints();
+   private int slotMask = -1;
+
+   // chain heads and dictionaries
+   private int newest = -1;
+   private int[] userHead = new int[0];
+   private int[] storeHead = new int[0];
+   private final Map<String, Integer> loginCodes = new HashMap<String, Integer>();
+   private final List<String> loginNames = new ArrayList<String>();
+   private final Map<Integer, Integer> storeCodes = new HashMap<Integer, Integer>();
+   private final List<Integer> storeIDs = new ArrayList<Integer>();
+
+   private volatile boolean ready = false;
+   private boolean loading = false;
+   private final List<OrderRecord> pending = new ArrayList<OrderRecord>();
+   private final Map<Integer, OrderStatus> pendingStatus = new HashMap<Integer, OrderStatus>();
+
+   /**
+    * @return true once the index is loaded and answers queries
+    */
+   public boolean isReady() {
+      return ready;
+   }
+
+   /**
+    * Loads the index in a background thread.
+    *
+    * @param pool the pool of shard 0; other shards come from PizzaStore.shards
+    */
+   public synchronized void start(final ConnectionPool pool) {
+      if (loading || ready) return;
+      loading = true;
+      Thread loader = new Thread(new Runnable() {
+         public void run() {
+            try{
+               load(pool);
+            }catch(Exception e){
+               System.err.println("Order index: load failed, using the database (" + e.getMessage() + ")");
+               synchronized (OrderHeaderIndex.this) {
+                  loading = false;
+                  pending.clear();
+                  pendingStatus.clear();
+               }
+            }
+         }
+      }, "order-index-loader");
+      loader.setDaemon(true);
+      loader.start();
+   }//end start
+
+   /**
+    * Adds a committed order.  An order that is already indexed only has its
+    * status updated.
+    */
+   public synchronized void add(OrderRecord order) {
+      if (loading) {
+         pending.add(order);
+         return;
+      }
+      if (!ready) return;
+      int row = find(order.orderID);
+      if (row >= 0) {
+         statuses.set(row, (byte) order.orderStatus.ordinal());
+         return;
+      }
+      row = append(order.orderID, order.login, order.storeID, order.orderTimestamp, order.orderStatus,
+                   Math.round(order.totalPrice * 100));
+      link(row);
+   }//end add
+
+   /**
+    * Records a status change of an indexed order.
+    */
+   public synchronized void setStatus(int orderID, OrderStatus orderStatus) {
+      if (loading) {
+         pendingStatus.put(orderID, orderStatus);
+         return;
+      }
+      if (!ready) return;
+      int row = find(orderID);
+      if (row >= 0) statuses.set(row, (byte) orderStatus.ordinal());
+   }//end setStatus
+
+   /**
+    * Re-reads the status of an order another instance changed (see
+    * CacheCoherence), when the order is indexed or the index is loading.
+    *
+    * @param esql the session to read with
+    * @param orderID the changed order
+    * @throws java.sql.SQLException when the query fails
+    */
+   public void refreshStatus(PizzaStore esql, int orderID) throws SQLException {
+      synchronized (this) {
+         if (!loading && (!ready || find(orderID) < 0)) return;
+      }
+      List<List<String>> rows = esql.executePreparedQuery(RecentOrdersCache.STATUS_QUERY, String.valueOf(orderID));
+      if (!rows.isEmpty()) setStatus(orderID, OrderStatus.parse(rows.get(0).get(0)));
+   }//end refreshStatus
+
+   /**
+    * @return the header of an order, or null when it is not indexed
+    */
+   public synchronized Header get(int orderID) {
+      if (!ready) return null;
+      int row = find(orderID);
+      if (row < 0) return null;
+      return new Header(orderIDs.get(row), loginNames.get(logins.get(row)), storeIDs.get(stores.get(row)),
+                        EPOCH_MS + times.get(row) * 1000L, OrderStatus.values()[statuses.get(row)], totals.get(row));
+   }//end get
+
+   /**
+    * @param limit the most orders to return, -1 for all
+    * @return the orders of a user, newest first; null when not ready
+    */
+   public synchronized Cursor byUser(String login, int limit) {
+      if (!ready) return null;
+      Integer code = loginCodes.get(login);
+      return new Cursor(prevByUser, code == null ? -1 : userHead[code], limit);
+   }//end byUser
+
+   /**
+    * @param limit the most orders to return, -1 for all
+    * @return the orders of a store, newest first; null when not ready
+    */
+   public synchronized Cursor byStore(int storeID, int limit) {
+      if (!ready) return null;
+      Integer code = storeCodes.get(storeID);
+      return new Cursor(prevByStore, code == null ? -1 : storeHead[code], limit);
+   }//end byStore
+
+   /**
+    * @param limit the most orders to return, -1 for all
+    * @return all orders, newest first; null when not ready
+    */
+   public synchronized Cursor all(int limit) {
+      if (!ready) return null;
+      return new Cursor(prevAll, newest, limit);
+   }//end all
+
+   /**
+    * @return the number of indexed orders and the memory they take
+    */
+   public synchronized String stats() {
+      long bytes = orderIDs.bytes() + logins.bytes() + stores.bytes() + times.bytes() + totals.bytes()
+         + statuses.bytes() + prevAll.bytes() + prevByUser.bytes() + prevByStore.bytes() + slots.bytes();
+      return size + " orders, " + (bytes >> 20) + " MB off-heap"
+         + (size == 0 ? "" : " (" + (bytes / size) + " bytes per order)");
+   }//end stats
+
+   /*
+    * Reads every shard through a cursor, then links the rows in time order
+    * and applies the orders committed meanwhile.
+    **/
+   private void load(ConnectionPool pool) throws Exception {
+      long start = System.currentTimeMillis();
+      int shardCount = (PizzaStore.shards == null) ? 1 : PizzaStore.shards.size();
+      int[] runStart = new int[shardCount + 1];
+      for (int shard = 0; shard < shardCount; shard++) {
+         runStart[shard] = size;
+         PizzaStore session = (PizzaStore.shards == null) ? pool.borrow() : PizzaStore.shards.borrow(shard);
+         try{
+            // only this thread writes the columns until loading is cleared
+            session.forEachRow("SELECT R.orderID, R.login, R.storeID, R.orderTimestamp, R.orderStatus, R.totalPrice "
+               + "FROM FoodOrder R ORDER BY R.orderTimestamp, R.orderID", new PizzaStore.RowHandler() {
+               public void row(ResultSet rs) throws SQLException {
+                  append(rs.getInt(1), rs.getString(2).trim(), rs.getInt(3), rs.getTimestamp(4).getTime(),
+                         OrderStatus.parse(rs.getString(5)), Math.round(rs.getFloat(6) * 100));
+               }
+            });
+         }finally{
+            if (PizzaStore.shards == null) pool.release(session);
+            else PizzaStore.shards.release(session);
+         }
+      }
+      runStart[shardCount] = size;
+
+      synchronized (this) {
+         // merge the per-shard runs, each already in time order
+         int[] next = new int[shardCount];
+         System.arraycopy(runStart, 0, next, 0, shardCount);
+         for (int n = 0; n < size; n++) {
+            int best = -1;
+            for (int shard = 0; shard < shardCount; shard++) {
+               if (next[shard] == runStart[shard + 1]) continue;
+               if (best < 0 || times.get(next[shard]) < times.get(next[best])) best = shard;
+            }
+            link(next[best]++);
+         }
+         loading = false;
+         ready = true;
+         for (OrderRecord order : pending) add(order);
+         for (Map.Entry<Integer, OrderStatus> e : pendingStatus.entrySet()) setStatus(e.getKey(), e.getValue());
+         pending.clear();
+         pendingStatus.clear();
+      }
+      System.out.println("Order index: " + stats() + ", loaded in " + (System.currentTimeMillis() - start) + " ms");
+   }//end load
+
+   /*
+    * Stores one order in a new row and the hash table, without linking it.
+    **/
+   private int append(int orderID, String login, int storeID, long orderTimestamp, OrderStatus orderStatus,
+                      int totalCents) {
+      int row = size;
+      Integer user = loginCodes.get(login);
+      if (user == null) {
+         user = loginNames.size();
+         loginCodes.put(login, user);
+         loginNames.add(login);
+      }
+      Integer store = storeCodes.get(storeID);
+      if (store == null) {
+         store = storeIDs.size();
+         storeCodes.put(storeID, store);
+         storeIDs.add(storeID);
+      }
+      orderIDs.set(row, orderID);
+      logins.set(row, user);
+      stores.set(row, store);
+      times.set(row, (int) ((orderTimestamp - EPOCH_MS) / 1000L));
+      totals.set(row, totalCents);
+      statuses.set(row, (byte) orderStatus.ordinal());
+      size++;
+
+      if ((long) size * 2 > slotMask + 1L) rehash();
+      else put(row);
+      return row;
+   }//end append
+
+   /*
+    * Puts a row at the head of its chains.  A row older than a head (a late
+    * journal replay) is walked down to its place instead.
+    **/
+   private void link(int row) {
+      int login = logins.get(row);
+      int store = stores.get(row);
+      if (login >= userHead.length) userHead = grow(userHead, login);
+      if (store >= storeHead.length) storeHead = grow(storeHead, store);
+      newest = insert(prevAll, newest, row);
+      userHead[login] = insert(prevByUser, userHead[login], row);
+      storeHead[store] = insert(prevByStore, storeHead[store], row);
+   }//end link
+
+   private int insert(Ints prev, int head, int row) {
+      int time = times.get(row);
+      if (head < 0 || times.get(head) <= time) {
+         prev.set(row, head);
+         return row;
+      }
+      int at = head;
+      while (prev.get(at) >= 0 && times.get(prev.get(at)) > time) at = prev.get(at);
+      prev.set(row, prev.get(at));
+      prev.set(at, row);
+      return head;
+   }//end insert
+
+   private int find(int orderID) {
+      if (slotMask < 0) return -1;
+      for (int i = hash(orderID) & slotMask; ; i = (i + 1) & slotMask) {
+         int entry = slots.get(i);
+         if (entry == 0) return -1;
+         if (orderIDs.get(entry - 1) == orderID) return entry - 1;
+      }
+   }//end find
+
+   private void put(int row) {
+      int i = hash(orderIDs.get(row)) & slotMask;
+      while (slots.get(i) != 0) i = (i + 1) & slotMask;
+      slots.set(i, row + 1);
+   }
+
+   private void rehash() {
+      int capacity = Math.max(1 << 10, (slotMask + 1) * 2);
+      slots = new Ints();
+      slots.set(capacity - 1, 0);   // direct buffers start zeroed
+      slotMask = capacity - 1;
+      for (int row = 0; row < size; row++) put(row);
+   }//end rehash
+
+   private static int hash(int orderID) {
+      int h = orderID * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   private static int[] grow(int[] heads, int index) {
+      int[] grown = new int[Math.max(index + 1, heads.length * 2)];
+      System.arraycopy(heads, 0, grown, 0, heads.length);
+      for (int i = heads.length; i < grown.length; i++) grown[i] = -1;
+      return grown;
+   }
+}//end OrderHeaderIndex
@@ -0,0 +1,372 @@
+/*
+ * Order Journal
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a local append-only journal of placed orders on a memory
+ * mapped file.  placeOrder appends the order and acknowledges the customer
+ * as soon as the record is forced to disk; a background replayer thread
+ * then writes journaled orders into FoodOrder / ItemsInOrder.  If Postgres
+ * stalls or restarts, orders keep being accepted and the replayer simply
+ * retries until the database is back.
+ *
+ * File layout:
+ *
+ *    header   int magic, int generation, long checkpoint
+ *    records  int length, int crc32, payload (starting with the generation)
+ *
+ * The checkpoint is the offset of the first record not yet in the
+ * database.  After a restart the journal scans forward from the checkpoint
+ * to find the end (first record with a bad length, checksum or generation)
+ * and the replayer resumes from there.  Inserts use ON CONFLICT DO NOTHING,
+ * so a record replayed twice (crash between commit and checkpoint) is
+ * harmless; an order whose ID was meanwhile taken by a different order is
+ * inserted under a new ID instead of being dropped.  The file is locked
+ * while open, so two instances never append to or replay the same
+ * journal.  When the file is full and everything has been replayed the
+ * journal wraps to the start with the next generation; when it is full
+ * with orders still pending, append returns false and placeOrder writes to
+ * the database directly.
+ *
+ * Tunables (system properties): pizza.journalFile (default orders.journal),
+ * pizza.journalSizeMB (default 16).
+ *
+ */
+public class OrderJournal {
+
+   private static final int MAGIC = 0x505a4a31;   // "PZJ1"
+   private static final int HEADER = 16;
+   private static final int CHECKPOINT_AT = 8;
+
+   private final RandomAccessFile file;
+   private final FileLock lock;
+   private final MappedByteBuffer map;
+   private final int capacity;
+   private final ConnectionPool pool;
+
+   private int generation;
+   private volatile int writePos;
+   private volatile int checkpoint;
+   private volatile boolean running = true;
+   private Thread replayer;
+
+   /**
+    * Opens (or creates) the journal file and finds the pending records.
+    *
+    * @param path the journal file
+    * @param sizeMB the size of the mapped file
+    * @param pool where the replayer gets its database connections from
+    * @throws java.io.IOException when the file cannot be mapped or another
+    *         instance has it open
+    */
+   public OrderJournal(String path, int sizeMB, ConnectionPool pool) throws java.io.IOException {
+      this.pool = pool;
+      this.capacity = sizeMB * 1024 * 1024;
+      boolean fresh = !new File(path).exists();
+      this.file = new RandomAccessFile(path, "rw");
+      this.lock = tryLock(file);
+      if (lock == null) {
+         file.close();
+         throw new IOException("Order journal " + path + " is in use by another instance");
+      }
+      this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+      if (fresh || map.getInt(0) != MAGIC) {
+         generation = 1;
+         checkpoint = HEADER;
+         map.putInt(0, MAGIC);
+         map.putInt(4, generation);
+         map.putLong(CHECKPOINT_AT, checkpoint);
+         map.putInt(HEADER, 0);
+         map.force();
+      }else{
+         generation = map.getInt(4);
+         checkpoint = (int) map.getLong(CHECKPOINT_AT);
+      }
+      writePos = checkpoint;
+      while (readRecord(writePos) != null) writePos = nextRecord(writePos);
+   }//end OrderJournal
+
+   /**
+    * @return the number of journaled orders not yet in the database
+    */
+   public int pending() {
+      int count = 0;
+      for (int pos = checkpoint; pos < writePos; pos = nextRecord(pos)) count++;
+      return count;
+   }
+
+   /**
+    * Durably appends an order.  Once this returns true the order survives
+    * a crash of the application or the database.
+    *
+    * @param order the order to journal
+    * @return false when the journal is full and the caller must write the
+    *         order to the database itself
+    */
+   public synchronized boolean append(OrderRecord order) {
+      byte[] payload = encode(order);
+      int size = 8 + payload.length;
+
+      if (writePos + size + 4 > capacity) {
+         if (checkpoint != writePos) return false;
+         // everything was replayed: start over at the top with a new generation
+         generation++;
+         map.putInt(4, generation);
+         writePos = HEADER;
+         checkpoint = HEADER;
+         map.putLong(CHECKPOINT_AT, checkpoint);
+         map.force(0, HEADER);
+         payload = encode(order);
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(payload, 0, payload.length);
+      ByteBuffer out = map.duplicate();
+      out.position(writePos);
+      out.putInt(payload.length);
+      out.putInt((int) crc.getValue());
+      out.put(payload);
+      out.putInt(0);   // end marker, overwritten by the next record
+      map.force(writePos, size + 4);   // only the pages of this record
+
+      writePos += size;
+      notifyAll();
+      return true;
+   }//end append
+
+   /**
+    * Starts the background thread that drains the journal into the database.
+    */
+   public void startReplayer() {
+      replayer = new Thread(new Runnable() {
+         public void run() { replayLoop(); }
+      }, "order-journal-replayer");
+      replayer.setDaemon(true);
+      replayer.start();
+   }//end startReplayer
+
+   /**
+    * Stops the replayer, giving it up to waitMs to drain pending orders.
+    * Orders still pending stay in the file for the next start.
+    */
+   public void close(long waitMs) {
+      long deadline = System.currentTimeMillis() + waitMs;
+      while (checkpoint != writePos && System.currentTimeMillis() < deadline) {
+         try { Thread.sleep(50); } catch (InterruptedException e) { break; }
+      }
+      running = false;
+      synchronized (this) { notifyAll(); }
+      try{
+         if (replayer != null) replayer.join(1000);
+         map.force();
+         lock.release();
+         file.close();
+      }catch(Exception e){
+         // ignored.
+      }
+   }//end close
+
+   /*
+    * Replays records from the checkpoint on, one transaction per order,
+    * backing off while the database is unavailable.
+    **/
+   private void replayLoop() {
+      PizzaStore esql = null;
+      long backoff = 250;
+      while (running) {
+         try{
+            synchronized (this) {
+               while (running && checkpoint == writePos) wait(1000);
+            }
+            if (!running) break;
+
+            OrderRecord order = readRecord(checkpoint);
+            if (order == null) {
+               // unreadable pending record: nothing after it can be trusted either
+               System.err.println("Order journal: corrupt record at " + checkpoint + ", skipping to end");
+               advanceCheckpoint(writePos);
+               continue;
+            }
+            if (PizzaStore.shards == null) {
+               if (esql == null) esql = pool.open();
+               order = replay(esql, order);
+            }else{
+               PizzaStore shard = PizzaStore.shards.borrow(PizzaStore.shards.shardOfStore(order.storeID));
+               try { order = replay(shard, order); } finally { PizzaStore.shards.release(shard); }
+            }
+            advanceCheckpoint(nextRecord(checkpoint));
+            backoff = 250;
+            PizzaStore.orderCommitted(order);
+         }catch(InterruptedException e){
+            break;
+         }catch(Exception e){
+            System.err.println("Order journal: database unavailable, retrying (" + e.getMessage() + ")");
+            if (esql != null) { esql.cleanup(); esql = null; }
+            try { Thread.sleep(backoff); } catch (InterruptedException ie) { break; }
+            backoff = Math.min(backoff * 2, 10000);
+         }
+      }
+      if (esql != null) esql.cleanup();
+   }//end replayLoop
+
+   /*
+    * Idempotently writes one journaled order in its own transaction and
+    * returns it as written, with a new orderID when its own was taken.
+    **/
+   private OrderRecord replay(PizzaStore esql, OrderRecord order) throws java.sql.SQLException {
+      esql.setAutoCommit(false);
+      try{
+         Random rand = null;
+         while (esql.executeQueryAndReturnResult(
+               order.headerInsert() + " ON CONFLICT (orderID) DO NOTHING RETURNING orderID").size() == 0) {
+            // a replay after a crash finds its order by user and time, under
+            // whichever ID an earlier replay gave it
+            List<List<String>> existing = esql.executeQueryAndReturnResult(
+               "SELECT R.orderID FROM FoodOrder R WHERE R.login = \'" + order.login + "\' AND R.orderTimestamp = \'"
+               + new Timestamp(order.orderTimestamp) + "\' AND R.storeID = " + order.storeID);
+            if (existing.size() > 0) {
+               esql.commit();
+               return reKeyed(order, Integer.parseInt(existing.get(0).get(0).trim()));
+            }
+            // another order got the same ID
+            if (rand == null) rand = new Random();
+            int orderID = (PizzaStore.shards == null) ? rand.nextInt(2000000000) : PizzaStore.shards.newOrderID(order.storeID, rand);
+            System.err.println("Order journal: orderID " + order.orderID + " of " + order.login
+               + " collides with an existing order, inserting it as " + orderID);
+            order = reKeyed(order, orderID);
+         }
+         List<String> lines = new ArrayList<String>();
+         for (String sql : order.lineInserts()) lines.add(sql + " ON CONFLICT DO NOTHING");
+         esql.executeBatch(lines);
+         esql.commit();
+         return order;
+      }catch(java.sql.SQLException e){
+         try { esql.rollback(); } catch (java.sql.SQLException ignored) {}
+         throw e;
+      }finally{
+         esql.setAutoCommit(true);
+      }
+   }//end replay
+
+   /*
+    * Locks the whole file, or returns null when another process (or
+    * another journal in this one) holds it.
+    **/
+   private static FileLock tryLock(RandomAccessFile file) throws IOException {
+      try{
+         return file.getChannel().tryLock();
+      }catch(OverlappingFileLockException e){
+         return null;
+      }
+   }
+
+   private static OrderRecord reKeyed(OrderRecord order, int orderID) {
+      if (orderID == order.orderID) return order;
+      return new OrderRecord(orderID, order.login, order.storeID, order.totalPrice, order.orderTimestamp,
+                             order.orderStatus, order.itemNames, order.quantities, order.menuVersion);
+   }
+
+   private synchronized void advanceCheckpoint(int pos) {
+      checkpoint = pos;
+      map.putLong(CHECKPOINT_AT, pos);
+      map.force(0, HEADER);
+   }
+
+   private int nextRecord(int pos) {
+      return pos + 8 + map.getInt(pos);
+   }
+
+   /*
+    * Decodes the record at pos, or returns null at the end of the journal.
+    **/
+   private OrderRecord readRecord(int pos) {
+      if (pos + 8 > capacity) return null;
+      int length = map.getInt(pos);
+      if (length <= 4 || pos + 8 + length > capacity) return null;
+      byte[] payload = new byte[length];
+      ByteBuffer in = map.duplicate();
+      in.position(pos + 8);
+      in.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != map.getInt(pos + 4)) return null;
+      return decode(payload);
+   }//end readRecord
+
+   private byte[] encode(OrderRecord order) {
+      try{
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeInt(generation);
+         out.writeInt(order.orderID);
+         out.writeUTF(order.login);
+         out.writeInt(order.storeID);
+         out.writeFloat(order.totalPrice);
+         out.writeLong(order.orderTimestamp);
+         out.writeUTF(order.orderStatus.toString());
+         out.writeShort(order.itemNames.size());
+         for (int i = 0; i < order.itemNames.size(); i++) {
+            out.writeUTF(order.itemNames.get(i));
+            out.writeInt(order.quantities.get(i));
+         }
+         out.writeLong(order.menuVersion);
+         out.close();
+         return bytes.toByteArray();
+      }catch(IOException e){
+         throw new IllegalStateException(e);   // cannot happen on a byte array
+      }
+   }//end encode
+
+   private OrderRecord decode(byte[] payload) {
+      try{
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+         if (in.readInt() != generation) return null;   // left over from before a wrap
+         int orderID = in.readInt();
+         String login = in.readUTF();
+         int storeID = in.readInt();
+         float totalPrice = in.readFloat();
+         long orderTimestamp = in.readLong();
+         OrderStatus orderStatus = OrderStatus.parse(in.readUTF());
+         int lines = in.readShort();
+         List<String> itemNames = new ArrayList<String>();
+         List<Integer> quantities = new ArrayList<Integer>();
+         for (int i = 0; i < lines; i++) {
+            itemNames.add(in.readUTF());
+            quantities.add(in.readInt());
+         }
+         long menuVersion = (in.available() >= 8) ? in.readLong() : -1;   // older records have none
+         return new OrderRecord(orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, itemNames, quantities,
+                                menuVersion);
+      }catch(IOException e){
+         return null;
+      }
+   }//end decode
+}//end OrderJournal
@@ -0,0 +1,72 @@
+/*
+ * Order Record
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class holds one order as placeOrder builds it: the FoodOrder header
+ * plus its ItemsInOrder lines.  It is what gets written to the order
+ * journal and what is handed to everything that reacts to a committed
+ * order.
+ *
+ */
+public class OrderRecord {
+
+   public final int orderID;
+   public final String login;
+   public final int storeID;
+   public final float totalPrice;
+   public final long orderTimestamp;   // milliseconds since the epoch
+   public final OrderStatus orderStatus;
+   public final List<String> itemNames;
+   public final List<Integer> quantities;
+   public final long menuVersion;      // MenuSnapshot the order was priced with, -1 if unknown
+
+   public OrderRecord(int orderID, String login, int storeID, float totalPrice, long orderTimestamp,
+                      OrderStatus orderStatus, List<String> itemNames, List<Integer> quantities, long menuVersion) {
+      this.orderID = orderID;
+      this.login = login;
+      this.storeID = storeID;
+      this.totalPrice = totalPrice;
+      this.orderTimestamp = orderTimestamp;
+      this.orderStatus = orderStatus;
+      this.itemNames = new ArrayList<String>(itemNames);
+      this.quantities = new ArrayList<Integer>(quantities);
+      this.menuVersion = menuVersion;
+   }
+
+   /**
+    * @return the SQL statement inserting the FoodOrder row
+    */
+   public String headerInsert() {
+      return "INSERT INTO FoodOrder VALUES (" + "\'" + orderID + "\', \'" + login + "\', \'" + storeID
+         + "\', \'" + totalPrice + "\', \'" + new Timestamp(orderTimestamp) + "\', \'" + orderStatus + "\')";
+   }
+
+   /**
+    * @return the SQL statements inserting the ItemsInOrder rows and the
+    *         OrderMenuVersion row
+    */
+   public List<String> lineInserts() {
+      List<String> sqls = new ArrayList<String>();
+      for (int i = 0; i < itemNames.size(); i++) {
+         sqls.add("INSERT INTO ItemsInOrder VALUES (" + "\'" + orderID + "\', \'" + itemNames.get(i) + "\', \'" + quantities.get(i)+ "\')");
+      }
+      if (menuVersion >= 0) {
+         sqls.add("INSERT INTO OrderMenuVersion VALUES (" + "\'" + orderID + "\', \'" + menuVersion + "\')");
+      }
+      return sqls;
+   }
+}//end OrderRecord
@@ -0,0 +1,52 @@
+/*
+ * Order Status
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * This enum is the status of an order, stored in FoodOrder.orderStatus as
+ * the Postgres enum type order_status.  toString() is the SQL label, so a
+ * status can be concatenated into a statement as it is.
+ *
+ */
+public enum OrderStatus {
+
+   INCOMPLETE("incomplete"),
+   DELIVERING("delivering"),
+   COMPLETE("complete");
+
+   private final String label;
+
+   OrderStatus(String label) {
+      this.label = label;
+   }
+
+   /**
+    * Parses a status as read from the database.  Blank padding (left by the
+    * old char(50) column) and case are ignored.
+    *
+    * @param value the stored label
+    * @return the status
+    * @throws IllegalArgumentException when the label is not a status
+    */
+   public static OrderStatus parse(String value) {
+      String label = value == null ? "" : value.trim().toLowerCase();
+      for (OrderStatus status : values()) {
+         if (status.label.equals(label)) return status;
+      }
+      throw new IllegalArgumentException("order status must be incomplete, delivering or complete, not \'" + label + "\'");
+   }//end parse
+
+   @Override
+   public String toString() {
+      return label;
+   }
+}//end OrderStatus
@@ -0,0 +1,169 @@
+/*
+ * Pizza Repository
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This interface is the storage the store's workflows run against: users,
+ * menu items, stores, and orders with their line items.  PizzaStore picks
+ * one at startup (PizzaStore.repo): PostgresRepository issues the same SQL
+ * as the interactive menu on one session; MemoryRepository keeps
+ * everything in this process, for load tests at memory speed, for telling
+ * application cost from database cost, and for small kiosk installs
+ * without a database (pizza.store=memory).
+ *
+ * Every method is atomic on its own.  Calls that must commit or fail
+ * together are made inside transaction().  Constraint violations (a taken
+ * orderID, an unknown item) are reported as SQLException by both.
+ *
+ */
+public interface PizzaRepository {
+
+   /**
+    * A Users row.
+    */
+   public static class User {
+      public final String login;
+      public final String password;
+      public final UserRole role;
+      public final String favoriteItems;
+      public final String phoneNum;
+
+      public User(String login, String password, UserRole role, String favoriteItems, String phoneNum) {
+         this.login = login;
+         this.password = password;
+         this.role = role;
+         this.favoriteItems = favoriteItems;
+         this.phoneNum = phoneNum;
+      }
+   }//end User
+
+   /**
+    * An Items row.
+    */
+   public static class Item {
+      public final String itemName;
+      public final String ingredients;
+      public final String typeOfItem;
+      public final double price;
+      public final String description;
+
+      public Item(String itemName, String ingredients, String typeOfItem, double price, String description) {
+         this.itemName = itemName;
+         this.ingredients = ingredients;
+         this.typeOfItem = typeOfItem;
+         this.price = price;
+         this.description = description;
+      }
+   }//end Item
+
+   /**
+    * A Store row.
+    */
+   public static class Store {
+      public final int storeID;
+      public final String address;
+      public final String city;
+      public final String state;
+      public final boolean open;
+      public final double reviewScore;
+
+      public Store(int storeID, String address, String city, String state, boolean open, double reviewScore) {
+         this.storeID = storeID;
+         this.address = address;
+         this.city = city;
+         this.state = state;
+         this.open = open;
+         this.reviewScore = reviewScore;
+      }
+   }//end Store
+
+   /**
+    * Work run by transaction().
+    */
+   public interface Work<T> {
+      T run(PizzaRepository repo) throws Exception;
+   }//end Work
+
+   /** @return the user, or null */
+   User user(String login) throws SQLException;
+
+   /** @return the logins of every user with the role */
+   List<String> logins(UserRole role) throws SQLException;
+
+   /** @return false when the login is already taken */
+   boolean addUser(User user) throws SQLException;
+
+   /** Replaces every field of an existing user. */
+   void updateUser(User user) throws SQLException;
+
+   /**
+    * Changes a user's login.  A user with orders or reviews cannot be
+    * renamed (they reference the login).
+    *
+    * @return false when there is no such user
+    */
+   boolean renameUser(String login, String newLogin) throws SQLException;
+
+   /** @return the whole menu */
+   List<Item> items() throws SQLException;
+
+   /** @return the item, or null */
+   Item item(String itemName) throws SQLException;
+
+   /** @return the items costing at most maxPrice, cheapest first */
+   List<Item> itemsUpTo(double maxPrice) throws SQLException;
+
+   /** Adds an item, or replaces the item of that name. */
+   void putItem(Item item) throws SQLException;
+
+   /** @return every store, by storeID */
+   List<Store> stores() throws SQLException;
+
+   /** @return the store, or null */
+   Store store(int storeID) throws SQLException;
+
+   /** Adds an order header and its line items. */
+   void addOrder(OrderRecord order) throws SQLException;
+
+   /** @return the order with its line items, or null */
+   OrderRecord order(int orderID) throws SQLException;
+
+   /**
+    * @param login the user, or null for every user's orders
+    * @param limit the number of orders wanted, or -1 for all
+    * @return the newest orders, newest first, with their line items
+    */
+   List<OrderRecord> recentOrders(String login, int limit) throws SQLException;
+
+   /** @return a store's oldest incomplete orders, oldest first, with their line items */
+   List<OrderRecord> openOrders(int storeID, int limit) throws SQLException;
+
+   /**
+    * Changes the status of an order.
+    *
+    * @param from the status it must have now, or null for any
+    * @return false when there is no such order in that status
+    */
+   boolean setStatus(int orderID, OrderStatus from, OrderStatus to) throws SQLException;
+
+   /**
+    * Runs work so that all its changes commit together, or none when it
+    * throws.
+    *
+    * @return what the work returned
+    * @throws Exception what the work threw, after rolling back
+    */
+   <T> T transaction(Work<T> work) throws Exception;
+}//end PizzaRepository
@@ -16,6 +16,7 @@ import java.text.DecimalFormat;
 import java.math.RoundingMode;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -26,7 +27,13 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.Math;
 
 /**
@@ -39,11 +46,84 @@ public class PizzaStore {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // prepared statements of this connection, keyed by their SQL text
+   private final Map<String, PreparedStatement> _prepared = new HashMap<String, PreparedStatement>();
+
+   // numbers the sessions of this process for the SQL capture log
+   private static final AtomicInteger SESSIONS = new AtomicInteger();
+   private final int _session = SESSIONS.incrementAndGet();
+
+   // rows fetched per round trip by forEachRow's cursor
+   static final int FETCH_SIZE = 1000;
+
+   // names the cursors of nested forEachRow calls apart
+   private int _cursors = 0;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // statements on the login and store hot paths. They are prepared
+   // once per connection and warmed up by Warmup before users are let in.
+   static final String USER_QUERY = "SELECT F.login, F.password, F.role, F.favoriteItems, F.phoneNum FROM Users F WHERE F.login = ?";
+   static final String[] HOT_STATEMENTS = { USER_QUERY, PostgresRepository.STORE_BY_ID_QUERY, PostgresRepository.ALL_STORES_QUERY };
+
+   // connections opened at startup for work that runs beside the main session
+   static ConnectionPool pool = null;
+
+   // per-store queues of incomplete orders for driver dispatch
+   static DispatchQueue dispatch = new DispatchQueue();
+
+   // per-store delivery runs of incomplete orders
+   static DeliveryBatcher batcher = new DeliveryBatcher();
+
+   // each active customer's last few orders, for viewRecentOrders and the home screen
+   static RecentOrdersCache recentOrders = new RecentOrdersCache();
+
+   // routes order tables to their shard, null when there is a single database
+   static ShardRouter shards = null;
+
+   // local journal placeOrder writes to before the database, null when off
+   static OrderJournal journal = null;
+
+   // in-memory search index over the Items table, shared by every session
+   static MenuSearchIndex menuIndex = new MenuSearchIndex();
+
+   // recently viewed order details, see viewOrderInfo
+   static OrderDetailCache orderDetails = new OrderDetailCache();
+
+   // per-store ingredient stock, see placeOrder and viewMenu
+   static InventoryTracker inventory = new InventoryTracker();
+
+   // review aggregates and the background writer for new reviews
+   static StoreRatings ratings = new StoreRatings();
+   static ReviewWriter reviews = new ReviewWriter(ratings);
+
+   // best selling items of the last hour, fed by committed orders
+   static TrendingTracker trending = new TrendingTracker();
+
+   // rate and concurrency limits on order placement
+   static AdmissionController admission = new AdmissionController();
+
+   // in-memory order headers for history lookups (pizza.orderIndex=true)
+   static OrderHeaderIndex orderIndex = new OrderHeaderIndex();
+
+   // applies Items, Store and Users changes made by other instances
+   static CacheCoherence coherence = null;
+
+   // logins whose Users row changed elsewhere ("*" for all), see the user menu
+   static final Set<String> changedUsers = ConcurrentHashMap.newKeySet();
+
+   // records every statement for SqlReplay (pizza.capture), null when off
+   static volatile SqlCapture capture = null;
+
+   // the whole store in this process (pizza.store=memory), null with a database
+   static PizzaRepository memoryStore = null;
+
+   // this session's PostgresRepository, made on first use by repo()
+   private PizzaRepository _repository = null;
+
    /**
     * Creates a new instance of PizzaStore
     *
@@ -71,6 +151,16 @@ public class PizzaStore {
       }//end catch
    }//end PizzaStore
 
+   /**
+    * Creates a new instance of PizzaStore on top of an already open
+    * connection (e.g. one opened by the ConnectionPool).
+    *
+    * @param connection the physical connection to use
+    */
+   public PizzaStore(Connection connection) {
+      this._connection = connection;
+   }//end PizzaStore
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -79,58 +169,167 @@ public class PizzaStore {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
+      try{
+         // issues the update instruction
+         stmt.executeUpdate (sql);
+         ok = true;
+      }finally{
+         // close the instruction
+         stmt.close ();
+         captured (SqlCapture.UPDATE, sql, null, start, ok);
+      }
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /*
+    * Hands a finished statement to the capture log, when capturing.
+    **/
+   private void captured (byte kind, String sql, String[] params, long start, boolean ok) {
+      SqlCapture log = capture;
+      if (log != null) log.record (this._session, kind, sql, params, start, ok);
+   }//end captured
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   private void captured (byte kind, String sql, String[] params, long start, long latency, boolean ok) {
+      SqlCapture log = capture;
+      if (log != null) log.record (this._session, kind, sql, params, start, latency, ok);
+   }//end captured
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out through a TableRenderer, a page at a time when paging
+    * is on.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      long start = System.nanoTime ();
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
+      try{
+         return streamResult (stmt, SqlCapture.QUERY, query, null, start);
+      }finally{
+         stmt.close();
+      }
+   }//end executeQuery
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   /**
+    * Method to execute a parameterized query through a cached prepared
+    * statement and stream the results to standard out, like
+    * executeQueryAndPrintResult.
+    *
+    * @param query the query string, with '?' for each parameter
+    * @param params the parameter values, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executePreparedQueryAndPrintResult (String query, String... params) throws SQLException {
+      long start = System.nanoTime ();
+      PreparedStatement stmt;
+      try{
+         stmt = prepare (query);
+         for (int i = 0; i < params.length; ++i)
+            stmt.setString (i + 1, params[i]);
+      }catch(SQLException e){
+         captured (SqlCapture.PREPARED, query, params, start, false);
+         throw e;
+      }
+      return streamResult (stmt, SqlCapture.PREPARED, query, params, start);
+   }//end executePreparedQueryAndPrintResult
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
+   /*
+    * Runs the query (the prepared statement itself for PREPARED) and prints
+    * it.  The pg73 driver has no fetch size and reads the whole result;
+    * results too large for that go through forEachRow.  The statement is
+    * captured before rendering, so its latency leaves out the terminal
+    * and the pager.
+    **/
+   private int streamResult (Statement stmt, byte kind, String query, String[] params, long start) throws SQLException {
+      ResultSet rs;
+      try{
+         rs = (kind == SqlCapture.PREPARED) ? ((PreparedStatement) stmt).executeQuery () : stmt.executeQuery (query);
+      }catch(SQLException e){
+         captured (kind, query, params, start, false);
+         throw e;
+      }
+      captured (kind, query, params, start, true);
+      int rowCount = TableRenderer.console ().render (rs);
+      rs.close ();
       return rowCount;
-   }//end executeQuery
+   }//end streamResult
+
+   /**
+    * Receives the rows of forEachRow one at a time.
+    */
+   public interface RowHandler {
+      void row (ResultSet rs) throws SQLException;
+   }//end RowHandler
+
+   /**
+    * Method to run a query over a large table without holding its result in
+    * memory.  The query runs as a server side cursor (DECLARE / FETCH, the
+    * pg73 driver has no fetch size) inside a transaction, one opened for
+    * the duration of the query when none is; rows are fetched FETCH_SIZE
+    * at a time and handed to the handler as they arrive.
+    *
+    * @param query the input query string
+    * @param handler called once per row, on the positioned result set
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long forEachRow (String query, RowHandler handler) throws SQLException {
+      return forEachRow (query, FETCH_SIZE, handler);
+   }//end forEachRow
+
+   /**
+    * Same as forEachRow(query, handler), fetching the given number of rows
+    * per round trip.
+    */
+   public long forEachRow (String query, int fetchSize, RowHandler handler) throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
+      boolean autoCommit = this._connection.getAutoCommit ();
+      if (autoCommit) this._connection.setAutoCommit (false);
+      Statement stmt = this._connection.createStatement ();
+      String cursor = "pizza_rows_" + (++this._cursors);
+      long database = 0;   // time in DECLARE and FETCH, not in the handler
+      try{
+         stmt.execute ("DECLARE " + cursor + " NO SCROLL CURSOR FOR " + query);
+         database = System.nanoTime () - start;
+         long rowCount = 0;
+         int fetched;
+         do {
+            long fetchStart = System.nanoTime ();
+            ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + fetchSize + " FROM " + cursor);
+            database += System.nanoTime () - fetchStart;
+            fetched = 0;
+            while (rs.next ()) {
+               handler.row (rs);
+               fetched++;
+            }
+            rs.close ();
+            rowCount += fetched;
+         }while (fetched == fetchSize);
+         if (!autoCommit) stmt.execute ("CLOSE " + cursor);
+         ok = true;
+         return rowCount;
+      }finally{
+         this._cursors--;
+         stmt.close ();
+         captured (SqlCapture.QUERY, query, null, start, database, ok);
+         if (autoCommit) {
+            // ending the transaction closes the cursor
+            if (ok) this._connection.commit ();
+            else this._connection.rollback ();
+            this._connection.setAutoCommit (true);
+         }
+      }
+   }//end forEachRow
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -142,11 +341,19 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      long start = System.nanoTime ();
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs;
+      try{
+         rs = stmt.executeQuery (query);
+      }catch(SQLException e){
+         stmt.close ();
+         captured (SqlCapture.QUERY, query, null, start, false);
+         throw e;
+      }
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -166,9 +373,62 @@ public class PizzaStore {
         result.add(record);
       }//end while
       stmt.close ();
+      captured (SqlCapture.QUERY, query, null, start, true);
       return result;
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to prepare a SQL statement once per connection.  Later calls
+    * with the same SQL text return the already prepared statement.
+    *
+    * @param sql the SQL text, with '?' for each parameter
+    * @return the prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = this._prepared.get (sql);
+      if (stmt == null) {
+         stmt = this._connection.prepareStatement (sql);
+         this._prepared.put (sql, stmt);
+      }
+      return stmt;
+   }//end prepare
+
+   /**
+    * Method to execute a parameterized query through a cached prepared
+    * statement and return the results as a list of records, like
+    * executeQueryAndReturnResult.
+    *
+    * @param query the query string, with '?' for each parameter
+    * @param params the parameter values, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executePreparedQuery (String query, String... params) throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
+      try{
+         PreparedStatement stmt = prepare (query);
+         for (int i = 0; i < params.length; ++i)
+            stmt.setString (i + 1, params[i]);
+
+         ResultSet rs = stmt.executeQuery ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         rs.close ();
+         ok = true;
+         return result;
+      }finally{
+         captured (SqlCapture.PREPARED, query, params, start, ok);
+      }
+   }//end executePreparedQuery
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -178,20 +438,26 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       long start = System.nanoTime ();
+       boolean ok = false;
        // creates a statement object
        Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+       try{
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          ok = true;
+          return rowCount;
+       }finally{
+          stmt.close ();
+          captured (SqlCapture.QUERY, query, null, start, ok);
+       }
    }
 
    /**
@@ -204,19 +470,147 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
+      long start = System.nanoTime ();
+      String query = String.format("Select currval('%s')", sequence);
       Statement stmt = this._connection.createStatement ();
-
-      ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+      boolean ok = false;
+      try{
+         ResultSet rs = stmt.executeQuery (query);
+         ok = true;
+         if (rs.next())
+            return rs.getInt(1);
+         return -1;
+      }finally{
+         stmt.close ();
+         captured (SqlCapture.QUERY, query, null, start, ok);
+      }
    }
 
+   /**
+    * Method to execute several update SQL statements as one JDBC batch.
+    * The statements run in whatever transaction is currently open.
+    *
+    * @param sqls the update statements, in order
+    * @return the update count of each statement
+    * @throws java.sql.SQLException when the batch failed
+    */
+   public int[] executeBatch (List<String> sqls) throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
+      Statement stmt = this._connection.createStatement ();
+      try{
+         for (String sql : sqls)
+            stmt.addBatch (sql);
+         int[] counts = stmt.executeBatch ();
+         ok = true;
+         return counts;
+      }finally{
+         stmt.close ();
+         if (capture != null) captured (SqlCapture.BATCH, String.join ("\0", sqls), null, start, ok);
+      }
+   }//end executeBatch
+
+   /**
+    * Switches the connection between auto-commit (the default, every
+    * statement is its own transaction) and explicit transactions.
+    *
+    * @param autoCommit true to commit every statement on its own
+    * @throws java.sql.SQLException when the mode cannot be changed
+    */
+   public void setAutoCommit (boolean autoCommit) throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
+      try{
+         this._connection.setAutoCommit (autoCommit);
+         ok = true;
+      }finally{
+         captured ((autoCommit ? SqlCapture.AUTOCOMMIT_ON : SqlCapture.AUTOCOMMIT_OFF), null, null, start, ok);
+      }
+   }//end setAutoCommit
+
+   /**
+    * Commits the open transaction.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commit () throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
+      try{
+         this._connection.commit ();
+         ok = true;
+      }finally{
+         captured (SqlCapture.COMMIT, null, null, start, ok);
+      }
+   }//end commit
+
+   /**
+    * Rolls back the open transaction.
+    *
+    * @throws java.sql.SQLException when the rollback failed
+    */
+   public void rollback () throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
+      try{
+         this._connection.rollback ();
+         ok = true;
+      }finally{
+         captured (SqlCapture.ROLLBACK, null, null, start, ok);
+      }
+   }//end rollback
+
+   /**
+    * Returns the NOTIFY channels signalled to this session since the last
+    * call.  The driver only picks notifications up while it reads a query
+    * result, so a trivial query is sent first.
+    *
+    * @return the channel names, one per notification
+    * @throws java.sql.SQLException when the connection is broken
+    */
+   public List<String> pollNotifications () throws SQLException {
+      // not through executeQuery, so polling stays out of the capture log
+      Statement stmt = this._connection.createStatement ();
+      try{
+         stmt.executeQuery ("SELECT 1").close ();
+      }finally{
+         stmt.close ();
+      }
+      List<String> channels = new ArrayList<String>();
+      org.postgresql.PGNotification[] notes = ((org.postgresql.PGConnection) this._connection).getNotifications ();
+      if (notes != null)
+         for (org.postgresql.PGNotification note : notes)
+            channels.add (note.getName ());
+      return channels;
+   }//end pollNotifications
+
+   /**
+    * Makes the server cancel any statement of this session that runs
+    * longer than ms, 0 for no limit.  This is what setQueryTimeout would
+    * do, but the bundled driver keeps that value without using it, and
+    * has no Statement.cancel.
+    *
+    * @param ms the limit in milliseconds, or 0
+    * @throws java.sql.SQLException when the connection is broken
+    */
+   public void setStatementTimeout (long ms) throws SQLException {
+      // not through executeUpdate, so it stays out of the capture log
+      Statement stmt = this._connection.createStatement ();
+      try{
+         stmt.executeUpdate ("SET statement_timeout = " + Math.max (0, ms));
+      }finally{
+         stmt.close ();
+      }
+   }//end setStatementTimeout
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
+         for (PreparedStatement stmt : this._prepared.values ())
+            stmt.close ();
+         this._prepared.clear ();
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -231,7 +625,8 @@ public class PizzaStore {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean memory = System.getProperty("pizza.store", "postgres").equals("memory");
+      if (args.length != 3 && !memory) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
@@ -243,95 +638,169 @@ public class PizzaStore {
       Greeting();
       PizzaStore esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the PizzaStore object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new PizzaStore (dbname, dbport, user, "");
+         if (memory) {
+            // a kiosk without a database: the whole store lives in this
+            // process, loaded from the CSV files of pizza.dataDir
+            memoryStore = MemoryRepository.fromCsv(new File(System.getProperty("pizza.dataDir", "data")));
+            menuIndex.ensureLoaded(null);
+            MenuSnapshot.reload(memoryStore);
+         }else{
+            // load the postgres JDBC driver, open the connection pool and warm
+            // up caches and statements before the first user gets the menu.
+            String dbname = args[0];
+            String dbport = args[1];
+            String user = args[2];
+            new Warmup().run (dbname, dbport, user, "");
+         }
 
          boolean keepon = true;
          while(keepon) {
-            // These are sample SQL statements
-            System.out.println("");
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            String userRole = null;
-            List<String> userInfo = new ArrayList<>();
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: 
-                  userInfo = LogIn(esql);
-                  authorisedUser = userInfo.get(0); 
-                  userRole = userInfo.get(1);
-                  break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. View Profile");
-                System.out.println("2. Update Profile");
-                System.out.println("3. View Menu");
-                System.out.println("4. Place Order"); //make sure user specifies which store
-                System.out.println("5. View Full Order ID History");
-                System.out.println("6. View Past 5 Order IDs");
-                System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
-                System.out.println("8. View Stores"); 
-
-                //**the following functionalities should only be able to be used by drivers & managers**
-                if (userRole.contains("manager") || userRole.contains("driver")) {
-                  System.out.println("9. Update Order Status");
-                }
-
-                //**the following functionalities should ony be able to be used by managers**
-                if (userRole.contains("manager")) {
-                  System.out.println("10. Update Menu");
-                  System.out.println("11. Update User");
-                }
-
-                System.out.println(".........................");
-                System.out.println("20. Log out");
-
-                //System.out.println("User info" + userInfo);
-                switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser, userRole); break;
-                   case 6: viewRecentOrders(esql, authorisedUser, userRole); break;
-                   case 7: viewOrderInfo(esql, authorisedUser, userRole); break;
-                   case 8: viewStores(esql); break;
-                   case 9: 
-                     if(userRole.contains("manager") || (userRole.contains("driver"))){
-                        updateOrderStatus(esql);
-                     }
-                     else System.out.println("Unrecognized choice!");
-                     break;
-                   case 10: 
-                     if(userRole.contains("manager")) updateMenu(esql); 
-                     else System.out.println("Unrecognized choice!");
-                     break;
-
-                   case 11:
-                     if(userRole.contains("manager")) updateUser(esql);
-                     else System.out.println("Unrecognized choice!");
+            // the session goes back to the pool at log out, for background
+            // work and the next log in; there is none with pizza.store=memory
+            esql = (pool == null) ? null : pool.borrow();
+            try{
+               // These are sample SQL statements
+               System.out.println("");
+               System.out.println("MAIN MENU");
+               System.out.println("---------");
+               System.out.println("1. Create user");
+               System.out.println("2. Log in");
+               System.out.println("9. < EXIT");
+               String authorisedUser = null;
+               UserRole userRole = null;
+               List<String> userInfo = new ArrayList<>();
+               switch (readChoice()){
+                  case 1: CreateUser(esql); break;
+                  case 2: 
+                     userInfo = LogIn(esql);
+                     authorisedUser = userInfo.get(0); 
+                     userRole = UserRole.parse(userInfo.get(1));
                      break;
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
+                  case 9: keepon = false; break;
+                  default : System.out.println("Unrecognized choice!"); break;
+               }//end switch
+               if (authorisedUser != null) {
+                 if (esql != null) HomeScreen.show(esql, authorisedUser, userRole);
+                 boolean usermenu = true;
+                 while(usermenu) {
+                   if (userChanged(authorisedUser)) {
+                     // role changed or account removed by another session
+                     try{
+                       PizzaRepository.User current = repo(esql).user(authorisedUser);
+                       if (current == null) {
+                         System.out.println("Your account was removed. Logging out.");
+                         break;
+                       }
+                       userRole = current.role;
+                     }catch(SQLException e){
+                       changedUsers.add(authorisedUser);   // try again next time round
+                     }
+                   }
+                   System.out.println("MAIN MENU");
+                   System.out.println("---------");
+                   System.out.println("1. View Profile");
+                   System.out.println("2. Update Profile");
+                   System.out.println("3. View Menu");
+                   System.out.println("4. Place Order"); //make sure user specifies which store
+                   System.out.println("5. View Full Order ID History");
+                   System.out.println("6. View Past 5 Order IDs");
+                   System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
+                   System.out.println("8. View Stores"); 
+                   System.out.println("14. Review a Store");
+                   System.out.println("19. Home Screen");
+
+                   //**the following functionalities should only be able to be used by drivers & managers**
+                   if (userRole.isStaff()) {
+                     System.out.println("9. Update Order Status");
+                     System.out.println("12. Claim Next Order");
+                     System.out.println("17. Claim Delivery Batch");
+                     System.out.println("18. Complete Delivery Batch");
+                   }
+
+                   //**the following functionalities should ony be able to be used by managers**
+                   if (userRole == UserRole.MANAGER) {
+                     System.out.println("10. Update Menu");
+                     System.out.println("11. Update User");
+                     System.out.println("13. Import Users from CSV");
+                     System.out.println("15. Export Orders to File");
+                     System.out.println("16. End-of-Day Store Report");
+                     System.out.println("21. Cache Statistics");
+                   }
+
+                   System.out.println(".........................");
+                   System.out.println("20. Log out");
+
+                   //System.out.println("User info" + userInfo);
+                   switch (readChoice()){
+                      case 1: viewProfile(esql, authorisedUser); break;
+                      case 2: updateProfile(esql, authorisedUser); break;
+                      case 3: viewMenu(esql); break;
+                      case 4: placeOrder(esql, authorisedUser); break;
+                      case 5: viewAllOrders(esql, authorisedUser, userRole); break;
+                      case 6: viewRecentOrders(esql, authorisedUser, userRole); break;
+                      case 7: viewOrderInfo(esql, authorisedUser, userRole); break;
+                      case 8: viewStores(esql); break;
+                      case 9: 
+                        if(userRole.isStaff()){
+                           updateOrderStatus(esql);
+                        }
+                        else System.out.println("Unrecognized choice!");
+                        break;
+                      case 10: 
+                        if(userRole == UserRole.MANAGER) updateMenu(esql); 
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 11:
+                        if(userRole == UserRole.MANAGER) updateUser(esql);
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 12:
+                        if(userRole.isStaff()) claimOrder(esql);
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 13:
+                        if(userRole == UserRole.MANAGER) importUsers(esql);
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 14: reviewStore(esql, authorisedUser); break;
+                      case 19: if (!needsDatabase(esql)) HomeScreen.show(esql, authorisedUser, userRole); break;
+
+                      case 15:
+                        if(userRole == UserRole.MANAGER) exportOrders(esql);
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 16:
+                        if(userRole == UserRole.MANAGER) storeReport(esql);
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 17:
+                        if(userRole.isStaff()) claimBatch(esql);
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 18:
+                        if(userRole.isStaff()) completeBatch(esql);
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 21:
+                        if(userRole == UserRole.MANAGER) cacheStats();
+                        else System.out.println("Unrecognized choice!");
+                        break;
+
+                      case 20: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                 }
+               }
+            }finally{
+               if (esql != null) pool.release(esql);
             }
          }//end while
       }catch(Exception e) {
@@ -339,9 +808,20 @@ public class PizzaStore {
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
-            if(esql != null) {
+            if(pool != null) {
                System.out.print("Disconnecting from database...");
-               esql.cleanup ();
+               if (coherence != null) coherence.close ();
+               reviews.close (5000);
+               if (journal != null) journal.close (5000);
+               inventory.close ();
+               trending.close ();
+               // last, so the flushes above are in the log
+               if (capture != null) {
+                  capture.close ();
+                  System.out.print(capture.summary () + "...");
+               }
+               if (shards != null) shards.closeAll ();
+               pool.closeAll ();
                System.out.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
@@ -350,6 +830,19 @@ public class PizzaStore {
       }//end try
    }//end main
 
+   /*
+    * Empties changedUsers, telling whether the user's row is among the
+    * changes; the other logins are of no use to this session.
+    **/
+   static boolean userChanged(String login) {
+      boolean changed = false;
+      for (String key : changedUsers) {
+         changedUsers.remove(key);
+         if (key.equals(login) || key.equals("*")) changed = true;
+      }
+      return changed;
+   }//end userChanged
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -391,7 +884,7 @@ public class PizzaStore {
       boolean valid = false;
       String newLogin = "";
       String password = "";
-      String role = "customer";
+      UserRole role = UserRole.CUSTOMER;
       String phoneNum = "";
       BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in));
 
@@ -401,7 +894,7 @@ public class PizzaStore {
             newLogin = consoleInput.readLine();
             if(newLogin.equals("q")) return;
 
-            valid = esql.executeQueryAndPrintResult("SELECT F.login FROM Users F WHERE F.login = " + "\'" +newLogin + "\'") == 0;
+            valid = repo(esql).user(newLogin) == null;
             if(!valid){
                System.out.println("\n User " + newLogin+" already exists. Please use a different login. \n");
             }
@@ -454,8 +947,7 @@ public class PizzaStore {
       }
       //otherwise put in necessary information and add to user table
       try{
-         esql.executeUpdate("INSERT INTO Users VALUES ("+ "\'" + newLogin + "\'" +", "+ "\'"+ password + "\'"+", 'customer', null, "+ "\'" + phoneNum + "\'" + ");");
-         boolean successfullyInserted = esql.executeQuery("SELECT * FROM Users F WHERE F.login = \'" + newLogin + "\'") != 0;
+         boolean successfullyInserted = repo(esql).addUser(new PizzaRepository.User(newLogin, password, role, null, phoneNum));
          System.out.println("-----------------------------------------");
 
          if(successfullyInserted){
@@ -477,7 +969,7 @@ public class PizzaStore {
     * @return User login or null is the user does not exist
     **/
    public static List<String> LogIn(PizzaStore esql){
-      List<List<String>> queryResults = new ArrayList<>();
+      PizzaRepository.User user = null;
       BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in));
 
       try{
@@ -487,9 +979,9 @@ public class PizzaStore {
          while(!valid){
             System.out.print("Please enter login: ");
             login = consoleInput.readLine();
-            queryResults = esql.executeQueryAndReturnResult("SELECT * FROM Users F WHERE F.login = \'" + login + "\'");
+            user = repo(esql).user(login);
             System.out.println("-----------------------------------------");
-            valid = queryResults.size() > 0;
+            valid = user != null;
             if(!valid){
                System.out.println("No user, please try again.");
                continue;
@@ -499,7 +991,7 @@ public class PizzaStore {
             System.out.print("Please enter password: ");
             String password = consoleInput.readLine();
             System.out.println("-----------------------------------------");
-            valid = password.equals(queryResults.get(0).get(1));
+            valid = password.equals(user.password);
             if(valid){
                System.out.println("Login success!");
             }else{
@@ -513,10 +1005,9 @@ public class PizzaStore {
          System.exit(-1);
       }
 
-      //System.out.println(queryResults);
       List<String> output = new ArrayList<>();
-      output.add(queryResults.get(0).get(0));
-      output.add(queryResults.get(0).get(2));
+      output.add(user.login);
+      output.add(user.role.toString());
       return output;
    }//end
    
@@ -532,23 +1023,23 @@ public class PizzaStore {
       String newValue = "";
 
       boolean valid = false;
-      List<List<String>> result = new ArrayList<>();
+      PizzaRepository.User result = null;
 
       try{
 
-      result = esql.executeQueryAndReturnResult("SELECT * FROM Users F WHERE F.login = \'" + _login + "\'");
+      result = repo(esql).user(_login);
       //display user information
       
       System.out.println("-----------------------------------------");
       System.out.println("Current user fields");
       System.out.println("");
 
-      System.out.println("Login: "+ result.get(0).get(0));
+      System.out.println("Login: "+ result.login);
       System.out.println("Password: "+ "********");
-      System.out.println("Role: "+ result.get(0).get(2));
+      System.out.println("Role: "+ result.role);
 
-      System.out.println("Favorite Item: "+ result.get(0).get(3));
-      System.out.println("Phone Number: "+ result.get(0).get(4));
+      System.out.println("Favorite Item: "+ result.favoriteItems);
+      System.out.println("Phone Number: "+ result.phoneNum);
 
       System.out.println("-----------------------------------------");
       System.out.println("Options");
@@ -584,23 +1075,23 @@ public class PizzaStore {
       String newValue = "";
 
       boolean valid = false;
-      List<List<String>> result = new ArrayList<>();
+      PizzaRepository.User result = null;
 
       try{
 
-      result = esql.executeQueryAndReturnResult("SELECT * FROM Users F WHERE F.login = \'" + _login + "\'");
+      result = repo(esql).user(_login);
       //display user information
       
       System.out.println("-----------------------------------------");
       System.out.println("Current user fields");
       System.out.println("");
 
-      System.out.println("Login: "+ result.get(0).get(0));
+      System.out.println("Login: "+ result.login);
       System.out.println("Password: "+ "********");
-      System.out.println("Role: "+ result.get(0).get(2));
+      System.out.println("Role: "+ result.role);
 
-      System.out.println("Favorite Item: "+ result.get(0).get(3));
-      System.out.println("Phone Number: "+ result.get(0).get(4));
+      System.out.println("Favorite Item: "+ result.favoriteItems);
+      System.out.println("Phone Number: "+ result.phoneNum);
 
       System.out.println("-----------------------------------------");
       System.out.println("Which field would you like to change?");
@@ -639,7 +1130,7 @@ public class PizzaStore {
       System.out.print("Desired value: ");
       newValue = consoleInput.readLine();
 
-      esql.executeUpdate("UPDATE Users SET " + desiredField + " = \'" + newValue + "\' WHERE login = " + "\'"+ _login+"\'");
+      repo(esql).updateUser(withField(result, desiredField, newValue));
       System.out.println("-----------------------------------------");
       System.out.println("Profile successfully updated. Returning to main menu...");
       //update accordingly
@@ -652,28 +1143,48 @@ public class PizzaStore {
       int maxPrice = Integer.MAX_VALUE;
       String type = "";
       int sort = -1; //-1 for no sort, 0 for low to high, 1 for high to low
+      int store = -1; //-1 for every item, else hide what this store is out of
+      DecimalFormat df = new DecimalFormat("0.00");
       BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in));
 
       while (!exit){
          //Basic menu feedback UI
-         System.out.println("Pizza Menu");
+         System.out.println(store < 0 ? "Pizza Menu" : "Pizza Menu (available at store " + store + ")");
          System.out.println("-----------------------------------------");
 
-         try{
-            List<List<String>> items = new ArrayList<>();
-            String query = "SELECT * FROM Items F WHERE F.price < " + maxPrice;
-            if(filterByType) query += " AND F.typeOfItem LIKE \'%" + type + "\'"; // account for a possible leading space
-
-            if(sort != -1) query += " ORDER BY F.price";
-            if(sort == 1) query += " DESC";
+         // what is selling right now, at the chosen store or everywhere
+         List<TrendingTracker.Trend> hot = trending.top(store, 5);
+         if(!hot.isEmpty()) {
+            StringBuilder line = new StringBuilder("Trending now:");
+            for(int i = 0; i < hot.size(); i++) {
+               line.append(i == 0 ? " " : ", ").append(hot.get(i).itemName.trim()).append(" (").append(hot.get(i).count).append(")");
+            }
+            System.out.println(line);
+            System.out.println("-----------------------------------------");
+         }
 
-            //System.out.println(query);
-            items = esql.executeQueryAndReturnResult(query);
+         try{
+            // the menu is small: filtered and sorted here, the same for both stores
+            List<PizzaRepository.Item> items = new ArrayList<>();
+            for(PizzaRepository.Item item : repo(esql).items()){
+               if(item.price >= maxPrice) continue;
+               if(filterByType && !item.typeOfItem.endsWith(type)) continue; // account for a possible leading space
+               items.add(item);
+            }
+            if(sort != -1) {
+               final int direction = (sort == 1) ? -1 : 1;
+               items.sort(new Comparator<PizzaRepository.Item>() {
+                  public int compare(PizzaRepository.Item a, PizzaRepository.Item b) {
+                     return direction * Double.compare(a.price, b.price);
+                  }
+               });
+            }
 
             //print all items that match query
-            for(List<String> item : items){
-               System.out.println(item.get(0) + " " + item.get(2) + " " + item.get(3));
-         }
+            for(PizzaRepository.Item item : items){
+               if(store >= 0 && !inventory.isAvailable(store, item.itemName)) continue;
+               System.out.println(item.itemName + " " + item.typeOfItem + " " + df.format(item.price));
+            }
 
          }catch(Exception e){
             System.out.println(e.getMessage());
@@ -688,7 +1199,9 @@ public class PizzaStore {
          System.out.println("3. Sort Price Low to High");
          System.out.println("4. Sort Price High to Low");
          System.out.println("5. Clear Filters");
-         System.out.println("6. Exit");
+         System.out.println("6. Search by Keyword or Ingredient");
+         System.out.println("7. Show Items Available at a Store");
+         System.out.println("8. Exit");
          System.out.println(" ");
          System.out.print("Please enter option: ");
 
@@ -745,8 +1258,25 @@ public class PizzaStore {
                type = "";
                sort = -1;
                maxPrice = Integer.MAX_VALUE;
+               store = -1;
                break;
             case "6":
+               searchMenu(esql, filterByType ? type : null, maxPrice);
+               break;
+            case "7":
+               try{
+                  System.out.println("-----------------------------------------");
+                  System.out.print("Please enter a storeID: ");
+                  String input = consoleInput.readLine().trim();
+                  if(isNumeric(input) && repo(esql).store(Integer.parseInt(input)) != null) {
+                     store = Integer.parseInt(input);
+                     menuIndex.ensureLoaded(esql);
+                     if(esql != null) inventory.ensureLoaded(esql, store);   // the in-memory store tracks no stock
+                  }
+                  else System.out.println("That store does not exist.");
+               }catch(Exception e){ System.out.println(e.getMessage()); }
+               break;
+            case "8":
                exit = true;
                break;
             default:
@@ -756,6 +1286,41 @@ public class PizzaStore {
 
    }
 
+   /*
+    * Searches the menu by keyword and ingredients using the in-memory
+    * index. The current type and max price filters of viewMenu still apply.
+    **/
+   public static void searchMenu(PizzaStore esql, String type, int maxPrice) {
+      MenuSearchIndex.Query q = new MenuSearchIndex.Query();
+      q.typeOfItem = type;
+      q.maxPrice = maxPrice;
+
+      try{
+         menuIndex.ensureLoaded(esql);
+
+         System.out.println("-----------------------------------------");
+         System.out.print("Keywords (e.g. 'spicy chick'), blank for any: ");
+         q.keywords.addAll(MenuSearchIndex.splitList(in.readLine().replace(' ', ',')));
+         System.out.print("Must contain ingredients (comma separated), blank for any: ");
+         q.withIngredients.addAll(MenuSearchIndex.splitList(in.readLine()));
+         System.out.print("Must NOT contain ingredients (comma separated), blank for none: ");
+         q.withoutIngredients.addAll(MenuSearchIndex.splitList(in.readLine()));
+      }catch(Exception e){
+         System.out.println(e.getMessage());
+         return;
+      }
+
+      List<MenuSearchIndex.Item> results = menuIndex.search(q);
+      System.out.println("-----------------------------------------");
+      System.out.println("Search results");
+      System.out.println("");
+      for(MenuSearchIndex.Item item : results){
+         System.out.println(item.itemName + " " + item.typeOfItem + " " + item.price);
+      }
+      if(results.size() == 0) System.out.println("No items match your search.");
+      System.out.println("-----------------------------------------");
+   }
+
    public static void placeOrder(PizzaStore esql, String _login) {
       /* An order needs the following:
          * orderID
@@ -773,7 +1338,6 @@ public class PizzaStore {
       boolean valid = false;
       boolean distinctItem = true;
       boolean doneOrdering = false;
-      int orderID = 0;
       String storeID = "";
       float totalPrice = 0.00f;
       String status = "incomplete";
@@ -789,7 +1353,7 @@ public class PizzaStore {
       System.out.print("Enter the storeID of the store you want to order from: ");
       try{
          storeID = in.readLine();
-         valid = esql.executeQuery("SELECT S.storeID FROM Store S WHERE S.storeID  = \'" + storeID + "\'") > 0;
+         valid = isNumeric(storeID.trim()) && repo(esql).store(Integer.parseInt(storeID.trim())) != null;
          if(!valid) {
             System.out.println("That store does not exist or is not available. Returning to main menu.");
             System.out.println("-----------------------------------------\n");
@@ -797,6 +1361,16 @@ public class PizzaStore {
          }
       }catch(Exception e){ System.out.println(e.getMessage()); }
 
+      // the whole order is priced against one version of the menu
+      MenuSnapshot menu = null;
+      int store = 0;
+      try{
+         menu = MenuSnapshot.current(esql);
+         store = Integer.parseInt(storeID.trim());
+         menuIndex.ensureLoaded(esql);
+         if(esql != null) inventory.ensureLoaded(esql, store);   // the in-memory store tracks no stock
+      }catch(Exception e){ System.out.println(e.getMessage()); return; }
+
       while(!doneOrdering) {
          // display current order and price
          System.out.println("");
@@ -822,12 +1396,18 @@ public class PizzaStore {
                   valid = false;
                   System.out.print("Item name: ");
                   newItem = in.readLine();
-                  valid =  esql.executeQuery("SELECT T.itemName FROM Items T WHERE T.itemName  = \'" + newItem + "\'") > 0;
+                  Float price = menu.price(newItem);
+                  valid = price != null;
                   if(!valid) {
                      System.out.println("That item does not exist or is not available.");
                      System.out.println("-----------------------------------------");
                      break;
                   }
+                  if(!inventory.isAvailable(store, newItem)) {
+                     System.out.println("Sorry, " + newItem + " is sold out at this store.");
+                     System.out.println("-----------------------------------------");
+                     break;
+                  }
                   
                   // get item quantity
                   System.out.print("Quantity of " + newItem + ": ");
@@ -853,10 +1433,38 @@ public class PizzaStore {
                      itemCount++;
                   }
 
-                  totalPrice += newQuantity * Float.parseFloat(esql.executeQueryAndReturnResult("SELECT T.price "
-                                 + "FROM Items T WHERE T.itemName  = \'" + newItem + "\'").get(0).get(0));
+                  totalPrice += newQuantity * price;
                   break;
                case 2:
+                  // a manager changed the menu meanwhile: reprice before sending
+                  MenuSnapshot latest = MenuSnapshot.current(esql);
+                  if(latest.version != menu.version) {
+                     float newTotal = 0.00f;
+                     for (int i = 0; i < itemCount && newTotal >= 0; i++) {
+                        Float latestPrice = latest.price(itemNames.get(i));
+                        if(latestPrice == null) {
+                           System.out.println(itemNames.get(i) + " is no longer available. Please cancel or start a new order.");
+                           newTotal = -1;
+                        }
+                        else newTotal += itemQuantities.get(i) * latestPrice;
+                     }
+                     if(newTotal < 0) break;
+                     menu = latest;
+                     if(Math.abs(newTotal - totalPrice) >= 0.005f) {
+                        totalPrice = newTotal;
+                        System.out.println("The menu prices changed. Your new order total is $" + df.format(totalPrice) + ".");
+                        System.out.println("Send order? (y/n)");
+                        if(!in.readLine().equals("y")) break;
+                     }
+                  }
+
+                  // take the ingredients now so the store cannot oversell
+                  List<String> soldOut = inventory.reserve(store, itemNames, itemQuantities);
+                  if(!soldOut.isEmpty()) {
+                     System.out.println("Sorry, the store ran out of " + String.join(", ", soldOut)
+                        + ". Please cancel or start a new order.");
+                     break;
+                  }
                   doneOrdering = true;
                   break;
                case 3:
@@ -870,119 +1478,355 @@ public class PizzaStore {
          }catch(Exception e){ System.out.println(e.getMessage()); }
       }
 
+      // wait for a free slot; when the system is overloaded the order is
+      // kept and the customer may send it again after the suggested delay
+      AdmissionController.Permit permit = null;
+      while(permit == null && esql != null) {   // the in-memory store has no slots to share
+         try{
+            permit = admission.acquire(esql, store, journal == null);
+         }catch(AdmissionController.RejectedException e){
+            System.out.println("\n" + e.getMessage() + ".");
+            System.out.println("Send your order again? (y/n)");
+            try{
+               if(!in.readLine().equals("y")) {
+                  inventory.release(store, itemNames, itemQuantities);
+                  return;
+               }
+               Thread.sleep(e.retryAfterMs);
+            }catch(Exception ie){
+               inventory.release(store, itemNames, itemQuantities);
+               return;
+            }
+         }catch(InterruptedException e){
+            inventory.release(store, itemNames, itemQuantities);
+            return;
+         }
+      }
+
       try{
-         // generate a unique order id
-         Random rand = new Random();
-         valid = false;
-         while(!valid) {
-            orderID = rand.nextInt(2000000000);
-            valid = esql.executeQuery("SELECT R.orderID FROM FoodOrder R WHERE R.orderID  = \'" + orderID + "\'") == 0;
+         submitOrder(esql, _login, store, totalPrice, itemNames, itemQuantities, menu.version);
+      }catch(Exception e){
+         System.out.println(e.getMessage());
+         System.out.println("\nYour order could not be placed. Please try again.\n");
+         inventory.release(store, itemNames, itemQuantities);
+         return;
+      }finally{
+         admission.release(permit);
+      }
+
+      // helpful message about the order being placed
+      System.out.println("\nWe received your order!\n");
+
+   }
+
+   /*
+    * Sends an order that has its stock reserved and its admission permit:
+    * gives it a free orderID and journals it, or writes it now when there
+    * is no journal or it is full. Shared with LoadTest.
+    **/
+   static OrderRecord submitOrder(PizzaStore esql, String _login, int store, float totalPrice,
+                                  List<String> itemNames, List<Integer> itemQuantities, long menuVersion) throws Exception {
+      // generate a unique order id. When the database cannot be asked the
+      // journal still takes the order, and its replayer gives the order a
+      // new ID should this one turn out to be taken.
+      Random rand = new Random();
+      int orderID = 0;
+      boolean valid = false;
+      while(!valid) {
+         orderID = (shards == null) ? rand.nextInt(2000000000) : shards.newOrderID(store, rand);
+         try{
+            valid = repo(esql).order(orderID) == null;
+         }catch(SQLException e){
+            if(journal == null) throw e;
+            valid = true;
          }
+      }
 
-         // generate timestamp
-         long now = System.currentTimeMillis();
-         Timestamp orderTimestamp = new Timestamp(now);
+      OrderRecord order = new OrderRecord(orderID, _login, store, totalPrice, System.currentTimeMillis(),
+                                          OrderStatus.INCOMPLETE, itemNames, itemQuantities, menuVersion);
+      if(journal == null || !journal.append(order)) insertOrder(esql, order);
+      return order;
+   }
 
-         // insert order into FoodOrder
-         esql.executeUpdate("INSERT INTO FoodOrder VALUES (" + "\'" + orderID + "\', \'" + _login + "\', \'" + storeID
-            + "\', \'" + totalPrice + "\', \'" + orderTimestamp + "\', \'incomplete')");
+   /*
+    * Inserts an order with its items in one transaction, on its store's
+    * shard.
+    **/
+   public static void insertOrder(PizzaStore esql, OrderRecord order) throws SQLException, InterruptedException {
+      repo(esql).addOrder(order);
+      orderCommitted(order);
+   }
 
-         // insert into ItemsIn Order each item with correct order id
-         for (int i = 0; i < itemCount; i++) {
-            esql.executeUpdate("INSERT INTO ItemsInOrder VALUES (" + "\'" + orderID + "\', \'" + itemNames.get(i) + "\', \'" + itemQuantities.get(i)+ "\')");
-         }  
-      }catch(Exception e){ System.out.println(e.getMessage()); }
+   /*
+    * Returns the store users, the menu, stores and orders are read from and
+    * written to: the in-memory one with pizza.store=memory (esql is null
+    * then), otherwise a PostgresRepository on esql.
+    **/
+   static PizzaRepository repo(PizzaStore esql) {
+      if (memoryStore != null) return memoryStore;
+      if (esql._repository == null) esql._repository = new PostgresRepository(esql);
+      return esql._repository;
+   }
 
-      // helpful message about the order being placed
-      System.out.println("\nWe received your order!\n");
+   /*
+    * Tells a user of the in-memory store that a function needs the
+    * database, see repo.
+    **/
+   static boolean needsDatabase(PizzaStore esql) {
+      if (esql != null) return false;
+      System.out.println("Not available without a database (pizza.store=memory).");
+      return true;
+   }
 
+   /*
+    * Returns the session holding the orders of a store: esql itself, or
+    * with sharding a session borrowed from the owning shard. Hand it back
+    * with releaseShard.
+    **/
+   static PizzaStore storeShard(PizzaStore esql, int storeID) throws InterruptedException {
+      return (shards == null) ? esql : shards.borrow(shards.shardOfStore(storeID));
    }
 
-   public static void viewAllOrders(PizzaStore esql, String _login, String _role) {
+   /*
+    * Returns the session holding an order, see storeShard.
+    **/
+   static PizzaStore orderShard(PizzaStore esql, int orderID) throws InterruptedException {
+      return (shards == null) ? esql : shards.borrow(shards.shardOfOrder(orderID));
+   }
+
+   static void releaseShard(PizzaStore esql, PizzaStore shard) {
+      if (shard != esql) shards.release(shard);
+   }
+
+   /*
+    * Writes to a replicated table (Users, Items, Store): every shard when
+    * sharded, otherwise just this database.
+    **/
+   static void replicatedUpdate(PizzaStore esql, String sql) throws SQLException {
+      if (shards == null) esql.executeUpdate(sql);
+      else shards.executeUpdateAll(sql);
+   }
+
+   /*
+    * Prints order IDs from every shard, newest first.
+    **/
+   static void printMergedOrders(String where, int limit) throws SQLException {
+      final TableRenderer table = TableRenderer.console();
+      final boolean[] begun = { false };
+      shards.forEachNewestFirst("SELECT R.orderID, R.orderTimestamp FROM FoodOrder R " + where
+            + " ORDER BY R.orderTimestamp DESC" + (limit < 0 ? "" : " LIMIT " + limit), 1, limit,
+         new ShardRouter.RowSink() {
+            public boolean row(List<String> row) {
+               if (!begun[0]) {
+                  table.begin(new String[] { "orderid" });
+                  begun[0] = true;
+               }
+               return table.row(new String[] { row.get(0) });
+            }
+         });
+      if (begun[0]) table.end();
+   }
+
+   /*
+    * Called once an order is in the database, whichever path wrote it.
+    **/
+   public static void orderCommitted(OrderRecord order) {
+      // placing to commit time, journal backlog included, drives admission
+      admission.recordCommitLatency((System.currentTimeMillis() - order.orderTimestamp) * 1000000L);
+
+      // let the store's drivers see it
+      dispatch.offer(order.storeID, order.orderID, order.orderTimestamp, order.totalPrice);
+      batcher.offer(order.storeID, order.orderID, order.orderTimestamp);
+
+      orderIndex.add(order);
+      recentOrders.add(order);
+   }
+
+   /*
+    * Prints order IDs from the order index, once it is loaded.
+    **/
+   static void printIndexedOrders(OrderHeaderIndex.Cursor orders) {
+      TableRenderer table = TableRenderer.console();
+      table.begin(new String[] { "orderid" });
+      for (int orderID = orders.next(); orderID >= 0; orderID = orders.next()) {
+         if (!table.row(new String[] { String.valueOf(orderID) })) break;
+      }
+      table.end();
+   }
+
+   /*
+    * Prints the IDs of orders of the in-memory store (pizza.store=memory).
+    **/
+   static void printOrders(List<OrderRecord> orders) {
+      TableRenderer table = TableRenderer.console();
+      table.begin(new String[] { "orderid" });
+      for (OrderRecord o : orders) {
+         if (!table.row(new String[] { String.valueOf(o.orderID) })) break;
+      }
+      table.end();
+   }
+
+   /*
+    * Prints a list of order IDs.
+    **/
+   static void printOrderIDs(List<Integer> orderIDs) {
+      TableRenderer table = TableRenderer.console();
+      table.begin(new String[] { "orderid" });
+      for (int orderID : orderIDs) {
+         if (!table.row(new String[] { String.valueOf(orderID) })) break;
+      }
+      table.end();
+   }
+
+   /*
+    * Returns the IDs of a customer's most recent orders, newest first:
+    * from the order index once it is loaded, else the recent orders cache.
+    * Shared with LoadTest.
+    **/
+   static List<Integer> recentOrderIDs(PizzaStore esql, String _login, int limit) throws SQLException {
+      List<Integer> orderIDs = new ArrayList<Integer>();
+      OrderHeaderIndex.Cursor orders = orderIndex.byUser(_login, limit);   // null until loaded
+      if (orders != null) {
+         for (int orderID = orders.next(); orderID >= 0; orderID = orders.next()) orderIDs.add(orderID);
+      }else if (esql == null) {
+         for (OrderRecord o : repo(esql).recentOrders(_login, limit)) orderIDs.add(o.orderID);
+      }else{
+         for (RecentOrdersCache.Recent r : recentOrders.get(esql, _login, limit)) orderIDs.add(r.orderID);
+      }
+      return orderIDs;
+   }
+
+   public static void viewAllOrders(PizzaStore esql, String _login, UserRole _role) {
       String orderQuery = "SELECT R.orderID FROM FoodOrder R ";
       
       System.out.println("-----------------------------------------");
-      if(_role.contains("manager") || _role.contains("driver")) {
+      if(_role.isStaff()) {
          orderQuery += " ORDER BY R.orderTimestamp DESC";
          System.out.println("All orders from most recent to least recent");
          try{
-         esql.executeQueryAndPrintResult(orderQuery);
+         if(orderIndex.isReady()) printIndexedOrders(orderIndex.all(-1));
+         else if(esql == null) printOrders(repo(esql).recentOrders(null, -1));
+         else if(shards != null) printMergedOrders("", -1);
+         else esql.executeQueryAndPrintResult(orderQuery);   // streamed, every order would not fit
          }catch(Exception e){System.out.println(e.getMessage());}
       }
       else {
-         orderQuery += "WHERE R.login = \'" + _login + "\' ORDER BY R.orderTimestamp DESC";
+         // IDs only: streamed, without loading the orders or their items
+         orderQuery += "WHERE R.login = ? ORDER BY R.orderTimestamp DESC";
          System.out.println("Your order history from most recent to least recent");
          try{
-         esql.executeQueryAndPrintResult(orderQuery);
+         if(orderIndex.isReady()) printIndexedOrders(orderIndex.byUser(_login, -1));
+         else if(esql == null) printOrders(repo(esql).recentOrders(_login, -1));
+         else if(shards != null) printMergedOrders("WHERE R.login = \'" + _login.replace("\'", "\'\'") + "\'", -1);
+         else esql.executePreparedQueryAndPrintResult(orderQuery, _login);
          }catch(Exception e){System.out.println(e.getMessage());}
       }
       System.out.println("-----------------------------------------");
    }
 
-   public static void viewRecentOrders(PizzaStore esql, String _login, String _role) {
-      String orderQuery = "SELECT R.orderID FROM FoodOrder R ";
-      
+   public static void viewRecentOrders(PizzaStore esql, String _login, UserRole _role) {
       System.out.println("-----------------------------------------");
-      if(_role.contains("manager") || _role.contains("driver")) {
-         orderQuery += " ORDER BY R.orderTimestamp DESC LIMIT 5";
+      if(_role.isStaff()) {
          System.out.println("Five most recent orders");
          try{
-         esql.executeQueryAndPrintResult(orderQuery);
+         if(orderIndex.isReady()) printIndexedOrders(orderIndex.all(5));
+         else if(esql == null) printOrders(repo(esql).recentOrders(null, 5));
+         else if(shards != null) printMergedOrders("", 5);
+         else esql.executeQueryAndPrintResult("SELECT R.orderID FROM FoodOrder R ORDER BY R.orderTimestamp DESC LIMIT 5");
          }catch(Exception e){System.out.println(e.getMessage());}
       }
       else {
-         orderQuery += "WHERE R.login = \'" + _login + "\' ORDER BY R.orderTimestamp DESC LIMIT 5";
          System.out.println("Your five most recent orders");
          try{
-         esql.executeQueryAndPrintResult(orderQuery);
+         printOrderIDs(recentOrderIDs(esql, _login, 5));
          }catch(Exception e){System.out.println(e.getMessage());}
       }
       System.out.println("-----------------------------------------");
    }
 
-   public static void viewOrderInfo(PizzaStore esql, String _login, String _role) {
+   public static void viewOrderInfo(PizzaStore esql, String _login, UserRole _role) {
       /* They should be able to see their orderTimestamp, totalPrice, orderStatus, and list of
       items in that order (along with the quantity). */
       String orderID = "";
-      int valid = 0;
-      String orderQuery = "SELECT R.orderTimestamp, R.totalPrice, R.orderstatus FROM FoodOrder R WHERE R.orderID = \'";
-      String orderItemsQuery = "SELECT N.itemName, N.quantity FROM ItemsInOrder N WHERE N.orderID = \'";
-      
+
       // get orderID
       System.out.println("-----------------------------------------");
       System.out.println("Enter orderID: ");
-      try{ orderID = in.readLine(); }
+      try{ orderID = in.readLine().trim(); }
       catch(Exception e){ System.out.println(e.getMessage()); }
-      orderQuery += orderID;
-      orderQuery += "\'";
-      
+      if(!isNumeric(orderID)) {
+         System.out.println("no orders with that ID available");
+         System.out.println("-----------------------------------------");
+         return;
+      }
+
       // customers can only see their own orders
-      if(!_role.contains("manager") && !_role.contains("driver")) {
-         orderQuery += " AND login = \'" + _login + "\'";
+      String owner = _role.isStaff() ? null : _login;
+
+      // the order index knows an order's owner without a query; orders it
+      // does not have (placed by another instance) are looked up below
+      if(orderIndex.isReady()) {
+         OrderHeaderIndex.Header header = orderIndex.get(Integer.parseInt(orderID));
+         if(header != null && owner != null && !header.login.equals(owner)) {
+            System.out.println("no orders with that ID available");
+            System.out.println("-----------------------------------------");
+            return;
+         }
       }
 
-      // print order
-      System.out.println("");
-      try{ valid = esql.executeQueryAndPrintResult(orderQuery); }
-      catch(Exception e){ System.out.println(e.getMessage()); }
-      if(valid <= 0) {
+      // the order lives on the shard its ID maps to; the in-memory store
+      // has no detail cache in front of it
+      String[] header = null;
+      List<String[]> lines = new ArrayList<String[]>();
+      try{
+         if(esql == null) {
+            OrderRecord order = repo(esql).order(Integer.parseInt(orderID));
+            if(order != null && (owner == null || order.login.equals(owner))) {
+               header = new String[] { new Timestamp(order.orderTimestamp).toString(), String.format("%.2f", order.totalPrice),
+                                       order.orderStatus.toString() };
+               for(int i = 0; i < order.itemNames.size(); i++) {
+                  lines.add(new String[] { order.itemNames.get(i), String.valueOf(order.quantities.get(i)) });
+               }
+            }
+         }else{
+            PizzaStore shard = orderShard(esql, Integer.parseInt(orderID));
+            try{
+               OrderDetailCache.Detail detail = orderDetails.get(shard, Integer.parseInt(orderID), owner);
+               if(detail != null) {
+                  header = new String[] { detail.orderTimestamp, detail.totalPrice, detail.orderStatus.toString() };
+                  lines = detail.lines;
+               }
+            }finally{ releaseShard(esql, shard); }
+         }
+      }catch(Exception e){ System.out.println(e.getMessage()); }
+      if(header == null) {
          System.out.println("no orders with that ID available");
          System.out.println("-----------------------------------------");
          return;
       }
+
+      // print order
+      System.out.println("");
+      TableRenderer table = TableRenderer.console();
+      table.begin(new String[] { "ordertimestamp", "totalprice", "orderstatus" });
+      table.row(header);
+      table.end();
       System.out.println("");
 
       // print the items in the order
-      orderItemsQuery += orderID;
-      orderItemsQuery += "\'";
-      try { esql.executeQueryAndPrintResult(orderItemsQuery); }
-      catch(Exception e){ System.out.println(e.getMessage()); }
+      if(!lines.isEmpty()) {
+         table = TableRenderer.console();
+         table.begin(new String[] { "itemname", "quantity" });
+         for(String[] line : lines) {
+            if(!table.row(line)) break;
+         }
+         table.end();
+      }
       System.out.println("-----------------------------------------");
    }
 
    public static void viewStores(PizzaStore esql) {
       BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in));
-      List<List<String>> results = new ArrayList<>();
       String input = "";
       boolean exit = false;
       while(!exit){
@@ -990,21 +1834,17 @@ public class PizzaStore {
          System.out.println("-----------------------------------------");
 
          try{
-            String query = "SELECT * FROM Store F";
-            results = esql.executeQueryAndReturnResult(query);
-
-            for(List<String> result : results){
-               System.out.print(result.get(0) + " ");
-               System.out.print(result.get(1) + ", ");
-               System.out.print(result.get(2) + ", ");
-               System.out.print(result.get(3) + " ");
-               System.out.print(result.get(4).equals("yes") ? "Open" : "Closed");
-               System.out.print("\n");
+            TableRenderer table = TableRenderer.console();
+            table.begin(new String[] { "storeid", "address", "city", "state", "status" });
+            for(PizzaRepository.Store s : repo(esql).stores()) {
+               if(!table.row(new String[] { String.valueOf(s.storeID), s.address, s.city, s.state, s.open ? "Open" : "Closed" })) break;
             }
+            table.end();
 
             System.out.println("-----------------------------------------");
-            System.out.println("Return to Main Menu? (y): ");
+            System.out.println("Return to Main Menu? (y), or best-rated open stores in a city (t): ");
             input = consoleInput.readLine();
+            if(input.equals("t")) topRatedStores(esql);
             exit = input.equals("y");
 
          }catch(Exception e){System.out.println(e.getMessage());}
@@ -1012,10 +1852,78 @@ public class PizzaStore {
       }
    }
 
+   /*
+    * Lists the best-rated open stores of a city from the in-memory ratings.
+    **/
+   public static void topRatedStores(PizzaStore esql) {
+      if(needsDatabase(esql)) return;
+      try{
+         ratings.ensureLoaded(esql);
+         System.out.print("City: ");
+         List<StoreRatings.Rating> top = ratings.topOpen(in.readLine(), 10);
+         if(top.isEmpty()) {
+            System.out.println("No open stores in that city.");
+            return;
+         }
+         DecimalFormat df = new DecimalFormat("0.0");
+         TableRenderer table = TableRenderer.console();
+         table.begin(new String[] { "storeid", "rating", "recent", "reviews" });
+         for(StoreRatings.Rating r : top) {
+            table.row(new String[] { String.valueOf(r.storeID), df.format(r.average()), df.format(r.recentAverage()),
+                                     String.valueOf(r.count()) });
+         }
+         table.end();
+      }catch(Exception e){ System.out.println(e.getMessage()); }
+   }
+
+   /*
+    * Lets a customer rate a store they ordered from. The review is written
+    * in the background by ReviewWriter.
+    **/
+   public static void reviewStore(PizzaStore esql, String _login) {
+      if(needsDatabase(esql)) return;
+      System.out.println("-----------------------------------------");
+      try{
+         ratings.ensureLoaded(esql);
+         System.out.print("StoreID to review: ");
+         String storeID = in.readLine().trim();
+         if(!isNumeric(storeID) || ratings.get(Integer.parseInt(storeID)) == null) {
+            System.out.println("That store does not exist.");
+            return;
+         }
+         int store = Integer.parseInt(storeID);
+
+         // only customers of the store may review it
+         PizzaStore shard = storeShard(esql, store);
+         try{
+            if(shard.executeQuery("SELECT R.orderID FROM FoodOrder R WHERE R.storeID = " + store
+                  + " AND R.login = \'" + _login + "\' LIMIT 1") == 0) {
+               System.out.println("You can only review stores you have ordered from.");
+               return;
+            }
+         }finally{ releaseShard(esql, shard); }
+
+         System.out.print("Score (1-5): ");
+         String score = in.readLine().trim();
+         if(!score.matches("[1-5]")) {
+            System.out.println("The score must be a whole number from 1 to 5.");
+            return;
+         }
+         System.out.print("Comment (optional, up to 500 characters): ");
+         String comment = in.readLine().trim();
+         if(comment.length() > 500) comment = comment.substring(0, 500);
+
+         if(reviews.submit(new ReviewWriter.Review(store, _login, Integer.parseInt(score), comment, System.currentTimeMillis())))
+            System.out.println("Thank you for your review!");
+         else
+            System.out.println("We are receiving a lot of reviews right now, please try again later.");
+      }catch(Exception e){ System.out.println(e.getMessage()); }
+      System.out.println("-----------------------------------------");
+   }
+
    public static void updateOrderStatus(PizzaStore esql) {
       BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in));
-      List<List<String>> order = new ArrayList<>();
-      String query = "SELECT * FROM FoodOrder F WHERE F.orderID = ";
+      OrderRecord order = null;
       String orderID = "";
 
 
@@ -1024,32 +1932,38 @@ public class PizzaStore {
       System.out.println("Please enter the order ID that you wish to change the status of.");
       System.out.print("Order ID: ");
       try{
-         orderID = consoleInput.readLine();
-         query += orderID;
-         order = esql.executeQueryAndReturnResult(query);
+         orderID = consoleInput.readLine().trim();
+         if(isNumeric(orderID)) order = repo(esql).order(Integer.parseInt(orderID));
+         if(order == null) {
+            System.out.println("No order " + orderID + ".");
+            return;
+         }
          System.out.println("-----------------------------------------");
          System.out.println("Current order status");
          System.out.println("");
-         for(String item : order.get(0)){
-            System.out.print(item + " ");
-         }
+         System.out.print(order.orderID + " " + order.login + " " + order.storeID + " " + String.format("%.2f", order.totalPrice)
+            + " " + new Timestamp(order.orderTimestamp) + " " + order.orderStatus + " ");
 
          System.out.println("");
          boolean valid = false;
-         String newStatus = "";
+         OrderStatus newStatus = null;
 
          while(!valid){
             System.out.println("-----------------------------------------");
-            System.out.print("Enter new status, incomplete (i) or complete (c): ");
+            System.out.print("Enter new status, incomplete (i), delivering (d) or complete (c): ");
 
             String choice = consoleInput.readLine();
             switch(choice){
                case "i":
-                  newStatus = "incomplete";
+                  newStatus = OrderStatus.INCOMPLETE;
+                  valid = true;
+                  break;
+               case "d":
+                  newStatus = DispatchQueue.CLAIMED_STATUS;
                   valid = true;
                   break;
                case "c":
-                  newStatus = "complete";
+                  newStatus = OrderStatus.COMPLETE;
                   valid = true;
                   break;
                default:
@@ -1060,7 +1974,7 @@ public class PizzaStore {
          }
 
          //Update
-         esql.executeUpdate("UPDATE FoodOrder SET orderStatus = \'" + newStatus + "\' WHERE orderID = " + order.get(0).get(0));
+         setOrderStatus(esql, order, newStatus);
          System.out.println("-----------------------------------------");
          System.out.println("Order status updated. Returning to main menu...");
          
@@ -1068,6 +1982,149 @@ public class PizzaStore {
       }catch(Exception e){System.out.println(e.getMessage());}
    }
 
+   /*
+    * Writes an order's new status and brings the caches, the dispatch queue
+    * and the delivery runs up to date. Shared with LoadTest.
+    **/
+   static void setOrderStatus(PizzaStore esql, OrderRecord order, OrderStatus newStatus) throws SQLException {
+      repo(esql).setStatus(order.orderID, null, newStatus);
+      orderDetails.invalidate(order.orderID);
+      orderIndex.setStatus(order.orderID, newStatus);
+      recentOrders.setStatus(order.orderID, newStatus);
+
+      // a re-opened order goes back in its store's dispatch queue and
+      // delivery runs, any other status takes it out of its run
+      if(newStatus == OrderStatus.INCOMPLETE){
+         dispatch.offer(order.storeID, order.orderID, order.orderTimestamp, order.totalPrice);
+         batcher.offer(order.storeID, order.orderID, order.orderTimestamp);
+      }else{
+         batcher.remove(order.storeID, order.orderID);
+      }
+   }
+
+   /*
+    * Claims the next open order of a store for a driver and takes it out
+    * of the caches' open orders. Returns -1 when the store has none.
+    * Shared with LoadTest.
+    **/
+   static int claimNextOrder(PizzaStore esql, int storeID) throws SQLException, InterruptedException {
+      PizzaStore shard = storeShard(esql, storeID);
+      try{
+         int orderID = dispatch.claimNext(shard, storeID);
+         if(orderID >= 0){
+            orderDetails.invalidate(orderID);
+            orderIndex.setStatus(orderID, DispatchQueue.CLAIMED_STATUS);
+            recentOrders.setStatus(orderID, DispatchQueue.CLAIMED_STATUS);
+            batcher.remove(storeID, orderID);
+         }
+         return orderID;
+      }finally{ releaseShard(esql, shard); }
+   }
+
+   /*
+    * Lets a driver take the next open order of a store. The oldest order
+    * (after priority boosts) is claimed and moved to 'delivering'.
+    **/
+   public static void claimOrder(PizzaStore esql) {
+      if(needsDatabase(esql)) return;
+      System.out.println("-----------------------------------------");
+      System.out.print("StoreID you are picking up at: ");
+      try{
+         String storeID = in.readLine().trim();
+         if(!isNumeric(storeID)){
+            System.out.println("Please enter a valid storeID.");
+            return;
+         }
+
+         int orderID = claimNextOrder(esql, Integer.parseInt(storeID));
+         System.out.println("-----------------------------------------");
+         if(orderID < 0){
+            System.out.println("No open orders at store " + storeID + ".");
+         }else{
+            System.out.println("You are now delivering order " + orderID);
+            System.out.println("");
+            PizzaStore shard = orderShard(esql, orderID);
+            try{
+               shard.executeQueryAndPrintResult("SELECT N.itemName, N.quantity FROM ItemsInOrder N WHERE N.orderID = " + orderID);
+            }finally{ releaseShard(esql, shard); }
+         }
+         System.out.println("-----------------------------------------");
+      }catch(Exception e){System.out.println(e.getMessage());}
+   }
+
+   /*
+    * Lets a driver take a whole delivery run of a store: up to
+    * pizza.batch.maxOrders orders claimed together.
+    **/
+   public static void claimBatch(PizzaStore esql) {
+      if(needsDatabase(esql)) return;
+      System.out.println("-----------------------------------------");
+      System.out.print("StoreID you are picking up at: ");
+      try{
+         String storeID = in.readLine().trim();
+         if(!isNumeric(storeID)){
+            System.out.println("Please enter a valid storeID.");
+            return;
+         }
+
+         PizzaStore shard = storeShard(esql, Integer.parseInt(storeID));
+         try{
+            DeliveryBatcher.Batch batch = batcher.claimNext(shard, Integer.parseInt(storeID));
+            System.out.println("-----------------------------------------");
+            if(batch == null){
+               System.out.println("No open orders at store " + storeID + ".");
+            }else{
+               StringBuilder ids = new StringBuilder();
+               for(int orderID : batch.orderIDs){
+                  orderDetails.invalidate(orderID);
+                  orderIndex.setStatus(orderID, DispatchQueue.CLAIMED_STATUS);
+                  recentOrders.setStatus(orderID, DispatchQueue.CLAIMED_STATUS);
+                  ids.append(ids.length() == 0 ? "" : ",").append(orderID);
+               }
+               System.out.println("You are now delivering batch " + batch.batchID + " (" + batch.orderIDs.size() + " orders)");
+               System.out.println("");
+               shard.executeQueryAndPrintResult("SELECT N.orderID, N.itemName, N.quantity FROM ItemsInOrder N WHERE N.orderID IN ("
+                  + ids + ") ORDER BY N.orderID");
+            }
+         }finally{ releaseShard(esql, shard); }
+         System.out.println("-----------------------------------------");
+      }catch(Exception e){System.out.println(e.getMessage());}
+   }
+
+   /*
+    * Marks every order of a claimed delivery run complete at once.
+    **/
+   public static void completeBatch(PizzaStore esql) {
+      if(needsDatabase(esql)) return;
+      System.out.println("-----------------------------------------");
+      System.out.print("Batch ID: ");
+      try{
+         String batchID = in.readLine().trim();
+         if(!isNumeric(batchID)){
+            System.out.println("Please enter a valid batch ID.");
+            return;
+         }
+
+         // a run is kept on the shard of its lowest orderID, its batch ID
+         PizzaStore shard = orderShard(esql, Integer.parseInt(batchID));
+         try{
+            DeliveryBatcher.Batch batch = batcher.claimedBatch(shard, Integer.parseInt(batchID));
+            if(batch == null){
+               System.out.println("No claimed batch " + batchID + ".");
+               return;
+            }
+            List<Integer> done = batcher.setStatus(shard, batch.batchID, OrderStatus.COMPLETE);
+            for(int orderID : done){
+               orderDetails.invalidate(orderID);
+               orderIndex.setStatus(orderID, OrderStatus.COMPLETE);
+               recentOrders.setStatus(orderID, OrderStatus.COMPLETE);
+            }
+            System.out.println(done.size() + " of " + batch.orderIDs.size() + " orders marked complete.");
+         }finally{ releaseShard(esql, shard); }
+         System.out.println("-----------------------------------------");
+      }catch(Exception e){System.out.println(e.getMessage());}
+   }
+
    public static void updateMenu(PizzaStore esql) {
       System.out.println("\n-----------------------------------------");
       System.out.println("What would you like to do?");
@@ -1096,19 +2153,15 @@ public class PizzaStore {
       String itemName = "";
       String fieldName = "";
       String fieldContent = "";
-      List<List<String>> queryResults = new ArrayList<>();
-      String matchNameQuery = "SELECT T.itemName FROM Items T WHERE T.itemName = \'";
-      String updateStatement = "UPDATE Items SET ";
+      PizzaRepository.Item item = null;
 
       // find the item
       System.out.print("Name of item to update: ");
       try { 
          itemName = in.readLine();
-         matchNameQuery += itemName;
-         matchNameQuery += "\'";
-         queryResults = esql.executeQueryAndReturnResult(matchNameQuery);
+         item = repo(esql).item(itemName);
       }catch(Exception e){System.out.println(e.getMessage());}
-      if (queryResults.size() == 0) { System.out.println("Sorry, that item does not exist."); return; }
+      if (item == null) { System.out.println("Sorry, that item does not exist."); return; }
 
       // pick the field
       System.out.println("Pick a field to edit:");
@@ -1121,19 +2174,15 @@ public class PizzaStore {
 
       switch(readChoice()) {
          case 1:
-            updateStatement += "ingredients ";
             fieldName = "ingredients";
             break;
          case 2:
-            updateStatement += "typeOfItem ";
             fieldName ="typeOfItem";
             break;
          case 3:
-            updateStatement += "price ";
             fieldName = "price";
             break;
          case 4:
-            updateStatement += "description ";
             fieldName = "description";
             break;
          case 5: return;
@@ -1143,54 +2192,166 @@ public class PizzaStore {
       }
 
       // enter the updated information
-      updateStatement += " = \'";
       System.out.print("New value for " + fieldName + ": ");
       try { fieldContent = in.readLine(); }
       catch(Exception e){System.out.println(e.getMessage());}
-      updateStatement += (fieldContent + "\' WHERE itemName = \'" + itemName + "\'");
 
-      // update database
-      try { esql.executeUpdate(updateStatement); }
+      // update the store
+      try {
+         repo(esql).putItem(new PizzaRepository.Item(item.itemName,
+            fieldName.equals("ingredients") ? fieldContent : item.ingredients,
+            fieldName.equals("typeOfItem") ? fieldContent : item.typeOfItem,
+            fieldName.equals("price") ? Double.parseDouble(fieldContent.trim()) : item.price,
+            fieldName.equals("description") ? fieldContent : item.description));
+         menuChanged(esql, itemName);
+      }
       catch(Exception e){System.out.println(e.getMessage());}
    }
 
    public static void addItem(PizzaStore esql) {
       String itemName = "";
-      String fieldContent = "";
-      List<List<String>> queryResults = new ArrayList<>();
-      String matchNameQuery = "SELECT T.itemName FROM Items T WHERE T.itemName = \'";
-      String insertStatement = "INSERT Into Items VALUES (\'";
+      String ingredients = "";
+      String typeOfItem = "";
+      String price = "";
+      String description = "";
+      PizzaRepository.Item existing = null;
 
       // find the item
       System.out.print("What is the name of the new item?: ");
       try { 
          itemName = in.readLine();
-         matchNameQuery += itemName;
-         matchNameQuery += "\'";
-         queryResults = esql.executeQueryAndReturnResult(matchNameQuery);
+         existing = repo(esql).item(itemName);
       }catch(Exception e){System.out.println(e.getMessage());}
-      if (queryResults.size() > 0) { System.out.println("An item with that name already exists."); return; }
+      if (existing != null) { System.out.println("An item with that name already exists."); return; }
 
       // get attributes of item
-      insertStatement += (itemName + "\', \'");
       System.out.println("Enter the attributes of " + itemName);
       try{
       System.out.print("Ingredients: ");
-      insertStatement += (in.readLine() + "\', \'");
+      ingredients = in.readLine();
       System.out.print("Type: ");
-      insertStatement += (in.readLine() + "\', \'");
+      typeOfItem = in.readLine();
       System.out.print("Price in dollars: $");
-      insertStatement += (in.readLine() + "\', \'");
+      price = in.readLine();
       System.out.print("Description: ");
-      insertStatement += (in.readLine() + "\')");
+      description = in.readLine();
       System.out.println("");
       }catch(Exception e){System.out.println(e.getMessage());}
 
-      // insert item into database
-      try { esql.executeUpdate(insertStatement); }
+      // add the item to the store
+      try {
+         repo(esql).putItem(new PizzaRepository.Item(itemName, ingredients, typeOfItem, Double.parseDouble(price.trim()), description));
+         menuChanged(esql, itemName);
+      }
       catch(Exception e){System.out.println(e.getMessage());}
    }
 
+   /*
+    * Brings the search index and the menu snapshot up to date after an
+    * item was written.
+    **/
+   static void menuChanged(PizzaStore esql, String itemName) throws SQLException {
+      menuIndex.refresh(esql, itemName);
+      if (esql == null) MenuSnapshot.reload(memoryStore);
+      else MenuSnapshot.refresh(esql);
+   }
+
+   /*
+    * Creates or updates many users at once from a CSV file in the
+    * users.csv format. Users is replicated, so with sharding every shard
+    * gets the same import.
+    **/
+   public static void importUsers(PizzaStore esql) {
+      if(needsDatabase(esql)) return;
+      System.out.println("-----------------------------------------");
+      System.out.print("CSV file to import: ");
+      try{
+         String path = in.readLine().trim();
+         int n = (shards == null) ? 1 : shards.size();
+         for (int i = 0; i < n; i++) {
+            PizzaStore shard = (shards == null) ? esql : shards.borrow(i);
+            try{
+               UserImport importer = new UserImport(shard, UserImport.DEFAULT_ROWS_PER_TRANSACTION, false);
+               BufferedReader input = new BufferedReader(new FileReader(path), 1 << 16);
+               try{ importer.run(input); }
+               finally{ input.close(); }
+               if (n > 1) System.out.println("Shard " + i + ":");
+               System.out.println(importer.summary());
+            }finally{ releaseShard(esql, shard); }
+         }
+      }catch(Exception e){System.out.println(e.getMessage());}
+      System.out.println("-----------------------------------------");
+   }
+
+   /*
+    * Writes the orders of a date range to CSV or JSON Lines files, from
+    * every shard in turn.
+    **/
+   public static void exportOrders(PizzaStore esql) {
+      if(needsDatabase(esql)) return;
+      System.out.println("-----------------------------------------");
+      try{
+         System.out.print("From date (yyyy-mm-dd): ");
+         String from = in.readLine().trim();
+         System.out.print("To date (yyyy-mm-dd): ");
+         String to = in.readLine().trim();
+         System.out.print("StoreID (blank for all stores): ");
+         String store = in.readLine().trim();
+         System.out.print("Format, csv or jsonl: ");
+         OrderExport.Format format = OrderExport.Format.parse(in.readLine());
+         System.out.print("Compress with gzip? (y/n): ");
+         boolean gzip = in.readLine().trim().equalsIgnoreCase("y");
+         System.out.print("Split into files of how many MB (0 for one file): ");
+         String split = in.readLine().trim();
+         System.out.print("Output path without extension: ");
+         String prefix = in.readLine().trim();
+         if(!store.isEmpty() && !isNumeric(store)) {
+            System.out.println("Please enter a valid storeID.");
+            return;
+         }
+
+         OrderExport export = new OrderExport(prefix, format, gzip, isNumeric(split) ? Integer.parseInt(split) : 0);
+         try{
+            int n = (shards == null) ? 1 : shards.size();
+            for (int i = 0; i < n; i++) {
+               PizzaStore shard = (shards == null) ? esql : shards.borrow(i);
+               try{ export.run(shard, from, to, store.isEmpty() ? -1 : Integer.parseInt(store)); }
+               finally{ releaseShard(esql, shard); }
+            }
+         }finally{ export.close(); }
+         System.out.println(export.summary());
+      }catch(Exception e){System.out.println(e.getMessage());}
+      System.out.println("-----------------------------------------");
+   }
+
+   /*
+    * Shows how full the order caches are and how often they answered.
+    **/
+   public static void cacheStats() {
+      System.out.println("-----------------------------------------");
+      System.out.println("Order details: " + orderDetails.stats());
+      System.out.println("Recent orders: " + recentOrders.stats());
+      System.out.println("Order index: " + (orderIndex.isReady() ? orderIndex.stats() : "not loaded"));
+      System.out.println("-----------------------------------------");
+   }
+
+   public static void storeReport(PizzaStore esql) {
+      if(needsDatabase(esql)) return;
+      System.out.println("-----------------------------------------");
+      try{
+         System.out.print("From date (yyyy-mm-dd): ");
+         String from = in.readLine().trim();
+         System.out.print("To date (blank for the same day): ");
+         String to = in.readLine().trim();
+
+         // the report borrows its own sessions; this one stays with the menu
+         StoreReportEngine engine = new StoreReportEngine(pool, shards, StoreReportEngine.defaultParallelism(pool));
+         StoreReportEngine.Report report = engine.run(StoreReportEngine.storeIDs(esql), from, to.isEmpty() ? from : to);
+         StoreReportEngine.print(report);
+      }catch(Exception e){System.out.println(e.getMessage());}
+      System.out.println("-----------------------------------------");
+   }
+
    public static void updateUser(PizzaStore esql) {
       
       String login = "";
@@ -1200,7 +2361,7 @@ public class PizzaStore {
       String newValue = "";
 
       boolean valid = false;
-      List<List<String>> result = new ArrayList<>();
+      PizzaRepository.User result = null;
 
       try{
       //enter login for a user
@@ -1208,19 +2369,23 @@ public class PizzaStore {
       System.out.print("Please enter the user's login: ");
       login = in.readLine();
 
-      result = esql.executeQueryAndReturnResult("SELECT * FROM Users F WHERE F.login = \'" + login + "\'");
+      result = repo(esql).user(login);
+      if(result == null) {
+         System.out.println("No user " + login + ".");
+         return;
+      }
       //display user information
       while(!valid){
          System.out.println("-----------------------------------------");
          System.out.println("Current user fields");
          System.out.println("");
 
-         System.out.println("Login: "+ result.get(0).get(0));
-         System.out.println("Password: "+ result.get(0).get(1));
-         System.out.println("Role: "+ result.get(0).get(2));
+         System.out.println("Login: "+ result.login);
+         System.out.println("Password: "+ result.password);
+         System.out.println("Role: "+ result.role);
 
-         System.out.println("Favorite Item: "+ result.get(0).get(3));
-         System.out.println("Phone Number: "+ result.get(0).get(4));
+         System.out.println("Favorite Item: "+ result.favoriteItems);
+         System.out.println("Phone Number: "+ result.phoneNum);
 
          System.out.println("-----------------------------------------");
          System.out.println("Which field would you like to change?");
@@ -1266,14 +2431,27 @@ public class PizzaStore {
       System.out.println("");
       System.out.print("Desired value: ");
       newValue = in.readLine();
+      if(desiredField.equals("role")) newValue = UserRole.parse(newValue).toString();
 
-      esql.executeUpdate("UPDATE Users SET " + desiredField + " = \'" + newValue + "\' WHERE login = " + "\'" + login + "\'");
+      if(desiredField.equals("login")) repo(esql).renameUser(login, newValue);
+      else repo(esql).updateUser(withField(result, desiredField, newValue));
       System.out.println("-----------------------------------------");
       System.out.println("Order status updated. Returning to main menu...");
       //update accordingly
       }catch(Exception e){System.out.println(e.getMessage());}
    }
 
+   /*
+    * Returns a copy of a user with one field (as named in Users) changed.
+    **/
+   static PizzaRepository.User withField(PizzaRepository.User u, String field, String value) {
+      return new PizzaRepository.User(u.login,
+         field.equals("password") ? value : u.password,
+         field.equals("role") ? UserRole.parse(value) : u.role,
+         field.equals("favoriteItems") ? value : u.favoriteItems,
+         field.equals("phoneNum") ? value : u.phoneNum);
+   }//end withField
+
    public static boolean isNumeric(String str) { //Helper function. Matches regex
       return str.matches("-?\\d+(\\.\\d+)?");
    }
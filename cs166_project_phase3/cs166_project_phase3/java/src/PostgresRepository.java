@@ -0,0 +1,289 @@
+/*
+ * Postgres Repository
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * This class is the PizzaRepository of one Postgres session, with the SQL
+ * the interactive menu uses.  Like the session it wraps it is used by one
+ * thread at a time; every thread (or virtual user) gets its own.
+ *
+ * With sharding (PizzaStore.shards) it routes like the menu does: Users,
+ * Items and Store are replicated, so they are read from this session and
+ * written to every shard at once; orders are read and written on the shard
+ * of their store or orderID, and a user's orders are merged from all
+ * shards.  transaction() covers this session's database; an order written
+ * to another shard commits in a transaction of its own there.
+ *
+ */
+public class PostgresRepository implements PizzaRepository {
+
+   static final String ITEM_QUERY = "SELECT T.itemName, T.ingredients, T.typeOfItem, T.price, T.description FROM Items T";
+   static final String STORE_QUERY = "SELECT S.storeID, S.address, S.city, S.state, S.isOpen, S.reviewScore FROM Store S";
+   static final String ORDER_QUERY = "SELECT R.orderID, R.login, R.storeID, R.totalPrice, R.orderTimestamp, R.orderStatus FROM FoodOrder R";
+
+   // prepared on every pooled connection, see PizzaStore.HOT_STATEMENTS
+   static final String STORE_BY_ID_QUERY = STORE_QUERY + " WHERE S.storeID = CAST(? AS integer)";
+   static final String ALL_STORES_QUERY = STORE_QUERY + " ORDER BY S.storeID";
+
+   private final PizzaStore esql;
+   private boolean inTransaction = false;
+
+   /**
+    * @param esql the session every call runs on
+    */
+   public PostgresRepository(PizzaStore esql) {
+      this.esql = esql;
+   }
+
+   public User user(String login) throws SQLException {
+      List<List<String>> rows = esql.executePreparedQuery(PizzaStore.USER_QUERY, login);
+      if (rows.isEmpty()) return null;
+      List<String> r = rows.get(0);
+      return new User(r.get(0).trim(), r.get(1).trim(), UserRole.parse(r.get(2)), r.get(3), r.get(4).trim());
+   }//end user
+
+   public List<String> logins(UserRole role) throws SQLException {
+      List<String> logins = new ArrayList<String>();
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT U.login FROM Users U WHERE U.role = \'" + role + "\'")) {
+         logins.add(row.get(0).trim());
+      }
+      return logins;
+   }//end logins
+
+   public boolean addUser(User u) throws SQLException {
+      String insert = "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ("
+         + quote(u.login) + ", " + quote(u.password) + ", \'" + u.role + "\', " + quote(u.favoriteItems) + ", " + quote(u.phoneNum) + ")";
+      if (PizzaStore.shards == null) {
+         return esql.executeQueryAndReturnResult(insert + " ON CONFLICT (login) DO NOTHING RETURNING login").size() == 1;
+      }
+      // a login taken meanwhile fails the insert on every shard
+      if (user(u.login) != null) return false;
+      PizzaStore.replicatedUpdate(esql, insert);
+      return true;
+   }//end addUser
+
+   public void updateUser(User u) throws SQLException {
+      PizzaStore.replicatedUpdate(esql, "UPDATE Users SET password = " + quote(u.password) + ", role = \'" + u.role
+         + "\', favoriteItems = " + quote(u.favoriteItems) + ", phoneNum = " + quote(u.phoneNum) + " WHERE login = " + quote(u.login));
+   }//end updateUser
+
+   public boolean renameUser(String login, String newLogin) throws SQLException {
+      if (user(login) == null) return false;
+      PizzaStore.replicatedUpdate(esql, "UPDATE Users SET login = " + quote(newLogin) + " WHERE login = " + quote(login));
+      return true;
+   }//end renameUser
+
+   public List<Item> items() throws SQLException {
+      return toItems(esql.executeQueryAndReturnResult(ITEM_QUERY));
+   }
+
+   public Item item(String itemName) throws SQLException {
+      List<Item> items = toItems(esql.executeQueryAndReturnResult(ITEM_QUERY + " WHERE T.itemName = " + quote(itemName)));
+      return items.isEmpty() ? null : items.get(0);
+   }
+
+   public List<Item> itemsUpTo(double maxPrice) throws SQLException {
+      return toItems(esql.executeQueryAndReturnResult(ITEM_QUERY + " WHERE T.price <= " + maxPrice + " ORDER BY T.price, T.itemName"));
+   }
+
+   public void putItem(Item i) throws SQLException {
+      PizzaStore.replicatedUpdate(esql, "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES ("
+         + quote(i.itemName) + ", " + quote(i.ingredients) + ", " + quote(i.typeOfItem) + ", " + i.price + ", " + quote(i.description)
+         + ") ON CONFLICT (itemName) DO UPDATE SET ingredients = EXCLUDED.ingredients, typeOfItem = EXCLUDED.typeOfItem, "
+         + "price = EXCLUDED.price, description = EXCLUDED.description");
+   }//end putItem
+
+   public List<Store> stores() throws SQLException {
+      return toStores(esql.executePreparedQuery(ALL_STORES_QUERY));
+   }
+
+   public Store store(int storeID) throws SQLException {
+      List<Store> stores = toStores(esql.executePreparedQuery(STORE_BY_ID_QUERY, String.valueOf(storeID)));
+      return stores.isEmpty() ? null : stores.get(0);
+   }
+
+   public void addOrder(final OrderRecord order) throws SQLException {
+      PizzaStore shard = shardOfStore(order.storeID);
+      try{
+         PostgresRepository target = (shard == esql) ? this : new PostgresRepository(shard);
+         target.transaction(new Work<Void>() {
+            public Void run(PizzaRepository repo) throws Exception {
+               shard.executeUpdate(order.headerInsert());
+               shard.executeBatch(order.lineInserts());
+               return null;
+            }
+         });
+      }catch(SQLException e){
+         throw e;
+      }catch(Exception e){
+         throw new SQLException(e.getMessage());
+      }finally{
+         PizzaStore.releaseShard(esql, shard);
+      }
+   }//end addOrder
+
+   public OrderRecord order(int orderID) throws SQLException {
+      PizzaStore shard = shardOfOrder(orderID);
+      try{
+         List<OrderRecord> orders = withLines(shard, shard.executeQueryAndReturnResult(ORDER_QUERY + " WHERE R.orderID = " + orderID));
+         return orders.isEmpty() ? null : orders.get(0);
+      }finally{
+         PizzaStore.releaseShard(esql, shard);
+      }
+   }//end order
+
+   public List<OrderRecord> recentOrders(String login, int limit) throws SQLException {
+      String query = ORDER_QUERY + (login == null ? "" : " WHERE R.login = " + quote(login))
+         + " ORDER BY R.orderTimestamp DESC" + (limit < 0 ? "" : " LIMIT " + limit);
+      if (PizzaStore.shards == null) return withLines(esql, esql.executeQueryAndReturnResult(query));
+
+      // newest first across the shards, then the lines from each order's shard
+      List<List<String>> headers = PizzaStore.shards.mergeNewestFirst(query, 4, limit);
+      Map<Integer, List<List<String>>> byShard = new HashMap<Integer, List<List<String>>>();
+      for (List<String> r : headers) {
+         int shard = PizzaStore.shards.shardOfOrder(Integer.parseInt(r.get(0).trim()));
+         if (!byShard.containsKey(shard)) byShard.put(shard, new ArrayList<List<String>>());
+         byShard.get(shard).add(r);
+      }
+      Map<Integer, OrderRecord> found = new HashMap<Integer, OrderRecord>();
+      for (Map.Entry<Integer, List<List<String>>> e : byShard.entrySet()) {
+         PizzaStore shard = shardOfOrder(Integer.parseInt(e.getValue().get(0).get(0).trim()));
+         try{
+            for (OrderRecord o : withLines(shard, e.getValue())) found.put(o.orderID, o);
+         }finally{
+            PizzaStore.releaseShard(esql, shard);
+         }
+      }
+      List<OrderRecord> orders = new ArrayList<OrderRecord>();
+      for (List<String> r : headers) orders.add(found.get(Integer.parseInt(r.get(0).trim())));
+      return orders;
+   }//end recentOrders
+
+   public List<OrderRecord> openOrders(int storeID, int limit) throws SQLException {
+      PizzaStore shard = shardOfStore(storeID);
+      try{
+         return withLines(shard, shard.executeQueryAndReturnResult(ORDER_QUERY + " WHERE R.storeID = " + storeID
+            + " AND R.orderStatus = \'" + OrderStatus.INCOMPLETE + "\' ORDER BY R.orderTimestamp LIMIT " + limit));
+      }finally{
+         PizzaStore.releaseShard(esql, shard);
+      }
+   }//end openOrders
+
+   public boolean setStatus(int orderID, OrderStatus from, OrderStatus to) throws SQLException {
+      PizzaStore shard = shardOfOrder(orderID);
+      try{
+         return shard.executeQueryAndReturnResult("UPDATE FoodOrder SET orderStatus = \'" + to + "\' WHERE orderID = " + orderID
+            + (from == null ? "" : " AND orderStatus = \'" + from + "\'") + " RETURNING orderID").size() == 1;
+      }finally{
+         PizzaStore.releaseShard(esql, shard);
+      }
+   }//end setStatus
+
+   public <T> T transaction(Work<T> work) throws Exception {
+      if (inTransaction) return work.run(this);   // joins the open one
+      esql.setAutoCommit(false);
+      inTransaction = true;
+      try{
+         T result = work.run(this);
+         esql.commit();
+         return result;
+      }catch(Exception e){
+         esql.rollback();
+         throw e;
+      }finally{
+         inTransaction = false;
+         esql.setAutoCommit(true);
+      }
+   }//end transaction
+
+   /*
+    * The session holding a store's or an order's rows: this one, or a
+    * borrowed shard session to hand back with PizzaStore.releaseShard.
+    **/
+   private PizzaStore shardOfStore(int storeID) throws SQLException {
+      try{
+         return PizzaStore.storeShard(esql, storeID);
+      }catch(InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted waiting for a shard session");
+      }
+   }//end shardOfStore
+
+   private PizzaStore shardOfOrder(int orderID) throws SQLException {
+      try{
+         return PizzaStore.orderShard(esql, orderID);
+      }catch(InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted waiting for a shard session");
+      }
+   }//end shardOfOrder
+
+   private static List<Item> toItems(List<List<String>> rows) {
+      List<Item> items = new ArrayList<Item>();
+      for (List<String> r : rows) {
+         items.add(new Item(r.get(0).trim(), r.get(1), r.get(2).trim(), Double.parseDouble(r.get(3).trim()), r.get(4)));
+      }
+      return items;
+   }//end toItems
+
+   private static List<Store> toStores(List<List<String>> rows) {
+      List<Store> stores = new ArrayList<Store>();
+      for (List<String> r : rows) {
+         stores.add(new Store(Integer.parseInt(r.get(0).trim()), r.get(1).trim(), r.get(2).trim(), r.get(3).trim(),
+            r.get(4).trim().equals("yes"), r.get(5) == null ? 0 : Double.parseDouble(r.get(5).trim())));
+      }
+      return stores;
+   }//end toStores
+
+   /*
+    * Turns order headers read on one session into OrderRecords with their
+    * line items, read with one more query on the same session.
+    **/
+   private static List<OrderRecord> withLines(PizzaStore session, List<List<String>> headers) throws SQLException {
+      List<OrderRecord> orders = new ArrayList<OrderRecord>();
+      if (headers.isEmpty()) return orders;
+      Map<Integer, List<List<String>>> lines = new LinkedHashMap<Integer, List<List<String>>>();
+      StringBuilder ids = new StringBuilder();
+      for (List<String> r : headers) {
+         ids.append(ids.length() == 0 ? "" : ",").append(r.get(0).trim());
+         lines.put(Integer.parseInt(r.get(0).trim()), new ArrayList<List<String>>());
+      }
+      for (List<String> row : session.executeQueryAndReturnResult(
+            "SELECT N.orderID, N.itemName, N.quantity FROM ItemsInOrder N WHERE N.orderID IN (" + ids + ") ORDER BY N.orderID")) {
+         lines.get(Integer.parseInt(row.get(0).trim())).add(row);
+      }
+      for (List<String> r : headers) {
+         List<String> names = new ArrayList<String>();
+         List<Integer> quantities = new ArrayList<Integer>();
+         for (List<String> line : lines.get(Integer.parseInt(r.get(0).trim()))) {
+            names.add(line.get(1).trim());
+            quantities.add(Integer.parseInt(line.get(2).trim()));
+         }
+         orders.add(new OrderRecord(Integer.parseInt(r.get(0).trim()), r.get(1).trim(), Integer.parseInt(r.get(2).trim()),
+            Float.parseFloat(r.get(3).trim()), Timestamp.valueOf(r.get(4).trim()).getTime(), OrderStatus.parse(r.get(5)),
+            names, quantities, -1));
+      }
+      return orders;
+   }//end withLines
+
+   private static String quote(String s) {
+      return s == null ? "null" : "\'" + s.replace("\'", "\'\'") + "\'";
+   }
+}//end PostgresRepository
@@ -0,0 +1,354 @@
+/*
+ * Recent Orders Cache
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class keeps the last DEPTH orders (id, time, status, total) of each
+ * active customer in a small ring buffer, so "my recent orders", checked
+ * over and over while waiting for a delivery, is answered without a query.
+ *
+ * A user's ring is read from FoodOrder on their first look, then moved
+ * forward as orders commit (orderCommitted) and patched as statuses change
+ * (updateOrderStatus, driver claims and batches).  Commits and status
+ * changes that arrive while a ring is being read are kept and merged in,
+ * so a ring is never older than the database it was read from.  Users are
+ * kept in LRU order and the least recently active are dropped once the
+ * rings take more than pizza.recentCache.maxMB.
+ *
+ * Status changes made by another application instance (a driver's, in
+ * the usual one user per process setup) arrive through CacheCoherence,
+ * which hands each changed order to refreshStatus.  Orders placed through
+ * another instance, and changes on order shards other than the first,
+ * are not seen that way, so a ring is also re-read once it is older than
+ * pizza.recentCache.ttlSeconds.
+ *
+ * Tunables (system properties): pizza.recentCache.depth (default 5),
+ * pizza.recentCache.maxMB (default 8), pizza.recentCache.ttlSeconds
+ * (default 30, 0 for never).
+ *
+ */
+public class RecentOrdersCache {
+
+   static final int DEPTH = Integer.getInteger("pizza.recentCache.depth", 5);
+   static final long MAX_BYTES = Long.getLong("pizza.recentCache.maxMB", 8L) << 20;
+   static final long TTL_MS = Long.getLong("pizza.recentCache.ttlSeconds", 30L) * 1000L;
+
+   static final String STATUS_QUERY = "SELECT R.orderStatus FROM FoodOrder R WHERE R.orderID = CAST(? AS integer)";
+
+   // rough heap cost of a ring besides its login: map entries, arrays, owner entries
+   static final int RING_BYTES = 160 + DEPTH * (4 + 8 + 4 + 4 + 48);
+
+   private static final OrderStatus[] STATUSES = OrderStatus.values();
+
+   /**
+    * One cached order.
+    */
+   public static class Recent {
+      public final int orderID;
+      public final long orderTimestamp;   // milliseconds since the epoch
+      public final OrderStatus orderStatus;
+      public final int totalCents;
+
+      Recent(int orderID, long orderTimestamp, OrderStatus orderStatus, int totalCents) {
+         this.orderID = orderID;
+         this.orderTimestamp = orderTimestamp;
+         this.orderStatus = orderStatus;
+         this.totalCents = totalCents;
+      }
+   }//end Recent
+
+   private static final Comparator<Recent> NEWEST_FIRST = new Comparator<Recent>() {
+      public int compare(Recent a, Recent b) {
+         if (a.orderTimestamp != b.orderTimestamp) return a.orderTimestamp > b.orderTimestamp ? -1 : 1;
+         return Integer.compare(b.orderID, a.orderID);
+      }
+   };
+
+   /*
+    * The orders of one user, newest at 'newest' going backwards.
+    **/
+   static class Ring {
+      final String login;
+      final int[] ids = new int[DEPTH];
+      final long[] times = new long[DEPTH];
+      final int[] cents = new int[DEPTH];
+      final byte[] statuses = new byte[DEPTH];
+      int newest = -1;
+      int count = 0;
+      boolean loaded = false;
+      long loadedAt = 0;
+
+      Ring(String login) {
+         this.login = login;
+      }
+
+      int slot(int i) {
+         return Math.floorMod(newest - i, DEPTH);
+      }
+
+      Recent get(int i) {
+         int s = slot(i);
+         return new Recent(ids[s], times[s], STATUSES[statuses[s]], cents[s]);
+      }
+
+      /*
+       * Adds an order, dropping the oldest when full. Orders come in time
+       * order; an older one (a late journal replay) takes the slow path.
+       **/
+      void add(Recent r, Map<Integer, Ring> owner) {
+         if (count > 0 && r.orderTimestamp < times[newest]) {
+            List<Recent> all = list();
+            all.add(r);
+            rebuild(all, owner);
+            return;
+         }
+         newest = (newest + 1) % DEPTH;
+         if (count == DEPTH) owner.remove(ids[newest]);
+         else count++;
+         put(newest, r);
+         owner.put(r.orderID, this);
+      }//end add
+
+      void put(int s, Recent r) {
+         ids[s] = r.orderID;
+         times[s] = r.orderTimestamp;
+         cents[s] = r.totalCents;
+         statuses[s] = (byte) r.orderStatus.ordinal();
+      }
+
+      List<Recent> list() {
+         List<Recent> all = new ArrayList<Recent>();
+         for (int i = 0; i < count; i++) all.add(get(i));
+         return all;
+      }
+
+      void rebuild(List<Recent> all, Map<Integer, Ring> owner) {
+         for (int i = 0; i < count; i++) owner.remove(ids[slot(i)]);
+         Collections.sort(all, NEWEST_FIRST);
+         count = Math.min(all.size(), DEPTH);
+         newest = count - 1;
+         for (int i = 0; i < count; i++) {
+            put(newest - i, all.get(i));
+            owner.put(all.get(i).orderID, this);
+         }
+      }//end rebuild
+   }//end Ring
+
+   private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<String, Ring>(1024, 0.75f, true);
+   private final Map<String, Ring> present = new HashMap<String, Ring>();   // the same rings, looked up without touching the LRU order
+   private final Map<Integer, Ring> owner = new HashMap<Integer, Ring>();
+   private final Map<Integer, OrderStatus> pendingStatus = new HashMap<Integer, OrderStatus>();
+   private int loading = 0;
+   private long bytes = 0;
+   private long hits = 0;
+   private long misses = 0;
+
+   /**
+    * Returns the newest orders of a user, reading them from the database
+    * when the user has no ring yet.
+    *
+    * @param esql the session to read with (may be null when sharded)
+    * @param login the user
+    * @param limit how many orders, at most DEPTH
+    * @return the orders, newest first
+    * @throws java.sql.SQLException when the query fails
+    */
+   public List<Recent> get(PizzaStore esql, String login, int limit) throws SQLException {
+      synchronized (this) {
+         Ring ring = rings.get(login);
+         if (ring != null && isFresh(ring, System.currentTimeMillis())) {
+            hits++;
+            List<Recent> all = ring.list();
+            return all.size() > limit ? all.subList(0, limit) : all;
+         }
+         misses++;
+         if (ring != null && ring.loaded) drop(ring);   // expired
+         if (!rings.containsKey(login)) {
+            ring = new Ring(login);
+            rings.put(login, ring);
+            present.put(login, ring);
+            bytes += RING_BYTES + 2L * login.length();
+            evict();
+         }
+         loading++;
+      }
+
+      List<Recent> loaded = new ArrayList<Recent>();
+      boolean ok = false;
+      try{
+         if (esql == null && PizzaStore.shards == null) throw new IllegalArgumentException("no session to read recent orders with");
+         String query = "SELECT R.orderID, R.orderTimestamp, R.orderStatus, R.totalPrice FROM FoodOrder R WHERE R.login = \'"
+            + login.replace("\'", "\'\'") + "\' ORDER BY R.orderTimestamp DESC LIMIT " + DEPTH;
+         List<List<String>> rows = (PizzaStore.shards != null)
+            ? PizzaStore.shards.mergeNewestFirst(query, 1, DEPTH) : esql.executeQueryAndReturnResult(query);
+         for (List<String> r : rows) {
+            loaded.add(new Recent(Integer.parseInt(r.get(0).trim()), Timestamp.valueOf(r.get(1).trim()).getTime(),
+               OrderStatus.parse(r.get(2)), (int) Math.round(Double.parseDouble(r.get(3).trim()) * 100)));
+         }
+         ok = true;
+      }finally{
+         synchronized (this) {
+            Ring ring = rings.get(login);
+            if (ring != null && !ring.loaded) {
+               if (ok) fill(ring, loaded);
+               else drop(ring);   // the next look reads again
+            }
+            if (--loading == 0) pendingStatus.clear();
+         }
+      }
+      return loaded.size() > limit ? loaded.subList(0, limit) : loaded;
+   }//end get
+
+   /*
+    * Merges what was read with what committed while reading. Orders added
+    * meanwhile are newer than the read rows, so they win.
+    **/
+   private void fill(Ring ring, List<Recent> read) {
+      List<Recent> all = ring.list();
+      Set<Integer> seen = new HashSet<Integer>();
+      for (Recent r : all) seen.add(r.orderID);
+      for (Recent r : read) {
+         if (!seen.add(r.orderID)) continue;
+         OrderStatus patched = pendingStatus.get(r.orderID);
+         all.add(patched == null ? r : new Recent(r.orderID, r.orderTimestamp, patched, r.totalCents));
+      }
+      ring.rebuild(all, owner);
+      ring.loaded = true;
+      ring.loadedAt = System.currentTimeMillis();
+
+      // hand the caller the merged view
+      read.clear();
+      read.addAll(ring.list());
+   }//end fill
+
+   /**
+    * @return true when the user's orders would be answered from memory
+    */
+   public synchronized boolean isCached(String login) {
+      Ring ring = present.get(login);
+      return ring != null && isFresh(ring, System.currentTimeMillis());
+   }//end isCached
+
+   /**
+    * Returns the newest orders of a user when they are in memory, without
+    * reading the database.
+    *
+    * @return the orders, newest first, or null when get would read them
+    */
+   public synchronized List<Recent> cached(String login, int limit) {
+      Ring ring = rings.get(login);
+      if (ring == null || !isFresh(ring, System.currentTimeMillis())) return null;
+      hits++;
+      List<Recent> all = ring.list();
+      return all.size() > limit ? all.subList(0, limit) : all;
+   }//end cached
+
+   private static boolean isFresh(Ring ring, long now) {
+      return ring.loaded && (TTL_MS == 0 || now - ring.loadedAt < TTL_MS);
+   }
+
+   /**
+    * Puts a committed order at the front of its user's ring, when the user
+    * has one.
+    */
+   public synchronized void add(OrderRecord order) {
+      Ring ring = rings.get(order.login);
+      if (ring == null) return;
+      ring.add(new Recent(order.orderID, order.orderTimestamp, order.orderStatus, Math.round(order.totalPrice * 100)), owner);
+   }//end add
+
+   /**
+    * Patches the status of a cached order.
+    */
+   public synchronized void setStatus(int orderID, OrderStatus status) {
+      if (loading > 0) pendingStatus.put(orderID, status);
+      Ring ring = owner.get(orderID);
+      if (ring == null) return;
+      for (int i = 0; i < ring.count; i++) {
+         int s = ring.slot(i);
+         if (ring.ids[s] == orderID) ring.statuses[s] = (byte) status.ordinal();
+      }
+   }//end setStatus
+
+   /**
+    * Re-reads the status of an order another instance changed (see
+    * CacheCoherence), when a ring holds it or one is being read.  An order
+    * that is gone takes its ring with it.
+    *
+    * @param esql the session to read with
+    * @param orderID the changed order
+    * @throws java.sql.SQLException when the query fails
+    */
+   public void refreshStatus(PizzaStore esql, int orderID) throws SQLException {
+      synchronized (this) {
+         if (!owner.containsKey(orderID) && loading == 0) return;
+      }
+      List<List<String>> rows = esql.executePreparedQuery(STATUS_QUERY, String.valueOf(orderID));
+      synchronized (this) {
+         if (!rows.isEmpty()) {
+            setStatus(orderID, OrderStatus.parse(rows.get(0).get(0)));
+         }else if (owner.containsKey(orderID)) {
+            drop(owner.get(orderID));
+         }
+      }
+   }//end refreshStatus
+
+   /**
+    * Drops every ring, when changes may have been missed.
+    */
+   public synchronized void clear() {
+      for (Ring ring : new ArrayList<Ring>(rings.values())) drop(ring);
+   }
+
+   /**
+    * @return users cached, estimated size and hit rate
+    */
+   public synchronized String stats() {
+      long lookups = hits + misses;
+      return rings.size() + " users, " + (bytes >> 10) + " KB, "
+         + (lookups == 0 ? 0 : 100 * hits / lookups) + "% of " + lookups + " lookups from memory";
+   }
+
+   private void evict() {
+      Iterator<Ring> it = rings.values().iterator();
+      while (bytes > MAX_BYTES && it.hasNext()) {
+         Ring eldest = it.next();
+         it.remove();
+         present.remove(eldest.login);
+         forget(eldest);
+      }
+   }//end evict
+
+   private void drop(Ring ring) {
+      rings.remove(ring.login);
+      present.remove(ring.login);
+      forget(ring);
+   }
+
+   private void forget(Ring ring) {
+      for (int i = 0; i < ring.count; i++) owner.remove(ring.ids[ring.slot(i)]);
+      bytes -= RING_BYTES + 2L * ring.login.length();
+   }
+}//end RecentOrdersCache
@@ -0,0 +1,254 @@
+/*
+ * Review Writer
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class writes store reviews in the background.  Submitting a review
+ * only puts it on a bounded queue; a single writer thread takes up to
+ * BATCH_SIZE reviews at a time and, per shard, inserts them with one
+ * multi-row INSERT and moves StoreReviewStats forward in the same
+ * transaction.  A burst of reviews therefore costs a few short
+ * transactions instead of one per review and never competes with order
+ * writes for more than one connection.
+ *
+ * After a batch commits, Store.reviewScore is set to the new average of
+ * every reviewed store and StoreRatings is updated.  A batch that fails is
+ * retried one review at a time; reviews that still fail are reported and
+ * dropped, and if every one of them fails the database is assumed to be
+ * down and the whole batch is retried later.
+ *
+ */
+public class ReviewWriter {
+
+   static final int BATCH_SIZE = 500;
+   static final int QUEUE_CAPACITY = 100000;
+   static final long LINGER_MS = 200;
+
+   /**
+    * One submitted review.
+    */
+   public static class Review {
+      public final int storeID;
+      public final String login;
+      public final int score;
+      public final String comment;
+      public final long reviewTimestamp;
+
+      public Review(int storeID, String login, int score, String comment, long reviewTimestamp) {
+         this.storeID = storeID;
+         this.login = login;
+         this.score = score;
+         this.comment = comment;
+         this.reviewTimestamp = reviewTimestamp;
+      }
+
+      String values() {
+         return "(" + storeID + ", \'" + login.replace("\'", "\'\'") + "\', " + score + ", "
+            + (comment == null || comment.isEmpty() ? "null" : "\'" + comment.replace("\'", "\'\'") + "\'")
+            + ", \'" + new Timestamp(reviewTimestamp) + "\')";
+      }
+   }//end Review
+
+   private final LinkedBlockingQueue<Review> queue = new LinkedBlockingQueue<Review>(QUEUE_CAPACITY);
+   private final StoreRatings ratings;
+   private volatile boolean running = false;
+   private Thread writer;
+
+   public ReviewWriter(StoreRatings ratings) {
+      this.ratings = ratings;
+   }
+
+   /**
+    * Queues a review for writing.
+    *
+    * @return false when the queue is full
+    */
+   public boolean submit(Review review) {
+      return queue.offer(review);
+   }
+
+   /**
+    * Starts the writer thread.
+    */
+   public void start() {
+      running = true;
+      writer = new Thread(new Runnable() {
+         public void run() { writeLoop(); }
+      }, "review-writer");
+      writer.setDaemon(true);
+      writer.start();
+   }//end start
+
+   /**
+    * Stops the writer after it wrote what is queued, waiting at most waitMs.
+    */
+   public void close(long waitMs) {
+      long deadline = System.currentTimeMillis() + waitMs;
+      while (!queue.isEmpty() && writer != null && System.currentTimeMillis() < deadline) {
+         try { Thread.sleep(50); } catch (InterruptedException e) { break; }
+      }
+      running = false;
+      if (writer != null) writer.interrupt();
+      if (!queue.isEmpty()) System.err.println(queue.size() + " review(s) were not written");
+   }//end close
+
+   private void writeLoop() {
+      List<Review> batch = new ArrayList<Review>();
+      long backoff = 250;
+      while (running) {
+         try{
+            if (batch.isEmpty()) {
+               Review first = queue.poll(1, TimeUnit.SECONDS);
+               if (first == null) continue;
+               batch.add(first);
+               Thread.sleep(LINGER_MS);   // let a burst collect into one batch
+               queue.drainTo(batch, BATCH_SIZE - 1);
+            }
+            write(batch);
+            batch.clear();
+            backoff = 250;
+         }catch(InterruptedException e){
+            break;
+         }catch(Exception e){
+            System.err.println("Reviews: database unavailable, retrying (" + e.getMessage() + ")");
+            try { Thread.sleep(backoff); } catch (InterruptedException ie) { break; }
+            backoff = Math.min(backoff * 2, 10000);
+         }
+      }
+   }//end writeLoop
+
+   /*
+    * Writes one batch, split by shard.
+    **/
+   private void write(List<Review> batch) throws Exception {
+      Map<Integer, List<Review>> byShard = new TreeMap<Integer, List<Review>>();
+      for (Review r : batch) {
+         int shard = (PizzaStore.shards == null) ? 0 : PizzaStore.shards.shardOfStore(r.storeID);
+         if (!byShard.containsKey(shard)) byShard.put(shard, new ArrayList<Review>());
+         byShard.get(shard).add(r);
+      }
+
+      PizzaStore session = PizzaStore.pool.borrow();
+      try{
+         for (List<Review> part : byShard.values()) {
+            List<Review> taken = new ArrayList<Review>(part);
+            PizzaStore shard = PizzaStore.storeShard(session, part.get(0).storeID);
+            try{
+               Map<Integer, double[]> averages;
+               try{
+                  averages = insert(shard, part);
+               }catch(SQLException e){
+                  averages = insertOneByOne(shard, part);
+               }
+               publish(session, part, averages);
+            }finally{ PizzaStore.releaseShard(session, shard); }
+            // done with this shard: a retry after a later shard fails must not repeat it
+            batch.removeAll(taken);
+         }
+      }finally{
+         PizzaStore.pool.release(session);
+      }
+   }//end write
+
+   /*
+    * Inserts reviews and updates their stores' stats in one transaction.
+    * Returns storeID -> {count, sum} after the update.
+    **/
+   private Map<Integer, double[]> insert(PizzaStore shard, List<Review> reviews) throws SQLException {
+      StringBuilder sql = new StringBuilder("INSERT INTO StoreReview (storeID, login, score, comment, reviewTimestamp) VALUES ");
+      Map<Integer, long[]> stats = new TreeMap<Integer, long[]>();
+      for (int i = 0; i < reviews.size(); i++) {
+         Review r = reviews.get(i);
+         if (i > 0) sql.append(',');
+         sql.append(r.values());
+         long[] s = stats.get(r.storeID);
+         if (s == null) stats.put(r.storeID, s = new long[2]);
+         s[0]++;
+         s[1] += r.score;
+      }
+
+      Map<Integer, double[]> after = new TreeMap<Integer, double[]>();
+      shard.setAutoCommit(false);
+      try{
+         shard.executeUpdate(sql.toString());
+         for (Map.Entry<Integer, long[]> e : stats.entrySet()) {
+            List<List<String>> row = shard.executeQueryAndReturnResult("INSERT INTO StoreReviewStats VALUES ("
+               + e.getKey() + ", " + e.getValue()[0] + ", " + e.getValue()[1] + ") ON CONFLICT (storeID) DO UPDATE SET "
+               + "reviewCount = StoreReviewStats.reviewCount + EXCLUDED.reviewCount, "
+               + "scoreSum = StoreReviewStats.scoreSum + EXCLUDED.scoreSum RETURNING reviewCount, scoreSum");
+            after.put(e.getKey(), new double[] { Double.parseDouble(row.get(0).get(0).trim()),
+                                                 Double.parseDouble(row.get(0).get(1).trim()) });
+         }
+         shard.commit();
+         return after;
+      }catch(SQLException e){
+         try { shard.rollback(); } catch (SQLException ignored) {}
+         throw e;
+      }finally{
+         shard.setAutoCommit(true);
+      }
+   }//end insert
+
+   private Map<Integer, double[]> insertOneByOne(PizzaStore shard, List<Review> reviews) throws SQLException {
+      Map<Integer, double[]> after = new TreeMap<Integer, double[]>();
+      List<Review> written = new ArrayList<Review>();
+      SQLException last = null;
+      for (Review r : reviews) {
+         try{
+            after.putAll(insert(shard, java.util.Collections.singletonList(r)));
+            written.add(r);
+         }catch(SQLException e){
+            last = e;
+            System.err.println("Reviews: dropped review of store " + r.storeID + " by " + r.login + " (" + e.getMessage() + ")");
+         }
+      }
+      if (written.isEmpty()) throw last;   // nothing went through: treat as an outage
+      reviews.retainAll(written);
+      return after;
+   }//end insertOneByOne
+
+   /*
+    * Copies the new averages into Store.reviewScore and StoreRatings.
+    **/
+   private void publish(PizzaStore session, List<Review> reviews, Map<Integer, double[]> averages) {
+      if (averages.isEmpty()) return;
+      StringBuilder cases = new StringBuilder();
+      StringBuilder ids = new StringBuilder();
+      for (Map.Entry<Integer, double[]> e : averages.entrySet()) {
+         cases.append(" WHEN ").append(e.getKey()).append(" THEN ").append(e.getValue()[1] / e.getValue()[0]);
+         if (ids.length() > 0) ids.append(',');
+         ids.append(e.getKey());
+      }
+      try{
+         PizzaStore.replicatedUpdate(session, "UPDATE Store SET reviewScore = CASE storeID" + cases + " END WHERE storeID IN (" + ids + ")");
+      }catch(SQLException e){
+         // the stats table is the source of truth; the column catches up with the next review
+         System.err.println("Reviews: could not update Store.reviewScore (" + e.getMessage() + ")");
+      }
+
+      Map<Integer, List<Integer>> scores = new TreeMap<Integer, List<Integer>>();
+      for (Review r : reviews) {
+         if (!scores.containsKey(r.storeID)) scores.put(r.storeID, new ArrayList<Integer>());
+         scores.get(r.storeID).add(r.score);
+      }
+      for (Map.Entry<Integer, List<Integer>> e : scores.entrySet()) ratings.add(e.getKey(), e.getValue());
+   }//end publish
+}//end ReviewWriter
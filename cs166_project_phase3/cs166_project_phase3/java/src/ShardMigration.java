@@ -0,0 +1,201 @@
+/*
+ * Shard Migration
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class moves the orders of an existing database (or of a shard
+ * layout with a different number of shards) onto the shard ShardRouter
+ * expects them on: the shard of their store, storeID mod n.  Orders placed
+ * before sharding keep their orderID, so the ID of such an order no longer
+ * names its shard; ShardRouter looks those few up in a map it loads at
+ * startup.
+ *
+ * Orders move in chunks of CHUNK: the FoodOrder, ItemsInOrder,
+ * OrderMenuVersion and DeliveryBatch rows are inserted on the target shard (ON CONFLICT DO
+ * NOTHING) and committed, then deleted from the source shard.  A run that
+ * is interrupted between the two is finished by running the tool again.
+ * Stop the application instances before migrating and start them after,
+ * with the same pizza.shards list, so that they load the moved orders.
+ *
+ *    java -Dpizza.shards=db1:port1,... ShardMigration dbname port user (check|migrate)
+ *
+ * check prints, per shard, the orders on the wrong shard and the orders
+ * whose ID does not name their shard.
+ *
+ * Tunables (system properties): pizza.shards (the shard list, as for the
+ * application), pizza.migrate.chunk (default 5000).
+ *
+ */
+public class ShardMigration {
+
+   static final int CHUNK = Integer.getInteger("pizza.migrate.chunk", 5000);
+
+   private final List<PizzaStore> shards;
+
+   /**
+    * @param shards one session per shard, shard 0 first
+    */
+   public ShardMigration(List<PizzaStore> shards) {
+      this.shards = shards;
+   }
+
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ShardMigration.class.getName () +
+            " <dbname> <port> <user> (check|migrate)");
+         return;
+      }//end if
+
+      List<PizzaStore> sessions = new ArrayList<PizzaStore>();
+      try{
+         Class.forName ("org.postgresql.Driver");
+         sessions.add(new PizzaStore (args[0], args[1], args[2], ""));
+         String shardList = System.getProperty("pizza.shards", "");
+         if (shardList.trim().length() > 0) {
+            for (String shard : shardList.split(",")) {
+               String[] dbAndPort = shard.trim().split(":");
+               sessions.add(new PizzaStore (dbAndPort[0], dbAndPort[1], args[2], ""));
+            }
+         }
+         ShardMigration migration = new ShardMigration(sessions);
+
+         switch (args[3]) {
+            case "check":
+               migration.check();
+               break;
+            case "migrate":
+               migration.migrate();
+               migration.check();
+               break;
+            default:
+               System.err.println("Unknown command " + args[3]);
+         }
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         for (PizzaStore session : sessions) session.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Prints the misplaced and legacy ID orders of every shard.
+    */
+   public void check() throws SQLException {
+      int n = shards.size();
+      for (int i = 0; i < n; i++) {
+         List<String> counts = shards.get(i).executeQueryAndReturnResult(
+            "SELECT count(*), coalesce(sum(CASE WHEN R.storeID % " + n + " <> " + i + " THEN 1 ELSE 0 END), 0), "
+            + "coalesce(sum(CASE WHEN R.orderID % " + n + " <> " + i + " THEN 1 ELSE 0 END), 0) FROM FoodOrder R").get(0);
+         System.out.println("shard " + i + ": " + counts.get(0).trim() + " orders, " + counts.get(1).trim()
+            + " on the wrong shard, " + counts.get(2).trim() + " with a legacy ID");
+      }
+   }//end check
+
+   /**
+    * Moves every order to the shard of its store.
+    */
+   public void migrate() throws SQLException {
+      int n = shards.size();
+      for (int i = 0; i < n; i++) {
+         long moved = 0;
+         while (true) {
+            List<List<String>> orders = shards.get(i).executeQueryAndReturnResult(
+               "SELECT R.orderID, R.login, R.storeID, R.totalPrice, R.orderTimestamp, R.orderStatus FROM FoodOrder R "
+               + "WHERE R.storeID % " + n + " <> " + i + " ORDER BY R.orderID LIMIT " + CHUNK);
+            if (orders.isEmpty()) break;
+
+            // target shard -> its orders of this chunk
+            Map<Integer, List<List<String>>> byTarget = new LinkedHashMap<Integer, List<List<String>>>();
+            for (List<String> o : orders) {
+               int target = Math.floorMod(Integer.parseInt(o.get(2).trim()), n);
+               List<List<String>> list = byTarget.get(target);
+               if (list == null) byTarget.put(target, list = new ArrayList<List<String>>());
+               list.add(o);
+            }
+            for (Map.Entry<Integer, List<List<String>>> e : byTarget.entrySet()) {
+               copy(shards.get(i), shards.get(e.getKey()), e.getValue());
+            }
+            delete(shards.get(i), orders);
+            moved += orders.size();
+            System.out.println("shard " + i + ": " + moved + " orders moved");
+         }
+      }
+   }//end migrate
+
+   /*
+    * Inserts orders with their line items, menu versions and delivery runs
+    * on the target shard, in one transaction.
+    **/
+   private void copy(PizzaStore source, PizzaStore target, List<List<String>> orders) throws SQLException {
+      String ids = idList(orders);
+      List<String> inserts = new ArrayList<String>();
+      for (List<String> o : orders) {
+         inserts.add("INSERT INTO FoodOrder VALUES (" + quote(o.get(0)) + ", " + quote(o.get(1)) + ", " + quote(o.get(2)) + ", "
+            + quote(o.get(3)) + ", " + quote(o.get(4)) + ", " + quote(o.get(5)) + ") ON CONFLICT (orderID) DO NOTHING");
+      }
+      for (List<String> l : source.executeQueryAndReturnResult(
+            "SELECT N.orderID, N.itemName, N.quantity FROM ItemsInOrder N WHERE N.orderID IN (" + ids + ")")) {
+         inserts.add("INSERT INTO ItemsInOrder VALUES (" + quote(l.get(0)) + ", " + quote(l.get(1)) + ", " + quote(l.get(2))
+            + ") ON CONFLICT DO NOTHING");
+      }
+      for (List<String> v : source.executeQueryAndReturnResult(
+            "SELECT V.orderID, V.menuVersion FROM OrderMenuVersion V WHERE V.orderID IN (" + ids + ")")) {
+         inserts.add("INSERT INTO OrderMenuVersion VALUES (" + quote(v.get(0)) + ", " + quote(v.get(1)) + ") ON CONFLICT DO NOTHING");
+      }
+      for (List<String> b : source.executeQueryAndReturnResult(
+            "SELECT B.orderID, B.batchID, B.storeID FROM DeliveryBatch B WHERE B.orderID IN (" + ids + ")")) {
+         inserts.add("INSERT INTO DeliveryBatch VALUES (" + quote(b.get(0)) + ", " + quote(b.get(1)) + ", " + quote(b.get(2))
+            + ") ON CONFLICT DO NOTHING");
+      }
+
+      target.setAutoCommit(false);
+      try{
+         target.executeBatch(inserts);
+         target.commit();
+      }catch(SQLException e){
+         target.rollback();
+         throw e;
+      }finally{
+         target.setAutoCommit(true);
+      }
+   }//end copy
+
+   /*
+    * Deletes moved orders from their old shard; line items and menu
+    * versions go with them (ON DELETE CASCADE).
+    **/
+   private void delete(PizzaStore source, List<List<String>> orders) throws SQLException {
+      source.executeUpdate("DELETE FROM FoodOrder WHERE orderID IN (" + idList(orders) + ")");
+   }
+
+   private static String idList(List<List<String>> orders) {
+      StringBuilder ids = new StringBuilder();
+      for (List<String> o : orders) {
+         if (ids.length() > 0) ids.append(", ");
+         ids.append(o.get(0).trim());
+      }
+      return ids.toString();
+   }//end idList
+
+   private static String quote(String s) {
+      return s == null ? "null" : "\'" + s.trim().replace("\'", "\'\'") + "\'";
+   }
+}//end ShardMigration
@@ -0,0 +1,399 @@
+/*
+ * Shard Router
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class spreads FoodOrder / ItemsInOrder over several Postgres
+ * databases by storeID.  Users, Items and Store are replicated: every shard
+ * holds a full copy (so the foreign keys still hold) and writes to them go
+ * to all shards.
+ *
+ *    shard of a store   storeID mod n
+ *    shard of an order  orderID mod n
+ *
+ * Order IDs are generated so that both agree, which lets viewOrderInfo and
+ * updateOrderStatus find the owning shard from the orderID alone.  Orders
+ * from before sharding keep their IDs: ShardMigration moves them to the
+ * shard of their store, and loadLegacy() maps the IDs that do not name
+ * their shard.  Queries over all orders are run on every shard and the
+ * per-shard cursors (each sorted by orderTimestamp) are merged as they are
+ * read.  Replicated writes run in a transaction on every shard and are
+ * committed only once every shard has applied them.
+ *
+ * Shard 0 is the database given on the command line; further shards come
+ * from the pizza.shards system property, a comma separated list of
+ * dbname:port entries.
+ *
+ */
+public class ShardRouter {
+
+   private final ConnectionPool[] pools;
+   private final Map<PizzaStore, Integer> owner = new IdentityHashMap<PizzaStore, Integer>();
+   private final ExecutorService workers;
+
+   // orderID -> shard, for the orders whose ID does not name their shard
+   private final Map<Integer, Integer> legacy = new ConcurrentHashMap<Integer, Integer>();
+
+   /**
+    * @param pools one connection pool per shard, shard 0 first
+    */
+   public ShardRouter(List<ConnectionPool> pools) {
+      this.pools = pools.toArray(new ConnectionPool[0]);
+      for (int i = 0; i < this.pools.length; i++) {
+         for (PizzaStore session : this.pools[i].sessions()) owner.put(session, i);
+      }
+      this.workers = Executors.newFixedThreadPool(this.pools.length, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "shard-worker");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end ShardRouter
+
+   /**
+    * Opens a pool for every shard listed in the pizza.shards system property
+    * and a router over them, with base as shard 0.
+    *
+    * @param base the pool of the database given on the command line
+    * @param poolSize the number of sessions opened per listed shard
+    * @return the router, or null when pizza.shards is not set
+    * @throws java.sql.SQLException when a shard cannot be connected to
+    */
+   public static ShardRouter open(ConnectionPool base, String user, String passwd, int poolSize) throws SQLException {
+      String shardList = System.getProperty("pizza.shards", "");
+      if (shardList.trim().length() == 0) return null;
+      List<ConnectionPool> shardPools = new ArrayList<ConnectionPool>();
+      shardPools.add(base);
+      try{
+         for (String shard : shardList.split(",")) {
+            String[] dbAndPort = shard.trim().split(":");
+            shardPools.add(new ConnectionPool(dbAndPort[0], dbAndPort[1], user, passwd, poolSize));
+         }
+      }catch(SQLException e){
+         for (int i = 1; i < shardPools.size(); i++) shardPools.get(i).closeAll();
+         throw e;
+      }
+      return new ShardRouter(shardPools);
+   }//end open
+
+   /**
+    * @return the number of shards
+    */
+   public int size() {
+      return pools.length;
+   }
+
+   public int shardOfStore(int storeID) {
+      return Math.floorMod(storeID, pools.length);
+   }
+
+   public int shardOfOrder(int orderID) {
+      Integer shard = legacy.get(orderID);
+      return (shard != null) ? shard : Math.floorMod(orderID, pools.length);
+   }
+
+   /**
+    * Reads the orders whose ID does not name the shard they are on, the
+    * orders placed before sharding (see ShardMigration).  Orders placed
+    * since always have IDs that name their shard.
+    *
+    * @return the number of such orders
+    * @throws java.sql.SQLException when a shard cannot be read
+    * @throws InterruptedException when interrupted waiting for a session
+    */
+   public int loadLegacy() throws SQLException, InterruptedException {
+      int n = pools.length;
+      for (int i = 0; i < n; i++) {
+         PizzaStore session = borrow(i);
+         try{
+            for (List<String> row : session.executeQueryAndReturnResult(
+                  "SELECT R.orderID FROM FoodOrder R WHERE R.orderID % " + n + " <> " + i)) {
+               legacy.put(Integer.parseInt(row.get(0).trim()), i);
+            }
+         }finally{
+            release(session);
+         }
+      }
+      return legacy.size();
+   }//end loadLegacy
+
+   /**
+    * Picks a random orderID that lands on the same shard as the store.
+    */
+   public int newOrderID(int storeID, Random rand) {
+      int n = pools.length;
+      int orderID;
+      do {
+         orderID = rand.nextInt(2000000000 / n) * n + shardOfStore(storeID);
+      }while (legacy.containsKey(orderID));
+      return orderID;
+   }//end newOrderID
+
+   /**
+    * Borrows a session of the given shard.  Give it back with release().
+    */
+   public PizzaStore borrow(int shard) throws InterruptedException {
+      return pools[shard].borrow();
+   }
+
+   /**
+    * Gives a borrowed session back to the pool of its shard.
+    */
+   public void release(PizzaStore session) {
+      Integer shard = owner.get(session);
+      if (shard != null) pools[shard].release(session);
+   }
+
+   /**
+    * Runs an update on every shard, for the replicated tables.  The update
+    * runs in a transaction on each shard in parallel; the transactions are
+    * committed once every shard succeeded, and all rolled back otherwise.
+    *
+    * @param sql the update statement
+    * @throws java.sql.SQLException when the update failed on any shard
+    */
+   public void executeUpdateAll(final String sql) throws SQLException {
+      // borrowed in shard order, so concurrent callers cannot deadlock
+      final List<PizzaStore> sessions = new ArrayList<PizzaStore>();
+      try{
+         for (int i = 0; i < pools.length; i++) sessions.add(borrow(i));
+      }catch(InterruptedException e){
+         for (PizzaStore session : sessions) release(session);
+         throw new SQLException("interrupted");
+      }
+
+      SQLException failure = null;
+      try{
+         for (PizzaStore session : sessions) session.setAutoCommit(false);
+         List<Future<Void>> pending = new ArrayList<Future<Void>>();
+         for (final PizzaStore session : sessions) {
+            pending.add(workers.submit(new Callable<Void>() {
+               public Void call() throws SQLException {
+                  session.executeUpdate(sql);
+                  return null;
+               }
+            }));
+         }
+         for (int i = 0; i < pending.size(); i++) {
+            try{
+               pending.get(i).get();
+            }catch(Exception e){
+               Throwable cause = e.getCause() != null ? e.getCause() : e;
+               if (failure == null) failure = new SQLException("shard " + i + ": " + cause.getMessage());
+            }
+         }
+
+         for (int i = 0; i < sessions.size(); i++) {
+            try{
+               if (failure == null) sessions.get(i).commit();
+               else sessions.get(i).rollback();
+            }catch(SQLException e){
+               // only a commit failing after others committed leaves shards apart
+               if (failure == null) failure = new SQLException("shard " + i + " did not commit, shards differ: " + e.getMessage());
+            }
+         }
+      }finally{
+         for (PizzaStore session : sessions) {
+            try { session.setAutoCommit(true); } catch (SQLException e) { /* ignored */ }
+            release(session);
+         }
+      }
+      if (failure != null) throw failure;
+   }//end executeUpdateAll
+
+   /**
+    * Runs a query on every shard in parallel.
+    *
+    * @param query the query string
+    * @return the result of each shard, shard 0 first
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<List<String>>> scatter(final String query) throws SQLException {
+      List<Future<List<List<String>>>> pending = new ArrayList<Future<List<List<String>>>>();
+      for (int i = 0; i < pools.length; i++) {
+         final int shard = i;
+         pending.add(workers.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws Exception {
+               PizzaStore session = borrow(shard);
+               try{
+                  return session.executeQueryAndReturnResult(query);
+               }finally{
+                  release(session);
+               }
+            }
+         }));
+      }
+
+      List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+      SQLException failure = null;
+      for (int i = 0; i < pending.size(); i++) {
+         try{
+            results.add(pending.get(i).get());
+         }catch(Exception e){
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (failure == null) failure = new SQLException("shard " + i + ": " + cause.getMessage());
+         }
+      }
+      if (failure != null) throw failure;
+      return results;
+   }//end scatter
+
+   /**
+    * Receives the merged rows of forEachNewestFirst one at a time.
+    */
+   public interface RowSink {
+      /** @return false to stop the merge */
+      boolean row(List<String> row) throws SQLException;
+   }//end RowSink
+
+   /*
+    * One shard's side of a merge: a cursor on a borrowed session, read a
+    * batch at a time, and the time of its current row, parsed once.
+    **/
+   private class ShardCursor {
+      final PizzaStore session;
+      final int tsColumn;
+      final int batch;
+      List<List<String>> rows = new ArrayList<List<String>>();
+      int next = -1;
+      boolean exhausted = false;
+      long time;
+
+      ShardCursor(int shard, String query, int tsColumn, int batch) throws SQLException, InterruptedException {
+         this.session = borrow(shard);
+         this.tsColumn = tsColumn;
+         this.batch = batch;
+         try{
+            session.setAutoCommit(false);
+            session.executeUpdate("DECLARE pizza_merge NO SCROLL CURSOR FOR " + query);
+         }catch(SQLException e){
+            close();
+            throw e;
+         }
+      }
+
+      List<String> current() {
+         return rows.get(next);
+      }
+
+      /*
+       * Moves to the next row, fetching the next batch when needed.
+       * Returns false once the shard has no more rows.
+       **/
+      boolean advance() throws SQLException {
+         if (++next >= rows.size()) {
+            if (exhausted) return false;
+            rows = session.executeQueryAndReturnResult("FETCH FORWARD " + batch + " FROM pizza_merge");
+            exhausted = rows.size() < batch;
+            next = 0;
+            if (rows.isEmpty()) return false;
+         }
+         time = Timestamp.valueOf(current().get(tsColumn).trim()).getTime();
+         return true;
+      }//end advance
+
+      void close() {
+         try{
+            session.rollback();   // ends the transaction and the cursor
+            session.setAutoCommit(true);
+         }catch(SQLException e){
+            // a broken session fails its next user as it would have
+         }
+         release(session);
+      }//end close
+   }//end ShardCursor
+
+   /**
+    * Runs a query on every shard and merges the results on a timestamp
+    * column, newest first, handing the rows to sink as they come.  Every
+    * shard must return its rows sorted by that column descending.  Each
+    * shard is read through a cursor a batch at a time, so memory holds a
+    * batch per shard, not the result.
+    *
+    * @param query the query, ending in ORDER BY ... DESC
+    * @param tsColumn the index of the timestamp column in each row
+    * @param limit the number of rows wanted, or -1 for all
+    * @param sink receives the rows, newest first
+    * @return the number of rows handed to sink
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public long forEachNewestFirst(String query, int tsColumn, int limit, RowSink sink) throws SQLException {
+      int batch = (limit < 0) ? PizzaStore.FETCH_SIZE : Math.max(1, Math.min(limit, PizzaStore.FETCH_SIZE));
+      List<ShardCursor> cursors = new ArrayList<ShardCursor>();
+      try{
+         // k-way merge: the heap holds every shard that has a current row
+         PriorityQueue<ShardCursor> heads = new PriorityQueue<ShardCursor>(pools.length + 1, new java.util.Comparator<ShardCursor>() {
+            public int compare(ShardCursor a, ShardCursor b) {
+               return Long.compare(b.time, a.time);
+            }
+         });
+         for (int i = 0; i < pools.length; i++) {
+            ShardCursor cursor = new ShardCursor(i, query, tsColumn, batch);
+            cursors.add(cursor);
+            if (cursor.advance()) heads.add(cursor);
+         }
+
+         long count = 0;
+         while (!heads.isEmpty() && (limit < 0 || count < limit)) {
+            ShardCursor head = heads.poll();
+            count++;
+            if (!sink.row(head.current())) break;
+            if (head.advance()) heads.add(head);
+         }
+         return count;
+      }catch(InterruptedException e){
+         throw new SQLException("interrupted");
+      }finally{
+         for (ShardCursor cursor : cursors) cursor.close();
+      }
+   }//end forEachNewestFirst
+
+   /**
+    * Same as forEachNewestFirst, returning the rows, for small limits.
+    *
+    * @return the merged rows
+    */
+   public List<List<String>> mergeNewestFirst(String query, int tsColumn, int limit) throws SQLException {
+      final List<List<String>> merged = new ArrayList<List<String>>();
+      forEachNewestFirst(query, tsColumn, limit, new RowSink() {
+         public boolean row(List<String> row) {
+            merged.add(row);
+            return true;
+         }
+      });
+      return merged;
+   }//end mergeNewestFirst
+
+   /**
+    * Closes the pools of shards 1..n-1 (shard 0 is the main pool).
+    */
+   public void closeAll() {
+      workers.shutdownNow();
+      for (int i = 1; i < pools.length; i++) pools[i].closeAll();
+   }//end closeAll
+}//end ShardRouter
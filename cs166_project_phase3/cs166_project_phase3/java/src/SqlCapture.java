@@ -0,0 +1,300 @@
+/*
+ * SQL Capture
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class records every statement a PizzaStore session sends (updates,
+ * queries, prepared queries, batches and transaction boundaries) with its
+ * session, start time, latency and outcome to a compact binary log that
+ * SqlReplay plays back against another database.
+ *
+ * File layout:
+ *
+ *    header   int magic, long capture start (epoch ms)
+ *    records  byte kind, byte ok, varint session, varlong start (us since
+ *             the capture start), varlong latency (us), varint text code,
+ *             [text], varint parameter count, parameters
+ *
+ * Statement text is dictionary coded: code 1 defines the next id with the
+ * text that follows, code id+2 repeats a defined text, code 0 is text that
+ * is not kept (once the dictionary holds DICT_MAX entries, since literal
+ * SQL rarely repeats).  Strings are a varint of length+1 then UTF-8, 0
+ * for null.  Records are buffered and written BUFFER_BYTES at a time, so
+ * a crash loses at most the last buffer.
+ *
+ * Capture is turned on with the pizza.capture system property (the log
+ * file) and starts once warmup has finished.
+ *
+ */
+public class SqlCapture {
+
+   static final int MAGIC = 0x505a4331;   // "PZC1"
+   static final int HEADER = 12;
+   static final int DICT_MAX = 4096;
+   static final int BUFFER_BYTES = 1 << 16;
+
+   public static final byte UPDATE = 1;
+   public static final byte QUERY = 2;
+   public static final byte PREPARED = 3;
+   public static final byte AUTOCOMMIT_OFF = 4;
+   public static final byte AUTOCOMMIT_ON = 5;
+   public static final byte COMMIT = 6;
+   public static final byte ROLLBACK = 7;
+   public static final byte BATCH = 8;        // the statements joined by '\0'
+
+   /**
+    * One captured statement.
+    */
+   public static class Entry {
+      public final byte kind;
+      public final boolean ok;
+      public final int session;
+      public final long startMicros;
+      public final long latencyMicros;
+      public final String text;
+      public final String[] params;
+
+      Entry(byte kind, boolean ok, int session, long startMicros, long latencyMicros, String text, String[] params) {
+         this.kind = kind;
+         this.ok = ok;
+         this.session = session;
+         this.startMicros = startMicros;
+         this.latencyMicros = latencyMicros;
+         this.text = text;
+         this.params = params;
+      }
+   }//end Entry
+
+   private final RandomAccessFile file;
+   private final FileChannel channel;
+   private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+   private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+   private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+   private final long startNanos = System.nanoTime();
+   private long records = 0;
+   private long written = HEADER;
+   private boolean closed = false;
+
+   /**
+    * Creates (or truncates) the capture log.
+    *
+    * @param path the log file
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public SqlCapture(String path) throws IOException {
+      file = new RandomAccessFile(path, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+      buffer.putInt(MAGIC).putLong(System.currentTimeMillis());
+   }//end SqlCapture
+
+   /**
+    * Appends one statement.  Called by the session after the statement
+    * returned or failed.
+    *
+    * @param session the id of the issuing session
+    * @param kind UPDATE, QUERY, PREPARED, BATCH or a transaction boundary
+    * @param text the SQL text, null for transaction boundaries
+    * @param params the parameters of a prepared query, or null
+    * @param start System.nanoTime() when the statement was sent
+    * @param ok false when the statement threw
+    */
+   public void record(int session, byte kind, String text, String[] params, long start, boolean ok) {
+      record(session, kind, text, params, start, System.nanoTime() - start, ok);
+   }//end record
+
+   /**
+    * Appends one statement whose latency is not simply the time since it
+    * was sent: a cursor read in steps counts only its round trips, not the
+    * time the caller spent on the rows in between.
+    *
+    * @param latency the time spent in the database, in nanoseconds
+    */
+   public synchronized void record(int session, byte kind, String text, String[] params, long start, long latency, boolean ok) {
+      if (closed) return;
+      scratch.reset();
+      scratch.write(kind);
+      scratch.write(ok ? 1 : 0);
+      writeVar(scratch, session);
+      writeVar(scratch, Math.max(0, (start - startNanos) / 1000));
+      writeVar(scratch, latency / 1000);
+
+      if (text == null) {
+         writeVar(scratch, 0);
+         writeString(scratch, null);
+      }else{
+         Integer id = dictionary.get(text);
+         if (id != null) {
+            writeVar(scratch, id + 2);
+         }else if (dictionary.size() < DICT_MAX) {
+            dictionary.put(text, dictionary.size());
+            writeVar(scratch, 1);
+            writeString(scratch, text);
+         }else{
+            writeVar(scratch, 0);
+            writeString(scratch, text);
+         }
+      }
+      writeVar(scratch, params == null ? 0 : params.length);
+      if (params != null) for (String p : params) writeString(scratch, p);
+
+      try{
+         if (scratch.size() > buffer.remaining()) flush();
+         if (scratch.size() > buffer.capacity()) {
+            channel.write(ByteBuffer.wrap(scratch.toByteArray()));
+         }else{
+            buffer.put(scratch.toByteArray());
+         }
+         written += scratch.size();
+         records++;
+      }catch(IOException e){
+         System.err.println("SQL capture stopped: " + e.getMessage());
+         closed = true;
+      }
+   }//end record
+
+   private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) channel.write(buffer);
+      buffer.clear();
+   }
+
+   /**
+    * Writes what is buffered and closes the log.
+    */
+   public synchronized void close() {
+      if (closed) return;
+      closed = true;
+      try{
+         flush();
+         channel.force(false);
+         file.close();
+      }catch(IOException e){
+         System.err.println("SQL capture: " + e.getMessage());
+      }
+   }//end close
+
+   /**
+    * @return statements and bytes written so far
+    */
+   public synchronized String summary() {
+      return "Captured " + records + " statements, " + written + " bytes ("
+         + (records == 0 ? 0 : written / records) + " per statement)";
+   }
+
+   /**
+    * Reads a whole capture log, in the order the statements finished.
+    *
+    * @param path the log file
+    * @return the captured statements
+    * @throws java.io.IOException when the file cannot be read or is not a
+    *         capture log
+    */
+   public static List<Entry> read(String path) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(path, "r");
+      try{
+         MappedByteBuffer map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+         if (map.remaining() < HEADER || map.getInt() != MAGIC) throw new IOException(path + " is not a capture log");
+         map.getLong();
+
+         List<String> dictionary = new ArrayList<String>();
+         List<Entry> entries = new ArrayList<Entry>();
+         try{
+            while (map.hasRemaining()) {
+               byte kind = map.get();
+               boolean ok = map.get() != 0;
+               int session = (int) readVar(map);
+               long start = readVar(map);
+               long latency = readVar(map);
+               int code = (int) readVar(map);
+               String text;
+               if (code == 0) {
+                  text = readString(map);
+               }else if (code == 1) {
+                  text = readString(map);
+                  dictionary.add(text);
+               }else{
+                  text = dictionary.get(code - 2);
+               }
+               String[] params = new String[(int) readVar(map)];
+               for (int i = 0; i < params.length; i++) params[i] = readString(map);
+               entries.add(new Entry(kind, ok, session, start, latency, text, params));
+            }
+         }catch(java.nio.BufferUnderflowException e){
+            // a record cut off by a crash ends the log
+         }
+         return entries;
+      }finally{
+         in.close();
+      }
+   }//end read
+
+   /**
+    * @return the capture start (epoch ms) written in the header
+    */
+   public static long startedAt(String path) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(path, "r");
+      try{
+         if (in.readInt() != MAGIC) throw new IOException(path + " is not a capture log");
+         return in.readLong();
+      }finally{
+         in.close();
+      }
+   }//end startedAt
+
+   private static void writeVar(ByteArrayOutputStream out, long v) {
+      while ((v & ~0x7fL) != 0) {
+         out.write((int) ((v & 0x7f) | 0x80));
+         v >>>= 7;
+      }
+      out.write((int) v);
+   }//end writeVar
+
+   private static long readVar(ByteBuffer in) {
+      long v = 0;
+      for (int shift = 0; ; shift += 7) {
+         byte b = in.get();
+         v |= (long) (b & 0x7f) << shift;
+         if (b >= 0) return v;
+      }
+   }//end readVar
+
+   private static void writeString(ByteArrayOutputStream out, String s) {
+      if (s == null) {
+         writeVar(out, 0);
+         return;
+      }
+      byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      writeVar(out, utf8.length + 1);
+      out.write(utf8, 0, utf8.length);
+   }//end writeString
+
+   private static String readString(ByteBuffer in) {
+      int length = (int) readVar(in) - 1;
+      if (length < 0) return null;
+      byte[] utf8 = new byte[length];
+      in.get(utf8);
+      return new String(utf8, StandardCharsets.UTF_8);
+   }//end readString
+}//end SqlCapture
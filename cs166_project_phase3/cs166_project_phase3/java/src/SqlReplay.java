@@ -0,0 +1,294 @@
+/*
+ * SQL Replay
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class plays a SqlCapture log back against a database and compares
+ * the latencies with the captured ones, to try an index or schema change
+ * on the real workload before it goes live.
+ *
+ * Every captured session gets its own thread and connection, and issues
+ * its statements in their original order, so the original concurrency is
+ * kept.  At 1x a statement is sent at its captured start time, at Nx N
+ * times sooner, and at max as soon as the session's previous statement
+ * returned.  Statements are grouped by shape (literals replaced with ?)
+ * and the report lists the shapes that took the most replay time with
+ * their captured and replayed median and 95th percentile.  Statements that
+ * failed now but not when captured are counted separately, as they are
+ * the ones a schema change broke.
+ *
+ */
+public class SqlReplay {
+
+   static final int TOP_SHAPES = 25;
+   static final int SHOW_ERRORS = 5;
+
+   private static final Pattern STRINGS = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBERS = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+   private static final Pattern LISTS = Pattern.compile("\\(\\?(?:\\s*,\\s*\\?)+\\)");
+   private static final Pattern SPACES = Pattern.compile("\\s+");
+
+   /*
+    * The captured and replayed latencies of one statement shape.
+    **/
+   static class Shape {
+      final String text;
+      long[] captured = new long[16];
+      long[] replayed = new long[16];
+      int count = 0;
+      long replayTotal = 0;
+
+      Shape(String text) {
+         this.text = text;
+      }
+
+      synchronized void add(long capturedMicros, long replayedMicros) {
+         if (count == captured.length) {
+            captured = Arrays.copyOf(captured, count * 2);
+            replayed = Arrays.copyOf(replayed, count * 2);
+         }
+         captured[count] = capturedMicros;
+         replayed[count] = replayedMicros;
+         count++;
+         replayTotal += replayedMicros;
+      }
+   }//end Shape
+
+   private final Map<Integer, List<SqlCapture.Entry>> sessions = new LinkedHashMap<Integer, List<SqlCapture.Entry>>();
+   private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+   private final double speed;
+   private final AtomicLong statements = new AtomicLong();
+   private final AtomicLong newErrors = new AtomicLong();
+   private final AtomicLong maxLagMicros = new AtomicLong();
+   private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+   private long capturedWallMicros = 0;
+
+   /**
+    * @param entries the captured statements
+    * @param speed how many times faster than captured, 0 for max speed
+    */
+   public SqlReplay(List<SqlCapture.Entry> entries, double speed) {
+      this.speed = speed;
+      long first = Long.MAX_VALUE, last = 0;
+      for (SqlCapture.Entry e : entries) {
+         List<SqlCapture.Entry> list = sessions.get(e.session);
+         if (list == null) {
+            list = new ArrayList<SqlCapture.Entry>();
+            sessions.put(e.session, list);
+         }
+         list.add(e);
+         first = Math.min(first, e.startMicros);
+         last = Math.max(last, e.startMicros + e.latencyMicros);
+      }
+      for (List<SqlCapture.Entry> list : sessions.values()) {
+         // a session waits for each statement, so this is only a tie break
+         Collections.sort(list, new Comparator<SqlCapture.Entry>() {
+            public int compare(SqlCapture.Entry a, SqlCapture.Entry b) {
+               return Long.compare(a.startMicros, b.startMicros);
+            }
+         });
+      }
+      if (!entries.isEmpty()) capturedWallMicros = last - first;
+   }//end SqlReplay
+
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SqlReplay.class.getName () +
+            " <dbname> <port> <user> <captureFile> [1x|Nx|max]");
+         return;
+      }//end if
+
+      ConnectionPool pool = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         String rate = args.length > 4 ? args[4].trim().toLowerCase() : "1x";
+         double speed = rate.equals("max") ? 0 : Double.parseDouble(rate.endsWith("x") ? rate.substring(0, rate.length() - 1) : rate);
+
+         List<SqlCapture.Entry> entries = SqlCapture.read(args[3]);
+         System.out.println("Read " + entries.size() + " statements captured at "
+            + new java.sql.Timestamp(SqlCapture.startedAt(args[3])));
+         SqlReplay replay = new SqlReplay(entries, speed);
+         if (replay.sessions.isEmpty()) return;
+
+         pool = new ConnectionPool(args[0], args[1], args[2], "", replay.sessions.size());
+         long wall = replay.run(pool);
+         replay.print(wall);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if(pool != null) pool.closeAll ();
+      }//end try
+   }//end main
+
+   /**
+    * Replays every session on its own thread and connection.
+    *
+    * @param pool a pool with at least one session per captured session
+    * @return the replay wall time in microseconds
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public long run(final ConnectionPool pool) throws InterruptedException {
+      long first = Long.MAX_VALUE;
+      for (List<SqlCapture.Entry> list : sessions.values()) first = Math.min(first, list.get(0).startMicros);
+      final long origin = first;
+      final long begin = System.nanoTime() + 50000000L;   // lets every thread reach its first statement
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (final List<SqlCapture.Entry> list : sessions.values()) {
+         final PizzaStore esql = pool.borrow();
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               try{
+                  replaySession(esql, list, origin, begin);
+               }finally{
+                  pool.release(esql);
+               }
+            }
+         }, "replay-" + list.get(0).session);
+         threads.add(t);
+         t.start();
+      }
+      for (Thread t : threads) t.join();
+      return (System.nanoTime() - begin) / 1000;
+   }//end run
+
+   private void replaySession(PizzaStore esql, List<SqlCapture.Entry> list, long origin, long begin) {
+      boolean autoCommit = true;
+      for (SqlCapture.Entry e : list) {
+         long due = begin + (speed == 0 ? 0 : (long) ((e.startMicros - origin) * 1000 / speed));
+         long wait = due - System.nanoTime();
+         if (wait > 0) {
+            try { Thread.sleep(wait / 1000000L, (int) (wait % 1000000L)); } catch (InterruptedException ie) { return; }
+         }else if (speed != 0) {
+            long lag = -wait / 1000;
+            long max = maxLagMicros.get();
+            while (lag > max && !maxLagMicros.compareAndSet(max, lag)) max = maxLagMicros.get();
+         }
+
+         long start = System.nanoTime();
+         try{
+            switch (e.kind) {
+               case SqlCapture.UPDATE: esql.executeUpdate(e.text); break;
+               case SqlCapture.QUERY: esql.executeQuery(e.text); break;
+               case SqlCapture.PREPARED: esql.executePreparedQuery(e.text, e.params); break;
+               case SqlCapture.BATCH: esql.executeBatch(Arrays.asList(e.text.split("\0"))); break;
+               case SqlCapture.AUTOCOMMIT_OFF: esql.setAutoCommit(false); autoCommit = false; break;
+               case SqlCapture.AUTOCOMMIT_ON: esql.setAutoCommit(true); autoCommit = true; break;
+               case SqlCapture.COMMIT: esql.commit(); break;
+               case SqlCapture.ROLLBACK: esql.rollback(); break;
+               default: continue;
+            }
+         }catch(Exception ex){
+            if (e.ok) {
+               newErrors.incrementAndGet();
+               if (errors.size() < SHOW_ERRORS) errors.add(shapeOf(e) + ": " + ex.getMessage());
+            }
+         }
+         long micros = (System.nanoTime() - start) / 1000;
+         statements.incrementAndGet();
+
+         String key = shapeOf(e);
+         Shape shape = shapes.get(key);
+         if (shape == null) {
+            Shape fresh = new Shape(key);
+            shape = shapes.putIfAbsent(key, fresh);
+            if (shape == null) shape = fresh;
+         }
+         shape.add(e.latencyMicros, micros);
+      }
+      if (!autoCommit) {
+         try { esql.rollback(); esql.setAutoCommit(true); } catch (Exception ex) { }
+      }
+   }//end replaySession
+
+   /*
+    * The statement with its literals replaced, so the same query with
+    * other values groups together.
+    **/
+   static String shapeOf(SqlCapture.Entry e) {
+      switch (e.kind) {
+         case SqlCapture.AUTOCOMMIT_OFF: return "BEGIN (autocommit off)";
+         case SqlCapture.AUTOCOMMIT_ON: return "autocommit on";
+         case SqlCapture.COMMIT: return "COMMIT";
+         case SqlCapture.ROLLBACK: return "ROLLBACK";
+         case SqlCapture.PREPARED: return e.text.trim();
+         case SqlCapture.BATCH: return "batch: " + normalize(e.text.split("\0")[0]);
+         default: return normalize(e.text);
+      }
+   }//end shapeOf
+
+   static String normalize(String sql) {
+      String s = STRINGS.matcher(sql).replaceAll("?");
+      s = NUMBERS.matcher(s).replaceAll("?");
+      s = LISTS.matcher(s).replaceAll("(?, ...)");
+      return SPACES.matcher(s).replaceAll(" ").trim();
+   }//end normalize
+
+   /**
+    * Prints the totals and the most expensive shapes.
+    *
+    * @param wallMicros the replay wall time
+    */
+   public void print(long wallMicros) {
+      System.out.println("Replayed " + statements.get() + " statements on " + sessions.size() + " sessions at "
+         + (speed == 0 ? "max speed" : speed + "x") + ": " + (wallMicros / 1000) + " ms, captured "
+         + (capturedWallMicros / 1000) + " ms" + (speed == 0 ? "" : ", worst schedule lag " + (maxLagMicros.get() / 1000) + " ms"));
+      if (newErrors.get() > 0) {
+         System.out.println(newErrors.get() + " statement(s) failed that succeeded when captured, e.g.");
+         for (String error : errors) System.out.println("   " + error);
+      }
+
+      List<Shape> ranked = new ArrayList<Shape>(shapes.values());
+      Collections.sort(ranked, new Comparator<Shape>() {
+         public int compare(Shape a, Shape b) {
+            return Long.compare(b.replayTotal, a.replayTotal);
+         }
+      });
+      TableRenderer table = TableRenderer.console();
+      table.begin(new String[] { "statement", "count", "cap_p50_us", "rep_p50_us", "cap_p95_us", "rep_p95_us", "mean_delta" });
+      for (Shape s : ranked.subList(0, Math.min(TOP_SHAPES, ranked.size()))) {
+         synchronized (s) {
+            long[] cap = Arrays.copyOf(s.captured, s.count);
+            long[] rep = Arrays.copyOf(s.replayed, s.count);
+            long capSum = 0;
+            for (long v : cap) capSum += v;
+            Arrays.sort(cap);
+            Arrays.sort(rep);
+            String delta = capSum == 0 ? "" : String.format("%+.0f%%", 100.0 * (s.replayTotal - capSum) / capSum);
+            String text = s.text.length() > 70 ? s.text.substring(0, 67) + "..." : s.text;
+            if (!table.row(new String[] { text, String.valueOf(s.count), String.valueOf(percentile(cap, 50)),
+                  String.valueOf(percentile(rep, 50)), String.valueOf(percentile(cap, 95)),
+                  String.valueOf(percentile(rep, 95)), delta })) break;
+         }
+      }
+      table.end();
+   }//end print
+
+   private static long percentile(long[] sorted, int p) {
+      if (sorted.length == 0) return 0;
+      return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+   }
+}//end SqlReplay
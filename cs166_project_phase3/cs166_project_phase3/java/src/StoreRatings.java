@@ -0,0 +1,257 @@
+/*
+ * Store Ratings
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.Locale;
+
+/**
+ * This class keeps the review aggregates of every store in memory: review
+ * count, score sum and the average of the last RECENT_WINDOW reviews, and
+ * per city a set of stores ordered by rating so "best-rated open stores in
+ * my city" is read off the front of one sorted set instead of scanning
+ * StoreReview.
+ *
+ * The aggregates are loaded once (StoreReviewStats plus the recent reviews
+ * of each store) and then moved forward by ReviewWriter each time a batch
+ * of reviews commits; a store is re-ranked by removing and re-inserting it
+ * in its city's set.  Stores without reviews are ranked by the reviewScore
+ * they were loaded with.
+ *
+ */
+public class StoreRatings {
+
+   static final int RECENT_WINDOW = 20;
+
+   /**
+    * The aggregates of one store.
+    */
+   public static class Rating {
+      public final int storeID;
+      public volatile String city;
+      public volatile boolean open;
+      final double seedScore;
+      long count = 0;
+      long sum = 0;
+      final int[] recent = new int[RECENT_WINDOW];   // ring of the newest scores
+      int recentCount = 0;
+      int recentNext = 0;
+
+      Rating(int storeID, String city, boolean open, double seedScore) {
+         this.storeID = storeID;
+         this.city = city;
+         this.open = open;
+         this.seedScore = seedScore;
+      }
+
+      public synchronized long count() {
+         return count;
+      }
+
+      public synchronized double average() {
+         return count == 0 ? seedScore : (double) sum / count;
+      }
+
+      public synchronized double recentAverage() {
+         if (recentCount == 0) return average();
+         long total = 0;
+         for (int i = 0; i < recentCount; i++) total += recent[i];
+         return (double) total / recentCount;
+      }
+
+      synchronized void addRecent(int score) {
+         recent[recentNext] = score;
+         recentNext = (recentNext + 1) % RECENT_WINDOW;
+         if (recentCount < RECENT_WINDOW) recentCount++;
+      }
+   }//end Rating
+
+   /*
+    * A store's place in its city's ranking. Immutable, so a store is
+    * re-ranked by swapping its key.
+    **/
+   static class Rank implements Comparable<Rank> {
+      final double average;
+      final long count;
+      final int storeID;
+      final String city;
+
+      Rank(double average, long count, int storeID, String city) {
+         this.average = average;
+         this.count = count;
+         this.storeID = storeID;
+         this.city = city;
+      }
+
+      public int compareTo(Rank other) {
+         if (average != other.average) return average > other.average ? -1 : 1;
+         if (count != other.count) return count > other.count ? -1 : 1;
+         return Integer.compare(storeID, other.storeID);
+      }
+   }//end Rank
+
+   static final String STORE_QUERY = "SELECT S.storeID, S.city, S.isOpen, S.reviewScore FROM Store S";
+
+   private final Map<Integer, Rating> ratings = new HashMap<Integer, Rating>();
+   private final Map<Integer, Rank> ranks = new HashMap<Integer, Rank>();
+   private final Map<String, TreeSet<Rank>> byCity = new HashMap<String, TreeSet<Rank>>();
+   private boolean loaded = false;
+
+   /**
+    * Loads stores and their review aggregates the first time it is called.
+    *
+    * @param esql the session to read from
+    * @throws java.sql.SQLException when a query fails
+    */
+   public synchronized void ensureLoaded(PizzaStore esql) throws SQLException {
+      if (loaded) return;
+      for (List<String> row : esql.executeQueryAndReturnResult(STORE_QUERY)) {
+         int storeID = Integer.parseInt(row.get(0).trim());
+         double seed = row.get(3) == null ? 0 : Double.parseDouble(row.get(3).trim());
+         ratings.put(storeID, new Rating(storeID, row.get(1).trim(), row.get(2).trim().equals("yes"), seed));
+      }
+
+      // reviews live with the orders of their store, so on every shard
+      for (List<String> row : scatter(esql, "SELECT T.storeID, T.reviewCount, T.scoreSum FROM StoreReviewStats T")) {
+         Rating r = ratings.get(Integer.parseInt(row.get(0).trim()));
+         if (r == null) continue;
+         r.count = Long.parseLong(row.get(1).trim());
+         r.sum = Long.parseLong(row.get(2).trim());
+      }
+      for (List<String> row : scatter(esql, "SELECT V.storeID, V.score FROM (SELECT R.storeID, R.score, R.reviewTimestamp, "
+            + "row_number() OVER (PARTITION BY R.storeID ORDER BY R.reviewTimestamp DESC) AS n FROM StoreReview R) V "
+            + "WHERE V.n <= " + RECENT_WINDOW + " ORDER BY V.reviewTimestamp")) {
+         Rating r = ratings.get(Integer.parseInt(row.get(0).trim()));
+         if (r != null) r.addRecent(Integer.parseInt(row.get(1).trim()));
+      }
+
+      for (Rating r : ratings.values()) rerank(r);
+      loaded = true;
+   }//end ensureLoaded
+
+   /**
+    * Folds committed reviews of one store into its aggregates.
+    *
+    * @param storeID the reviewed store
+    * @param scores the new scores, oldest first
+    */
+   public synchronized void add(int storeID, List<Integer> scores) {
+      Rating r = ratings.get(storeID);
+      if (r == null || !loaded) return;
+      synchronized (r) {
+         for (int score : scores) {
+            r.count++;
+            r.sum += score;
+            r.addRecent(score);
+         }
+      }
+      rerank(r);
+   }//end add
+
+   /**
+    * Re-reads the city and open flag of one store after it was changed
+    * elsewhere, or drops it when it was deleted.  Review totals stay.
+    *
+    * @param esql the session to read from
+    * @param storeID the changed store
+    * @throws java.sql.SQLException when the query fails
+    */
+   public synchronized void refreshStore(PizzaStore esql, int storeID) throws SQLException {
+      if (!loaded) return;
+      List<List<String>> rows = esql.executeQueryAndReturnResult(STORE_QUERY + " WHERE S.storeID = " + storeID);
+      Rating r = ratings.get(storeID);
+      if (rows.isEmpty()) {
+         if (r != null) unrank(storeID);
+         ratings.remove(storeID);
+         return;
+      }
+      List<String> row = rows.get(0);
+      if (r == null) {
+         double seed = row.get(3) == null ? 0 : Double.parseDouble(row.get(3).trim());
+         r = new Rating(storeID, row.get(1).trim(), row.get(2).trim().equals("yes"), seed);
+         ratings.put(storeID, r);
+      }else{
+         r.city = row.get(1).trim();
+         r.open = row.get(2).trim().equals("yes");
+      }
+      rerank(r);
+   }//end refreshStore
+
+   /**
+    * Re-reads every store and its review totals.
+    *
+    * @param esql the session to read from
+    * @throws java.sql.SQLException when a query fails
+    */
+   public synchronized void reload(PizzaStore esql) throws SQLException {
+      ratings.clear();
+      ranks.clear();
+      byCity.clear();
+      loaded = false;
+      ensureLoaded(esql);
+   }//end reload
+
+   /**
+    * @return the store's aggregates, or null for an unknown store
+    */
+   public synchronized Rating get(int storeID) {
+      return ratings.get(storeID);
+   }
+
+   /**
+    * Returns the best-rated open stores of a city, best first.
+    *
+    * @param city the city, case insensitive
+    * @param k how many stores to return at most
+    */
+   public synchronized List<Rating> topOpen(String city, int k) {
+      List<Rating> top = new ArrayList<Rating>();
+      TreeSet<Rank> set = byCity.get(city.trim().toLowerCase(Locale.ROOT));
+      if (set == null) return top;
+      for (Rank rank : set) {
+         if (top.size() >= k) break;
+         Rating r = ratings.get(rank.storeID);
+         if (r.open) top.add(r);
+      }
+      return top;
+   }//end topOpen
+
+   private void rerank(Rating r) {
+      unrank(r.storeID);
+      String city = r.city.toLowerCase(Locale.ROOT);
+      TreeSet<Rank> set = byCity.get(city);
+      if (set == null) {
+         set = new TreeSet<Rank>();
+         byCity.put(city, set);
+      }
+      Rank rank = new Rank(r.average(), r.count(), r.storeID, city);
+      set.add(rank);
+      ranks.put(r.storeID, rank);
+   }//end rerank
+
+   private void unrank(int storeID) {
+      Rank old = ranks.remove(storeID);
+      if (old != null) byCity.get(old.city).remove(old);
+   }
+
+   private static List<List<String>> scatter(PizzaStore esql, String query) throws SQLException {
+      if (PizzaStore.shards == null) return esql.executeQueryAndReturnResult(query);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (List<List<String>> part : PizzaStore.shards.scatter(query)) rows.addAll(part);
+      return rows;
+   }
+}//end StoreRatings
@@ -0,0 +1,332 @@
+/*
+ * Store Report Engine
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class builds the end-of-day report of every store: order count,
+ * open (not yet complete) orders, revenue and item mix over a date range.
+ *
+ * Instead of one query per store on one connection, the stores of each
+ * shard are split into ranges of STORES_PER_TASK and the ranges are run as
+ * fork/join tasks.  A leaf borrows one pooled session of its shard, reads
+ * the totals and the item mix of its whole storeID range with two grouped
+ * queries and gives the session back; results are merged on the way up.
+ * The pool never has more tasks in flight than its parallelism, so it
+ * should not be set above the number of connections per shard.
+ *
+ * Tunables (system properties): pizza.report.parallelism (default the
+ * pool size), pizza.report.storesPerTask (default 25).  Progress goes to
+ * standard error every PROGRESS_MS, so the report itself can be redirected
+ * (with -Dpizza.output=csv for a file).
+ *
+ */
+public class StoreReportEngine {
+
+   static final long PROGRESS_MS = 2000;
+   static final int STORES_PER_TASK = Integer.getInteger("pizza.report.storesPerTask", 25);
+
+   /**
+    * The totals of one store.
+    */
+   public static class StoreTotals {
+      public final int storeID;
+      public long orders = 0;
+      public long open = 0;
+      public BigDecimal revenue = BigDecimal.ZERO;
+      public final Map<String, Long> items = new HashMap<String, Long>();
+
+      StoreTotals(int storeID) {
+         this.storeID = storeID;
+      }
+
+      /*
+       * @return the item sold most often, or "" without orders
+       **/
+      String topItem() {
+         String top = "";
+         long best = 0;
+         for (Map.Entry<String, Long> e : items.entrySet()) {
+            if (e.getValue() > best || (e.getValue() == best && e.getKey().compareTo(top) < 0)) {
+               top = e.getKey();
+               best = e.getValue();
+            }
+         }
+         return best == 0 ? "" : top + " x" + best;
+      }
+   }//end StoreTotals
+
+   /**
+    * The merged report: every store, ordered by storeID.
+    */
+   public static class Report {
+      public final TreeMap<Integer, StoreTotals> stores = new TreeMap<Integer, StoreTotals>();
+
+      StoreTotals store(int storeID) {
+         StoreTotals t = stores.get(storeID);
+         if (t == null) {
+            t = new StoreTotals(storeID);
+            stores.put(storeID, t);
+         }
+         return t;
+      }
+
+      /*
+       * Ranges never overlap, so merging is moving the other side's stores
+       * over.
+       **/
+      Report merge(Report other) {
+         stores.putAll(other.stores);
+         return this;
+      }
+   }//end Report
+
+   private final ConnectionPool pool;
+   private final ShardRouter shards;
+   private final int parallelism;
+   private final AtomicInteger done = new AtomicInteger();
+   private final AtomicLong lastProgress = new AtomicLong();
+   private int total = 0;
+
+   /**
+    * @param pool the pool to borrow from when not sharded
+    * @param shards the shard router, or null
+    * @param parallelism how many ranges run at once
+    */
+   public StoreReportEngine(ConnectionPool pool, ShardRouter shards, int parallelism) {
+      this.pool = pool;
+      this.shards = shards;
+      this.parallelism = Math.max(1, parallelism);
+   }
+
+   /**
+    * @return the configured parallelism: pizza.report.parallelism, else the
+    *         size of the pool
+    */
+   public static int defaultParallelism(ConnectionPool pool) {
+      return Integer.getInteger("pizza.report.parallelism", pool == null ? 4 : pool.size());
+   }
+
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            StoreReportEngine.class.getName () +
+            " <dbname> <port> <user> <fromDate> [toDate]");
+         return;
+      }//end if
+
+      ConnectionPool pool = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         int parallelism = defaultParallelism(null);
+         pool = new ConnectionPool(args[0], args[1], args[2], "", parallelism);
+
+         StoreReportEngine engine = new StoreReportEngine(pool, null, parallelism);
+         PizzaStore esql = pool.borrow();
+         List<Integer> stores;
+         try{ stores = storeIDs(esql); }
+         finally{ pool.release(esql); }
+
+         long started = System.currentTimeMillis();
+         Report report = engine.run(stores, args[3], args.length > 4 ? args[4] : args[3]);
+         print(report);
+         System.err.println("Report of " + report.stores.size() + " stores in "
+            + (System.currentTimeMillis() - started) + " ms with " + parallelism + " workers");
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if(pool != null) pool.closeAll ();
+      }//end try
+   }//end main
+
+   /**
+    * @return the storeID of every store, in order
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static List<Integer> storeIDs(PizzaStore esql) throws SQLException {
+      List<Integer> ids = new ArrayList<Integer>();
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT S.storeID FROM Store S ORDER BY S.storeID")) {
+         ids.add(Integer.parseInt(row.get(0).trim()));
+      }
+      return ids;
+   }//end storeIDs
+
+   /**
+    * Builds the report of the given stores for the orders placed between
+    * two dates, both inclusive.
+    *
+    * @param storeIDs the stores to report, ascending
+    * @param from first day, yyyy-mm-dd
+    * @param to last day, yyyy-mm-dd
+    * @return the merged report
+    * @throws Exception when a query fails
+    */
+   public Report run(List<Integer> storeIDs, String from, String to) throws Exception {
+      // validates both dates before they go into the queries
+      final String range = "R.orderTimestamp >= DATE \'" + java.sql.Date.valueOf(from.trim())
+         + "\' AND R.orderTimestamp < DATE \'" + java.sql.Date.valueOf(to.trim()) + "\' + 1";
+
+      int n = (shards == null) ? 1 : shards.size();
+      List<List<Integer>> byShard = new ArrayList<List<Integer>>();
+      for (int i = 0; i < n; i++) byShard.add(new ArrayList<Integer>());
+      for (int id : storeIDs) byShard.get(shards == null ? 0 : shards.shardOfStore(id)).add(id);
+
+      total = storeIDs.size();
+      done.set(0);
+      lastProgress.set(System.currentTimeMillis());
+
+      final List<RangeTask> roots = new ArrayList<RangeTask>();
+      for (int i = 0; i < n; i++) {
+         if (!byShard.get(i).isEmpty()) roots.add(new RangeTask(i, byShard.get(i), 0, byShard.get(i).size(), range));
+      }
+
+      ForkJoinPool workers = new ForkJoinPool(parallelism);
+      try{
+         Report report = workers.invoke(new RecursiveTask<Report>() {
+            protected Report compute() {
+               invokeAll(roots);
+               Report merged = new Report();
+               for (RangeTask t : roots) merged.merge(t.join());
+               return merged;
+            }
+         });
+         System.err.println("Report: " + total + "/" + total + " stores");
+         return report;
+      }catch(RuntimeException e){
+         // a leaf's SQLException comes back wrapped
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }finally{
+         workers.shutdown();
+      }
+   }//end run
+
+   /*
+    * A run of stores on one shard: split in halves down to STORES_PER_TASK,
+    * then read with one session.
+    **/
+   private class RangeTask extends RecursiveTask<Report> {
+      private static final long serialVersionUID = 1L;
+
+      final int shard;
+      final List<Integer> ids;
+      final int lo, hi;
+      final String range;
+
+      RangeTask(int shard, List<Integer> ids, int lo, int hi, String range) {
+         this.shard = shard;
+         this.ids = ids;
+         this.lo = lo;
+         this.hi = hi;
+         this.range = range;
+      }
+
+      protected Report compute() {
+         if (hi - lo > STORES_PER_TASK) {
+            int mid = (lo + hi) >>> 1;
+            RangeTask left = new RangeTask(shard, ids, lo, mid, range);
+            RangeTask right = new RangeTask(shard, ids, mid, hi, range);
+            left.fork();
+            Report merged = right.compute();
+            return merged.merge(left.join());
+         }
+         try{
+            return leaf();
+         }catch(Exception e){
+            throw new RuntimeException(e);
+         }
+      }//end compute
+
+      private Report leaf() throws Exception {
+         Report report = new Report();
+         for (int i = lo; i < hi; i++) report.store(ids.get(i));
+         // other shards hold no orders of the stores in between, so a
+         // BETWEEN on the storeID range is exact and uses the store index
+         String where = " WHERE R.storeID BETWEEN " + ids.get(lo) + " AND " + ids.get(hi - 1) + " AND " + range;
+
+         PizzaStore esql = borrow(shard);
+         try{
+            for (List<String> row : esql.executeQueryAndReturnResult(
+                  "SELECT R.storeID, count(*), sum(CASE WHEN R.orderStatus = \'" + OrderStatus.COMPLETE + "\' THEN 0 ELSE 1 END), "
+                  + "sum(R.totalPrice) FROM FoodOrder R" + where + " GROUP BY R.storeID")) {
+               StoreTotals t = report.store(Integer.parseInt(row.get(0).trim()));
+               t.orders = Long.parseLong(row.get(1).trim());
+               t.open = Long.parseLong(row.get(2).trim());
+               t.revenue = new BigDecimal(row.get(3).trim());
+            }
+            for (List<String> row : esql.executeQueryAndReturnResult(
+                  "SELECT R.storeID, N.itemName, sum(N.quantity) FROM FoodOrder R "
+                  + "JOIN ItemsInOrder N ON N.orderID = R.orderID" + where + " GROUP BY R.storeID, N.itemName")) {
+               report.store(Integer.parseInt(row.get(0).trim())).items.put(row.get(1).trim(), Long.parseLong(row.get(2).trim()));
+            }
+         }finally{
+            release(esql);
+         }
+         progress(hi - lo);
+         return report;
+      }//end leaf
+   }//end RangeTask
+
+   private PizzaStore borrow(int shard) throws InterruptedException {
+      return (shards == null) ? pool.borrow() : shards.borrow(shard);
+   }
+
+   private void release(PizzaStore esql) {
+      if (shards == null) pool.release(esql);
+      else shards.release(esql);
+   }
+
+   private void progress(int stores) {
+      int now = done.addAndGet(stores);
+      long last = lastProgress.get();
+      long time = System.currentTimeMillis();
+      if (time - last >= PROGRESS_MS && lastProgress.compareAndSet(last, time)) {
+         System.err.println("Report: " + now + "/" + total + " stores");
+      }
+   }//end progress
+
+   /**
+    * Prints one row per store and a total row.
+    */
+   public static void print(Report report) {
+      long orders = 0, open = 0;
+      BigDecimal revenue = BigDecimal.ZERO;
+      StoreTotals all = new StoreTotals(0);
+      TableRenderer table = TableRenderer.console();
+      table.begin(new String[] { "storeid", "orders", "open", "revenue", "topitem" });
+      for (StoreTotals t : report.stores.values()) {
+         table.row(new String[] { String.valueOf(t.storeID), String.valueOf(t.orders), String.valueOf(t.open),
+            t.revenue.toPlainString(), t.topItem() });
+         orders += t.orders;
+         open += t.open;
+         revenue = revenue.add(t.revenue);
+         for (Map.Entry<String, Long> e : t.items.entrySet()) {
+            Long sum = all.items.get(e.getKey());
+            all.items.put(e.getKey(), sum == null ? e.getValue() : sum + e.getValue());
+         }
+      }
+      table.row(new String[] { "all", String.valueOf(orders), String.valueOf(open), revenue.toPlainString(), all.topItem() });
+      table.end();
+   }//end print
+}//end StoreReportEngine
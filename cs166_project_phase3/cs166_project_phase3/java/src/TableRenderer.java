@@ -0,0 +1,249 @@
+/*
+ * Table Renderer
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class prints query results as a table.  Rows are written through
+ * one large buffered writer straight to the standard output file
+ * descriptor instead of one synchronized System.out call per cell, and are
+ * streamed as they come in: only the first SAMPLE_ROWS rows are held back
+ * to size the columns, everything after is written immediately.
+ *
+ * Output modes:
+ *
+ *    aligned  padded columns with a header rule (default)
+ *    tsv      tab separated
+ *    csv      comma separated, quoted where needed
+ *
+ * With a page size set, aligned output stops after every page and waits
+ * for Enter (or 'q' to stop).  Mode and page size come from the
+ * pizza.output and pizza.pageSize system properties.
+ *
+ */
+public class TableRenderer {
+
+   public enum Mode { ALIGNED, TSV, CSV }
+
+   static final int SAMPLE_ROWS = 100;
+   static final int BUFFER_SIZE = 1 << 16;
+
+   // shared by every console renderer so output stays in order
+   private static Writer console = null;
+
+   private final Writer out;
+   private final Mode mode;
+   private final int pageSize;
+
+   private String[] headers;
+   private List<String[]> sample = new ArrayList<String[]>();
+   private int[] widths;
+   private int rows = 0;
+   private int written = 0;   // data lines written, for paging
+   private boolean stopped = false;
+
+   public TableRenderer(Writer out, Mode mode, int pageSize) {
+      this.out = out;
+      this.mode = mode;
+      this.pageSize = pageSize;
+   }
+
+   /**
+    * @return a renderer on standard output using the configured mode and
+    *         page size
+    */
+   public static synchronized TableRenderer console() {
+      if (console == null) {
+         console = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), BUFFER_SIZE);
+      }
+      return new TableRenderer(console, configuredMode(), Integer.getInteger("pizza.pageSize", 0));
+   }//end console
+
+   /*
+    * The pizza.output mode, or aligned when it names no mode.
+    **/
+   private static Mode configuredMode() {
+      try{
+         return Mode.valueOf(System.getProperty("pizza.output", "aligned").trim().toUpperCase());
+      }catch(IllegalArgumentException e){
+         return Mode.ALIGNED;
+      }
+   }//end configuredMode
+
+   /**
+    * Streams a whole result set.  The header is only printed when there
+    * is at least one row.
+    *
+    * @param rs the result set to print
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when reading the result set fails
+    */
+   public int render(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      String[] names = new String[numCol];
+      for (int i = 1; i <= numCol; ++i) names[i - 1] = rsmd.getColumnName(i);
+
+      boolean outputHeader = true;
+      while (!stopped && rs.next()) {
+         if (outputHeader) {
+            begin(names);
+            outputHeader = false;
+         }
+         String[] cells = new String[numCol];
+         for (int i = 1; i <= numCol; ++i) cells[i - 1] = rs.getString(i);
+         row(cells);
+      }
+      return end();
+   }//end render
+
+   /**
+    * Starts a table.
+    */
+   public void begin(String[] headers) {
+      System.out.flush();   // anything printed before the table goes first
+      this.headers = headers;
+      if (mode != Mode.ALIGNED) write(headers);
+   }//end begin
+
+   /**
+    * Adds one row.  In aligned mode the first rows are held back until the
+    * column widths are known.
+    *
+    * @return false once the user stopped paging
+    */
+   public boolean row(String[] cells) {
+      if (stopped) return false;
+      rows++;
+      if (mode == Mode.ALIGNED && widths == null) {
+         sample.add(cells);
+         if (sample.size() >= SAMPLE_ROWS) releaseSample();
+         return true;
+      }
+      write(cells);
+      return !stopped;
+   }//end row
+
+   /**
+    * Finishes the table and flushes the output.
+    *
+    * @return the number of rows added
+    */
+   public int end() {
+      if (headers != null && mode == Mode.ALIGNED && widths == null) releaseSample();
+      flush();
+      return rows;
+   }//end end
+
+   /*
+    * Sizes the columns from the sampled rows and writes them out.
+    **/
+   private void releaseSample() {
+      widths = new int[headers.length];
+      for (int i = 0; i < headers.length; i++) widths[i] = headers[i].length();
+      for (String[] cells : sample) {
+         for (int i = 0; i < cells.length && i < widths.length; i++) {
+            widths[i] = Math.max(widths[i], String.valueOf(cells[i]).trim().length());
+         }
+      }
+      writeAlignedHeader();
+      List<String[]> held = sample;
+      sample = null;
+      for (String[] cells : held) {
+         if (stopped) break;
+         write(cells);
+      }
+   }//end releaseSample
+
+   private void writeAlignedHeader() {
+      write(headers);
+      StringBuilder rule = new StringBuilder();
+      for (int i = 0; i < widths.length; i++) {
+         if (i > 0) rule.append("-+-");
+         for (int j = 0; j < widths[i]; j++) rule.append('-');
+      }
+      append(rule.append('\n').toString());
+   }
+
+   private void write(String[] cells) {
+      StringBuilder line = new StringBuilder(128);
+      for (int i = 0; i < cells.length; i++) {
+         String cell = String.valueOf(cells[i]);
+         switch (mode) {
+            case ALIGNED:
+               cell = cell.trim();
+               if (i > 0) line.append(" | ");
+               line.append(cell);
+               if (i < cells.length - 1)
+                  for (int j = cell.length(); j < widths[i]; j++) line.append(' ');
+               break;
+            case TSV:
+               if (i > 0) line.append('\t');
+               line.append(cell.replace('\t', ' ').replace('\n', ' '));
+               break;
+            case CSV:
+               if (i > 0) line.append(',');
+               if (cells[i] == null) break;   // empty field, not the word null
+               if (cell.indexOf(',') >= 0 || cell.indexOf('"') >= 0 || cell.indexOf('\n') >= 0)
+                  cell = "\"" + cell.replace("\"", "\"\"") + "\"";
+               line.append(cell);
+               break;
+         }
+      }
+      append(line.append('\n').toString());
+
+      // the header line does not count towards a page
+      if (cells != headers && pageSize > 0 && mode == Mode.ALIGNED && ++written % pageSize == 0) pause();
+   }//end write
+
+   /*
+    * Waits for the user between pages.
+    **/
+   private void pause() {
+      flush();
+      System.out.print("-- more (Enter to continue, q to stop) -- ");
+      System.out.flush();
+      try{
+         String answer = PizzaStore.in.readLine();
+         stopped = answer == null || answer.trim().equals("q");
+      }catch(IOException e){
+         stopped = true;
+      }
+   }//end pause
+
+   private void append(String s) {
+      try{
+         out.write(s);
+      }catch(IOException e){
+         stopped = true;
+      }
+   }
+
+   private void flush() {
+      try{
+         out.flush();
+      }catch(IOException e){
+         // ignored.
+      }
+   }
+}//end TableRenderer
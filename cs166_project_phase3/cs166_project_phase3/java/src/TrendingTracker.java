@@ -0,0 +1,357 @@
+/*
+ * Trending Tracker
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * This class tracks which items are selling right now, across every
+ * application instance, without a GROUP BY over the whole of ItemsInOrder
+ * per menu view.  At startup the window is read from FoodOrder /
+ * ItemsInOrder, summed per minute, store and item; after that a background
+ * thread reads what was ordered since, every REFRESH_MS, up to LAG_MS ago
+ * (so transactions still committing are not skipped).  Orders committed
+ * with a time already behind that point, such as journal replays after a
+ * long outage, are not counted.  Counts are kept
+ * with the space-saving algorithm: a summary holds at most `capacity`
+ * counters, and an item that is not tracked takes over the smallest
+ * counter (inheriting its count as possible error).  Memory is bounded no
+ * matter how many orders come in, and every reported count is at most
+ * N / capacity too high, where N is the number of units counted.
+ *
+ * The window (default one hour) is split into buckets, each with its own
+ * summary for all stores and one per store.  Old buckets are dropped as
+ * time moves on; a query adds up the live buckets.
+ *
+ * Tunables (system properties, prefix pizza.trending.): capacity (100),
+ * storeCapacity (20), windowMinutes (60), buckets (12), refreshSeconds
+ * (15).  Running the class
+ * itself compares the summaries against exact counts on a synthetic stream:
+ *
+ *    java TrendingTracker [units] [distinctItems] [capacity]
+ *
+ */
+public class TrendingTracker {
+
+   static final long REFRESH_MS = Long.getLong("pizza.trending.refreshSeconds", 15L) * 1000L;
+   static final long LAG_MS = 5000;
+
+   static final String UNITS_QUERY = "SELECT date_trunc(\'minute\', R.orderTimestamp), R.storeID, N.itemName, sum(N.quantity) "
+      + "FROM FoodOrder R JOIN ItemsInOrder N ON N.orderID = R.orderID ";
+
+   /**
+    * An item with its estimated count; the true count lies in
+    * [count - error, count].
+    */
+   public static class Trend {
+      public final String itemName;
+      public final long count;
+      public final long error;
+
+      Trend(String itemName, long count, long error) {
+         this.itemName = itemName;
+         this.count = count;
+         this.error = error;
+      }
+   }//end Trend
+
+   /*
+    * One space-saving summary.
+    **/
+   static class Summary {
+      static class Counter implements Comparable<Counter> {
+         final String item;
+         final long count;
+         final long error;
+         final long seq;
+
+         Counter(String item, long count, long error, long seq) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+            this.seq = seq;
+         }
+
+         public int compareTo(Counter other) {
+            if (count != other.count) return count < other.count ? -1 : 1;
+            return Long.compare(seq, other.seq);
+         }
+      }//end Counter
+
+      final int capacity;
+      final Map<String, Counter> counters = new HashMap<String, Counter>();
+      final TreeSet<Counter> byCount = new TreeSet<Counter>();   // smallest first
+      long seq = 0;
+
+      Summary(int capacity) {
+         this.capacity = capacity;
+      }
+
+      void add(String item, long units) {
+         Counter old = counters.get(item);
+         Counter next;
+         if (old != null) {
+            byCount.remove(old);
+            next = new Counter(item, old.count + units, old.error, seq++);
+         }else if (counters.size() < capacity) {
+            next = new Counter(item, units, 0, seq++);
+         }else{
+            Counter min = byCount.pollFirst();   // evict the smallest, take over its count
+            counters.remove(min.item);
+            next = new Counter(item, min.count + units, min.count, seq++);
+         }
+         counters.put(item, next);
+         byCount.add(next);
+      }
+   }//end Summary
+
+   /*
+    * The summaries of one slice of the window.
+    **/
+   static class Bucket {
+      final long start;
+      final Summary all;
+      final Map<Integer, Summary> stores = new HashMap<Integer, Summary>();
+
+      Bucket(long start, int capacity) {
+         this.start = start;
+         this.all = new Summary(capacity);
+      }
+   }//end Bucket
+
+   private final int capacity;
+   private final int storeCapacity;
+   private final long bucketMs;
+   private final Bucket[] buckets;
+   private long readUpTo = 0;   // orders up to this time have been read
+   private volatile boolean running = false;
+   private Thread reader;
+
+   public TrendingTracker() {
+      this(Integer.getInteger("pizza.trending.capacity", 100), Integer.getInteger("pizza.trending.storeCapacity", 20),
+           Long.getLong("pizza.trending.windowMinutes", 60L) * 60000L, Integer.getInteger("pizza.trending.buckets", 12));
+   }
+
+   public TrendingTracker(int capacity, int storeCapacity, long windowMs, int bucketCount) {
+      this.capacity = capacity;
+      this.storeCapacity = storeCapacity;
+      this.bucketMs = Math.max(1, windowMs / bucketCount);
+      this.buckets = new Bucket[bucketCount];
+   }
+
+   /**
+    * Reads the window so far and starts the thread reading newer orders.
+    *
+    * @param esql the session to read the window with
+    * @throws java.sql.SQLException when the orders cannot be read
+    */
+   public void start(PizzaStore esql) throws SQLException {
+      readUpTo = System.currentTimeMillis() - bucketMs * buckets.length;
+      readNew(esql);
+      running = true;
+      reader = new Thread(new Runnable() {
+         public void run() { readLoop(); }
+      }, "trending-reader");
+      reader.setDaemon(true);
+      reader.start();
+   }//end start
+
+   public void close() {
+      running = false;
+      if (reader != null) reader.interrupt();
+   }
+
+   private void readLoop() {
+      while (running) {
+         try { Thread.sleep(REFRESH_MS); } catch (InterruptedException e) { break; }
+         PizzaStore session = null;
+         try{
+            if (PizzaStore.shards == null) session = PizzaStore.pool.borrow();
+            readNew(session);
+         }catch(InterruptedException e){
+            break;
+         }catch(Exception e){
+            System.err.println("Trending: could not read new orders (" + e.getMessage() + ")");
+         }finally{
+            PizzaStore.pool.release(session);
+         }
+      }
+   }//end readLoop
+
+   /*
+    * Counts the units ordered after readUpTo and up to LAG_MS ago, on every
+    * shard when sharded.
+    **/
+   private void readNew(PizzaStore esql) throws SQLException {
+      long upTo = System.currentTimeMillis() - LAG_MS;
+      if (upTo <= readUpTo) return;
+      String query = UNITS_QUERY + "WHERE R.orderTimestamp > \'" + new Timestamp(readUpTo) + "\' AND R.orderTimestamp <= \'"
+         + new Timestamp(upTo) + "\' GROUP BY 1, 2, 3";
+      List<List<List<String>>> parts = new ArrayList<List<List<String>>>();
+      if (PizzaStore.shards != null) parts.addAll(PizzaStore.shards.scatter(query));
+      else parts.add(esql.executeQueryAndReturnResult(query));
+
+      synchronized (this) {
+         long now = System.currentTimeMillis();
+         for (List<List<String>> rows : parts) {
+            for (List<String> r : rows) {
+               add(Timestamp.valueOf(r.get(0).trim()).getTime(), Integer.parseInt(r.get(1).trim()), r.get(2).trim(),
+                   Long.parseLong(r.get(3).trim()), now);
+            }
+         }
+         readUpTo = upTo;
+      }
+   }//end readNew
+
+   /**
+    * Counts the items of one order; the synthetic stream of main() uses
+    * this instead of the database.
+    */
+   public synchronized void record(OrderRecord order) {
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < order.itemNames.size(); i++) {
+         add(order.orderTimestamp, order.storeID, order.itemNames.get(i), order.quantities.get(i), now);
+      }
+   }//end record
+
+   private void add(long time, int storeID, String itemName, long units, long now) {
+      Bucket b = bucketFor(time, now);
+      if (b == null) return;   // older than the window
+      Summary store = b.stores.get(storeID);
+      if (store == null) {
+         store = new Summary(storeCapacity);
+         b.stores.put(storeID, store);
+      }
+      b.all.add(itemName, units);
+      store.add(itemName, units);
+   }//end add
+
+   /**
+    * @param storeID a store, or -1 for all stores
+    * @param k how many items to return at most
+    * @return the best selling items of the window, best first
+    */
+   public synchronized List<Trend> top(int storeID, int k) {
+      long now = System.currentTimeMillis();
+      List<Summary> live = new ArrayList<Summary>();
+      for (Bucket b : buckets) {
+         if (b == null || b.start <= now - bucketMs * buckets.length) continue;
+         Summary s = (storeID < 0) ? b.all : b.stores.get(storeID);
+         if (s != null) live.add(s);
+      }
+
+      // an item missing from a full summary may still have up to that
+      // summary's smallest count there, which is added as error
+      Map<String, long[]> merged = new HashMap<String, long[]>();
+      for (Summary s : live) {
+         for (String item : s.counters.keySet()) merged.put(item, new long[2]);
+      }
+      for (Summary s : live) {
+         long floor = (s.counters.size() < s.capacity) ? 0 : s.byCount.first().count;
+         for (Map.Entry<String, long[]> e : merged.entrySet()) {
+            Summary.Counter c = s.counters.get(e.getKey());
+            e.getValue()[0] += (c == null) ? floor : c.count;
+            e.getValue()[1] += (c == null) ? floor : c.error;
+         }
+      }
+
+      List<Trend> trends = new ArrayList<Trend>();
+      for (Map.Entry<String, long[]> e : merged.entrySet()) {
+         trends.add(new Trend(e.getKey(), e.getValue()[0], e.getValue()[1]));
+      }
+      Collections.sort(trends, new Comparator<Trend>() {
+         public int compare(Trend a, Trend b) {
+            if (a.count != b.count) return a.count > b.count ? -1 : 1;
+            return a.itemName.compareTo(b.itemName);
+         }
+      });
+      return trends.size() > k ? new ArrayList<Trend>(trends.subList(0, k)) : trends;
+   }//end top
+
+   /*
+    * Returns the bucket an event time falls in, recycling expired slots,
+    * or null when the time is outside the window.
+    **/
+   private Bucket bucketFor(long time, long now) {
+      long start = time - Math.floorMod(time, bucketMs);
+      if (start <= now - bucketMs * buckets.length || start > now) return null;
+      int slot = (int) Math.floorMod(start / bucketMs, (long) buckets.length);
+      if (buckets[slot] == null || buckets[slot].start != start) {
+         if (buckets[slot] != null && buckets[slot].start > start) return null;
+         buckets[slot] = new Bucket(start, capacity);
+      }
+      return buckets[slot];
+   }//end bucketFor
+
+   /**
+    * Compares the summary against exact counts on a Zipf-like stream and
+    * prints the largest overestimate next to the N / capacity bound.
+    *
+    * @param args [units] [distinctItems] [capacity]
+    */
+   public static void main(String[] args) {
+      int units = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int distinct = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+      int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+      double[] cumulative = new double[distinct];
+      double sum = 0;
+      for (int i = 0; i < distinct; i++) cumulative[i] = (sum += 1.0 / (i + 1));
+
+      TrendingTracker tracker = new TrendingTracker(capacity, capacity, 3600000L, 1);
+      Map<String, Long> exact = new HashMap<String, Long>();
+      Random rand = new Random(42);
+      List<String> line = new ArrayList<String>();
+      List<Integer> one = Collections.singletonList(1);
+      for (int i = 0; i < units; i++) {
+         int idx = java.util.Arrays.binarySearch(cumulative, rand.nextDouble() * sum);
+         String item = "item" + (idx < 0 ? -idx - 1 : idx);
+         line.clear();
+         line.add(item);
+         tracker.record(new OrderRecord(i, "x", 0, 0, System.currentTimeMillis(), OrderStatus.COMPLETE, line, one, -1));
+         Long n = exact.get(item);
+         exact.put(item, n == null ? 1 : n + 1);
+      }
+
+      int k = 10;
+      List<Trend> top = tracker.top(-1, capacity);
+      long worst = 0;
+      for (Trend t : top) {
+         long real = exact.containsKey(t.itemName) ? exact.get(t.itemName) : 0;
+         worst = Math.max(worst, t.count - real);
+      }
+      List<Map.Entry<String, Long>> truth = new ArrayList<Map.Entry<String, Long>>(exact.entrySet());
+      Collections.sort(truth, new Comparator<Map.Entry<String, Long>>() {
+         public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+            return Long.compare(b.getValue(), a.getValue());
+         }
+      });
+      int found = 0;
+      for (int i = 0; i < k && i < truth.size(); i++) {
+         for (int j = 0; j < k && j < top.size(); j++) {
+            if (top.get(j).itemName.equals(truth.get(i).getKey())) found++;
+         }
+      }
+      System.out.println(units + " units over " + exact.size() + " items, capacity " + capacity);
+      System.out.println("largest overestimate " + worst + " (bound N/capacity = " + (units / capacity) + ")");
+      System.out.println("top " + k + " recall " + found + "/" + k);
+   }//end main
+}//end TrendingTracker
@@ -0,0 +1,282 @@
+/*
+ * Bulk User Import
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class creates or updates users in bulk from a CSV file in the
+ * users.csv format (login,password,role,favoriteItems,phoneNum, with a
+ * header line), for onboarding a whole franchise at once instead of one
+ * CreateUser / updateUser session per person.
+ *
+ * Every row is checked in memory (field count, required fields, lengths of
+ * the Users columns, role) before anything is written.  Valid rows are
+ * sent as multi-row INSERT ... ON CONFLICT (login) DO UPDATE statements of
+ * ROWS_PER_STATEMENT rows, several statements per transaction.  A login
+ * that appears more than once keeps its last row.  If a transaction fails
+ * it is rolled back and its rows are retried one at a time so the bad row
+ * can be reported with its line number.  With pizza.shards set (see
+ * ShardRouter) the file is imported into every shard, as Users is
+ * replicated.
+ *
+ */
+public class UserImport {
+
+   static final int ROWS_PER_STATEMENT = 1000;
+   static final int DEFAULT_ROWS_PER_TRANSACTION = 20000;
+
+   static final String UPSERT_TAIL = " ON CONFLICT (login) DO UPDATE SET password = EXCLUDED.password, "
+      + "role = EXCLUDED.role, favoriteItems = EXCLUDED.favoriteItems, phoneNum = EXCLUDED.phoneNum "
+      + "RETURNING (xmax = 0) AS inserted";
+
+   /**
+    * A validated row and the line it came from.
+    */
+   static class Row {
+      final int lineNo;
+      final String values;
+
+      Row(int lineNo, String values) {
+         this.lineNo = lineNo;
+         this.values = values;
+      }
+   }//end Row
+
+   private final PizzaStore esql;
+   private final int rowsPerTransaction;
+   private final boolean checkOnly;
+
+   private final Set<String> seen = new HashSet<String>();
+   private int read = 0;
+   private int invalid = 0;
+   private int duplicates = 0;
+   private int inserted = 0;
+   private int updated = 0;
+   private int failed = 0;
+   private long elapsedMs = 0;
+
+   /**
+    * @param esql the session to write through
+    * @param rowsPerTransaction how many rows each transaction commits
+    * @param checkOnly validate the file without writing anything
+    */
+   public UserImport(PizzaStore esql, int rowsPerTransaction, boolean checkOnly) {
+      this.esql = esql;
+      this.rowsPerTransaction = Math.max(ROWS_PER_STATEMENT, rowsPerTransaction);
+      this.checkOnly = checkOnly;
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <csvFile> [rowsPerTransaction] [--check]
+    */
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            UserImport.class.getName () +
+            " <dbname> <port> <user> <csvFile> [rowsPerTransaction] [--check]");
+         return;
+      }//end if
+
+      ConnectionPool pool = null;
+      ShardRouter shards = null;
+      try{
+         Class.forName ("org.postgresql.Driver");
+         pool = new ConnectionPool (args[0], args[1], args[2], "", 1);
+         shards = ShardRouter.open(pool, args[2], "", 1);
+
+         boolean checkOnly = args[args.length - 1].equals("--check");
+         int rows = (args.length > 4 && !args[4].equals("--check")) ? Integer.parseInt(args[4]) : DEFAULT_ROWS_PER_TRANSACTION;
+
+         // Users is replicated: every shard gets the whole file
+         int n = (shards == null) ? 1 : shards.size();
+         for (int i = 0; i < n; i++) {
+            PizzaStore esql = (shards == null) ? pool.borrow() : shards.borrow(i);
+            try{
+               UserImport importer = new UserImport(esql, rows, checkOnly);
+               BufferedReader input = new BufferedReader(new FileReader(args[3]), 1 << 16);
+               try{ importer.run(input); }
+               finally{ input.close(); }
+               if (n > 1) System.out.println("Shard " + i + ":");
+               System.out.println(importer.summary());
+            }finally{
+               if (shards == null) pool.release(esql);
+               else shards.release(esql);
+            }
+         }
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if(shards != null) shards.closeAll ();
+         if(pool != null) pool.closeAll ();
+      }//end try
+   }//end main
+
+   /**
+    * Reads, validates and upserts every row of the input.
+    *
+    * @param input the CSV stream, header line first
+    * @throws Exception when the input cannot be read or the connection fails
+    */
+   public void run(BufferedReader input) throws Exception {
+      long start = System.currentTimeMillis();
+      // keyed by login so a repeated login inside one chunk keeps its last row;
+      // one statement must not touch the same row twice
+      Map<String, Row> pending = new LinkedHashMap<String, Row>();
+      String line;
+      int lineNo = 0;
+      while ((line = input.readLine()) != null) {
+         lineNo++;
+         if (lineNo == 1 && line.toLowerCase().startsWith("login,")) continue;   // header
+         if (line.trim().length() == 0) continue;
+         read++;
+         try{
+            String[] f = parse(line);
+            validate(f);
+            String login = f[0];
+            if (!seen.add(login)) duplicates++;
+            pending.remove(login);
+            pending.put(login, new Row(lineNo, toValues(f)));
+         }catch(IllegalArgumentException e){
+            invalid++;
+            System.err.println("line " + lineNo + ": " + e.getMessage() + " -- " + line);
+         }
+         if (pending.size() >= rowsPerTransaction) {
+            flush(new ArrayList<Row>(pending.values()));
+            pending.clear();
+         }
+      }
+      flush(new ArrayList<Row>(pending.values()));
+      elapsedMs = System.currentTimeMillis() - start;
+   }//end run
+
+   /**
+    * @return a one-paragraph report of the import
+    */
+   public String summary() {
+      int valid = read - invalid;
+      return read + " rows read, " + invalid + " invalid, " + duplicates + " repeated logins\n"
+         + (checkOnly ? valid + " rows valid, nothing written (--check)\n"
+                      : inserted + " users created, " + updated + " updated, " + failed + " failed\n")
+         + "finished in " + elapsedMs + " ms"
+         + (elapsedMs > 0 ? " (" + (valid * 1000L / elapsedMs) + " rows/s)" : "");
+   }//end summary
+
+   /*
+    * Writes one chunk in a single transaction.
+    **/
+   private void flush(List<Row> rows) throws Exception {
+      if (rows.isEmpty() || checkOnly) return;
+      esql.setAutoCommit(false);
+      try{
+         int newRows = 0;
+         for (int from = 0; from < rows.size(); from += ROWS_PER_STATEMENT) {
+            newRows += upsert(rows.subList(from, Math.min(rows.size(), from + ROWS_PER_STATEMENT)));
+         }
+         esql.commit();
+         inserted += newRows;
+         updated += rows.size() - newRows;
+      }catch(Exception e){
+         esql.rollback();
+         esql.setAutoCommit(true);
+         for (Row row : rows) {
+            try{
+               int newRows = upsert(java.util.Collections.singletonList(row));
+               inserted += newRows;
+               updated += 1 - newRows;
+            }catch(Exception single){
+               failed++;
+               System.err.println("line " + row.lineNo + ": " + single.getMessage());
+            }
+         }
+      }finally{
+         esql.setAutoCommit(true);
+      }
+   }//end flush
+
+   /*
+    * One multi-row upsert; returns how many of the rows were new users.
+    **/
+   private int upsert(List<Row> rows) throws java.sql.SQLException {
+      StringBuilder sql = new StringBuilder(rows.size() * 96 + 256);
+      sql.append("WITH up AS (INSERT INTO Users (login, password, role, favoriteItems, phoneNum) VALUES ");
+      for (int i = 0; i < rows.size(); i++) {
+         if (i > 0) sql.append(',');
+         sql.append(rows.get(i).values);
+      }
+      sql.append(UPSERT_TAIL).append(") SELECT count(*) FROM up WHERE inserted");
+      return Integer.parseInt(esql.executeQueryAndReturnResult(sql.toString()).get(0).get(0).trim());
+   }//end upsert
+
+   /**
+    * Checks one row against the Users table definition.
+    *
+    * @throws IllegalArgumentException when the row cannot be imported
+    */
+   static void validate(String[] f) {
+      if (f.length != 5)
+         throw new IllegalArgumentException("expected 5 fields, found " + f.length);
+      if (f[0].isEmpty() || f[1].isEmpty() || f[4].isEmpty())
+         throw new IllegalArgumentException("login, password and phoneNum cannot be empty");
+      if (f[0].length() > 50) throw new IllegalArgumentException("login longer than 50 characters");
+      if (f[1].length() > 30) throw new IllegalArgumentException("password longer than 30 characters");
+      if (f[4].length() > 20) throw new IllegalArgumentException("phoneNum longer than 20 characters");
+      f[2] = UserRole.parse(f[2]).toString();
+   }//end validate
+
+   /*
+    * Splits a CSV line, honouring double quotes.
+    **/
+   static String[] parse(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') { field.append('"'); i++; }
+            else if (c == '"') quoted = false;
+            else field.append(c);
+         }else if (c == '"') {
+            quoted = true;
+         }else if (c == ',') {
+            fields.add(field.toString().trim());
+            field.setLength(0);
+         }else{
+            field.append(c);
+         }
+      }
+      if (quoted) throw new IllegalArgumentException("unterminated quote");
+      fields.add(field.toString().trim());
+      return fields.toArray(new String[0]);
+   }//end parse
+
+   private static String toValues(String[] f) {
+      return "(\'" + escape(f[0]) + "\', \'" + escape(f[1]) + "\', \'" + f[2] + "\', "
+         + (f[3].isEmpty() ? "null" : "\'" + escape(f[3]) + "\'") + ", \'" + escape(f[4]) + "\')";
+   }
+
+   private static String escape(String s) {
+      return s.replace("\'", "\'\'");
+   }
+}//end UserImport
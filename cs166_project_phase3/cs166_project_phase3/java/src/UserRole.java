@@ -0,0 +1,58 @@
+/*
+ * User Role
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * This enum is the role of a user, stored in Users.role as the Postgres
+ * enum type user_role.  toString() is the SQL label.
+ *
+ */
+public enum UserRole {
+
+   CUSTOMER("customer"),
+   DRIVER("driver"),
+   MANAGER("manager");
+
+   private final String label;
+
+   UserRole(String label) {
+      this.label = label;
+   }
+
+   /**
+    * Parses a role as read from the database or typed by a manager.  Blank
+    * padding (left by the old char(20) column) and case are ignored.
+    *
+    * @param value the stored label
+    * @return the role
+    * @throws IllegalArgumentException when the label is not a role
+    */
+   public static UserRole parse(String value) {
+      String label = value == null ? "" : value.trim().toLowerCase();
+      for (UserRole role : values()) {
+         if (role.label.equals(label)) return role;
+      }
+      throw new IllegalArgumentException("role must be customer, driver or manager, not \'" + label + "\'");
+   }//end parse
+
+   /**
+    * @return true for drivers and managers, who work on orders
+    */
+   public boolean isStaff() {
+      return this == DRIVER || this == MANAGER;
+   }
+
+   @Override
+   public String toString() {
+      return label;
+   }
+}//end UserRole
@@ -0,0 +1,265 @@
+/*
+ * Startup Warmup
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class runs the startup of the application as explicit phases so
+ * that the first real user does not pay for cold caches:
+ *
+ *    driver       load the JDBC driver
+ *    connections  open the connection pool (in parallel)
+ *    shards       open a pool per extra order shard (pizza.shards)
+ *    journal      recover the order journal and start its replayer
+ *    statements   prepare the hot statements on every idle pooled connection (the
+ *                 pg73 driver prepares on the client, so this saves parsing
+ *                 the SQL text, not planning it)
+ *    preload      load the menu index, price snapshot, store ratings and the
+ *                 trending window, start the inventory flusher and review
+ *                 writer, read the store list,
+ *                 start loading the order index in the background
+ *    coherence    listen for Items, Store, Users and order status changes
+ *                 made by other instances (see CacheCoherence)
+ *    hot paths    run the login, menu and store paths until the JIT has
+ *                 compiled them and the server has the tables cached
+ *    capture      start recording statements for SqlReplay (pizza.capture),
+ *                 after the synthetic hot path traffic
+ *
+ * The time of every phase is printed once the application is ready, and
+ * when the pizza.readyFile system property is set that file is written as
+ * the ready signal for scripts doing rolling restarts.
+ *
+ * Tunables (system properties): pizza.poolSize (default 4),
+ * pizza.warmupIterations (default 20), pizza.journalFile (default
+ * orders.journal, "none" turns the order journal off), pizza.orderIndex
+ * (default false), pizza.capture (default off, the capture log file).
+ *
+ */
+public class Warmup {
+
+   // phase name -> milliseconds, in the order they ran
+   private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+   private long phaseStart;
+
+   /**
+    * Runs every warmup phase.  The pool it opens is published as
+    * PizzaStore.pool; the interactive user borrows from it like background
+    * work does.
+    *
+    * @param dbname the name of the database
+    * @param dbport the database port on localhost
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws Exception when the database cannot be reached
+    */
+   public void run(String dbname, String dbport, String user, String passwd) throws Exception {
+      long start = System.nanoTime();
+      int poolSize = Integer.getInteger("pizza.poolSize", 4);
+      int iterations = Integer.getInteger("pizza.warmupIterations", 20);
+
+      begin();
+      Class.forName ("org.postgresql.Driver");
+      end("driver");
+
+      System.out.print("Connecting to database...");
+      ConnectionPool pool = new ConnectionPool(dbname, dbport, user, passwd, poolSize);
+      PizzaStore.pool = pool;
+      PizzaStore esql = pool.borrow();
+      System.out.println("Done");
+      end("connections");
+
+      // open the other order shards, if any
+      PizzaStore.shards = ShardRouter.open(pool, user, passwd, Integer.getInteger("pizza.shardPoolSize", 2));
+      if (PizzaStore.shards != null) {
+         int legacy = PizzaStore.shards.loadLegacy();
+         System.out.println("Orders sharded over " + PizzaStore.shards.size() + " databases"
+            + (legacy > 0 ? ", " + legacy + " with pre-sharding IDs" : ""));
+      }
+      end("shards");
+
+      // recover the order journal and replay what did not reach the database
+      String journalFile = System.getProperty("pizza.journalFile", "orders.journal");
+      if (!journalFile.equals("none")) {
+         PizzaStore.journal = new OrderJournal(journalFile, Integer.getInteger("pizza.journalSizeMB", 16), pool);
+         int pending = PizzaStore.journal.pending();
+         if (pending > 0) System.out.println(pending + " journaled order(s) pending, replaying in the background");
+         PizzaStore.journal.startReplayer();
+      }
+      end("journal");
+
+      // the journal replayer may already hold a session; it prepares its own
+      for (String sql : PizzaStore.HOT_STATEMENTS) esql.prepare(sql);
+      List<PizzaStore> idle = borrowIdle(pool);
+      try{
+         for (PizzaStore session : idle) {
+            for (String sql : PizzaStore.HOT_STATEMENTS) session.prepare(sql);
+         }
+      }finally{
+         for (PizzaStore session : idle) pool.release(session);
+      }
+      end("statements");
+
+      PizzaStore.menuIndex.ensureLoaded(esql);
+      MenuSnapshot.current(esql);
+      PizzaStore.inventory.start();
+      PizzaStore.ratings.ensureLoaded(esql);
+      PizzaStore.trending.start(esql);
+      PizzaStore.reviews.start();
+      if (Boolean.getBoolean("pizza.orderIndex")) PizzaStore.orderIndex.start(pool);
+      List<List<String>> stores = esql.executePreparedQuery(PostgresRepository.ALL_STORES_QUERY);
+      List<List<String>> users = esql.executeQueryAndReturnResult("SELECT U.login FROM Users U LIMIT 1");
+      pool.release(esql);
+      end("preload");
+
+      PizzaStore.coherence = startCoherence(pool);
+      end("coherence");
+
+      exerciseHotPaths(pool, stores, users, iterations);
+      end("hot paths");
+
+      String captureFile = System.getProperty("pizza.capture");
+      if (captureFile != null) {
+         PizzaStore.capture = new SqlCapture(captureFile);
+         System.out.println("Capturing SQL to " + captureFile);
+      }
+      end("capture");
+
+      signalReady();
+
+      StringBuilder breakdown = new StringBuilder("Startup:");
+      for (Map.Entry<String, Long> e : phases.entrySet()) {
+         breakdown.append(" ").append(e.getKey()).append(" ").append(e.getValue()).append(" ms,");
+      }
+      breakdown.append(" total ").append((System.nanoTime() - start) / 1000000L).append(" ms. Ready.");
+      System.out.println(breakdown);
+   }//end run
+
+   /*
+    * Runs every hot statement on every idle pooled connection often enough
+    * for the JIT to compile the driver's statement and row handling, and
+    * runs the in-memory menu search until the JIT has compiled it.
+    * Sessions that background work (the order index loader, the journal
+    * replayer) holds by now are left alone.
+    **/
+   private void exerciseHotPaths(ConnectionPool pool, List<List<String>> stores, List<List<String>> users,
+                                 int iterations) throws Exception {
+      String storeID = stores.isEmpty() ? "0" : stores.get(0).get(0);
+      String login = users.isEmpty() ? "" : users.get(0).get(0);
+
+      List<PizzaStore> idle = borrowIdle(pool);
+      try{
+         for (PizzaStore session : idle) {
+            for (int i = 0; i < iterations; i++) {
+               session.executePreparedQuery(PizzaStore.USER_QUERY, login);
+               session.executePreparedQuery(PostgresRepository.STORE_BY_ID_QUERY, storeID);
+            }
+            // the store list is large, a few runs are enough
+            for (int i = 0; i < 5; i++) session.executePreparedQuery(PostgresRepository.ALL_STORES_QUERY);
+         }
+      }finally{
+         for (PizzaStore session : idle) pool.release(session);
+      }
+
+      String[] keywords = { "chee", "pizza", "chicken", "lemon", "premium", "a" };
+      for (int i = 0; i < iterations * 500; i++) {
+         MenuSearchIndex.Query q = new MenuSearchIndex.Query();
+         q.keywords.add(keywords[i % keywords.length]);
+         if (i % 3 == 0) q.withoutIngredients.add("pepperoni");
+         if (i % 5 == 0) q.withIngredients.add("cheese");
+         PizzaStore.menuIndex.search(q);
+      }
+   }//end exerciseHotPaths
+
+   /*
+    * Borrows every session that is free right now.
+    **/
+   private static List<PizzaStore> borrowIdle(ConnectionPool pool) throws InterruptedException {
+      List<PizzaStore> idle = new ArrayList<PizzaStore>();
+      for (PizzaStore session = pool.borrow(0); session != null; session = pool.borrow(0)) idle.add(session);
+      return idle;
+   }//end borrowIdle
+
+   /*
+    * Registers the caches loaded in preload with a CacheCoherence listener.
+    **/
+   private CacheCoherence startCoherence(ConnectionPool pool) {
+      CacheCoherence coherence = new CacheCoherence(pool);
+      coherence.register("Items", new CacheCoherence.Listener() {
+         public void changed(PizzaStore esql, String key) throws SQLException {
+            PizzaStore.menuIndex.refresh(esql, key);
+            MenuSnapshot.refresh(esql);
+         }
+         public void refreshAll(PizzaStore esql) throws SQLException {
+            PizzaStore.menuIndex.reload(esql);
+            MenuSnapshot.reload(esql);
+         }
+      });
+      coherence.register("Store", new CacheCoherence.Listener() {
+         public void changed(PizzaStore esql, String key) throws SQLException {
+            PizzaStore.ratings.refreshStore(esql, Integer.parseInt(key.trim()));
+         }
+         public void refreshAll(PizzaStore esql) throws SQLException {
+            PizzaStore.ratings.reload(esql);
+         }
+      });
+      coherence.register("FoodOrder", new CacheCoherence.Listener() {
+         public void changed(PizzaStore esql, String key) throws SQLException {
+            PizzaStore.orderDetails.invalidate(Integer.parseInt(key.trim()));
+            PizzaStore.orderIndex.refreshStatus(esql, Integer.parseInt(key.trim()));
+            PizzaStore.recentOrders.refreshStatus(esql, Integer.parseInt(key.trim()));
+         }
+         public void refreshAll(PizzaStore esql) {
+            PizzaStore.orderDetails.clear();
+            PizzaStore.recentOrders.clear();
+         }
+      });
+      coherence.register("Users", new CacheCoherence.Listener() {
+         public void changed(PizzaStore esql, String key) {
+            PizzaStore.changedUsers.add(key);
+         }
+         public void refreshAll(PizzaStore esql) {
+            PizzaStore.changedUsers.add("*");
+         }
+      });
+      coherence.start();
+      return coherence;
+   }//end startCoherence
+
+   private void signalReady() {
+      String readyFile = System.getProperty("pizza.readyFile");
+      if (readyFile == null) return;
+      try{
+         FileWriter out = new FileWriter(new File(readyFile));
+         out.write("ready " + System.currentTimeMillis() + "\n");
+         out.close();
+      }catch(Exception e){
+         System.err.println("Unable to write ready file " + readyFile + ": " + e.getMessage());
+      }
+   }//end signalReady
+
+   private void begin() {
+      phaseStart = System.nanoTime();
+   }
+
+   private void end(String phase) {
+      long now = System.nanoTime();
+      phases.put(phase, (now - phaseStart) / 1000000L);
+      phaseStart = now;
+   }
+}//end Warmup
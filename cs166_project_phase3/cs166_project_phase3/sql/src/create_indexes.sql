@@ -3,3 +3,9 @@ CREATE INDEX item_name ON Items(itemName);
 CREATE INDEX store_id ON Store(storeID);
 CREATE INDEX order_ID ON FoodOrder(orderID);
 CREATE INDEX items_in_order_id ON ItemsInOrder(orderID);
+CREATE INDEX order_store_status ON FoodOrder(storeID, orderStatus, orderTimestamp);
+CREATE INDEX store_review_recent ON StoreReview(storeID, reviewTimestamp);
+CREATE INDEX change_log_age ON ChangeLog(changedAt);
+CREATE INDEX order_store_time ON FoodOrder(storeID, orderTimestamp);
+CREATE INDEX order_time ON FoodOrder(orderTimestamp);
+CREATE INDEX delivery_batch_id ON DeliveryBatch(batchID);
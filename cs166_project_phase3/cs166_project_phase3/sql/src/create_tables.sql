@@ -3,10 +3,24 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS OrderMenuVersion CASCADE;
+DROP TABLE IF EXISTS IngredientStock CASCADE;
+DROP TABLE IF EXISTS StoreReview CASCADE;
+DROP TABLE IF EXISTS StoreReviewStats CASCADE;
+DROP TABLE IF EXISTS ChangeLog CASCADE;
+DROP TABLE IF EXISTS DeliveryBatch CASCADE;
+DROP TABLE IF EXISTS MenuVersion CASCADE;
+DROP TYPE IF EXISTS user_role;
+DROP TYPE IF EXISTS order_status;
+
+-- 4 bytes per row instead of a blank padded char(20) / char(50) (see UserRole,
+-- OrderStatus; EnumMigration converts an existing database)
+CREATE TYPE user_role AS ENUM ('customer', 'driver', 'manager');
+CREATE TYPE order_status AS ENUM ('incomplete', 'delivering', 'complete');
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
-                     role char(20) NOT NULL,
+                     role user_role NOT NULL,
                      favoriteItems text,
                      phoneNum varchar(20) NOT NULL,
                      PRIMARY KEY(login)
@@ -34,7 +48,7 @@ CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
-                           orderStatus char(50),
+                           orderStatus order_status,
                            PRIMARY KEY(orderID),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
@@ -53,3 +67,60 @@ CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            ON DELETE CASCADE
 );
 
+-- the current menu version, one row; every write to Items moves it on in
+-- the same transaction (create_triggers.sql)
+CREATE TABLE MenuVersion ( version bigint NOT NULL );
+INSERT INTO MenuVersion VALUES (0);
+
+-- menu version each order was priced against (see MenuSnapshot)
+
+CREATE TABLE OrderMenuVersion ( orderID integer NOT NULL,
+                           menuVersion bigint NOT NULL,
+                           PRIMARY KEY(orderID),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE
+);
+
+-- units of each ingredient a store has left (see InventoryTracker); below
+-- zero when instances together sold more than there was
+CREATE TABLE IngredientStock ( storeID integer NOT NULL,
+                           ingredient varchar(100) NOT NULL,
+                           quantity bigint NOT NULL,
+                           PRIMARY KEY(storeID, ingredient),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE
+);
+
+-- customer reviews and their running per-store totals (see ReviewWriter)
+CREATE TABLE StoreReview ( reviewID serial NOT NULL,
+                           storeID integer NOT NULL,
+                           login varchar(50) NOT NULL,
+                           score smallint NOT NULL CHECK (score BETWEEN 1 AND 5),
+                           comment varchar(500),
+                           reviewTimestamp timestamp NOT NULL,
+                           PRIMARY KEY(reviewID),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE,
+                           FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE
+);
+
+CREATE TABLE StoreReviewStats ( storeID integer NOT NULL,
+                           reviewCount bigint NOT NULL,
+                           scoreSum bigint NOT NULL,
+                           PRIMARY KEY(storeID),
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE
+);
+
+-- delivery runs claimed by drivers, batchID being the lowest orderID of
+-- the run (see DeliveryBatcher)
+CREATE TABLE DeliveryBatch ( orderID integer NOT NULL,
+                           batchID integer NOT NULL,
+                           storeID integer NOT NULL,
+                           PRIMARY KEY(orderID),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE
+);
+
+-- keys of changed Items, Store and Users rows, filled by create_triggers.sql (see CacheCoherence)
+CREATE TABLE ChangeLog ( seq bigserial NOT NULL,
+                           tableName varchar(30) NOT NULL,
+                           rowKey varchar(100) NOT NULL,
+                           changedAt timestamp NOT NULL DEFAULT now(),
+                           PRIMARY KEY(seq)
+);
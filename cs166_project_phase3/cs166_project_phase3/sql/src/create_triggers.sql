@@ -0,0 +1,55 @@
+-- Every insert, update or delete of a cached table logs the key of the row
+-- to ChangeLog and notifies the application instances (see CacheCoherence).
+-- Created after load_data.sql so the initial load is not logged.
+
+CREATE OR REPLACE FUNCTION log_cache_change() RETURNS trigger AS $$
+DECLARE
+   oldKey text;
+   newKey text;
+BEGIN
+   IF TG_OP <> 'INSERT' THEN
+      oldKey := to_jsonb(OLD) ->> TG_ARGV[0];
+      INSERT INTO ChangeLog (tableName, rowKey) VALUES (TG_TABLE_NAME, oldKey);
+   END IF;
+   IF TG_OP <> 'DELETE' THEN
+      newKey := to_jsonb(NEW) ->> TG_ARGV[0];
+      IF oldKey IS NULL OR newKey <> oldKey THEN
+         INSERT INTO ChangeLog (tableName, rowKey) VALUES (TG_TABLE_NAME, newKey);
+      END IF;
+   END IF;
+   NOTIFY cache_change;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A menu version is taken by the transaction that changes the menu, so a
+-- reader sees a price together with the version it came in with, never
+-- under an older one (see MenuSnapshot).
+CREATE OR REPLACE FUNCTION next_menu_version() RETURNS trigger AS $$
+BEGIN
+   UPDATE MenuVersion SET version = version + 1;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS items_menu_version ON Items;
+CREATE TRIGGER items_menu_version AFTER INSERT OR UPDATE OR DELETE ON Items
+   FOR EACH STATEMENT EXECUTE PROCEDURE next_menu_version();
+
+DROP TRIGGER IF EXISTS items_cache_change ON Items;
+CREATE TRIGGER items_cache_change AFTER INSERT OR UPDATE OR DELETE ON Items
+   FOR EACH ROW EXECUTE PROCEDURE log_cache_change('itemname');
+
+DROP TRIGGER IF EXISTS store_cache_change ON Store;
+CREATE TRIGGER store_cache_change AFTER INSERT OR UPDATE OR DELETE ON Store
+   FOR EACH ROW EXECUTE PROCEDURE log_cache_change('storeid');
+
+DROP TRIGGER IF EXISTS users_cache_change ON Users;
+CREATE TRIGGER users_cache_change AFTER INSERT OR UPDATE OR DELETE ON Users
+   FOR EACH ROW EXECUTE PROCEDURE log_cache_change('login');
+
+-- only status changes and deletes, for the order details and recent orders
+-- caches; orders placed elsewhere reach a recent orders ring by its TTL
+DROP TRIGGER IF EXISTS foodorder_cache_change ON FoodOrder;
+CREATE TRIGGER foodorder_cache_change AFTER UPDATE OF orderStatus OR DELETE ON FoodOrder
+   FOR EACH ROW EXECUTE PROCEDURE log_cache_change('orderid');